@@ -0,0 +1,68 @@
+package com.niweiru;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import ch.qos.logback.classic.Level;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 基准测试共用的工具
+ */
+final class BenchmarkSupport {
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * 创建一个不监听端口的服务器，只用它的路由逻辑；关掉每条消息一行的INFO日志，免得测出来的是日志开销
+     */
+    static Server quietServer() {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Server.class)).setLevel(Level.WARN);
+        ServerConfig config = new ServerConfig();
+        // 同一个发送者连续广播，不关掉限流会被丢弃
+        config.disableRateLimits();
+        return new Server(config);
+    }
+
+    /**
+     * 登录一批内存会话，用户名 user_0 .. user_{n-1}
+     */
+    static MemorySession[] login(Server server, int count, Protocol protocol) {
+        MemorySession[] sessions = new MemorySession[count];
+        for (int i = 0; i < count; i++) {
+            sessions[i] = new MemorySession("user_" + i);
+            sessions[i].setProtocol(protocol);
+            if (!server.login(sessions[i], new Message(new User("id_" + i, "user_" + i), "---login---"))) {
+                throw new IllegalStateException("登录失败 user_" + i);
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * 内存会话：按会话的协议把帧写进一个丢弃所有数据的流，
+     * 包含了编码和写出的CPU开销，但没有系统调用
+     */
+    static final class MemorySession extends Session {
+        private final String name;
+        private final OutputStream sink = OutputStream.nullOutputStream();
+
+        MemorySession(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void send(Frame frame) throws IOException {
+            frame.writeTo(sink, getProtocol());
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return name;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
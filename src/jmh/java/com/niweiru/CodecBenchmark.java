@@ -0,0 +1,106 @@
+package com.niweiru;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 编解码热点：JSON编解码（Gson 与手写的 JsonMessageEncoder/JsonMessageDecoder）和 BinaryCodec
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"16", "256"})
+    int contentLength;
+
+    private Message message;
+    private String json;
+    private byte[] jsonBytes;
+    private byte[] binary;
+    private SenderTable senders;
+
+    @Setup
+    public void setUp() {
+        User sender = new User("user_1234", "alice");
+        message = new Message(sender, "消".repeat(contentLength));
+        json = NetworkUtils.toJson(message);
+        jsonBytes = json.getBytes(StandardCharsets.UTF_8);
+        binary = BinaryCodec.encode(message, 42);
+        senders = new SenderTable();
+        senders.define(42, sender);
+    }
+
+    /**
+     * JsonMessageEncoder：现在广播编码的路径
+     */
+    @Benchmark
+    public byte[] jsonEncode() {
+        return NetworkUtils.encode(message);
+    }
+
+    /**
+     * Gson 编码成字符串再转字节：原来的路径
+     */
+    @Benchmark
+    public byte[] gsonEncode() {
+        return (NetworkUtils.toJson(message) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Message jsonDecode() {
+        return NetworkUtils.decode(json);
+    }
+
+    /**
+     * 收到一行字节后先转成字符串再用Gson解析：原来NIO模式收消息的路径
+     */
+    @Benchmark
+    public Message jsonDecodeFromBytes() {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        return NetworkUtils.decode(new String(bytes, 0, bytes.length, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 收到一行字节后用 JsonMessageDecoder 直接解析：现在两种IO模式收消息的路径
+     */
+    @Benchmark
+    public Message jsonStreamDecode() throws IOException {
+        return JsonMessageDecoder.decode(jsonBytes, 0, jsonBytes.length);
+    }
+
+    /**
+     * 只看内容的第一个字符，用于解码之前的分类和限流
+     */
+    @Benchmark
+    public int jsonPeekContent() throws IOException {
+        return JsonMessageDecoder.peekContent(jsonBytes, 0, jsonBytes.length);
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return BinaryCodec.encode(message, 42);
+    }
+
+    @Benchmark
+    public Message binaryDecode() throws IOException {
+        // binary[0] 是长度前缀，内容长度256时前缀占两个字节
+        int prefix = binary[0] < 0 ? 2 : 1;
+        return BinaryCodec.decode(binary, prefix, binary.length - prefix, senders);
+    }
+}
@@ -0,0 +1,60 @@
+package com.niweiru;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 广播扇出：一条聊天消息经过 Server.handleMessage 发给所有在线的内存会话
+ * receiveAndBroadcast 从收到的一行JSON开始，包括解码（发送者以会话为准，不解析）
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+    @Param({"10", "100", "1000"})
+    int recipients;
+
+    @Param({"JSON", "BINARY"})
+    Protocol protocol;
+
+    private Server server;
+    private Session sender;
+    private Message message;
+    private byte[] line;
+
+    @Setup
+    public void setUp() {
+        server = BenchmarkSupport.quietServer();
+        Session[] sessions = BenchmarkSupport.login(server, recipients, protocol);
+        sender = sessions[0];
+        message = new Message(sender.getUser(), "一条普通长度的聊天消息，用来测量广播开销");
+        line = NetworkUtils.toJson(message).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void broadcast() {
+        server.handleMessage(sender, message);
+    }
+
+    @Benchmark
+    public void receiveAndBroadcast() throws IOException {
+        Message received = JsonMessageDecoder.decode(new Message(), line, 0, line.length, sender.getUser());
+        server.dispatch(sender, received, ServerMetrics.Kind.CHAT);
+    }
+}
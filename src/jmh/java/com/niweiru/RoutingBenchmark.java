@@ -0,0 +1,48 @@
+package com.niweiru;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 私聊路由：解析 @用户名，查找目标会话，发给目标和发送者
+ * 在线人数越多，按用户名查找的开销差别越明显
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RoutingBenchmark {
+    @Param({"10", "1000", "10000"})
+    int online;
+
+    private Server server;
+    private Session sender;
+    private Message privateMessage;
+
+    @Setup
+    public void setUp() {
+        server = BenchmarkSupport.quietServer();
+        Session[] sessions = BenchmarkSupport.login(server, online, Protocol.JSON);
+        sender = sessions[0];
+        // 目标是最后登录的用户
+        privateMessage = new Message(sender.getUser(), "@user_" + (online - 1) + " 悄悄话");
+    }
+
+    @Benchmark
+    public void privateMessage() {
+        server.handleMessage(sender, privateMessage);
+    }
+}
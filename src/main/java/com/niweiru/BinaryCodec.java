@@ -0,0 +1,243 @@
+package com.niweiru;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 紧凑二进制协议的编解码
+ *
+ * 帧格式：varint 帧体长度 + 帧体。帧体：
+ *   消息：  type(1字节) [类型字符串，仅 type=0] varint 时间戳 varint 发送者编号 [内联发送者，仅编号=0] 内容字符串 房间字符串
+ *   发送者定义：type=3 varint 编号 用户ID字符串 用户名字符串
+ *   压缩帧：type=4 原帧体的raw DEFLATE数据（协商了压缩时使用，见 Compression）
+ * 字符串：varint (字节数+1) + UTF-8，0 表示null。
+ *
+ * 发送者不再每条消息重复一个完整的User，而是一个会话级别的整数编号：
+ * 0 表示没有编号（发送者内联在帧里，客户端发给服务器时也用0，服务器以会话登录的用户为准），
+ * 1 固定表示系统，2 起由 SessionRegistry 在登录时分配。
+ * 服务器第一次向某条连接发送某个编号的消息前，先发一帧发送者定义（见 SenderTable）。
+ */
+public final class BinaryCodec {
+    public static final int NO_SID = 0;
+    public static final int SYSTEM_SID = 1;
+    public static final int FIRST_SESSION_SID = 2;
+
+    static final byte TYPE_OTHER = 0;
+    static final byte TYPE_CHAT = 1;
+    static final byte TYPE_PRIVATE = 2;
+    static final byte TYPE_SENDER = 3;
+    // 压缩帧，见 Compression
+    static final byte TYPE_DEFLATE = 4;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * 把消息编码成完整的一帧（含长度前缀）
+     * @param senderSid 发送者编号，NO_SID 时把 message 的发送者内联进帧里
+     */
+    public static byte[] encode(Message message, int senderSid) {
+        // 先算出帧体长度，再写进正好大小的数组
+        ByteWriter counter = ByteWriter.counter();
+        writeMessage(counter, message, senderSid);
+        ByteWriter frame = ByteWriter.frame(counter.size);
+        writeMessage(frame, message, senderSid);
+        return frame.bytes;
+    }
+
+    private static void writeMessage(ByteWriter body, Message message, int senderSid) {
+        String type = message.getType();
+        if ("chat".equals(type)) {
+            body.writeByte(TYPE_CHAT);
+        } else if ("private".equals(type)) {
+            body.writeByte(TYPE_PRIVATE);
+        } else {
+            body.writeByte(TYPE_OTHER);
+            body.writeString(type);
+        }
+        body.writeVarLong(message.getTimestamp());
+        body.writeVarLong(senderSid);
+        if (senderSid == NO_SID) {
+            User sender = message.getSender();
+            body.writeString(sender == null ? null : sender.getId());
+            body.writeString(sender == null ? null : sender.getUsername());
+        }
+        body.writeString(message.getContent());
+        body.writeString(message.getRoom());
+    }
+
+    /**
+     * 编码一帧发送者定义
+     */
+    public static byte[] encodeSender(int sid, User user) {
+        ByteWriter counter = ByteWriter.counter();
+        writeSender(counter, sid, user);
+        ByteWriter frame = ByteWriter.frame(counter.size);
+        writeSender(frame, sid, user);
+        return frame.bytes;
+    }
+
+    private static void writeSender(ByteWriter body, int sid, User user) {
+        body.writeByte(TYPE_SENDER);
+        body.writeVarLong(sid);
+        body.writeString(user.getId());
+        body.writeString(user.getUsername());
+    }
+
+    /**
+     * 解码一个帧体（不含长度前缀）
+     * @param senders 这条连接的发送者编号表，发送者定义帧会登记到这里
+     * @return 解码出的消息；发送者定义帧返回null
+     * @throws IOException 帧格式错误或引用了未定义的发送者
+     */
+    public static Message decode(byte[] array, int offset, int length, SenderTable senders) throws IOException {
+        ByteReader in = new ByteReader(array, offset, offset + length);
+        byte typeCode = in.readByte();
+        if (typeCode == TYPE_SENDER) {
+            int sid = (int) in.readVarLong();
+            senders.define(sid, new User(in.readString(), in.readString()));
+            return null;
+        }
+        Message message = new Message();
+        switch (typeCode) {
+            case TYPE_CHAT:
+                message.setType("chat");
+                break;
+            case TYPE_PRIVATE:
+                message.setType("private");
+                break;
+            case TYPE_OTHER:
+                message.setType(in.readString());
+                break;
+            default:
+                throw new IOException("未知的二进制消息类型 " + typeCode);
+        }
+        message.setTimestamp(in.readVarLong());
+        int sid = (int) in.readVarLong();
+        if (sid == NO_SID) {
+            String id = in.readString();
+            String username = in.readString();
+            if (id != null || username != null) {
+                message.setSender(new User(id, username));
+            }
+        } else if (sid == SYSTEM_SID) {
+            message.setSender(User.SYSTEM);
+        } else {
+            User sender = senders.resolve(sid);
+            if (sender == null) {
+                throw new IOException("未定义的发送者编号 " + sid);
+            }
+            message.setSender(sender);
+        }
+        message.setContent(in.readString());
+        message.setRoom(in.readString());
+        if (in.pos != in.end) {
+            throw new IOException("二进制帧末尾有多余数据");
+        }
+        return message;
+    }
+
+    /**
+     * 顺序写入一个正好大小的字节数组；数组为null时只计算长度
+     */
+    private static final class ByteWriter {
+        private final byte[] bytes;
+        private int size;
+
+        private ByteWriter(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        static ByteWriter counter() {
+            return new ByteWriter(null);
+        }
+
+        /**
+         * 帧体长度为 bodyLength 的一帧，已经写好长度前缀
+         */
+        static ByteWriter frame(int bodyLength) {
+            int prefix = 1;
+            for (int value = bodyLength; (value & ~0x7f) != 0; value >>>= 7) {
+                prefix++;
+            }
+            ByteWriter frame = new ByteWriter(new byte[prefix + bodyLength]);
+            frame.writeVarLong(bodyLength);
+            return frame;
+        }
+
+        void writeByte(int b) {
+            if (bytes != null) {
+                bytes[size] = (byte) b;
+            }
+            size++;
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7fL) != 0) {
+                writeByte((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            int length = Utf8.length(value);
+            writeVarLong(length + 1L);
+            if (bytes != null) {
+                Utf8.write(value, bytes, size);
+            }
+            size += length;
+        }
+    }
+
+    /**
+     * 在字节数组的一段上顺序读取
+     */
+    private static final class ByteReader {
+        private final byte[] bytes;
+        private int pos;
+        private final int end;
+
+        ByteReader(byte[] bytes, int pos, int end) {
+            this.bytes = bytes;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        byte readByte() throws IOException {
+            if (pos >= end) {
+                throw new IOException("二进制帧被截断");
+            }
+            return bytes[pos++];
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("varint 过长");
+        }
+
+        String readString() throws IOException {
+            long length = readVarLong() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > end - pos) {
+                throw new IOException("二进制帧被截断");
+            }
+            String value = new String(bytes, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.niweiru;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 阻塞模式下的会话，包装一个 Connection
+ * 读：由 Server.handleClient 所在的线程阻塞读取。
+ * 写：send() 只把帧放进发送队列，由写线程池中的一个写任务写出，写完队列就归还线程，
+ *     所以发送方不会被某个读得慢的客户端卡住（BLOCK 策略除外）。
+ */
+public class BlockingSession extends Session {
+    private static final Logger logger = LoggerFactory.getLogger(BlockingSession.class);
+
+    private final Connection connection;
+    private final String remoteAddress;
+    private final String remoteHost;
+    private final OutboundQueue outbound;
+    private final Executor writers;
+    // 最多攒多少帧flush一次，避免队列很长时第一帧迟迟不发出
+    private final int maxBatch;
+    // 是否已有写任务在运行，保证同一连接同时最多一个写任务，帧的顺序不会乱
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean closeWhenFlushed;
+    private volatile boolean closed;
+
+    public BlockingSession(Socket socket, OutboundQueue outbound, Executor writers, int maxBatch) throws IOException {
+        this.connection = new Connection(socket);
+        this.remoteAddress = socket.getRemoteSocketAddress().toString();
+        this.remoteHost = socket.getInetAddress().getHostAddress();
+        this.outbound = outbound;
+        this.writers = writers;
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    /**
+     * 在处理线程读到登录消息后调用，连接从下一次读写开始使用新协议
+     */
+    @Override
+    public void setProtocol(Protocol protocol) {
+        super.setProtocol(protocol);
+        connection.setProtocol(protocol);
+    }
+
+    @Override
+    public void setCompression(Compression compression) {
+        super.setCompression(compression);
+        connection.setCompression(compression);
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (closed || closeWhenFlushed) {
+            throw new IOException("连接已关闭");
+        }
+        // 阻塞模式下调用方都是普通线程，BLOCK 策略可以直接在这里等待
+        if (!outbound.offer(frame, true)) {
+            logger.warn("[{}] 发送队列已满（{}帧），断开读得太慢的客户端", remoteAddress, outbound.depth());
+            abort();
+            throw new IOException("发送队列已满");
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                writers.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // 服务器正在关闭
+                draining.set(false);
+                abort();
+            }
+        }
+    }
+
+    /**
+     * 写出队列中的所有帧，每 maxBatch 帧flush一次（在写线程池中运行）
+     * 缓冲区没满时一次flush就是一次write系统调用，多帧合并写出。
+     * 要求关闭时，只有持有 draining 标记、并且队列已经写空的写任务才关闭连接，
+     * 否则另一个写任务手里还没写出的帧（关闭通知、登录被拒的回复）会被丢掉。
+     */
+    private void drain() {
+        try {
+            while (true) {
+                Frame frame;
+                int batch = 0;
+                while ((frame = outbound.poll()) != null) {
+                    connection.write(frame);
+                    if (++batch == maxBatch) {
+                        connection.flush();
+                        batch = 0;
+                    }
+                }
+                connection.flush();
+                if (closeWhenFlushed && outbound.isEmpty()) {
+                    abort();
+                    return;
+                }
+                draining.set(false);
+                // 在清除标记之前可能有其他线程刚入队或者要求关闭，需要再检查一次；
+                // 抢不到标记说明另一个写任务已经接手，由它写完和关闭
+                if ((outbound.isEmpty() && !closeWhenFlushed) || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            draining.set(false);
+            if (!closed) {
+                logger.info("[{}] 发送数据失败: {}", remoteAddress, e.getMessage());
+            }
+            abort();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    /**
+     * 写完队列中剩余的数据后再关闭，可重复调用
+     */
+    @Override
+    public void close() {
+        closeWhenFlushed = true;
+        // 交给写任务去关闭；如果正有写任务在运行，它结束时会看到标记
+        scheduleDrain();
+    }
+
+    /**
+     * 立即关闭，丢弃队列中未写出的数据；阻塞在读取上的处理线程会因此退出
+     */
+    @Override
+    void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outbound.close();
+        try {
+            connection.close();
+        } catch (IOException e) {
+            logger.error("[{}] 关闭连接时发生异常", remoteAddress, e);
+        }
+    }
+}
@@ -7,6 +7,12 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
 /**
  * 客户端 - 主动连接服务器
@@ -18,9 +24,32 @@ public class Client {
     private static final String SERVER_IP = "localhost";
     // 8080被广泛采纳为Web服务的默认替代端口。
     private static final int SERVER_PORT = 8080;
+    // 线路协议，-Dchat.protocol=binary 使用紧凑二进制协议，默认JSON
+    private static final Protocol PROTOCOL = Protocol.fromWireName(System.getProperty("chat.protocol", "json"));
+    // -Dchat.compression=deflate 要求服务器压缩大的帧，自己发出的大消息也压缩
+    private static final boolean COMPRESSION = Compression.DEFLATE.equals(System.getProperty("chat.compression"));
+    // 心跳间隔，-Dchat.client.pingIntervalMs 设置，0 不发；服务器长时间收不到数据会断开连接
+    private static final long PING_INTERVAL_MILLIS = Long.getLong("chat.client.pingIntervalMs", 20000);
+    // -Dchat.tls=true 使用TLS连接，服务器用自签名证书时用 -Dchat.tls.trustStore 指定信任的证书
+    private static final boolean TLS = Boolean.getBoolean("chat.tls");
 
     private static volatile boolean running = true;
 
+    /**
+     * 连接服务器，TLS模式下完成握手并校验证书
+     */
+    private static Socket connect() throws IOException {
+        if (!TLS) {
+            return new Socket(SERVER_IP, SERVER_PORT);
+        }
+        SSLContext context = Tls.clientContext(System.getProperty("chat.tls.trustStore"),
+                System.getProperty("chat.tls.trustStorePassword", ""),
+                System.getProperty("chat.tls.trustStoreType", "PKCS12"));
+        SSLSocket socket = Tls.connect(context, SERVER_IP, SERVER_PORT, System.getProperty("chat.tls.protocols"));
+        logger.info("TLS握手完成: {} {}", socket.getSession().getProtocol(), socket.getSession().getCipherSuite());
+        return socket;
+    }
+
     /**
      * 从控制台读取用户名
      */
@@ -57,7 +86,7 @@ public class Client {
         User currentUser = new User(generateUserId(), username.trim());
 
 
-        try (Socket socket = new Socket(SERVER_IP, SERVER_PORT);
+        try (Connection connection = new Connection(connect());
             BufferedReader stdIn = new BufferedReader(new InputStreamReader(System.in))) {
             
             // 在Client.java的main方法中，连接成功后，发送消息之前添加：
@@ -67,18 +96,50 @@ public class Client {
             logger.info("连接服务器成功！");
 
             Message loginMessage = new Message(currentUser, "---login---");
-            NetworkUtils.sendMessage(socket, loginMessage);
+            if (PROTOCOL != Protocol.JSON) {
+                loginMessage.setProtocol(PROTOCOL.getWireName());
+            }
+            if (COMPRESSION) {
+                loginMessage.setCompression(Compression.DEFLATE);
+            }
+            connection.send(loginMessage);
+            // 登录消息本身总是JSON，之后双方都切换到协商的协议
+            connection.setProtocol(PROTOCOL);
+            if (COMPRESSION) {
+                connection.setCompression(new Compression(Integer.getInteger("chat.compression.minBytes", 1024), null));
+            }
             logger.info("登录信息已发送");
             // ... 然后进入原有的消息循环 ...
 
             logger.info("连接服务器成功！请输入消息（输入 'exit' 退出）:");
 
+            // 定时发 ping，让服务器知道连接还活着
+            ScheduledExecutorService keepalive = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "keepalive");
+                thread.setDaemon(true);
+                return thread;
+            });
+            if (PING_INTERVAL_MILLIS > 0) {
+                keepalive.scheduleAtFixedRate(() -> {
+                    try {
+                        connection.send(Heartbeat.message(currentUser, Heartbeat.PING_TYPE));
+                    } catch (IOException e) {
+                        logger.debug("发送心跳失败", e);
+                    }
+                }, PING_INTERVAL_MILLIS, PING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+
             // 创建并启动一个单独的线程来接收服务器消息
             Thread receiveThread = new Thread(() -> {
                 try {
                     while (running) {
-                        Message receivedMessage = NetworkUtils.receiveMessage(socket);
-                        if (receivedMessage != null) {
+                        Message receivedMessage = connection.receive();
+                        if (receivedMessage != null && Heartbeat.PING_TYPE.equals(receivedMessage.getType())) {
+                            // 服务器的心跳，回一个 pong，不显示
+                            connection.send(Heartbeat.message(currentUser, Heartbeat.PONG_TYPE));
+                        } else if (receivedMessage != null && Heartbeat.PONG_TYPE.equals(receivedMessage.getType())) {
+                            logger.debug("收到心跳回复");
+                        } else if (receivedMessage != null) {
                             logger.info("收到回复: [{}] {}", 
                                 receivedMessage.getSender().getUsername(), 
                                 receivedMessage.getContent());
@@ -105,9 +166,9 @@ public class Client {
             while (running && (userInput = stdIn.readLine()) != null) {
                 if ("exit".equalsIgnoreCase(userInput)) {
                     running = false;
-                    // 【新增】主动关闭Socket，这会使得receiveThread中的receiveMessage()抛出IOException，从而跳出循环
+                    // 【新增】主动关闭连接，这会使得receiveThread中的receive()抛出IOException，从而跳出循环
                     try {
-                        socket.close(); // 关闭Socket，中断阻塞的读取操作
+                        connection.getSocket().close(); // 关闭Socket，中断阻塞的读取操作；连接本身在 try 结束时关闭
                     } catch (IOException e) {
                         logger.debug("关闭socket时发生异常", e);
                     }
@@ -115,12 +176,13 @@ public class Client {
                 }
                 
                 Message messageToSend = new Message(currentUser, userInput);
-                NetworkUtils.sendMessage(socket, messageToSend);
+                connection.send(messageToSend);
                 logger.info("已发送: {}", userInput);
             }
 
             // 等待接收线程结束
             receiveThread.join();
+            keepalive.shutdownNow();
             
         } catch (IOException | InterruptedException e) {
             logger.error("客户端发生错误", e);
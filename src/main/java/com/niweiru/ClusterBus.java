@@ -0,0 +1,53 @@
+package com.niweiru;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 集群节点之间的消息总线
+ * 多个 Server 节点通过总线组成一个逻辑上的聊天室：广播、发给其他节点用户的私聊、上下线都发布到总线上，
+ * 由其他节点投递给自己的本地用户。
+ * 投递语义是“最多一次”：同一个来源节点发出的事件按发出顺序到达；节点之间断开期间的事件丢弃，
+ * 重新连上时先发一份在线用户快照（见 Listener.snapshot），在线状态因此最终一致。
+ * 默认实现是节点之间的TCP全连接（TcpClusterBus），测试用进程内实现（InProcessClusterBus）。
+ */
+public interface ClusterBus extends Closeable {
+    /**
+     * 总线事件的接收方（即 Server），回调总是在同一个线程里按顺序调用
+     */
+    interface Listener {
+        /**
+         * 收到其他节点发布的事件
+         */
+        void onEvent(ClusterEvent event);
+
+        /**
+         * 和某个节点的连接断开，它的在线用户都应视为下线
+         */
+        void onNodeDown(String nodeId);
+
+        /**
+         * 本节点当前状态的快照（每个在线用户一个 USER_ONLINE 事件），连上新节点时先发给对方
+         */
+        List<ClusterEvent> snapshot();
+    }
+
+    /**
+     * 本节点在集群内的唯一标识
+     */
+    String nodeId();
+
+    /**
+     * 开始收发事件，方法本身不阻塞
+     */
+    void start(Listener listener) throws IOException;
+
+    /**
+     * 把事件发给其他所有节点，不等待对方收到（线程安全）
+     */
+    void publish(ClusterEvent event);
+
+    @Override
+    void close();
+}
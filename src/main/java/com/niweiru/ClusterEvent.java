@@ -0,0 +1,106 @@
+package com.niweiru;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * 节点之间传递的一个事件，创建后不可修改
+ * 在TCP总线上编码为一行JSON。
+ */
+public final class ClusterEvent {
+    private static final Gson gson = new Gson();
+
+    public enum Type {
+        // 用户在来源节点登录 / 退出
+        USER_ONLINE, USER_OFFLINE,
+        // 房间里的聊天消息，接收节点要记入房间聊天记录
+        ROOM_MESSAGE,
+        // 房间里的系统通知（加入、离开），不记入聊天记录
+        ROOM_NOTICE,
+        // 发给接收节点上某个用户的私聊
+        PRIVATE_MESSAGE
+    }
+
+    @SerializedName("type")
+    private Type type;
+
+    @SerializedName("node")
+    private String node; // 来源节点
+
+    @SerializedName("user")
+    private User user; // 上下线的用户
+
+    @SerializedName("target")
+    private String target; // 私聊的接收者用户名
+
+    @SerializedName("message")
+    private Message message; // 房间消息、通知或私聊，房间名在 message.room 中
+
+    // Gson反序列化时需要
+    private ClusterEvent() {
+    }
+
+    private ClusterEvent(Type type, String node, User user, String target, Message message) {
+        this.type = type;
+        this.node = node;
+        this.user = user;
+        this.target = target;
+        this.message = message;
+    }
+
+    public static ClusterEvent userOnline(String node, User user) {
+        return new ClusterEvent(Type.USER_ONLINE, node, user, null, null);
+    }
+
+    public static ClusterEvent userOffline(String node, User user) {
+        return new ClusterEvent(Type.USER_OFFLINE, node, user, null, null);
+    }
+
+    public static ClusterEvent roomMessage(String node, Message message) {
+        return new ClusterEvent(Type.ROOM_MESSAGE, node, null, null, message);
+    }
+
+    public static ClusterEvent roomNotice(String node, Message message) {
+        return new ClusterEvent(Type.ROOM_NOTICE, node, null, null, message);
+    }
+
+    public static ClusterEvent privateMessage(String node, String target, Message message) {
+        return new ClusterEvent(Type.PRIVATE_MESSAGE, node, null, target, message);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * 编码为一行JSON（不含换行符）
+     */
+    public String toJson() {
+        return gson.toJson(this);
+    }
+
+    public static ClusterEvent fromJson(String json) {
+        return gson.fromJson(json, ClusterEvent.class);
+    }
+
+    @Override
+    public String toString() {
+        return type + " from " + node;
+    }
+}
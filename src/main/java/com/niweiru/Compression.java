@@ -0,0 +1,199 @@
+package com.niweiru;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 逐帧DEFLATE压缩，登录时协商（登录消息的 compression 字段为 "deflate"），每条连接一个实例
+ *
+ * 每一帧单独压缩（raw DEFLATE，不带zlib头，不共享上下文），所以广播的帧压缩一次就能写给所有接收者，
+ * 压缩结果缓存在 Frame 里；只有编码后不小于 minBytes 且压缩后确实变小的帧才压缩。
+ * 压缩帧的格式：
+ *   二进制协议：帧体第一个字节是 BinaryCodec.TYPE_DEFLATE，后面是原帧体压缩后的数据；
+ *   JSON协议：一行以 '~' 开头，后面是原JSON压缩后再做Base64，这样仍然是一行一帧
+ *   （Base64 多出三分之一，对大段文本仍然划算）。
+ * 收到的帧按第一个字节识别是否压缩，所以双方各自决定哪些帧压缩。
+ *
+ * Deflater/Inflater 占用本地内存（Deflater约256KB），第一次用到时才创建并重复使用，连接关闭时调用 end() 释放。
+ * 同一条连接上的读写可能在不同线程，方法都加了锁，正常情况下没有竞争。
+ */
+public final class Compression {
+    /**
+     * 登录消息中 compression 字段的取值
+     */
+    public static final String DEFLATE = "deflate";
+    static final byte JSON_MARKER = '~';
+
+    private final int minBytes;
+    // 服务端记录压缩的次数和耗时，客户端为null
+    private final ServerMetrics metrics;
+    private Deflater deflater;
+    private Inflater inflater;
+    // 压缩和解压的输出缓冲区，按需扩大后重复使用
+    private byte[] scratch = new byte[4096];
+    private boolean ended;
+
+    /**
+     * @param minBytes 编码后不小于这么多字节的帧才压缩
+     * @param metrics 服务端的指标，客户端传null
+     */
+    public Compression(int minBytes, ServerMetrics metrics) {
+        this.minBytes = minBytes;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 把编码好的一帧压缩成线路上的格式
+     * @param frame 完整的一帧（JSON含换行符，二进制含长度前缀）
+     * @return 压缩后的完整一帧；太小或压缩后没有变小时返回null
+     */
+    synchronized byte[] compress(Protocol protocol, byte[] frame) {
+        if (frame.length < minBytes || ended) {
+            return null;
+        }
+        long start = System.nanoTime();
+        byte[] wire;
+        if (protocol == Protocol.BINARY) {
+            int prefix = prefixLength(frame);
+            int deflated = deflate(frame, prefix, frame.length - prefix);
+            ByteBuffer out = ByteBuffer.allocate(5 + 1 + deflated);
+            writeVarInt(out, deflated + 1);
+            out.put(BinaryCodec.TYPE_DEFLATE).put(scratch, 0, deflated);
+            wire = Arrays.copyOf(out.array(), out.position());
+        } else {
+            int deflated = deflate(frame, 0, frame.length - 1);
+            byte[] encoded = Base64.getEncoder().encode(ByteBuffer.wrap(scratch, 0, deflated)).array();
+            wire = new byte[encoded.length + 2];
+            wire[0] = JSON_MARKER;
+            System.arraycopy(encoded, 0, wire, 1, encoded.length);
+            wire[wire.length - 1] = '\n';
+        }
+        if (metrics != null) {
+            metrics.frameCompressed(System.nanoTime() - start);
+        }
+        return wire.length < frame.length ? wire : null;
+    }
+
+    /**
+     * 一帧压缩后写出，记录省下的字节数（每个接收者各记一次）
+     */
+    void sent(int savedBytes) {
+        if (metrics != null) {
+            metrics.compressionSaved(savedBytes);
+        }
+    }
+
+    private int deflate(byte[] input, int offset, int length) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        deflater.reset();
+        deflater.setInput(input, offset, length);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == scratch.length) {
+                scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            }
+            size += deflater.deflate(scratch, size, scratch.length - size);
+        }
+        return size;
+    }
+
+    /**
+     * 收到的一帧（不含换行符或长度前缀）是不是压缩帧
+     */
+    static boolean isCompressed(Protocol protocol, byte[] array, int offset, int length) {
+        return length > 0 && array[offset] == (protocol == Protocol.BINARY ? BinaryCodec.TYPE_DEFLATE : JSON_MARKER);
+    }
+
+    /**
+     * 解压收到的压缩帧，得到原来的帧（JSON不含换行符，二进制不含长度前缀）
+     * @param maxLength 解压后的最大字节数，防止很小的压缩帧解压出巨量数据
+     * @throws IOException 数据格式错误或解压后超过上限
+     */
+    synchronized byte[] inflate(Protocol protocol, byte[] array, int offset, int length, int maxLength)
+            throws IOException {
+        if (ended) {
+            throw new IOException("连接已关闭");
+        }
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.reset();
+        if (protocol == Protocol.BINARY) {
+            inflater.setInput(array, offset + 1, length - 1);
+        } else {
+            try {
+                ByteBuffer decoded = Base64.getDecoder().decode(ByteBuffer.wrap(array, offset + 1, length - 1));
+                inflater.setInput(decoded.array(), decoded.arrayOffset() + decoded.position(), decoded.remaining());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("压缩帧的Base64格式错误");
+            }
+        }
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == scratch.length) {
+                    if (scratch.length > maxLength) {
+                        throw new IOException("解压后超过上限 " + maxLength + " 字节");
+                    }
+                    scratch = Arrays.copyOf(scratch, scratch.length * 2);
+                }
+                int n = inflater.inflate(scratch, size, scratch.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // 输入已经用完（raw DEFLATE 的最后一个块可能不会让 finished() 变为true）
+                    break;
+                }
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("压缩帧格式错误: " + e.getMessage());
+        }
+        if (size > maxLength) {
+            throw new IOException("解压后超过上限 " + maxLength + " 字节");
+        }
+        return Arrays.copyOf(scratch, size);
+    }
+
+    /**
+     * 释放本地内存，可重复调用；之后不再压缩，解压时抛出异常
+     */
+    public synchronized void end() {
+        ended = true;
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 是否已经调用过 end()
+     */
+    synchronized boolean isEnded() {
+        return ended;
+    }
+
+    private static int prefixLength(byte[] frame) {
+        int i = 0;
+        while (frame[i] < 0) {
+            i++;
+        }
+        return i + 1;
+    }
+
+    private static void writeVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+}
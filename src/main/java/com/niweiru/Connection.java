@@ -0,0 +1,338 @@
+package com.niweiru;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 阻塞Socket上的一条连接，客户端和阻塞模式的服务端共用
+ * 整个连接期间只创建一个读取器和一个写入器：
+ * 读取器预读的字节留在自己的缓冲区里，下次 receive() 接着用，背靠背发来的多条消息不会丢；
+ * 写出的是编码好的 Frame，写入器不自动flush，write() 只写进缓冲区，由调用方决定何时 flush()。
+ * 按字节而不是按字符读取，这样登录之后可以在同一个缓冲区上切换到二进制协议；JSON消息也直接在缓冲区上解析。
+ *
+ * receive() 只应由一个线程调用；write/send/flush 可以被多个线程同时调用，内部按帧加锁，不会交错。
+ */
+public class Connection implements Closeable {
+    private static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final int maxFrameLength;
+    private final SenderTable senders = new SenderTable();
+    private volatile Protocol protocol = Protocol.JSON;
+    // 登录时协商的压缩器，没有协商压缩时为null
+    private volatile Compression compression;
+    // 登录之后收到的JSON消息以这个用户为发送者，不再解析帧里的 sender；只在读线程中使用
+    private User sender;
+    // 收发字节数的统计，服务端设置，客户端为null
+    private LongAdder bytesIn;
+    private LongAdder bytesOut;
+    // 写socket的次数和写出的帧数，服务端设置，客户端为null
+    private LongAdder writeCalls;
+    private LongAdder framesWritten;
+    // 读缓冲区，[readPos, readLimit) 是已读入还没处理的字节，只在读线程中使用
+    private byte[] readBuffer = new byte[8192];
+    private int readPos;
+    private int readLimit;
+    // 最近一次 nextLine() 读到的一行
+    private int lineStart;
+    private int lineLength;
+
+    public Connection(Socket socket) throws IOException {
+        this(socket, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public Connection(Socket socket, int maxFrameLength) throws IOException {
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = new BufferedOutputStream(new SocketOutput(socket.getOutputStream()));
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * 把这条连接收发的字节数累加到给定的计数器上，在开始收发之前调用
+     */
+    public void countBytes(LongAdder bytesIn, LongAdder bytesOut) {
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+    }
+
+    /**
+     * 把写socket的次数（每次对应一次write系统调用）和写出的帧数累加到给定的计数器上，在开始发送之前调用
+     */
+    public void countWrites(LongAdder writeCalls, LongAdder framesWritten) {
+        this.writeCalls = writeCalls;
+        this.framesWritten = framesWritten;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * 切换收发使用的线路协议（登录握手之后调用）
+     */
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * 开始收发压缩帧（登录握手之后调用），见 Compression
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * 之后收到的JSON消息不再解析 sender 字段，直接以这个用户为发送者（服务器在登录之后调用）
+     */
+    public void setSender(User sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * 读取下一条消息
+     * @return 对方关闭连接时返回null
+     * @throws IOException 读取失败、帧超过最大长度或格式错误
+     */
+    public Message receive() throws IOException {
+        if (protocol == Protocol.BINARY) {
+            return receiveBinary();
+        }
+        if (!nextLine()) {
+            return null;
+        }
+        Compression current = compression;
+        if (current != null && Compression.isCompressed(Protocol.JSON, readBuffer, lineStart, lineLength)) {
+            byte[] plain = current.inflate(Protocol.JSON, readBuffer, lineStart, lineLength, maxFrameLength);
+            return NetworkUtils.decode(new Message(), plain, 0, plain.length, sender);
+        }
+        // 直接在读缓冲区上解析，不先转成字符串
+        return NetworkUtils.decode(new Message(), readBuffer, lineStart, lineLength, sender);
+    }
+
+    private Message receiveBinary() throws IOException {
+        while (true) {
+            long length = readVarLong();
+            if (length < 0) {
+                return null;
+            }
+            if (length > maxFrameLength) {
+                throw new IOException("消息长度超过上限 " + maxFrameLength + " 字节");
+            }
+            if (!fill((int) length)) {
+                throw new IOException("连接在帧中途断开");
+            }
+            Compression current = compression;
+            Message message;
+            if (current != null && Compression.isCompressed(Protocol.BINARY, readBuffer, readPos, (int) length)) {
+                byte[] plain = current.inflate(Protocol.BINARY, readBuffer, readPos, (int) length, maxFrameLength);
+                message = BinaryCodec.decode(plain, 0, plain.length, senders);
+            } else {
+                message = BinaryCodec.decode(readBuffer, readPos, (int) length, senders);
+            }
+            readPos += (int) length;
+            // 发送者定义帧只登记编号，继续读下一帧
+            if (message != null) {
+                return message;
+            }
+        }
+    }
+
+    /**
+     * 读取帧长度前缀
+     * @return 流在帧边界上结束时返回-1
+     */
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!fill(1)) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new IOException("连接在帧长度中途断开");
+            }
+            byte b = readBuffer[readPos++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("varint 过长");
+    }
+
+    /**
+     * 读取一行（不含换行符），跳过空行；这一行在缓冲区中的位置记在 lineStart、lineLength，下次读取之前有效
+     * @return 流结束时返回false（丢弃不完整的最后一行）
+     */
+    private boolean nextLine() throws IOException {
+        int scan = readPos;
+        while (true) {
+            for (; scan < readLimit; scan++) {
+                if (readBuffer[scan] != '\n') {
+                    continue;
+                }
+                int start = readPos;
+                int length = scan - start;
+                readPos = scan + 1;
+                // 兼容Windows客户端println发出的\r\n
+                if (length > 0 && readBuffer[start + length - 1] == '\r') {
+                    length--;
+                }
+                if (length > 0) {
+                    lineStart = start;
+                    lineLength = length;
+                    return true;
+                }
+            }
+            int pending = readLimit - readPos;
+            if (pending >= maxFrameLength) {
+                throw new IOException("消息长度超过上限 " + maxFrameLength + " 字节");
+            }
+            if (!fill(pending + 1)) {
+                return false;
+            }
+            // fill 可能把数据挪到了缓冲区开头
+            scan = readPos + pending;
+        }
+    }
+
+    /**
+     * 保证缓冲区中至少有 count 个未读字节，不够就从Socket继续读
+     * @return 流结束前没能读够返回false
+     */
+    private boolean fill(int count) throws IOException {
+        if (readLimit - readPos >= count) {
+            return true;
+        }
+        // 把未读部分挪到开头，必要时扩容
+        int pending = readLimit - readPos;
+        if (count > readBuffer.length) {
+            readBuffer = Arrays.copyOf(Arrays.copyOfRange(readBuffer, readPos, readLimit),
+                    Math.max(count, readBuffer.length * 2));
+        } else if (readPos > 0) {
+            System.arraycopy(readBuffer, readPos, readBuffer, 0, pending);
+        }
+        readPos = 0;
+        readLimit = pending;
+        while (readLimit < count) {
+            int n = in.read(readBuffer, readLimit, readBuffer.length - readLimit);
+            if (n < 0) {
+                return false;
+            }
+            readLimit += n;
+            if (bytesIn != null) {
+                bytesIn.add(n);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把消息写进发送缓冲区，不flush
+     */
+    public void write(Message message) throws IOException {
+        write(Frame.of(message));
+    }
+
+    /**
+     * 把编码好的一帧写进发送缓冲区，不flush
+     * 二进制协议下第一次用到某个发送者编号时，先写一帧发送者定义
+     */
+    public void write(Frame frame) throws IOException {
+        synchronized (out) {
+            Protocol current = protocol;
+            int length = 0;
+            if (current == Protocol.BINARY && frame.hasSessionSender() && senders.announce(frame.getSenderSid())) {
+                byte[] definition = frame.senderDefinition();
+                out.write(definition);
+                length += definition.length;
+            }
+            byte[] bytes = frame.bytes(current, compression);
+            out.write(bytes);
+            if (bytesOut != null) {
+                bytesOut.add(length + bytes.length);
+            }
+            if (framesWritten != null) {
+                framesWritten.increment();
+            }
+        }
+    }
+
+    /**
+     * 把缓冲区中的数据真正写到Socket
+     */
+    public void flush() throws IOException {
+        synchronized (out) {
+            out.flush();
+        }
+    }
+
+    /**
+     * 写一条消息并立即flush
+     */
+    public void send(Message message) throws IOException {
+        send(Frame.of(message));
+    }
+
+    /**
+     * 写一帧并立即flush
+     */
+    public void send(Frame frame) throws IOException {
+        synchronized (out) {
+            write(frame);
+            out.flush();
+        }
+    }
+
+    /**
+     * 关闭Socket，可重复调用；另一个线程阻塞中的 receive() 会因此抛出异常返回
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        Compression current = compression;
+        if (current != null) {
+            current.end();
+        }
+    }
+
+    /**
+     * 位于缓冲区和socket之间，统计真正写到socket的次数
+     */
+    private final class SocketOutput extends FilterOutputStream {
+        SocketOutput(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            countWrite();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            countWrite();
+        }
+
+        private void countWrite() {
+            if (writeCalls != null) {
+                writeCalls.increment();
+            }
+        }
+    }
+}
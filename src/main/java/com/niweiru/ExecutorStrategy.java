@@ -0,0 +1,58 @@
+package com.niweiru;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 阻塞模式下处理客户端连接的线程策略
+ * 每个连接在整个会话期间都占用一个任务，不同策略的区别在于这个任务跑在什么线程上。
+ */
+public enum ExecutorStrategy {
+    // 每个连接一个虚拟线程：阻塞读时只占用很少的堆内存，不占平台线程
+    VIRTUAL {
+        @Override
+        public ExecutorService newExecutor(ServerConfig config) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory());
+        }
+
+        @Override
+        public ExecutorService newWriterExecutor() {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("writer-", 0).factory());
+        }
+    },
+    // 原来的方式：无界的缓存线程池，每个连接一个平台线程
+    CACHED {
+        @Override
+        public ExecutorService newExecutor(ServerConfig config) {
+            return Executors.newCachedThreadPool();
+        }
+    },
+    // 有界线程池：超过最大线程数的连接先排队，队列满了直接拒绝
+    BOUNDED {
+        @Override
+        public ExecutorService newExecutor(ServerConfig config) {
+            return new ThreadPoolExecutor(
+                    config.getCoreThreads(), // 核心线程数：即使空闲也不会被回收的线程数
+                    config.getMaxThreads(), // 最大线程数：线程池能容纳的最大线程数
+                    60L, TimeUnit.SECONDS, // 空闲线程存活时间：非核心线程空闲超过60秒则回收
+                    new LinkedBlockingQueue<>(config.getQueueCapacity()) // 工作队列：有界，而不是无界队列
+            );
+        }
+    };
+
+    /**
+     * 按配置创建线程池
+     */
+    public abstract ExecutorService newExecutor(ServerConfig config);
+
+    /**
+     * 创建写出发送队列的线程池
+     * 只有发送队列里有数据的连接才占用一个写任务，写完就归还，所以不需要限制大小
+     */
+    public ExecutorService newWriterExecutor() {
+        return Executors.newCachedThreadPool();
+    }
+}
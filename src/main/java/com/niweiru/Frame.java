@@ -0,0 +1,136 @@
+package com.niweiru;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 一条待发送的消息及其编码结果，创建后不可修改
+ * 广播时同一个 Frame 写给所有接收者，每种协议最多编码一次：第一个用到某种协议的接收者触发编码，
+ * 之后的接收者直接复用。两种模式都直接写出底层字节数组（NIO模式先复制进事件循环的写缓冲区），
+ * 不为每个接收者创建任何对象。
+ * 协商了压缩的连接写出的是压缩后的帧，同样只压缩一次（见 Compression）。
+ * 创建 Frame 之后不能再修改其中的 Message。
+ */
+public final class Frame {
+    private final Message message;
+    private final int senderSid;
+    // 懒加载的编码结果，并发时最多重复编码一次，结果相同
+    private volatile byte[] json;
+    private volatile byte[] binary;
+    private volatile byte[] senderDefinition;
+    // 懒加载的压缩结果；不值得压缩时存放未压缩的编码结果本身
+    private volatile byte[] deflatedJson;
+    private volatile byte[] deflatedBinary;
+
+    private Frame(Message message, int senderSid) {
+        this.message = message;
+        this.senderSid = senderSid;
+    }
+
+    /**
+     * 发送者没有会话编号的消息，二进制协议下发送者内联在帧里
+     */
+    public static Frame of(Message message) {
+        return new Frame(message, BinaryCodec.NO_SID);
+    }
+
+    /**
+     * @param senderSid 发送者的会话编号，见 BinaryCodec
+     */
+    public static Frame of(Message message, int senderSid) {
+        return new Frame(message, senderSid);
+    }
+
+    public int getSenderSid() {
+        return senderSid;
+    }
+
+    /**
+     * 是否需要先向对方发送发送者定义（二进制协议下第一次用到会话编号时）
+     */
+    public boolean hasSessionSender() {
+        return senderSid >= BinaryCodec.FIRST_SESSION_SID;
+    }
+
+    /**
+     * 发送者定义帧（二进制协议），只有 hasSessionSender() 为true时可用
+     */
+    public byte[] senderDefinition() {
+        byte[] bytes = senderDefinition;
+        if (bytes == null) {
+            bytes = BinaryCodec.encodeSender(senderSid, message.getSender());
+            senderDefinition = bytes;
+        }
+        return bytes;
+    }
+
+    private byte[] bytes(Protocol protocol) {
+        byte[] bytes;
+        if (protocol == Protocol.BINARY) {
+            bytes = binary;
+            if (bytes == null) {
+                bytes = BinaryCodec.encode(message, senderSid);
+                binary = bytes;
+            }
+        } else {
+            bytes = json;
+            if (bytes == null) {
+                bytes = NetworkUtils.encode(message);
+                json = bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 线路上实际写出的字节：协商了压缩时，大的帧压缩一次之后所有接收者共用
+     * @param compression 这条连接的压缩器，没有协商压缩时为null
+     */
+    byte[] bytes(Protocol protocol, Compression compression) {
+        byte[] plain = bytes(protocol);
+        if (compression == null) {
+            return plain;
+        }
+        boolean binaryProtocol = protocol == Protocol.BINARY;
+        byte[] wire = binaryProtocol ? deflatedBinary : deflatedJson;
+        if (wire == null) {
+            // 用第一个写出这一帧的连接的压缩器来压缩
+            wire = compression.compress(protocol, plain);
+            if (wire == null) {
+                if (compression.isEnded()) {
+                    // 这条连接刚关闭，压缩器已释放：不缓存，后面的接收者用自己的压缩器压缩
+                    return plain;
+                }
+                wire = plain;
+            }
+            if (binaryProtocol) {
+                deflatedBinary = wire;
+            } else {
+                deflatedJson = wire;
+            }
+        }
+        if (wire != plain) {
+            compression.sent(plain.length - wire.length);
+        }
+        return wire;
+    }
+
+    /**
+     * 按指定协议编码后的字节数（不压缩）
+     */
+    public int length(Protocol protocol) {
+        return bytes(protocol).length;
+    }
+
+    /**
+     * 返回一个新的只读视图，position从0开始，多个会话之间互不影响
+     */
+    public ByteBuffer buffer(Protocol protocol) {
+        return ByteBuffer.wrap(bytes(protocol)).asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream out, Protocol protocol) throws IOException {
+        out.write(bytes(protocol));
+    }
+}
@@ -0,0 +1,136 @@
+package com.niweiru;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 增量式分帧解码器（NIO模式使用）
+ * 非阻塞读取时一次read可能只读到半帧，也可能读到好几帧，
+ * 这里把收到的字节累积在缓冲区中，每凑齐一帧就交给回调，剩下的半帧留到下次。
+ * JSON协议按'\n'切分；二进制协议按varint长度前缀切分。
+ * 回调里可以调用 setProtocol() 切换协议（登录消息之后），从下一帧开始生效。
+ */
+public class FrameDecoder {
+    /**
+     * 一个完整帧的回调，帧的内容是 array[offset, offset+length)，不含换行符或长度前缀
+     * 回调返回后这段数组会被复用，需要的数据必须在回调中取走
+     */
+    public interface FrameHandler {
+        void onFrame(byte[] array, int offset, int length) throws IOException;
+    }
+
+    private ByteBuffer buffer;
+    private final int maxFrameLength;
+    private Protocol protocol = Protocol.JSON;
+    // JSON协议下次从哪里开始找换行符，避免对半行数据重复扫描
+    private int scanIndex;
+
+    public FrameDecoder(int initialCapacity, int maxFrameLength) {
+        this.buffer = ByteBuffer.allocate(Math.min(initialCapacity, maxFrameLength));
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * 返回可写入的缓冲区（写模式），满了就扩容
+     * @throws IOException 当前帧已超过最大长度
+     */
+    public ByteBuffer buffer() throws IOException {
+        if (!buffer.hasRemaining()) {
+            // 二进制帧除了帧体还有最多5个字节的长度前缀
+            int limit = maxFrameLength + 5;
+            if (buffer.capacity() >= limit) {
+                throw new IOException("消息长度超过上限 " + maxFrameLength + " 字节");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, limit));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        return buffer;
+    }
+
+    /**
+     * 切出缓冲区中所有完整的帧，剩余的半帧留到下次
+     * @param out 每个完整帧的回调
+     * @throws IOException 帧超过最大长度，或回调抛出的异常
+     */
+    public void decode(FrameHandler out) throws IOException {
+        byte[] array = buffer.array();
+        int end = buffer.position();
+        int start = 0;
+        int nextScan = 0;
+        while (start < end) {
+            if (protocol == Protocol.BINARY) {
+                int next = decodeBinary(array, start, end, out);
+                if (next < 0) {
+                    break;
+                }
+                start = next;
+            } else {
+                int newline = -1;
+                for (int i = Math.max(start, scanIndex); i < end; i++) {
+                    if (array[i] == '\n') {
+                        newline = i;
+                        break;
+                    }
+                }
+                if (newline < 0) {
+                    // 剩下的半行已经扫描过，下次从末尾接着找
+                    nextScan = end;
+                    break;
+                }
+                int length = newline - start;
+                // 兼容Windows客户端println发出的\r\n
+                if (length > 0 && array[newline - 1] == '\r') {
+                    length--;
+                }
+                int lineStart = start;
+                start = newline + 1;
+                if (length > 0) {
+                    out.onFrame(array, lineStart, length);
+                }
+            }
+        }
+        // 把剩下的半帧挪到缓冲区开头
+        int remaining = end - start;
+        if (start > 0) {
+            System.arraycopy(array, start, array, 0, remaining);
+            buffer.position(remaining);
+        }
+        scanIndex = Math.max(0, nextScan - start);
+    }
+
+    /**
+     * 尝试从 start 处切出一个二进制帧
+     * @return 下一帧的起始位置；数据不够一帧返回-1
+     */
+    private int decodeBinary(byte[] array, int start, int end, FrameHandler out) throws IOException {
+        int pos = start;
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos >= end) {
+                return -1;
+            }
+            if (shift > 28) {
+                throw new IOException("varint 过长");
+            }
+            byte b = array[pos++];
+            length |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (length > maxFrameLength) {
+            throw new IOException("消息长度超过上限 " + maxFrameLength + " 字节");
+        }
+        if (end - pos < length) {
+            return -1;
+        }
+        out.onFrame(array, pos, (int) length);
+        return pos + (int) length;
+    }
+}
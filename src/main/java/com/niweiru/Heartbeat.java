@@ -0,0 +1,34 @@
+package com.niweiru;
+
+/**
+ * 应用层心跳消息：type 为 ping 或 pong，没有内容
+ * 任何一方收到 ping 都回一个 pong；服务器见 IdleMonitor，客户端见 Client。
+ * 两种协议下都作为普通消息编码（二进制协议里是 TYPE_OTHER 加类型字符串）。
+ */
+public final class Heartbeat {
+    public static final String PING_TYPE = "ping";
+    public static final String PONG_TYPE = "pong";
+
+    /**
+     * 服务器发出的心跳帧，所有会话共享
+     */
+    public static final Frame PING = Frame.of(message(User.SYSTEM, PING_TYPE), BinaryCodec.SYSTEM_SID);
+    public static final Frame PONG = Frame.of(message(User.SYSTEM, PONG_TYPE), BinaryCodec.SYSTEM_SID);
+
+    private Heartbeat() {
+    }
+
+    public static boolean isHeartbeat(String type) {
+        return PING_TYPE.equals(type) || PONG_TYPE.equals(type);
+    }
+
+    /**
+     * 新建一条心跳消息
+     * @param type PING_TYPE 或 PONG_TYPE
+     */
+    public static Message message(User sender, String type) {
+        Message message = new Message(sender, null);
+        message.setType(type);
+        return message;
+    }
+}
@@ -0,0 +1,135 @@
+package com.niweiru;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 心跳和空闲连接清理
+ * 超过 idleTimeout 没收到任何数据就给已登录的客户端发一个 ping，超过 readTimeout 仍然没有数据就断开。
+ * 断开走正常的关闭流程（阻塞模式由 handleClient 的 finally、NIO 模式由关闭回调调用 logout），
+ * 房间里的其他人会收到离开通知，用户名也随之释放。
+ *
+ * 每个连接在时间轮里只有一个条目，由一个后台线程每 tick 推进一次；收到数据只更新会话上的时间戳，
+ * 不碰时间轮。条目到期时再按最后收到数据的时间决定是发 ping、断开，还是按剩余时间重新加入，
+ * 所以连接再多、消息再频繁，定时开销也只和连接数成正比。
+ */
+public class IdleMonitor {
+    private static final Logger logger = LoggerFactory.getLogger(IdleMonitor.class);
+    private static final int WHEEL_SIZE = 512;
+
+    private final long idleNanos;
+    private final long readNanos;
+    private final long tickMillis;
+    private final ServerMetrics metrics;
+    // 新连接先放进这个队列，由后台线程加入时间轮，时间轮本身只在后台线程中访问
+    private final Queue<Session> added = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private TimingWheel<Session> wheel;
+
+    public IdleMonitor(ServerConfig config, ServerMetrics metrics) {
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getIdleTimeoutMillis()));
+        this.readNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getReadTimeoutMillis()));
+        this.tickMillis = Math.max(1, config.getHeartbeatTickMillis());
+        this.metrics = metrics;
+        this.thread = new Thread(this::run, "idle-monitor");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * 空闲和读超时都为0时不需要监控
+     */
+    public static boolean isEnabled(ServerConfig config) {
+        return config.getIdleTimeoutMillis() > 0 || config.getReadTimeoutMillis() > 0;
+    }
+
+    public void start() {
+        wheel = new TimingWheel<>(TimeUnit.MILLISECONDS.toNanos(tickMillis), WHEEL_SIZE, System.nanoTime());
+        thread.start();
+    }
+
+    /**
+     * 开始监控一个连接（线程安全），连接建立时调用
+     */
+    public void watch(Session session) {
+        added.offer(session);
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            Session session;
+            while ((session = added.poll()) != null) {
+                schedule(session, now);
+            }
+            wheel.advance(now, expired -> check(expired, now));
+        }
+    }
+
+    private void check(Session session, long now) {
+        if (session.isClosed()) {
+            return;
+        }
+        long lastRead = session.getLastReadNanos();
+        long idle = now - lastRead;
+        if (readNanos > 0 && idle >= readNanos) {
+            logger.info("[{}] {} 毫秒没有收到任何数据，断开连接", session.getRemoteAddress(),
+                    TimeUnit.NANOSECONDS.toMillis(idle));
+            metrics.connectionReaped();
+            session.abort();
+            return;
+        }
+        if (idleNanos > 0 && idle >= idleNanos && session.getUser() != null
+                && (session.getLastPingNanos() == 0 || now - session.getLastPingNanos() >= idleNanos)) {
+            sendPing(session);
+            session.setLastPingNanos(now);
+        }
+        schedule(session, now);
+    }
+
+    /**
+     * 按最后收到数据的时间算出下一次要检查的时间，重新加入时间轮
+     */
+    private void schedule(Session session, long now) {
+        long lastRead = session.getLastReadNanos();
+        long next = Long.MAX_VALUE;
+        if (readNanos > 0) {
+            next = lastRead + readNanos;
+        }
+        if (idleNanos > 0) {
+            long pingAt = now - lastRead < idleNanos || session.getLastPingNanos() == 0
+                    ? lastRead + idleNanos : session.getLastPingNanos() + idleNanos;
+            next = Math.min(next, pingAt);
+        }
+        wheel.schedule(session, next);
+    }
+
+    /**
+     * 发送队列里还有数据时不发 ping：连接并不空闲，而且不能让监控线程等一个写不动的连接
+     */
+    private void sendPing(Session session) {
+        OutboundQueue queue = session.getOutboundQueue();
+        if (queue != null && !queue.isEmpty()) {
+            return;
+        }
+        try {
+            session.send(Heartbeat.PING);
+        } catch (IOException e) {
+            logger.debug("[{}] 发送 ping 失败: {}", session.getRemoteAddress(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.niweiru;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 进程内的集群总线，同一个 Hub 上的节点互相连通，用于测试
+ * 和TCP总线一样：事件经过一次JSON编解码，每个节点在自己的单线程里按顺序回调，
+ * 加入时和已有节点互换快照，关闭时其他节点收到 onNodeDown。
+ */
+public class InProcessClusterBus implements ClusterBus {
+    /**
+     * 一组互相连通的节点
+     */
+    public static final class Hub {
+        private final List<InProcessClusterBus> members = new ArrayList<>();
+
+        private synchronized List<InProcessClusterBus> join(InProcessClusterBus bus) {
+            List<InProcessClusterBus> others = new ArrayList<>(members);
+            members.add(bus);
+            return others;
+        }
+
+        private synchronized List<InProcessClusterBus> leave(InProcessClusterBus bus) {
+            members.remove(bus);
+            return new ArrayList<>(members);
+        }
+
+        private synchronized List<InProcessClusterBus> others(InProcessClusterBus bus) {
+            List<InProcessClusterBus> others = new ArrayList<>(members);
+            others.remove(bus);
+            return others;
+        }
+    }
+
+    private final Hub hub;
+    private final String nodeId;
+    private final ExecutorService dispatcher;
+    private volatile Listener listener;
+
+    public InProcessClusterBus(Hub hub, String nodeId) {
+        this.hub = hub;
+        this.nodeId = nodeId;
+        this.dispatcher = Executors.newSingleThreadExecutor(r -> new Thread(r, "cluster-" + nodeId));
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        for (InProcessClusterBus other : hub.join(this)) {
+            other.deliverAll(listener.snapshot());
+            Listener otherListener = other.listener;
+            if (otherListener != null) {
+                deliverAll(otherListener.snapshot());
+            }
+        }
+    }
+
+    @Override
+    public void publish(ClusterEvent event) {
+        String json = event.toJson();
+        for (InProcessClusterBus other : hub.others(this)) {
+            other.deliverAll(List.of(ClusterEvent.fromJson(json)));
+        }
+    }
+
+    private void deliverAll(List<ClusterEvent> events) {
+        dispatch(() -> {
+            for (ClusterEvent event : events) {
+                listener.onEvent(event);
+            }
+        });
+    }
+
+    private void dispatch(Runnable task) {
+        try {
+            dispatcher.execute(task);
+        } catch (RejectedExecutionException e) {
+            // 本节点已关闭
+        }
+    }
+
+    @Override
+    public void close() {
+        for (InProcessClusterBus other : hub.leave(this)) {
+            other.dispatch(() -> other.listener.onNodeDown(nodeId));
+        }
+        dispatcher.shutdown();
+    }
+}
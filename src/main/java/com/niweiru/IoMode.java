@@ -0,0 +1,11 @@
+package com.niweiru;
+
+/**
+ * 服务器的网络IO模型
+ */
+public enum IoMode {
+    // 阻塞式：每个连接一个处理任务，在线程中阻塞读取
+    BLOCKING,
+    // 非阻塞式：ServerSocketChannel + Selector，少量事件循环线程处理所有连接
+    NIO
+}
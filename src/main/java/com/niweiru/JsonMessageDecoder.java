@@ -0,0 +1,562 @@
+package com.niweiru;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 专门解析 Message 的流式JSON解码器，直接在接收缓冲区的字节上解析，取代 Gson 的反射解码
+ *
+ * 字段名按字节比较，不生成字符串；不认识的字段直接跳过，不为它们创建任何对象；
+ * 常见的消息类型（chat、ping 等）直接返回常量。只为需要的字段值（内容、用户名等）创建字符串，
+ * 没有转义字符时一次 new String 即可。
+ * peekContent() 只取出内容的第一个字符，服务器据此区分命令、私聊和广播，并在解码之前限流。
+ *
+ * 和 Gson 的行为保持一致：字段顺序任意、重复字段以最后一个为准、值可以为 null，
+ * 时间戳可以是整数、整数值的小数或数字字符串。格式错误时抛出 IOException。
+ */
+public final class JsonMessageDecoder {
+    /**
+     * peekContent() 的返回值：没有 content 字段或其值为 null，或者是心跳
+     */
+    public static final int NO_CONTENT = -2;
+    /**
+     * peekContent() 的返回值：内容是空字符串
+     */
+    public static final int EMPTY_CONTENT = -1;
+
+    private static final byte[][] MESSAGE_FIELDS = names("type", "sender", "content", "timestamp", "room", "protocol",
+            "compression");
+    private static final int FIELD_TYPE = 0;
+    private static final int FIELD_SENDER = 1;
+    private static final int FIELD_CONTENT = 2;
+    private static final int FIELD_TIMESTAMP = 3;
+    private static final int FIELD_ROOM = 4;
+    private static final int FIELD_PROTOCOL = 5;
+    private static final int FIELD_COMPRESSION = 6;
+    private static final byte[][] USER_FIELDS = names("id", "username");
+    private static final int FIELD_ID = 0;
+    private static final int FIELD_USERNAME = 1;
+    // 出现最多的消息类型，解析时直接返回这些常量
+    private static final String[] KNOWN_TYPES = {"chat", "private", Heartbeat.PING_TYPE, Heartbeat.PONG_TYPE, "system"};
+    private static final byte[][] KNOWN_TYPE_BYTES = names(KNOWN_TYPES);
+
+    private JsonMessageDecoder() {
+    }
+
+    private static byte[][] names(String... names) {
+        byte[][] bytes = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            bytes[i] = names[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    /**
+     * 解析一行JSON（不含换行符）
+     * @throws IOException JSON格式错误
+     */
+    public static Message decode(byte[] array, int offset, int length) throws IOException {
+        return decode(new Message(), array, offset, length, null);
+    }
+
+    /**
+     * 解析到已有的 Message 里，原有的字段全部覆盖；服务器对用完即弃的消息（命令、私聊、心跳）重复使用同一个对象
+     * @param sender 不为null时跳过帧里的 sender 字段，直接以它为发送者：登录之后发送者以会话为准，
+     *               不必为每条消息再解析出一个 User
+     * @throws IOException JSON格式错误
+     */
+    public static Message decode(Message message, byte[] array, int offset, int length, User sender)
+            throws IOException {
+        Parser in = new Parser(array, offset, offset + length);
+        message.setType(null);
+        message.setSender(sender);
+        message.setContent(null);
+        message.setTimestamp(0);
+        message.setRoom(null);
+        message.setProtocol(null);
+        message.setCompression(null);
+        in.expect('{');
+        if (!in.consume('}')) {
+            do {
+                int field = in.readName(MESSAGE_FIELDS);
+                in.expect(':');
+                switch (field) {
+                    case FIELD_TYPE:
+                        message.setType(in.readType());
+                        break;
+                    case FIELD_SENDER:
+                        if (sender == null) {
+                            message.setSender(readUser(in));
+                        } else {
+                            in.skipValue();
+                        }
+                        break;
+                    case FIELD_CONTENT:
+                        message.setContent(in.readString());
+                        break;
+                    case FIELD_TIMESTAMP:
+                        message.setTimestamp(in.readLong());
+                        break;
+                    case FIELD_ROOM:
+                        message.setRoom(in.readString());
+                        break;
+                    case FIELD_PROTOCOL:
+                        message.setProtocol(in.readString());
+                        break;
+                    case FIELD_COMPRESSION:
+                        message.setCompression(in.readString());
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            } while (in.consume(','));
+            in.expect('}');
+        }
+        in.expectEnd();
+        return message;
+    }
+
+    private static User readUser(Parser in) throws IOException {
+        if (in.consumeNull()) {
+            return null;
+        }
+        String id = null;
+        String username = null;
+        in.expect('{');
+        if (!in.consume('}')) {
+            do {
+                int field = in.readName(USER_FIELDS);
+                in.expect(':');
+                if (field == FIELD_ID) {
+                    id = in.readString();
+                } else if (field == FIELD_USERNAME) {
+                    username = in.readString();
+                } else {
+                    in.skipValue();
+                }
+            } while (in.consume(','));
+            in.expect('}');
+        }
+        return new User(id, username);
+    }
+
+    /**
+     * 只取出内容的第一个字符（UTF-16），不创建任何字符串
+     * 心跳（type 为 ping 或 pong）不按内容分类，带了内容也返回 NO_CONTENT，和完整解码之后的处理一致
+     * @return 第一个字符；内容为空字符串时返回 EMPTY_CONTENT，没有内容或者是心跳时返回 NO_CONTENT
+     * @throws IOException JSON格式错误
+     */
+    public static int peekContent(byte[] array, int offset, int length) throws IOException {
+        Parser in = new Parser(array, offset, offset + length);
+        int first = NO_CONTENT;
+        boolean heartbeat = false;
+        in.expect('{');
+        if (!in.consume('}')) {
+            do {
+                int field = in.readName(MESSAGE_FIELDS);
+                in.expect(':');
+                // 重复的字段以最后一个为准，和 decode() 一致，所以要扫描到最后
+                if (field == FIELD_TYPE) {
+                    heartbeat = Heartbeat.isHeartbeat(in.readType());
+                    continue;
+                }
+                if (field == FIELD_CONTENT) {
+                    first = in.peekFirstChar();
+                }
+                in.skipValue();
+            } while (in.consume(','));
+            in.expect('}');
+        }
+        return heartbeat ? NO_CONTENT : first;
+    }
+
+    /**
+     * 在字节数组的一段上顺序解析
+     */
+    private static final class Parser {
+        private final byte[] bytes;
+        private int pos;
+        private final int end;
+
+        Parser(byte[] bytes, int pos, int end) {
+            this.bytes = bytes;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        private IOException error(String reason) {
+            return new IOException("JSON格式错误: " + reason + "（位置 " + pos + "）");
+        }
+
+        /**
+         * 跳过空白，返回下一个字节但不消费；到末尾时返回-1
+         */
+        private int peek() {
+            while (pos < end) {
+                byte b = bytes[pos];
+                if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                    return b;
+                }
+                pos++;
+            }
+            return -1;
+        }
+
+        void expect(char c) throws IOException {
+            if (peek() != c) {
+                throw error("应为 '" + c + "'");
+            }
+            pos++;
+        }
+
+        boolean consume(char c) {
+            if (peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expectEnd() throws IOException {
+            if (peek() != -1) {
+                throw error("对象之后有多余数据");
+            }
+        }
+
+        boolean consumeNull() throws IOException {
+            if (peek() != 'n') {
+                return false;
+            }
+            expectLiteral("null");
+            return true;
+        }
+
+        private void expectLiteral(String literal) throws IOException {
+            if (end - pos < literal.length()) {
+                throw error("无法识别的值");
+            }
+            for (int i = 0; i < literal.length(); i++) {
+                if (bytes[pos + i] != literal.charAt(i)) {
+                    throw error("无法识别的值");
+                }
+            }
+            pos += literal.length();
+        }
+
+        /**
+         * 读取字段名，和已知的名字按字节比较
+         * @return 匹配的名字在 names 中的下标，都不匹配返回-1
+         */
+        int readName(byte[][] names) throws IOException {
+            expect('"');
+            int start = pos;
+            int close = findClosingQuote();
+            int index = -1;
+            if (close >= 0) {
+                for (int i = 0; i < names.length; i++) {
+                    if (regionEquals(start, close, names[i])) {
+                        index = i;
+                        break;
+                    }
+                }
+                pos = close + 1;
+                return index;
+            }
+            // 字段名里有转义字符（几乎不会出现），解码后再比较
+            pos = start - 1;
+            String name = readString();
+            for (int i = 0; i < names.length; i++) {
+                if (name.equals(new String(names[i], StandardCharsets.UTF_8))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private boolean regionEquals(int start, int stop, byte[] expected) {
+            if (stop - start != expected.length) {
+                return false;
+            }
+            for (int i = 0; i < expected.length; i++) {
+                if (bytes[start + i] != expected[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 从当前位置（左引号之后）找右引号
+         * @return 右引号的位置；先遇到反斜杠时返回-1
+         */
+        private int findClosingQuote() throws IOException {
+            for (int i = pos; i < end; i++) {
+                byte b = bytes[i];
+                if (b == '"') {
+                    return i;
+                }
+                if (b == '\\') {
+                    return -1;
+                }
+            }
+            throw error("字符串没有结束");
+        }
+
+        /**
+         * 读取字符串或 null
+         */
+        String readString() throws IOException {
+            if (consumeNull()) {
+                return null;
+            }
+            expect('"');
+            int start = pos;
+            int close = findClosingQuote();
+            if (close >= 0) {
+                pos = close + 1;
+                return new String(bytes, start, close - start, StandardCharsets.UTF_8);
+            }
+            // 有转义字符：转义之间的片段整段解码，反斜杠是ASCII，不会切断多字节的UTF-8字符
+            StringBuilder text = new StringBuilder(Math.max(16, end - start));
+            int run = start;
+            while (true) {
+                if (pos >= end) {
+                    throw error("字符串没有结束");
+                }
+                byte b = bytes[pos];
+                if (b == '"') {
+                    text.append(new String(bytes, run, pos - run, StandardCharsets.UTF_8));
+                    pos++;
+                    return text.toString();
+                }
+                if (b == '\\') {
+                    text.append(new String(bytes, run, pos - run, StandardCharsets.UTF_8));
+                    pos++;
+                    text.append(readEscape());
+                    run = pos;
+                } else {
+                    pos++;
+                }
+            }
+        }
+
+        /**
+         * 读取反斜杠之后的转义序列
+         */
+        private char readEscape() throws IOException {
+            if (pos >= end) {
+                throw error("转义序列不完整");
+            }
+            byte b = bytes[pos++];
+            switch (b) {
+                case '"':
+                case '\\':
+                case '/':
+                case '\'':
+                    return (char) b;
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    if (end - pos < 4) {
+                        throw error("转义序列不完整");
+                    }
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(bytes[pos++], 16);
+                        if (digit < 0) {
+                            throw error("\\u 之后应为十六进制数字");
+                        }
+                        value = value << 4 | digit;
+                    }
+                    return (char) value;
+                default:
+                    throw error("无法识别的转义字符");
+            }
+        }
+
+        /**
+         * 读取消息类型，常见的类型不创建新字符串
+         */
+        String readType() throws IOException {
+            if (peek() == '"') {
+                int start = pos + 1;
+                for (int i = 0; i < KNOWN_TYPE_BYTES.length; i++) {
+                    byte[] known = KNOWN_TYPE_BYTES[i];
+                    int close = start + known.length;
+                    if (close < end && bytes[close] == '"' && regionEquals(start, close, known)) {
+                        pos = close + 1;
+                        return KNOWN_TYPES[i];
+                    }
+                }
+            }
+            return readString();
+        }
+
+        /**
+         * 读取整数；null 时为0（同 Gson 对基本类型字段的处理）
+         */
+        long readLong() throws IOException {
+            int c = peek();
+            if (c == 'n') {
+                expectLiteral("null");
+                return 0;
+            }
+            if (c == '"') {
+                String text = readString();
+                try {
+                    return Long.parseLong(text);
+                } catch (NumberFormatException e) {
+                    throw error("不是整数: " + text);
+                }
+            }
+            int start = pos;
+            boolean negative = c == '-';
+            if (negative) {
+                pos++;
+            }
+            long value = 0;
+            int digits = 0;
+            while (pos < end && bytes[pos] >= '0' && bytes[pos] <= '9') {
+                int digit = bytes[pos++] - '0';
+                if (value > (Long.MAX_VALUE - digit) / 10) {
+                    throw error("整数超出范围");
+                }
+                value = value * 10 + digit;
+                digits++;
+            }
+            if (pos < end && (bytes[pos] == '.' || bytes[pos] == 'e' || bytes[pos] == 'E')) {
+                // 少见的写法，按浮点数解析，必须是整数值
+                pos = start;
+                skipScalar();
+                try {
+                    double d = Double.parseDouble(new String(bytes, start, pos - start, StandardCharsets.US_ASCII));
+                    if ((long) d != d) {
+                        throw error("不是整数");
+                    }
+                    return (long) d;
+                } catch (NumberFormatException e) {
+                    throw error("无法识别的数字");
+                }
+            }
+            if (digits == 0) {
+                throw error("应为数字");
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * 取字符串值的第一个字符，不移动位置
+         * @return 第一个字符（UTF-16）；空字符串 EMPTY_CONTENT；null NO_CONTENT
+         */
+        int peekFirstChar() throws IOException {
+            int c = peek();
+            if (c == 'n') {
+                return NO_CONTENT;
+            }
+            if (c != '"') {
+                throw error("应为字符串");
+            }
+            int i = pos + 1;
+            if (i >= end) {
+                throw error("字符串没有结束");
+            }
+            int b = bytes[i] & 0xff;
+            if (b == '"') {
+                return EMPTY_CONTENT;
+            }
+            if (b == '\\') {
+                int saved = pos;
+                pos = i + 1;
+                char escaped = readEscape();
+                pos = saved;
+                return escaped;
+            }
+            if (b < 0x80) {
+                return b;
+            }
+            // 多字节UTF-8，只需要解出第一个码点；格式不对的和 new String 一样当作替换字符
+            int count = b >= 0xf0 ? 3 : b >= 0xe0 ? 2 : b >= 0xc0 ? 1 : -1;
+            if (count < 0 || i + count >= end) {
+                return 0xfffd;
+            }
+            int codePoint = b & (0x3f >> count);
+            for (int k = 1; k <= count; k++) {
+                int next = bytes[i + k] & 0xff;
+                if ((next & 0xc0) != 0x80) {
+                    return 0xfffd;
+                }
+                codePoint = codePoint << 6 | (next & 0x3f);
+            }
+            return Character.isBmpCodePoint(codePoint) ? codePoint : Character.highSurrogate(codePoint);
+        }
+
+        /**
+         * 跳过任意一个值，不创建对象
+         */
+        void skipValue() throws IOException {
+            int c = peek();
+            if (c == '"') {
+                pos++;
+                skipStringBody();
+            } else if (c == '{' || c == '[') {
+                int depth = 0;
+                do {
+                    c = peek();
+                    if (c == -1) {
+                        throw error("对象或数组没有结束");
+                    }
+                    pos++;
+                    if (c == '"') {
+                        skipStringBody();
+                    } else if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                } while (depth > 0);
+            } else if (c == -1) {
+                throw error("缺少值");
+            } else {
+                skipScalar();
+            }
+        }
+
+        private void skipStringBody() throws IOException {
+            while (pos < end) {
+                byte b = bytes[pos++];
+                if (b == '"') {
+                    return;
+                }
+                if (b == '\\') {
+                    pos++;
+                }
+            }
+            throw error("字符串没有结束");
+        }
+
+        /**
+         * 跳过数字、true、false、null
+         */
+        private void skipScalar() throws IOException {
+            int start = pos;
+            while (pos < end) {
+                byte b = bytes[pos];
+                if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                    break;
+                }
+                pos++;
+            }
+            if (pos == start) {
+                throw error("缺少值");
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.niweiru;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 专门编码 Message 的JSON编码器，直接写出UTF-8字节，取代 Gson 的反射编码
+ *
+ * 先走一遍算出编码后的准确长度，再写进一个正好大小的数组，除了这一帧本身不创建任何对象
+ * （Gson 要经过 StringWriter、String 再 getBytes，每条消息复制好几次）。
+ * 输出和 Gson 默认配置逐字节相同：字段按声明顺序、省略值为 null 的字段，
+ * 控制字符、HTML特殊字符（< > & = '）和 U+2028/U+2029 用 \\u 转义，所以两种实现可以混用。
+ */
+public final class JsonMessageEncoder {
+    // ASCII字符的转义，null表示原样输出
+    private static final byte[][] ESCAPES = new byte[128][];
+    private static final byte[] LINE_SEPARATOR = ascii("\\u2028");
+    private static final byte[] PARAGRAPH_SEPARATOR = ascii("\\u2029");
+
+    private static final byte[] TYPE = ascii("\"type\":");
+    private static final byte[] SENDER = ascii("\"sender\":");
+    private static final byte[] CONTENT = ascii("\"content\":");
+    private static final byte[] TIMESTAMP = ascii("\"timestamp\":");
+    private static final byte[] ROOM = ascii("\"room\":");
+    private static final byte[] PROTOCOL = ascii("\"protocol\":");
+    private static final byte[] COMPRESSION = ascii("\"compression\":");
+    private static final byte[] ID = ascii("\"id\":");
+    private static final byte[] USERNAME = ascii("\"username\":");
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = ascii(String.format("\\u%04x", c));
+        }
+        ESCAPES['"'] = ascii("\\\"");
+        ESCAPES['\\'] = ascii("\\\\");
+        ESCAPES['\t'] = ascii("\\t");
+        ESCAPES['\b'] = ascii("\\b");
+        ESCAPES['\n'] = ascii("\\n");
+        ESCAPES['\r'] = ascii("\\r");
+        ESCAPES['\f'] = ascii("\\f");
+        ESCAPES['<'] = ascii("\\u003c");
+        ESCAPES['>'] = ascii("\\u003e");
+        ESCAPES['&'] = ascii("\\u0026");
+        ESCAPES['='] = ascii("\\u003d");
+        ESCAPES['\''] = ascii("\\u0027");
+    }
+
+    private JsonMessageEncoder() {
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 编码为一帧：JSON加换行符
+     */
+    public static byte[] encode(Message message) {
+        int length = writeMessage(message, null, 0) + 1;
+        byte[] frame = new byte[length];
+        writeMessage(message, frame, 0);
+        frame[length - 1] = '\n';
+        return frame;
+    }
+
+    // 以下方法在 out 为null时只计算长度，返回写完之后的位置
+
+    private static int writeMessage(Message message, byte[] out, int pos) {
+        int start = pos;
+        pos = put(out, pos, '{');
+        if (message.getType() != null) {
+            pos = name(out, pos, TYPE, pos > start + 1);
+            pos = string(out, pos, message.getType());
+        }
+        User sender = message.getSender();
+        if (sender != null) {
+            pos = name(out, pos, SENDER, pos > start + 1);
+            int userStart = pos;
+            pos = put(out, pos, '{');
+            if (sender.getId() != null) {
+                pos = name(out, pos, ID, false);
+                pos = string(out, pos, sender.getId());
+            }
+            if (sender.getUsername() != null) {
+                pos = name(out, pos, USERNAME, pos > userStart + 1);
+                pos = string(out, pos, sender.getUsername());
+            }
+            pos = put(out, pos, '}');
+        }
+        if (message.getContent() != null) {
+            pos = name(out, pos, CONTENT, pos > start + 1);
+            pos = string(out, pos, message.getContent());
+        }
+        pos = name(out, pos, TIMESTAMP, pos > start + 1);
+        pos = number(out, pos, message.getTimestamp());
+        if (message.getRoom() != null) {
+            pos = name(out, pos, ROOM, true);
+            pos = string(out, pos, message.getRoom());
+        }
+        if (message.getProtocol() != null) {
+            pos = name(out, pos, PROTOCOL, true);
+            pos = string(out, pos, message.getProtocol());
+        }
+        if (message.getCompression() != null) {
+            pos = name(out, pos, COMPRESSION, true);
+            pos = string(out, pos, message.getCompression());
+        }
+        return put(out, pos, '}');
+    }
+
+    private static int put(byte[] out, int pos, char c) {
+        if (out != null) {
+            out[pos] = (byte) c;
+        }
+        return pos + 1;
+    }
+
+    private static int put(byte[] out, int pos, byte[] bytes) {
+        if (out != null) {
+            System.arraycopy(bytes, 0, out, pos, bytes.length);
+        }
+        return pos + bytes.length;
+    }
+
+    private static int name(byte[] out, int pos, byte[] name, boolean comma) {
+        if (comma) {
+            pos = put(out, pos, ',');
+        }
+        return put(out, pos, name);
+    }
+
+    private static int string(byte[] out, int pos, String value) {
+        pos = put(out, pos, '"');
+        int length = value.length();
+        int i = 0;
+        while (i < length) {
+            char c = value.charAt(i);
+            byte[] escape = c < 0x80 ? ESCAPES[c]
+                    : c == '\u2028' ? LINE_SEPARATOR : c == '\u2029' ? PARAGRAPH_SEPARATOR : null;
+            if (escape != null) {
+                pos = put(out, pos, escape);
+                i++;
+            } else if (c < 0x80) {
+                pos = put(out, pos, c);
+                i++;
+            } else {
+                int bytes = Utf8.charLength(value, i);
+                if (out != null) {
+                    Utf8.writeChar(value, i, out, pos);
+                }
+                pos += bytes;
+                // 4个字节的是一对代理字符
+                i += bytes == 4 ? 2 : 1;
+            }
+        }
+        return put(out, pos, '"');
+    }
+
+    private static int number(byte[] out, int pos, long value) {
+        // 按负数处理，Long.MIN_VALUE 也不会溢出
+        if (value < 0) {
+            pos = put(out, pos, '-');
+        } else {
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v <= -10; v /= 10) {
+            digits++;
+        }
+        if (out != null) {
+            long v = value;
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                out[i] = (byte) ('0' - v % 10);
+                v /= 10;
+            }
+        }
+        return pos + digits;
+    }
+}
@@ -0,0 +1,663 @@
+package com.niweiru;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * 无界面的压测客户端：按设定的速率连上大量模拟用户，让它们按设定的速率和广播/私聊比例发消息，
+ * 统计吞吐量和端到端投递延迟。
+ * 延迟 = 收到消息的时刻 - 消息的 timestamp（发送方构造消息的时刻），收发双方在同一个进程里，用的是同一个时钟，
+ * 精度是毫秒。只统计全部用户连上之后发出的消息，连接阶段的加入通知风暴不计入。
+ *
+ * 运行方式（-Dchat.load.embedded=true 在同一进程里起一个本机服务器，不依赖任何外部服务）：
+ * java -Dchat.load.embedded=true -Dchat.load.users=2000 com.niweiru.LoadGenerator
+ * 压外部服务器时，所有模拟用户来自同一个IP，服务器需要关掉限流（-Dchat.ratelimit.chat=off 等）。
+ * 每个模拟用户一条连接，文件句柄上限要大于用户数（内置服务器时大于两倍）。
+ * TLS（-Dchat.load.tls=true）时另外统计每条连接的握手耗时和恢复会话的比例，
+ * -Dchat.load.tlsResume=false 让每个模拟用户用自己的 SSLContext，模拟没有缓存会话的新客户端，每次都是完整握手。
+ */
+public class LoadGenerator {
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+    // 模拟用户的用户名前缀，收到的消息按这个前缀区分是不是压测消息
+    static final String USER_PREFIX = "load_";
+    // 全部连上之后，等多久再开始统计，让服务器处理完登录和加入通知
+    private static final long SETTLE_MILLIS = 500;
+    // 停止发送后最多等多久让在途的消息送达
+    private static final long DRAIN_MILLIS = 3000;
+
+    /**
+     * 压测参数，都可以通过 -Dchat.load.xxx 系统属性覆盖
+     */
+    public static class Options {
+        private String host = "localhost";
+        private int port = 8080;
+        // 模拟用户数，每人一条连接
+        private int users = 1000;
+        // 每秒建立多少条连接
+        private double connectRate = 200;
+        // 每个用户每秒发多少条消息
+        private double messageRate = 0.2;
+        // 私聊所占的比例，其余是广播
+        private double privateRatio = 0.2;
+        // 消息内容的字节数（ASCII）
+        private int messageBytes = 64;
+        // 用户分散到多少个房间，1 表示都在默认房间；广播的扇出大约是 用户数/房间数
+        private int rooms = 1;
+        // 全部连上之后持续发送多少秒
+        private int durationSeconds = 30;
+        // 每隔多少秒打印一次进度，0 不打印
+        private int reportIntervalSeconds = 5;
+        private Protocol protocol = Protocol.JSON;
+        // 是否协商逐帧压缩（大于1KB的帧）
+        private boolean compression;
+        // 是否用TLS连接
+        private boolean tls;
+        // 信任的证书所在的密钥库，为null时用JDK默认的CA证书
+        private String trustStore;
+        private String trustStorePassword = "";
+        private String trustStoreType = "PKCS12";
+        // 所有模拟用户共用一个 SSLContext，可以恢复之前的会话；false 时每个用户一个，每次都完整握手。
+        // TLS 1.3 的会话票据在握手之后才到，连接速率高于票据到达的速度时，之前的连接还没收到票据，照样完整握手
+        private boolean tlsResume = true;
+
+        public static Options fromSystemProperties() {
+            Options options = new Options();
+            options.setHost(System.getProperty("chat.load.host", options.host));
+            options.setPort(Integer.getInteger("chat.load.port", options.port));
+            options.setUsers(Integer.getInteger("chat.load.users", options.users));
+            options.setConnectRate(Double.parseDouble(
+                    System.getProperty("chat.load.connectRate", String.valueOf(options.connectRate))));
+            options.setMessageRate(Double.parseDouble(
+                    System.getProperty("chat.load.messageRate", String.valueOf(options.messageRate))));
+            options.setPrivateRatio(Double.parseDouble(
+                    System.getProperty("chat.load.privateRatio", String.valueOf(options.privateRatio))));
+            options.setMessageBytes(Integer.getInteger("chat.load.messageBytes", options.messageBytes));
+            options.setRooms(Integer.getInteger("chat.load.rooms", options.rooms));
+            options.setDurationSeconds(Integer.getInteger("chat.load.durationSec", options.durationSeconds));
+            options.setReportIntervalSeconds(Integer.getInteger("chat.load.reportIntervalSec",
+                    options.reportIntervalSeconds));
+            options.setProtocol(Protocol.fromWireName(
+                    System.getProperty("chat.load.protocol", options.protocol.getWireName())));
+            options.setCompression(Boolean.getBoolean("chat.load.compression"));
+            options.setTls(Boolean.getBoolean("chat.load.tls"));
+            options.setTrustStore(System.getProperty("chat.load.tls.trustStore"));
+            options.setTrustStorePassword(System.getProperty("chat.load.tls.trustStorePassword",
+                    options.trustStorePassword));
+            options.setTrustStoreType(System.getProperty("chat.load.tls.trustStoreType", options.trustStoreType));
+            options.setTlsResume(Boolean.parseBoolean(
+                    System.getProperty("chat.load.tlsResume", String.valueOf(options.tlsResume))));
+            return options;
+        }
+
+        public void setHost(String host) {
+            this.host = host;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public void setUsers(int users) {
+            this.users = users;
+        }
+
+        public void setConnectRate(double connectRate) {
+            this.connectRate = connectRate;
+        }
+
+        public void setMessageRate(double messageRate) {
+            this.messageRate = messageRate;
+        }
+
+        public void setPrivateRatio(double privateRatio) {
+            this.privateRatio = privateRatio;
+        }
+
+        public void setMessageBytes(int messageBytes) {
+            this.messageBytes = messageBytes;
+        }
+
+        public void setRooms(int rooms) {
+            this.rooms = rooms;
+        }
+
+        public void setDurationSeconds(int durationSeconds) {
+            this.durationSeconds = durationSeconds;
+        }
+
+        public void setReportIntervalSeconds(int reportIntervalSeconds) {
+            this.reportIntervalSeconds = reportIntervalSeconds;
+        }
+
+        public void setProtocol(Protocol protocol) {
+            this.protocol = protocol;
+        }
+
+        public void setCompression(boolean compression) {
+            this.compression = compression;
+        }
+
+        public void setTls(boolean tls) {
+            this.tls = tls;
+        }
+
+        public void setTrustStore(String trustStore) {
+            this.trustStore = trustStore;
+        }
+
+        public void setTrustStorePassword(String trustStorePassword) {
+            this.trustStorePassword = trustStorePassword;
+        }
+
+        public void setTrustStoreType(String trustStoreType) {
+            this.trustStoreType = trustStoreType;
+        }
+
+        public void setTlsResume(boolean tlsResume) {
+            this.tlsResume = tlsResume;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s:%d 用户 %d（每秒连接 %.0f），每人每秒 %.2f 条，私聊 %.0f%%，"
+                            + "内容 %d 字节，房间 %d，持续 %d 秒，协议 %s%s%s", host, port, users, connectRate,
+                    messageRate, privateRatio * 100, messageBytes, rooms, durationSeconds, protocol.getWireName(),
+                    compression ? "（压缩）" : "", tls ? (tlsResume ? "，TLS" : "，TLS（不恢复会话）") : "");
+        }
+    }
+
+    private final Options options;
+    private final String payload;
+    private final Stats broadcast = new Stats();
+    private final Stats privates = new Stats();
+    private final LongAdder systemMessages = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    // TLS握手耗时和恢复了会话的连接数
+    private final MillisHistogram handshakes = new MillisHistogram();
+    private final LongAdder resumed = new LongAdder();
+    // 共用的客户端 SSLContext，不用TLS或者不恢复会话时为null
+    private SSLContext sharedTls;
+    private final List<SimUser> connected = new ArrayList<>();
+    // 只统计 timestamp 在这两个时刻之间的消息，全部连上之前为 Long.MAX_VALUE
+    // 两个时刻都在到达之前设好，发送方和接收方对同一条消息的判断才一致
+    private volatile long measureFromMillis = Long.MAX_VALUE;
+    private volatile long measureUntilMillis = Long.MAX_VALUE;
+    private volatile boolean running = true;
+
+    public LoadGenerator(Options options) {
+        this.options = options;
+        this.payload = "x".repeat(Math.max(1, options.messageBytes));
+    }
+
+    /**
+     * 执行一次压测，连接、发送、等待在途消息、断开，返回统计结果
+     */
+    public Report run() throws IOException, InterruptedException {
+        logger.info("开始压测: {}", options);
+        ExecutorService readers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("load-reader-", 0).factory());
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+                Runtime.getRuntime().availableProcessors(), r -> {
+                    Thread thread = new Thread(r, "load-sender");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        long periodNanos = options.messageRate > 0 ? (long) (1e9 / options.messageRate) : 0;
+        long rampMillis = 0;
+        try {
+            if (options.tls && options.tlsResume) {
+                sharedTls = clientTls();
+            }
+            long rampStart = System.nanoTime();
+            for (int i = 0; i < options.users; i++) {
+                // 按连接速率匀速建立连接
+                long due = rampStart + (long) (i * 1e9 / options.connectRate);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                SimUser user = connect(i);
+                if (user == null) {
+                    continue;
+                }
+                readers.execute(user::readLoop);
+                synchronized (connected) {
+                    connected.add(user);
+                }
+                if (periodNanos > 0) {
+                    senders.scheduleAtFixedRate(user::sendOne,
+                            ThreadLocalRandom.current().nextLong(periodNanos), periodNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            rampMillis = (System.nanoTime() - rampStart) / 1_000_000;
+            logger.info("已连接 {} 个用户（失败 {}），用时 {} 毫秒", connected.size(), connectFailures.sum(), rampMillis);
+
+            long start = System.currentTimeMillis() + SETTLE_MILLIS;
+            long end = start + options.durationSeconds * 1000L;
+            measureFromMillis = start;
+            measureUntilMillis = end;
+            Thread.sleep(SETTLE_MILLIS);
+            long reportMillis = options.reportIntervalSeconds * 1000L;
+            long lastSent = 0;
+            long lastDelivered = 0;
+            long lastReport = start;
+            while (System.currentTimeMillis() < end) {
+                long now = System.currentTimeMillis();
+                Thread.sleep(reportMillis > 0 ? Math.min(end - now, lastReport + reportMillis - now) : end - now);
+                now = System.currentTimeMillis();
+                if (reportMillis > 0 && now - lastReport >= reportMillis) {
+                    long sent = broadcast.sent.sum() + privates.sent.sum();
+                    long delivered = broadcast.delivered.sum() + privates.delivered.sum();
+                    double seconds = (now - lastReport) / 1000.0;
+                    logger.info(String.format(Locale.ROOT, "进度 %ds: 发送 %.0f 条/秒，投递 %.0f 条/秒，广播延迟 p99（累计）%d 毫秒",
+                            (now - start) / 1000, (sent - lastSent) / seconds, (delivered - lastDelivered) / seconds,
+                            broadcast.latency.percentile(0.99)));
+                    lastSent = sent;
+                    lastDelivered = delivered;
+                    lastReport = now;
+                }
+            }
+            senders.shutdownNow();
+            senders.awaitTermination(5, TimeUnit.SECONDS);
+            awaitDrained();
+            return new Report(options, end - start, connected.size(), connectFailures.sum(),
+                    errors.sum(), systemMessages.sum(), broadcast, privates, rampMillis, handshakes, resumed.sum());
+        } finally {
+            running = false;
+            senders.shutdownNow();
+            synchronized (connected) {
+                for (SimUser user : connected) {
+                    user.close();
+                }
+            }
+            readers.shutdown();
+            readers.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 停止发送后，等到投递数一段时间不再增长（或等满 DRAIN_MILLIS）
+     */
+    private void awaitDrained() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+        long last = -1;
+        while (System.currentTimeMillis() < deadline) {
+            long delivered = broadcast.delivered.sum() + privates.delivered.sum();
+            if (delivered == last) {
+                return;
+            }
+            last = delivered;
+            Thread.sleep(200);
+        }
+    }
+
+    private SSLContext clientTls() throws IOException {
+        return Tls.clientContext(options.trustStore, options.trustStorePassword, options.trustStoreType);
+    }
+
+    /**
+     * 建立连接（TLS时包括握手）并登录，需要时加入分配的房间
+     * @return 连接失败返回null
+     */
+    private SimUser connect(int index) {
+        User user = new User("load_id_" + index, USER_PREFIX + index);
+        Connection connection;
+        try {
+            Socket socket = options.tls ? connectTls() : new Socket(options.host, options.port);
+            socket.setTcpNoDelay(true);
+            connection = new Connection(socket);
+        } catch (IOException e) {
+            connectFailures.increment();
+            logger.warn("用户 {} 连接失败: {}", user.getUsername(), e.getMessage());
+            return null;
+        }
+        try {
+            Message login = new Message(user, "---login---");
+            if (options.protocol != Protocol.JSON) {
+                login.setProtocol(options.protocol.getWireName());
+            }
+            if (options.compression) {
+                login.setCompression(Compression.DEFLATE);
+            }
+            connection.send(login);
+            // 登录消息本身总是JSON，之后双方都切换到协商的协议
+            connection.setProtocol(options.protocol);
+            if (options.compression) {
+                connection.setCompression(new Compression(1024, null));
+            }
+            if (options.rooms > 1) {
+                connection.send(new Message(user, "/join load-room-" + index % options.rooms));
+            }
+            return new SimUser(user, connection);
+        } catch (IOException e) {
+            connectFailures.increment();
+            logger.warn("用户 {} 登录失败: {}", user.getUsername(), e.getMessage());
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+                // 已经失败了
+            }
+            return null;
+        }
+    }
+
+    /**
+     * TLS连接并完成握手，记录握手耗时；会话的创建时间早于这次握手开始的时刻，说明恢复了之前的会话
+     */
+    private Socket connectTls() throws IOException {
+        SSLContext context = sharedTls != null ? sharedTls : clientTls();
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        SSLSocket socket = Tls.connect(context, options.host, options.port, null);
+        handshakes.record((System.nanoTime() - start) / 1_000_000);
+        if (socket.getSession().getCreationTime() < startMillis) {
+            resumed.increment();
+        }
+        return socket;
+    }
+
+    /**
+     * 一个模拟用户：一条连接、一个虚拟线程读、由发送线程池定时发
+     */
+    private final class SimUser {
+        private final User user;
+        private final Connection connection;
+
+        SimUser(User user, Connection connection) {
+            this.user = user;
+            this.connection = connection;
+        }
+
+        /**
+         * 按比例发一条广播或私聊，私聊对象从已连上的用户里随机选
+         */
+        void sendOne() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Message message;
+            Stats stats;
+            SimUser target = null;
+            if (random.nextDouble() < options.privateRatio) {
+                synchronized (connected) {
+                    if (connected.size() > 1) {
+                        target = connected.get(random.nextInt(connected.size()));
+                    }
+                }
+            }
+            if (target != null && target != this) {
+                message = new Message(user, "@" + target.user.getUsername() + " " + payload);
+                stats = privates;
+            } else {
+                message = new Message(user, payload);
+                stats = broadcast;
+            }
+            try {
+                connection.send(message);
+                long timestamp = message.getTimestamp();
+                if (timestamp >= measureFromMillis && timestamp <= measureUntilMillis) {
+                    stats.sent.increment();
+                }
+            } catch (IOException e) {
+                if (running) {
+                    errors.increment();
+                }
+            }
+        }
+
+        void readLoop() {
+            try {
+                Message message;
+                while ((message = connection.receive()) != null) {
+                    String type = message.getType();
+                    if (Heartbeat.PING_TYPE.equals(type)) {
+                        connection.send(Heartbeat.message(user, Heartbeat.PONG_TYPE));
+                        continue;
+                    }
+                    User sender = message.getSender();
+                    if (sender == null || sender.getUsername() == null || !sender.getUsername().startsWith(USER_PREFIX)) {
+                        // 加入通知、私聊对象不在线等系统消息
+                        systemMessages.increment();
+                        continue;
+                    }
+                    long timestamp = message.getTimestamp();
+                    if (timestamp < measureFromMillis || timestamp > measureUntilMillis) {
+                        continue;
+                    }
+                    Stats stats = "private".equals(type) ? privates : broadcast;
+                    stats.delivered.increment();
+                    stats.latency.record(System.currentTimeMillis() - timestamp);
+                }
+                if (running) {
+                    errors.increment();
+                    logger.warn("用户 {} 的连接被服务器关闭", user.getUsername());
+                }
+            } catch (IOException e) {
+                if (running) {
+                    errors.increment();
+                    logger.warn("用户 {} 接收消息失败: {}", user.getUsername(), e.getMessage());
+                }
+            }
+        }
+
+        void close() {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                logger.debug("关闭连接时发生异常", e);
+            }
+        }
+    }
+
+    /**
+     * 一类消息（广播或私聊）的发送数、投递数和投递延迟
+     * 广播一条会投递给房间里的每个其他成员，私聊一条投递两份（对方和发送者自己）
+     */
+    static final class Stats {
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder delivered = new LongAdder();
+        private final MillisHistogram latency = new MillisHistogram();
+
+        long sent() {
+            return sent.sum();
+        }
+
+        long delivered() {
+            return delivered.sum();
+        }
+
+        MillisHistogram latency() {
+            return latency;
+        }
+    }
+
+    /**
+     * 按毫秒精确计数的延迟直方图
+     * timestamp 本身只有毫秒精度，这里每毫秒一个桶，百分位是精确值；超过上限的只记入最大值。
+     * 同 LatencyHistogram 一样每个桶是一个 LongAdder，大量读线程同时记录时不争抢。
+     */
+    static final class MillisHistogram {
+        private static final int MAX_MILLIS = 10_000;
+
+        private final LongAdder[] buckets = new LongAdder[MAX_MILLIS + 1];
+        private final LongAdder overflow = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        MillisHistogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long millis) {
+            millis = Math.max(0, millis);
+            if (millis <= MAX_MILLIS) {
+                buckets[(int) millis].increment();
+            } else {
+                overflow.increment();
+            }
+            max.accumulate(millis);
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * @param quantile 0~1
+         * @return 毫秒；没有数据时为0，落在上限之外时返回最大值
+         */
+        long percentile(double quantile) {
+            long count = overflow.sum();
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i;
+                }
+            }
+            return max.get();
+        }
+    }
+
+    /**
+     * 一次压测的结果
+     */
+    public static final class Report {
+        private final Options options;
+        private final long elapsedMillis;
+        private final int connected;
+        private final long connectFailures;
+        private final long errors;
+        private final long systemMessages;
+        private final Stats broadcast;
+        private final Stats privates;
+        private final long rampMillis;
+        private final MillisHistogram handshakes;
+        private final long resumed;
+
+        Report(Options options, long elapsedMillis, int connected, long connectFailures, long errors,
+                long systemMessages, Stats broadcast, Stats privates, long rampMillis, MillisHistogram handshakes,
+                long resumed) {
+            this.options = options;
+            this.elapsedMillis = elapsedMillis;
+            this.connected = connected;
+            this.connectFailures = connectFailures;
+            this.errors = errors;
+            this.systemMessages = systemMessages;
+            this.broadcast = broadcast;
+            this.privates = privates;
+            this.rampMillis = rampMillis;
+            this.handshakes = handshakes;
+            this.resumed = resumed;
+        }
+
+        public int getConnected() {
+            return connected;
+        }
+
+        public long getConnectFailures() {
+            return connectFailures;
+        }
+
+        /**
+         * 连接被关闭、收发失败的次数
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        Stats broadcast() {
+            return broadcast;
+        }
+
+        Stats privates() {
+            return privates;
+        }
+
+        /**
+         * 恢复了之前会话的TLS连接数
+         */
+        public long getResumed() {
+            return resumed;
+        }
+
+        MillisHistogram handshakes() {
+            return handshakes;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(1, elapsedMillis) / 1000.0;
+            StringBuilder text = new StringBuilder("压测结果:\n");
+            text.append("- 参数: ").append(options).append('\n');
+            text.append(String.format(Locale.ROOT, "- 连接: 成功 %d，失败 %d；错误 %d；系统消息 %d；统计时长 %.1f 秒%n",
+                    connected, connectFailures, errors, systemMessages, seconds));
+            if (options.tls) {
+                text.append(String.format(Locale.ROOT,
+                        "- TLS握手: 每秒 %.1f 个连接，耗时 p50 %d / p99 %d / max %d 毫秒，恢复会话 %d / %d%n",
+                        connected * 1000.0 / Math.max(1, rampMillis), handshakes.percentile(0.5),
+                        handshakes.percentile(0.99), handshakes.max(), resumed, connected + connectFailures));
+            }
+            text.append(String.format(Locale.ROOT, "%-6s %10s %12s %12s %8s %8s %8s %8s %8s%n",
+                    "类型", "发送/秒", "投递/秒", "投递总数", "p50", "p90", "p99", "p99.9", "max(ms)"));
+            appendRow(text, "广播", broadcast, seconds);
+            appendRow(text, "私聊", privates, seconds);
+            return text.toString();
+        }
+
+        private static void appendRow(StringBuilder text, String name, Stats stats, double seconds) {
+            MillisHistogram latency = stats.latency;
+            text.append(String.format(Locale.ROOT, "%-6s %10.1f %12.1f %12d %8d %8d %8d %8d %8d%n", name,
+                    stats.sent() / seconds, stats.delivered() / seconds, stats.delivered(),
+                    latency.percentile(0.5), latency.percentile(0.9), latency.percentile(0.99),
+                    latency.percentile(0.999), latency.max()));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.fromSystemProperties();
+        Server server = null;
+        if (Boolean.getBoolean("chat.load.embedded")) {
+            // 在本进程里起一个只监听本机的服务器，其余服务器参数照常用 -Dchat.xxx 设置
+            ServerConfig config = ServerConfig.fromSystemProperties();
+            config.setPort(0);
+            // 所有模拟用户都来自本机，按IP限流会把它们一起限住
+            config.disableRateLimits();
+            server = new Server(config);
+            server.start();
+            options.setHost("127.0.0.1");
+            options.setPort(server.getLocalPort());
+        }
+        try {
+            logger.info("{}", new LoadGenerator(options).run());
+        } finally {
+            if (server != null) {
+                server.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.niweiru;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 每秒最多放行N条日志，超出的只计数，下一条放行的日志带上被省略的条数
+ * 这样不管消息量多大，逐条消息日志的开销都有上限。
+ * 不加锁：超过配额后只读一次计数器再累加一个 LongAdder，不会在同一个变量上反复CAS；
+ * 换秒时多个线程可能各自重置一次，配额只是近似值。
+ */
+public class LogRateLimiter {
+    private final int permitsPerSecond;
+    private final AtomicLong currentSecond = new AtomicLong();
+    private final AtomicInteger used = new AtomicInteger();
+    private final LongAdder suppressed = new LongAdder();
+
+    /**
+     * @param permitsPerSecond 每秒最多放行的条数，0 表示全部省略，负数表示不限制
+     */
+    public LogRateLimiter(int permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * @return 放行时返回上次放行之后被省略的条数（可能为0）；不放行返回-1
+     */
+    public long tryAcquire() {
+        if (permitsPerSecond < 0) {
+            return 0;
+        }
+        long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        long last = currentSecond.get();
+        if (second != last && currentSecond.compareAndSet(last, second)) {
+            used.set(0);
+        }
+        if (used.get() >= permitsPerSecond || used.incrementAndGet() > permitsPerSecond) {
+            suppressed.increment();
+            return -1;
+        }
+        return suppressed.sumThenReset();
+    }
+}
@@ -0,0 +1,245 @@
+package com.niweiru;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * 消息日志的一个段文件，整个文件映射到内存，只追加
+ *
+ * 记录格式（大端）：int 记录体长度 | int 记录体CRC32 | 记录体
+ * 记录体：long 时间戳 | 无符号short 频道字节数 | 频道(UTF-8) | 消息(一行JSON)
+ * 文件预先分配到段大小，未写的部分全是0，读到长度为0或CRC不对的记录就是末尾
+ * （进程崩溃时最后一条可能只写了一半）。
+ *
+ * 稀疏时间戳索引只在内存里：每写入约 INDEX_INTERVAL 字节记一个（时间戳, 位置），
+ * 打开已有段时扫描记录头重建，按时间查询时先二分索引再往后顺序扫描。
+ *
+ * append 由 MessageLog 加锁串行调用；读取可以和追加同时进行，只读到已发布的 size 为止。
+ */
+class LogSegment implements Closeable {
+    static final int HEADER_LENGTH = 8;
+    // 频道字节数用两个字节的无符号数记录
+    static final int MAX_CHANNEL_BYTES = 0xFFFF;
+    private static final int INDEX_INTERVAL = 4096;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    // 已写入的字节数，写完一条记录后才更新，读线程读到这里为止
+    private volatile int size;
+    private volatile int flushedSize;
+    private volatile long firstTimestamp = -1;
+    private volatile long lastTimestamp = -1;
+
+    private long[] indexTimestamps = new long[16];
+    private int[] indexPositions = new int[16];
+    private int indexCount;
+    private int lastIndexedPosition = -INDEX_INTERVAL;
+
+    private LogSegment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * 创建一个新的段文件并预分配
+     */
+    static LogSegment create(Path path, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new LogSegment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+    }
+
+    /**
+     * 以只读方式打开已有的段文件，扫描记录重建索引
+     */
+    static LogSegment open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        long length = channel.size();
+        if (length > Integer.MAX_VALUE) {
+            channel.close();
+            throw new IOException("段文件过大: " + path);
+        }
+        LogSegment segment = new LogSegment(path, channel,
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+        segment.recover();
+        return segment;
+    }
+
+    private void recover() {
+        ByteBuffer view = buffer.duplicate();
+        int position = 0;
+        CRC32 crc = new CRC32();
+        while (position + HEADER_LENGTH <= view.limit()) {
+            int length = view.getInt(position);
+            if (length <= 10 || position + HEADER_LENGTH + length > view.limit()) {
+                break;
+            }
+            view.limit(position + HEADER_LENGTH + length).position(position + HEADER_LENGTH);
+            crc.reset();
+            crc.update(view);
+            view.limit(view.capacity());
+            if ((int) crc.getValue() != view.getInt(position + 4)) {
+                break;
+            }
+            indexRecord(position, view.getLong(position + HEADER_LENGTH));
+            position += HEADER_LENGTH + length;
+        }
+        size = position;
+        flushedSize = position;
+    }
+
+    /**
+     * 追加一条记录，频道不能超过 MAX_CHANNEL_BYTES 字节
+     * @return 段剩余空间不够返回false
+     */
+    boolean append(long timestamp, byte[] channelName, ByteBuffer payload) {
+        if (channelName.length > MAX_CHANNEL_BYTES) {
+            throw new IllegalArgumentException("频道名超过 " + MAX_CHANNEL_BYTES + " 字节");
+        }
+        int bodyLength = 8 + 2 + channelName.length + payload.remaining();
+        int position = size;
+        if (position + HEADER_LENGTH + bodyLength > buffer.capacity()) {
+            return false;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + HEADER_LENGTH);
+        view.putLong(timestamp);
+        view.putShort((short) channelName.length);
+        view.put(channelName);
+        view.put(payload);
+        // 先写记录体和校验和，最后写长度，写到一半时长度仍是0
+        view.flip().position(position + HEADER_LENGTH);
+        CRC32 crc = new CRC32();
+        crc.update(view);
+        view.limit(view.capacity());
+        view.putInt(position + 4, (int) crc.getValue());
+        view.putInt(position, bodyLength);
+        indexRecord(position, timestamp);
+        size = position + HEADER_LENGTH + bodyLength;
+        return true;
+    }
+
+    private synchronized void indexRecord(int position, long timestamp) {
+        if (firstTimestamp < 0) {
+            firstTimestamp = timestamp;
+        }
+        lastTimestamp = timestamp;
+        if (position - lastIndexedPosition < INDEX_INTERVAL) {
+            return;
+        }
+        if (indexCount == indexTimestamps.length) {
+            indexTimestamps = Arrays.copyOf(indexTimestamps, indexCount * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+        }
+        indexTimestamps[indexCount] = timestamp;
+        indexPositions[indexCount] = position;
+        indexCount++;
+        lastIndexedPosition = position;
+    }
+
+    /**
+     * 时间戳不小于 timestamp 的第一条记录一定在返回的位置之后
+     */
+    private synchronized int floorPosition(long timestamp) {
+        int low = 0;
+        int high = indexCount - 1;
+        int result = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (indexTimestamps[mid] < timestamp) {
+                result = indexPositions[mid];
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 从时间戳不小于 fromTimestamp 的第一条记录开始顺序读取
+     * 消息部分以只读视图交给回调，不复制到堆上
+     * @return 回调要求停止时返回false
+     */
+    boolean read(long fromTimestamp, MessageLog.RecordVisitor visitor) {
+        int end = size;
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        int position = floorPosition(fromTimestamp);
+        while (position < end) {
+            int length = view.getInt(position);
+            long timestamp = view.getLong(position + HEADER_LENGTH);
+            int next = position + HEADER_LENGTH + length;
+            if (timestamp >= fromTimestamp) {
+                int channelStart = position + HEADER_LENGTH + 10;
+                int channelLength = Short.toUnsignedInt(view.getShort(position + HEADER_LENGTH + 8));
+                byte[] channelName = new byte[channelLength];
+                view.position(channelStart);
+                view.get(channelName);
+                view.limit(next);
+                boolean more = visitor.visit(timestamp, new String(channelName, StandardCharsets.UTF_8),
+                        view.slice());
+                view.limit(view.capacity());
+                if (!more) {
+                    return false;
+                }
+            }
+            position = next;
+        }
+        return true;
+    }
+
+    /**
+     * 把还没落盘的修改写到磁盘
+     */
+    void force() {
+        int current = size;
+        if (current != flushedSize) {
+            buffer.force();
+            flushedSize = current;
+        }
+    }
+
+    Path path() {
+        return path;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    long firstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * 关闭并删除段文件；已经映射的内存要等GC回收，期间正在读的线程不受影响
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
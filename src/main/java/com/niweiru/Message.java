@@ -21,6 +21,15 @@ public class Message {
     @SerializedName("timestamp")
     private long timestamp; // 时间戳
 
+    @SerializedName("room")
+    private String room; // 所在房间；客户端发送时为null表示发到当前房间
+
+    @SerializedName("protocol")
+    private String protocol; // 只在登录消息中使用：希望切换到的线路协议，见 Protocol；为null时Gson不输出
+
+    @SerializedName("compression")
+    private String compression; // 只在登录消息中使用：希望使用的压缩方式，见 Compression；为null时Gson不输出
+
     // 无参构造方法（Gson反序列化时需要）
     public Message() {
     }
@@ -65,6 +74,30 @@ public class Message {
         this.type = type;
     }
 
+    public String getRoom() {
+        return room;
+    }
+
+    public void setRoom(String room) {
+        this.room = room;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
     @Override
     public String toString() {
         return "Message{sender=" + sender + ", content='" + content + "', timestamp=" + timestamp + "}";
@@ -0,0 +1,87 @@
+package com.niweiru;
+
+/**
+ * 一个房间最近的聊天记录，环形缓冲区
+ * 存的是广播时已经编码过的 Frame，回放时直接写出，不需要再序列化；
+ * 条数和总字节数（按JSON编码长度计算）任一超过上限就淘汰最旧的记录。
+ * 缓冲区在第一条记录写入时才分配，没人说话的房间不占这部分内存。
+ */
+public class MessageHistory {
+    private final int capacity;
+    private final long maxBytes;
+    // 以下只在持有 this 锁时访问，第一次 append 之前为null
+    private Frame[] frames;
+    private int[] lengths;
+    // 最旧一条的下标
+    private int head;
+    private int count;
+    private long bytes;
+
+    /**
+     * @param capacity 最多保留的条数，0 表示不保留历史
+     * @param maxBytes 最多占用的字节数
+     */
+    public MessageHistory(int capacity, long maxBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 追加一条记录，必要时淘汰最旧的记录
+     * 编码在锁外进行，广播时这一帧通常已经编码过，这里只是取缓存的长度
+     */
+    public void append(Frame frame) {
+        if (capacity == 0) {
+            return;
+        }
+        int length = frame.length(Protocol.JSON);
+        if (length > maxBytes) {
+            return;
+        }
+        synchronized (this) {
+            if (frames == null) {
+                frames = new Frame[capacity];
+                lengths = new int[capacity];
+            }
+            while (count == frames.length || bytes + length > maxBytes) {
+                evictOldest();
+            }
+            int tail = (head + count) % frames.length;
+            frames[tail] = frame;
+            lengths[tail] = length;
+            bytes += length;
+            count++;
+        }
+    }
+
+    private void evictOldest() {
+        bytes -= lengths[head];
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        count--;
+    }
+
+    /**
+     * 最近的至多 n 条记录，从旧到新
+     */
+    public synchronized Frame[] recent(int n) {
+        int size = Math.max(0, Math.min(n, count));
+        Frame[] result = new Frame[size];
+        if (size == 0) {
+            return result;
+        }
+        int start = head + count - size;
+        for (int i = 0; i < size; i++) {
+            result[i] = frames[(start + i) % frames.length];
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,273 @@
+package com.niweiru;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+
+/**
+ * 持久化的消息日志：把聊天消息和私聊消息追加到内存映射的段文件中，重启后聊天记录还在
+ *
+ * 目录下每个段文件名是递增的序号（00000000000000000001.log），写满一段换下一段，
+ * 每次启动都从一个新段开始写，旧段只读打开。
+ * 写入只是往映射内存里拷贝字节，不做系统调用；后台线程按固定间隔把脏页刷到磁盘（批量fsync），
+ * 所以进程崩溃最多丢失最近一个间隔的消息，操作系统不崩溃的话一条都不会丢。
+ * 超过保留时间或总大小上限时，从最旧的段开始整段删除。
+ *
+ * 每条记录带一个频道：房间消息是 "#房间名"，私聊是 "@接收者用户名"（见 roomChannel、privateChannel），
+ * 前缀不同，叫 "@bob" 的房间也不会和发给 bob 的私聊混在一起。
+ * 记录的时间戳是写入日志的服务器时间（单调不减），不是客户端带来的时间戳。
+ */
+public class MessageLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(MessageLog.class);
+    private static final String SUFFIX = ".log";
+
+    /**
+     * 顺序读取时每条记录的回调
+     */
+    public interface RecordVisitor {
+        /**
+         * @param payload 一行JSON编码的消息，只读，回调返回后失效
+         * @return false 停止读取
+         */
+        boolean visit(long timestamp, String channel, ByteBuffer payload);
+    }
+
+    /**
+     * 房间消息的频道
+     */
+    public static String roomChannel(String roomName) {
+        return "#" + roomName;
+    }
+
+    /**
+     * 发给某个用户的私聊的频道
+     */
+    public static String privateChannel(String username) {
+        return "@" + username;
+    }
+
+    /**
+     * 是否私聊的频道
+     */
+    public static boolean isPrivateChannel(String channel) {
+        return channel.startsWith("@");
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionMillis;
+    private final long retentionBytes;
+    private final List<LogSegment> segments = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService flusher;
+    // 以下只在持有 this 锁时访问
+    private LogSegment active;
+    private long nextSequence;
+    private long lastTimestamp;
+
+    private MessageLog(ServerConfig config) {
+        this.directory = Paths.get(config.getLogDir());
+        this.segmentBytes = config.getLogSegmentBytes();
+        this.retentionMillis = TimeUnit.HOURS.toMillis(config.getLogRetentionHours());
+        this.retentionBytes = config.getLogRetentionBytes();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "message-log-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 打开（不存在则创建）日志目录，加载已有的段
+     */
+    public static MessageLog open(ServerConfig config) throws IOException {
+        MessageLog log = new MessageLog(config);
+        log.load();
+        long interval = config.getLogFlushIntervalMillis();
+        log.flusher.scheduleWithFixedDelay(log::flushAndClean, interval, interval, TimeUnit.MILLISECONDS);
+        return log;
+    }
+
+    private synchronized void load() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(null);
+        for (Path file : files) {
+            LogSegment segment = LogSegment.open(file);
+            if (segment.isEmpty()) {
+                segment.delete();
+                continue;
+            }
+            segments.add(segment);
+            lastTimestamp = Math.max(lastTimestamp, segment.lastTimestamp());
+            nextSequence = Math.max(nextSequence, sequenceOf(file) + 1);
+        }
+        roll();
+        logger.info("消息日志 {}：已加载 {} 个段", directory, segments.size() - 1);
+    }
+
+    private static long sequenceOf(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 换一个新段写，调用方持有 this 锁
+     */
+    private void roll() throws IOException {
+        if (active != null) {
+            active.force();
+        }
+        Path file = directory.resolve(String.format("%020d%s", nextSequence++, SUFFIX));
+        active = LogSegment.create(file, segmentBytes);
+        segments.add(active);
+    }
+
+    /**
+     * 追加一条消息，写入的是 Frame 已经编码好的JSON，不重新序列化
+     * @param channel roomChannel() 或 privateChannel()
+     * @throws IOException 新建段文件失败，消息比一个段还大，或频道名超过 LogSegment.MAX_CHANNEL_BYTES 字节
+     */
+    public synchronized void append(Frame frame, String channel) throws IOException {
+        byte[] channelName = channel.getBytes(StandardCharsets.UTF_8);
+        if (channelName.length > LogSegment.MAX_CHANNEL_BYTES) {
+            throw new IOException("频道名超过 " + LogSegment.MAX_CHANNEL_BYTES + " 字节");
+        }
+        long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+        if (!active.append(timestamp, channelName, frame.buffer(Protocol.JSON))) {
+            roll();
+            if (!active.append(timestamp, channelName, frame.buffer(Protocol.JSON))) {
+                throw new IOException("消息超过日志段大小 " + segmentBytes + " 字节");
+            }
+        }
+        lastTimestamp = timestamp;
+    }
+
+    /**
+     * 从时间戳不小于 fromTimestamp 的第一条记录开始，按写入顺序读取
+     * 按时间跳过整段，段内先查稀疏索引，读取过程中只有回调需要的记录才会被解码
+     */
+    public void read(long fromTimestamp, RecordVisitor visitor) {
+        for (LogSegment segment : segments) {
+            if (segment.isEmpty() || segment.lastTimestamp() < fromTimestamp) {
+                continue;
+            }
+            if (!segment.read(fromTimestamp, visitor)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 时间戳不小于 fromTimestamp 的记录中，最新的 limit 条被 filter 接受的记录，按写入顺序返回
+     * 从最新的段往前逐段读取，凑够 limit 条或者段的时间早于 fromTimestamp 就停止，不用从头扫描整个日志；
+     * 每段内只保留还需要的最新几条，内存占用和 limit 成正比。
+     * @param filter 参数是频道和消息（只读，可以读取，回调返回后失效）
+     * @return 每条是一行JSON编码的消息
+     */
+    public List<byte[]> readLatest(long fromTimestamp, int limit, BiPredicate<String, ByteBuffer> filter) {
+        ArrayDeque<byte[]> latest = new ArrayDeque<>();
+        LogSegment[] snapshot = segments.toArray(new LogSegment[0]);
+        for (int i = snapshot.length - 1; i >= 0 && latest.size() < limit; i--) {
+            LogSegment segment = snapshot[i];
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (segment.lastTimestamp() < fromTimestamp) {
+                break;
+            }
+            int wanted = limit - latest.size();
+            ArrayDeque<byte[]> matches = new ArrayDeque<>();
+            segment.read(fromTimestamp, (timestamp, channel, payload) -> {
+                if (filter.test(channel, payload.duplicate())) {
+                    byte[] bytes = new byte[payload.remaining()];
+                    payload.get(bytes);
+                    if (matches.size() == wanted) {
+                        matches.pollFirst();
+                    }
+                    matches.addLast(bytes);
+                }
+                return true;
+            });
+            while (!matches.isEmpty()) {
+                latest.addFirst(matches.pollLast());
+            }
+        }
+        return new ArrayList<>(latest);
+    }
+
+    /**
+     * 把写入的数据刷到磁盘，并删除超过保留期限的段
+     */
+    void flushAndClean() {
+        try {
+            LogSegment current;
+            synchronized (this) {
+                current = active;
+            }
+            // force 不需要持锁，刷盘期间可以继续追加
+            current.force();
+            deleteExpiredSegments(current);
+        } catch (Exception e) {
+            logger.error("消息日志刷盘失败", e);
+        }
+    }
+
+    private void deleteExpiredSegments(LogSegment current) throws IOException {
+        long totalBytes = 0;
+        for (LogSegment segment : segments) {
+            totalBytes += segment.size();
+        }
+        long expireBefore = System.currentTimeMillis() - retentionMillis;
+        for (LogSegment segment : segments) {
+            if (segment == current) {
+                break;
+            }
+            boolean expired = retentionMillis > 0 && segment.lastTimestamp() < expireBefore;
+            boolean oversized = retentionBytes > 0 && totalBytes > retentionBytes;
+            if (!expired && !oversized) {
+                break;
+            }
+            segments.remove(segment);
+            totalBytes -= segment.size();
+            segment.delete();
+            logger.info("删除过期的消息日志段 {}", segment.path().getFileName());
+        }
+    }
+
+    /**
+     * 刷盘并关闭所有段
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flusher.shutdown();
+        active.force();
+        for (LogSegment segment : segments) {
+            segment.close();
+        }
+    }
+}
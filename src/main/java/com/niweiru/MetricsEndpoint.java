@@ -0,0 +1,69 @@
+package com.niweiru;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * 指标抓取端点：在本机的单独端口上用 HTTP GET /metrics 返回 Prometheus 文本格式的指标
+ * GET /ready 是就绪探针：服务器开始接受连接后返回200，启动中或正在关闭时返回503，滚动重启时据此切换流量。
+ * 只绑定回环地址，不对外暴露；使用JDK自带的 HttpServer，单线程处理，抓取频率很低。
+ */
+public class MetricsEndpoint {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsEndpoint.class);
+
+    private final HttpServer httpServer;
+
+    /**
+     * @param port 监听端口，0 表示随机端口
+     * @param render 每次抓取时生成指标文本
+     * @param ready 服务器当前是否就绪
+     */
+    public MetricsEndpoint(int port, Supplier<String> render, BooleanSupplier ready) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> respond(exchange, 200, render.get()));
+        httpServer.createContext("/ready", exchange -> {
+            boolean isReady = ready.getAsBoolean();
+            respond(exchange, isReady ? 200 : 503, isReady ? "ready\n" : "not ready\n");
+        });
+    }
+
+    private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    public void start() {
+        httpServer.start();
+        logger.info("指标抓取端点已启动：http://127.0.0.1:{}/metrics", getPort());
+    }
+
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    public void stop() {
+        httpServer.stop(0);
+    }
+}
@@ -3,41 +3,63 @@ package com.niweiru;
 import com.google.gson.Gson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 /**
- * 网络工具类，提供消息发送和接收的通用方法
+ * 网络工具类，提供消息编码和解码的通用方法
+ * 阻塞Socket上的读写见 Connection，NIO模式的分帧见 FrameDecoder，二进制协议见 BinaryCodec
  */
 public class NetworkUtils {
     private static final Logger logger = LoggerFactory.getLogger(NetworkUtils.class);
     private static final Gson gson = new Gson();
 
     /**
-     * 从Socket中读取一行JSON字符串并解析为Message对象
+     * 将Message对象序列化为JSON字符串（不含换行符）
      */
-    public static Message receiveMessage(Socket socket) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        String jsonMessage = reader.readLine(); // 读取一行JSON字符串
-        if (jsonMessage != null) {
-            logger.debug("收到原始数据: {}", jsonMessage);
-            // 使用Gson将JSON字符串转换回Message对象
-            return gson.fromJson(jsonMessage, Message.class);
+    public static String toJson(Message message) {
+        return gson.toJson(message);
+    }
+
+    /**
+     * 将Message对象编码为一帧：UTF-8的JSON字符串加换行符，见 JsonMessageEncoder（和 toJson 的结果相同）
+     */
+    public static byte[] encode(Message message) {
+        byte[] frame = JsonMessageEncoder.encode(message);
+        if (logger.isDebugEnabled()) {
+            logger.debug("发送原始数据: {}", new String(frame, 0, frame.length - 1, StandardCharsets.UTF_8));
+        }
+        return frame;
+    }
+
+    /**
+     * 直接从接收缓冲区解析一行JSON（不含换行符），见 JsonMessageDecoder
+     * @throws IOException JSON格式错误
+     */
+    public static Message decode(byte[] array, int offset, int length) throws IOException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("收到原始数据: {}", new String(array, offset, length, StandardCharsets.UTF_8));
+        }
+        return JsonMessageDecoder.decode(array, offset, length);
+    }
+
+    /**
+     * 同上，解析到已有的 Message 里，并以给定的用户为发送者，见 JsonMessageDecoder
+     * @throws IOException JSON格式错误
+     */
+    public static Message decode(Message message, byte[] array, int offset, int length, User sender)
+            throws IOException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("收到原始数据: {}", new String(array, offset, length, StandardCharsets.UTF_8));
         }
-        return null;
+        return JsonMessageDecoder.decode(message, array, offset, length, sender);
     }
 
     /**
-     * 将Message对象序列化为JSON字符串并通过Socket发送
+     * 将一行JSON字符串解析为Message对象（Gson），消息日志回放等非热点路径使用
      */
-    public static void sendMessage(Socket socket, Message message) throws IOException {
-        PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-        // 使用Gson将Message对象转换为JSON字符串
-        String jsonMessage = gson.toJson(message);
-        logger.debug("发送原始数据: {}", jsonMessage);
-        writer.println(jsonMessage); // 发送JSON字符串，println会自动添加换行符
+    public static Message decode(String jsonMessage) {
+        logger.debug("收到原始数据: {}", jsonMessage);
+        return gson.fromJson(jsonMessage, Message.class);
     }
 }
@@ -0,0 +1,256 @@
+package com.niweiru;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NIO事件循环：一个线程 + 一个Selector
+ * 负责其名下所有连接的读写事件，其他线程通过 execute() 提交任务到这个线程执行，
+ * 这样每个连接的状态只会被它所属的事件循环线程修改，不需要加锁。
+ */
+public class NioEventLoop implements Executor {
+    private static final Logger logger = LoggerFactory.getLogger(NioEventLoop.class);
+    // 事件循环线程当前正在处理哪个会话的读事件，BLOCK 策略下用来找到该暂停读取的发送方
+    private static final ThreadLocal<NioSession> currentSession = new ThreadLocal<>();
+    private static final ThreadLocal<Boolean> eventLoopThread = ThreadLocal.withInitial(() -> false);
+
+    // 写出时每一批帧先复制到这里，本事件循环的所有会话共用（写出都在事件循环线程中，不会同时使用）
+    static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    // TLS连接解密、加密时共用的临时缓冲区，第一次用到时分配，见 TlsChannel
+    private ByteBuffer tlsInBuffer;
+    private ByteBuffer tlsOutBuffer;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // 定时任务，按到期时间排序，只在事件循环线程中访问
+    private final PriorityQueue<ScheduledTask> scheduled = new PriorityQueue<>();
+    private long scheduledSeq;
+    // 避免每次提交任务都调用一次 selector.wakeup()
+    private final AtomicBoolean wakenUp = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    public NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    /**
+     * 会话写出时共用的直接缓冲区，只能在事件循环线程中使用
+     */
+    ByteBuffer writeBuffer() {
+        return writeBuffer;
+    }
+
+    /**
+     * TLS解密用的临时缓冲区（已清空），只能在事件循环线程中使用
+     */
+    ByteBuffer tlsInBuffer(int capacity) {
+        if (tlsInBuffer == null || tlsInBuffer.capacity() < capacity) {
+            tlsInBuffer = ByteBuffer.allocate(capacity);
+        }
+        tlsInBuffer.clear();
+        return tlsInBuffer;
+    }
+
+    /**
+     * TLS加密用的临时缓冲区（已清空），只能在事件循环线程中使用
+     */
+    ByteBuffer tlsOutBuffer(int capacity) {
+        if (tlsOutBuffer == null || tlsOutBuffer.capacity() < capacity) {
+            tlsOutBuffer = ByteBuffer.allocate(capacity);
+        }
+        tlsOutBuffer.clear();
+        return tlsOutBuffer;
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 当前线程是否是某个事件循环线程（事件循环线程不能阻塞等待）
+     */
+    static boolean isEventLoopThread() {
+        return eventLoopThread.get();
+    }
+
+    /**
+     * 当前线程正在处理读事件的会话，不在事件循环的读事件中返回null
+     */
+    static NioSession currentSession() {
+        return currentSession.get();
+    }
+
+    /**
+     * 提交任务到事件循环线程执行（线程安全）
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inEventLoop() && wakenUp.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 在 delayNanos 纳秒之后由事件循环线程执行任务（线程安全）
+     * 用 select 的超时来等待，精度是毫秒级。
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        if (inEventLoop()) {
+            scheduled.add(new ScheduledTask(deadline, scheduledSeq++, task));
+        } else {
+            execute(() -> scheduled.add(new ScheduledTask(deadline, scheduledSeq++, task)));
+        }
+    }
+
+    /**
+     * 停止事件循环并关闭所有注册在上面的通道
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        thread.join();
+    }
+
+    private void run() {
+        eventLoopThread.set(true);
+        while (running) {
+            try {
+                wakenUp.set(false);
+                long timeoutMillis = selectTimeoutMillis();
+                if (!tasks.isEmpty() || timeoutMillis < 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeoutMillis);
+                }
+                processSelectedKeys();
+                runScheduled();
+                runTasks();
+            } catch (IOException e) {
+                logger.error("事件循环发生异常", e);
+            }
+        }
+        closeAll();
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            Object attachment = key.attachment();
+            if (attachment instanceof NioSession session) {
+                currentSession.set(session);
+                try {
+                    session.onReady(key);
+                } finally {
+                    currentSession.remove();
+                }
+            } else if (attachment instanceof Runnable acceptHandler) {
+                acceptHandler.run();
+            }
+        }
+    }
+
+    /**
+     * @return 距下一个定时任务到期的毫秒数（向上取整）；0 表示没有定时任务，一直等；负数表示已经到期
+     */
+    private long selectTimeoutMillis() {
+        ScheduledTask next = scheduled.peek();
+        if (next == null) {
+            return 0;
+        }
+        long remaining = next.deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return -1;
+        }
+        return (remaining + 999_999) / 1_000_000;
+    }
+
+    private void runScheduled() {
+        long now = System.nanoTime();
+        ScheduledTask next;
+        while ((next = scheduled.peek()) != null && next.deadline - now <= 0) {
+            scheduled.poll();
+            try {
+                next.task.run();
+            } catch (RuntimeException e) {
+                logger.error("事件循环定时任务执行失败", e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("事件循环任务执行失败", e);
+            }
+        }
+    }
+
+    private void closeAll() {
+        runTasks();
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            if (key.attachment() instanceof NioSession session) {
+                session.abort();
+            }
+        }
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error("关闭Selector时发生异常", e);
+        }
+    }
+
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+        private final long deadline;
+        // 同时到期的任务按提交顺序执行
+        private final long seq;
+        private final Runnable task;
+
+        ScheduledTask(long deadline, long seq, Runnable task) {
+            this.deadline = deadline;
+            this.seq = seq;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            int byDeadline = Long.compare(deadline - other.deadline, 0);
+            return byDeadline != 0 ? byDeadline : Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.niweiru;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * NIO模式的网络层
+ * 第一个事件循环同时负责accept，新连接按轮询方式分配给各个事件循环，
+ * 之后该连接的所有读写都在同一个事件循环线程中完成。
+ */
+public class NioServer {
+    private static final Logger logger = LoggerFactory.getLogger(NioServer.class);
+
+    private final Server server;
+    private final ServerConfig config;
+    private final NioEventLoop[] loops;
+    // TLS模式下创建每个连接的 SSLEngine，明文模式为null
+    private final SSLContext sslContext;
+    private ServerSocketChannel serverChannel;
+    // 只在accept所在的事件循环线程中访问
+    private int nextLoop;
+
+    /**
+     * @param sslContext 不为null时所有连接使用TLS
+     */
+    public NioServer(Server server, ServerConfig config, SSLContext sslContext) throws IOException {
+        this.server = server;
+        this.config = config;
+        this.sslContext = sslContext;
+        this.loops = new NioEventLoop[Math.max(1, config.getIoThreads())];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop("nio-loop-" + i);
+        }
+    }
+
+    /**
+     * 绑定端口并启动所有事件循环
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        // 重启时旧连接还处于 TIME_WAIT 也能立即绑定同一端口
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(config.getPort()));
+        serverChannel.configureBlocking(false);
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+        loops[0].execute(() -> {
+            try {
+                serverChannel.register(loops[0].selector(), SelectionKey.OP_ACCEPT, (Runnable) this::acceptPending);
+            } catch (IOException e) {
+                logger.error("注册accept事件失败", e);
+            }
+        });
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * 接受所有等待中的连接
+     */
+    private void acceptPending() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                logger.info("有客户端连接成功！地址：{}", channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                NioEventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                SSLEngine engine = sslContext == null ? null : Tls.serverEngine(sslContext, config);
+                NioSession session = new NioSession(server, loop, channel, engine, config,
+                        new OutboundQueue(config));
+                server.watch(session);
+                loop.execute(() -> {
+                    try {
+                        session.register();
+                    } catch (IOException e) {
+                        logger.error("注册连接失败", e);
+                        session.abort();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            logger.error("接受连接时发生异常", e);
+        }
+    }
+
+    /**
+     * 停止接受新连接，已有连接不受影响（优雅关闭的第一步）
+     */
+    public void stopAccepting() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.error("关闭服务端通道时发生异常", e);
+        }
+    }
+
+    /**
+     * 停止监听并关闭所有连接
+     */
+    public void stop() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.error("关闭服务端通道时发生异常", e);
+        }
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+        for (NioEventLoop loop : loops) {
+            try {
+                loop.awaitTermination();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
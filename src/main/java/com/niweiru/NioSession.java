@@ -0,0 +1,478 @@
+package com.niweiru;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * NIO模式下的会话
+ * 读：事件循环线程非阻塞地读入缓冲区，由 FrameDecoder 增量切分出每一帧（JSON行或二进制帧），
+ *     直接在缓冲区上解码；JSON消息先按内容的第一个字符限流，再完整解码。
+ *     发送者以登录的用户为准，不再解析；命令、私聊和心跳处理完就不再引用，解码到同一个 Message 里重复使用，
+ *     只有广播的消息（会被 Frame 和聊天记录引用）每次新建。
+ * 写：任何线程都可以调用 send()，数据先进入有界的发送队列，再由所属事件循环线程写出，
+ *     写不完时注册 OP_WRITE 等待通道可写，因此发送方线程永远不会被阻塞。
+ *     写出在本轮事件循环末尾（或等待 maxDelay 之后）进行，队列里的多帧复制进事件循环共用的直接缓冲区，
+ *     一次写出，减少系统调用次数；不用为每个接收者的每一帧创建 ByteBuffer 视图。
+ *     队列满了按 OverflowPolicy 处理；BLOCK 策略下暂停读取发送方，等这里排空一半再恢复。
+ * TLS：读写经过 TlsChannel 解密、加密，握手完成之前发送队列里的帧先不写出，握手完成后再写。
+ */
+public class NioSession extends Session {
+    private static final Logger logger = LoggerFactory.getLogger(NioSession.class);
+
+    private final Server server;
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    // TLS连接的加解密层，明文连接为null
+    private final TlsChannel tls;
+    private final String remoteAddress;
+    private final String remoteHost;
+    private final FrameDecoder decoder;
+    // 二进制协议的发送者编号表，只在事件循环线程中访问
+    private final SenderTable senders = new SenderTable();
+    private final OutboundQueue outbound;
+    private final long maxDelayNanos;
+    // 解压后的帧最多多少字节，和未压缩的帧同样的上限
+    private final int maxFrameLength;
+    // 是否已经安排了一次flush，避免重复向事件循环提交任务
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Runnable flushTask = this::flushSafely;
+    private SelectionKey key;
+
+    // 以下字段只在事件循环线程中访问
+    // 正在写出的一批帧，[batchStart, batchEnd) 是还没写完的部分，数组长度即 maxBatch
+    private final byte[][] batch;
+    private int batchStart;
+    private int batchEnd;
+    // batch[batchStart] 已经写出的字节数
+    private int batchOffset;
+    private boolean loggedIn;
+    // 用完即弃的消息重复使用这个对象，见类注释
+    private final Message scratch = new Message();
+    // 因为某个接收者的队列满了而暂停读取的次数，归零时恢复读取
+    private int readPauses;
+    private boolean closeWhenFlushed;
+    private volatile boolean closed;
+
+    /**
+     * @param engine TLS连接的服务器端引擎，明文连接为null
+     */
+    public NioSession(Server server, NioEventLoop loop, SocketChannel channel, SSLEngine engine, ServerConfig config,
+            OutboundQueue outbound) throws IOException {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.tls = engine == null ? null : new TlsChannel(channel, engine, loop);
+        InetSocketAddress address = (InetSocketAddress) channel.getRemoteAddress();
+        this.remoteAddress = address.toString();
+        this.remoteHost = address.getAddress().getHostAddress();
+        this.decoder = new FrameDecoder(4096, config.getMaxFrameLength());
+        this.maxFrameLength = config.getMaxFrameLength();
+        this.outbound = outbound;
+        this.batch = new byte[Math.max(1, config.getWriteMaxBatch())][];
+        this.maxDelayNanos = Math.max(0, config.getWriteMaxDelayMicros()) * 1000;
+        server.getMetrics().connectionOpened();
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    /**
+     * 在事件循环线程处理登录消息时调用，解码器从下一帧开始使用新协议
+     */
+    @Override
+    public void setProtocol(Protocol protocol) {
+        super.setProtocol(protocol);
+        decoder.setProtocol(protocol);
+    }
+
+    /**
+     * 把通道注册到所属事件循环的Selector上（必须在事件循环线程中调用）
+     */
+    void register() throws ClosedChannelException {
+        key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+        logger.info("[{}] 开始处理这个客户端的请求。", remoteAddress);
+    }
+
+    /**
+     * Selector 报告该通道就绪
+     */
+    void onReady(SelectionKey key) {
+        try {
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            logger.info("[{}] 连接异常: {}", remoteAddress, e.getMessage());
+            doClose();
+        }
+    }
+
+    private void read() throws IOException {
+        if (tls != null) {
+            readTls();
+            return;
+        }
+        int n = channel.read(decoder.buffer());
+        if (n < 0) {
+            logger.info("[{}] 客户端断开连接。", remoteAddress);
+            doClose();
+            return;
+        }
+        server.getMetrics().bytesIn().add(n);
+        decoder.decode(this::onFrame);
+    }
+
+    /**
+     * TLS连接的读取：一次可能解密出放不下的数据，读到没有剩余为止；
+     * 握手过程中的回复没写完时等通道可写，握手完成时写出已经排队的帧
+     */
+    private void readTls() throws IOException {
+        do {
+            int n = tls.read(decoder.buffer());
+            if (n < 0) {
+                logger.info("[{}] 客户端断开连接。", remoteAddress);
+                doClose();
+                return;
+            }
+            server.getMetrics().bytesIn().add(n);
+            decoder.decode(this::onFrame);
+        } while (tls.hasBufferedInput() && !closed);
+        if (closed) {
+            return;
+        }
+        if (tls.hasPendingOutput()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else if (!tls.isHandshaking() && flushScheduled.get()) {
+            flush();
+        }
+    }
+
+    private void onFrame(byte[] array, int offset, int length) throws IOException {
+        // 登录失败等待关闭时，忽略后续数据
+        if (closed || closeWhenFlushed) {
+            return;
+        }
+        Message message;
+        ServerMetrics.Kind admitted = null;
+        try {
+            Compression compression = getCompression();
+            if (compression != null && Compression.isCompressed(getProtocol(), array, offset, length)) {
+                array = compression.inflate(getProtocol(), array, offset, length, maxFrameLength);
+                offset = 0;
+                length = array.length;
+            }
+            if (getProtocol() == Protocol.BINARY) {
+                message = BinaryCodec.decode(array, offset, length, senders);
+                if (message == null) {
+                    return;
+                }
+            } else {
+                if (loggedIn) {
+                    // 先只看内容的第一个字符：分类、限流，被限流丢弃的消息不用解码
+                    int first = JsonMessageDecoder.peekContent(array, offset, length);
+                    if (first != JsonMessageDecoder.NO_CONTENT) {
+                        touch();
+                        admitted = Server.kindOf(first);
+                        if (!server.admit(this, admitted)) {
+                            return;
+                        }
+                    }
+                    message = NetworkUtils.decode(admitted == ServerMetrics.Kind.CHAT ? new Message() : scratch,
+                            array, offset, length, getUser());
+                } else {
+                    message = NetworkUtils.decode(array, offset, length);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("[{}] 收到无法解析的数据，连接关闭。", remoteAddress);
+            doClose();
+            return;
+        }
+        if (!loggedIn) {
+            // 第一条消息是登录消息
+            loggedIn = server.login(this, message);
+            if (!loggedIn) {
+                closeAfterFlush();
+            }
+        } else if (admitted != null) {
+            // 已经计数和限流过，心跳不会走到这里（peekContent 对心跳返回 NO_CONTENT）
+            server.dispatch(this, message, admitted);
+        } else {
+            server.handleMessage(this, message);
+        }
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (closed) {
+            throw new IOException("连接已关闭");
+        }
+        // 事件循环线程不能等待，BLOCK 策略下先超出容量入队，再暂停发送方
+        if (!outbound.offer(frame, !NioEventLoop.isEventLoopThread())) {
+            logger.warn("[{}] 发送队列已满（{}帧），断开读得太慢的客户端", remoteAddress, outbound.depth());
+            abort();
+            throw new IOException("发送队列已满");
+        }
+        if (outbound.getPolicy() == OverflowPolicy.BLOCK && outbound.isFull()) {
+            NioSession sender = NioEventLoop.currentSession();
+            if (sender != null && sender != this) {
+                sender.pauseReadingUntilDrained(outbound);
+            }
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (maxDelayNanos == 0 || outbound.depth() >= batch.length) {
+                loop.execute(flushTask);
+            } else {
+                loop.schedule(flushTask, maxDelayNanos);
+            }
+        } else if (maxDelayNanos > 0 && outbound.depth() == batch.length) {
+            // 等待期间攒满了一批，不用等到时间，提前写出（之后到期的那次flush会发现没什么可写）
+            loop.execute(flushTask);
+        }
+    }
+
+    /**
+     * 暂停读取本会话的数据，直到 queue 排空一半（在本会话的事件循环线程中调用）
+     */
+    private void pauseReadingUntilDrained(OutboundQueue queue) {
+        if (closed) {
+            return;
+        }
+        if (readPauses++ == 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        queue.whenDrained(() -> loop.execute(this::resumeReading));
+    }
+
+    private void resumeReading() {
+        if (--readPauses == 0 && !closed) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.info("[{}] 发送数据失败: {}", remoteAddress, e.getMessage());
+            doClose();
+        }
+    }
+
+    /**
+     * 尽可能多地写出发送队列中的数据（事件循环线程中调用）
+     * 每次从队列取最多 maxBatch 帧，复制进事件循环的写缓冲区一次写出（帧太大放不下时分几次）。
+     * 堆内的 ByteBuffer 写入通道时JDK本来也要先复制到临时的直接缓冲区，所以这里的复制没有多出开销。
+     */
+    private void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (tls != null) {
+            if (!tls.flush()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            if (tls.isHandshaking()) {
+                // 握手完成时 readTls() 会再调用这里，flushScheduled 保持为true，期间入队的帧不用再安排
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        ServerMetrics metrics = server.getMetrics();
+        ByteBuffer buffer = loop.writeBuffer();
+        while (true) {
+            while (fillBatch()) {
+                int copied = copyBatch(buffer);
+                int written = tls == null ? channel.write(buffer) : tls.write(buffer);
+                metrics.writeCalls().increment();
+                metrics.bytesOut().add(written);
+                advance(written);
+                if (written < copied || tls != null && tls.hasPendingOutput()) {
+                    // 内核发送缓冲区满了，等通道可写时再继续
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            flushScheduled.set(false);
+            // 在清除标记之前可能有其他线程刚入队，需要再检查一次
+            if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                break;
+            }
+        }
+        if (closeWhenFlushed) {
+            doClose();
+        }
+    }
+
+    /**
+     * 从上次写到的位置起，把批次里的帧依次复制进写缓冲区，直到放满或复制完
+     * @return 复制的字节数，缓冲区已经 flip 好可以写出
+     */
+    private int copyBatch(ByteBuffer buffer) {
+        buffer.clear();
+        int offset = batchOffset;
+        for (int i = batchStart; i < batchEnd && buffer.hasRemaining(); i++) {
+            byte[] bytes = batch[i];
+            int length = Math.min(bytes.length - offset, buffer.remaining());
+            buffer.put(bytes, offset, length);
+            offset = 0;
+        }
+        buffer.flip();
+        return buffer.limit();
+    }
+
+    /**
+     * 跳过已经写出的字节，写完的帧从批次里移除
+     */
+    private void advance(int written) {
+        while (written > 0) {
+            int remaining = batch[batchStart].length - batchOffset;
+            if (written < remaining) {
+                batchOffset += written;
+                return;
+            }
+            written -= remaining;
+            batch[batchStart++] = null;
+            batchOffset = 0;
+        }
+    }
+
+    /**
+     * 把上次没写完的帧挪到批次开头，再从队列取帧补满
+     * @return 批次里有没有要写的数据
+     */
+    private boolean fillBatch() {
+        int remaining = batchEnd - batchStart;
+        if (batchStart > 0) {
+            System.arraycopy(batch, batchStart, batch, 0, remaining);
+            Arrays.fill(batch, remaining, batchEnd, null);
+            batchStart = 0;
+            batchEnd = remaining;
+        }
+        int added = 0;
+        byte[] bytes;
+        while (batchEnd < batch.length && (bytes = nextBytes()) != null) {
+            batch[batchEnd++] = bytes;
+            added++;
+        }
+        if (added > 0) {
+            server.getMetrics().framesWritten().add(added);
+        }
+        return batchEnd > 0;
+    }
+
+    /**
+     * 从队列取下一帧，返回所有接收者共享的编码结果（只读）
+     * 二进制协议下第一次用到某个发送者编号时，把发送者定义拼在这一帧前面（很少发生，直接复制）
+     */
+    private byte[] nextBytes() {
+        Frame frame = outbound.poll();
+        if (frame == null) {
+            return null;
+        }
+        Protocol protocol = getProtocol();
+        byte[] body = frame.bytes(protocol, getCompression());
+        if (protocol == Protocol.BINARY && frame.hasSessionSender() && senders.announce(frame.getSenderSid())) {
+            byte[] definition = frame.senderDefinition();
+            byte[] combined = Arrays.copyOf(definition, definition.length + body.length);
+            System.arraycopy(body, 0, combined, definition.length, body.length);
+            return combined;
+        }
+        return body;
+    }
+
+    /**
+     * 发送完队列中剩余的数据后再关闭（事件循环线程中调用）
+     */
+    private void closeAfterFlush() {
+        closeWhenFlushed = true;
+        if (!flushScheduled.get()) {
+            doClose();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    /**
+     * 发送完队列中剩余的数据后再关闭，可重复调用
+     */
+    @Override
+    public void close() {
+        if (loop.inEventLoop()) {
+            closeAfterFlush();
+        } else {
+            loop.execute(this::closeAfterFlush);
+        }
+    }
+
+    /**
+     * 立即关闭，丢弃队列中未写出的数据
+     */
+    @Override
+    void abort() {
+        if (loop.inEventLoop()) {
+            doClose();
+        } else {
+            loop.execute(this::doClose);
+        }
+    }
+
+    private void doClose() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        if (tls != null) {
+            tls.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("[{}] 关闭连接时发生异常", remoteAddress, e);
+        }
+        outbound.close();
+        Compression compression = getCompression();
+        if (compression != null) {
+            compression.end();
+        }
+        Arrays.fill(batch, null);
+        batchStart = 0;
+        batchEnd = 0;
+        batchOffset = 0;
+        server.logout(this);
+        server.getMetrics().connectionClosed();
+    }
+}
@@ -0,0 +1,208 @@
+package com.niweiru;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 每个客户端一个的有界发送队列
+ * 任何线程都可以入队，只由该连接自己的写线程（阻塞模式）或事件循环（NIO模式）出队写出，
+ * 这样一个读得慢的客户端只会堆满自己的队列，不会卡住发送方和其他接收者。
+ * 队列满了按 OverflowPolicy 处理，同时记录队列深度和丢弃数，供 /queues 命令查看。
+ */
+public class OutboundQueue {
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    // 等队列排空到一半时要执行的回调（NIO模式下恢复被暂停读取的发送方）
+    private final List<Runnable> drainWaiters = new ArrayList<>();
+    private boolean closed;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile int maxDepth;
+
+    public OutboundQueue(ServerConfig config) {
+        this.capacity = Math.max(1, config.getOutboundQueueCapacity());
+        this.policy = config.getOverflowPolicy();
+        this.blockTimeoutMillis = config.getOutboundBlockTimeoutMillis();
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * 入队一帧
+     * @param mayBlock 调用线程是否允许等待（NIO事件循环线程不能等待，此时 BLOCK 策略会超出容量入队，
+     *                 由调用方负责暂停发送方）
+     * @return 入队成功返回true；返回false表示应该断开这个客户端
+     */
+    public boolean offer(Frame frame, boolean mayBlock) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (frames.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        frames.poll();
+                        dropped.incrementAndGet();
+                        break;
+                    case DISCONNECT:
+                        dropped.incrementAndGet();
+                        return false;
+                    case BLOCK:
+                        if (mayBlock && !awaitNotFull()) {
+                            dropped.incrementAndGet();
+                            return false;
+                        }
+                        break;
+                }
+            }
+            frames.offer(frame);
+            if (frames.size() > maxDepth) {
+                maxDepth = frames.size();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 等待队列有空位，超时或被中断返回false（调用时已持有锁）
+     */
+    private boolean awaitNotFull() {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        try {
+            while (frames.size() >= capacity && !closed) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return !closed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 取出队首的一帧，队列为空返回null（只由写出方调用）
+     */
+    public Frame poll() {
+        List<Runnable> waiters = null;
+        Frame frame;
+        lock.lock();
+        try {
+            frame = frames.poll();
+            if (frame != null) {
+                notFull.signal();
+                if (!drainWaiters.isEmpty() && frames.size() <= capacity / 2) {
+                    waiters = new ArrayList<>(drainWaiters);
+                    drainWaiters.clear();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        runAll(waiters);
+        return frame;
+    }
+
+    /**
+     * 队列排空到容量的一半以下（或已关闭）时执行回调，当前已满足则立即执行
+     */
+    public void whenDrained(Runnable callback) {
+        lock.lock();
+        try {
+            if (!closed && frames.size() > capacity / 2) {
+                drainWaiters.add(callback);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        callback.run();
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isFull() {
+        lock.lock();
+        try {
+            return frames.size() >= capacity;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 连接关闭时调用：清空队列，唤醒等待的发送方，之后的入队都会失败
+     */
+    public void close() {
+        List<Runnable> waiters;
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            notFull.signalAll();
+            waiters = new ArrayList<>(drainWaiters);
+            drainWaiters.clear();
+        } finally {
+            lock.unlock();
+        }
+        runAll(waiters);
+    }
+
+    private static void runAll(List<Runnable> callbacks) {
+        if (callbacks != null) {
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+    }
+
+    /**
+     * 当前排队的帧数
+     */
+    public int depth() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 出现过的最大排队帧数
+     */
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * 因队列满而丢弃的帧数（DISCONNECT 和 BLOCK 超时各计一次）
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,14 @@
+package com.niweiru;
+
+/**
+ * 客户端发送队列满了之后怎么办
+ */
+public enum OverflowPolicy {
+    // 丢掉队列里最旧的一帧，给新消息腾位置；丢弃数计入该用户的统计
+    DROP_OLDEST,
+    // 断开这个读得太慢的客户端
+    DISCONNECT,
+    // 让发送方等待：阻塞模式下发送线程等到队列有空位（超时则断开慢客户端），
+    // NIO模式下暂停读取发送方的数据，等慢客户端的队列排空一半再恢复
+    BLOCK
+}
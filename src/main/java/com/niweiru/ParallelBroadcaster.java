@@ -0,0 +1,94 @@
+package com.niweiru;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 大房间的广播分片并行发送
+ *
+ * 接收者不少于 chat.broadcast.parallelThreshold 人时，把成员快照切成最多 parallelism 个连续的分片，
+ * 其余分片交给专用的 ForkJoinPool 并行发送，调用线程自己发第一片，等所有分片发完再返回。
+ * 发送（入队）的总开销不变，最后一个接收者拿到消息的时间从和人数成正比变成再除以并行度。
+ *
+ * 顺序：调用方等全部分片发完才返回，所以同一个发送者的下一条消息（包括私聊、系统消息）
+ * 一定在这一条全部入队之后才开始发，每个接收者看到的顺序和逐个发送时一样；
+ * 不同发送者同时广播时本来就没有全局顺序。
+ * BLOCK 溢出策略下不分片：NIO模式靠事件循环线程暂停发送方读取来反压，换到线程池里发送就失去了这个机制。
+ */
+final class ParallelBroadcaster {
+    // 每个分片至少这么多接收者，人数刚过阈值时不必用满所有线程
+    private static final int MIN_SHARD_SIZE = 256;
+
+    /**
+     * 发送成员快照中 [from, to) 这一段
+     */
+    interface Shard {
+        /**
+         * @return 实际发出的接收者数
+         */
+        int send(Session[] members, int from, int to);
+    }
+
+    private final int threshold;
+    private final int parallelism;
+    // 不分片时为null
+    private final ForkJoinPool pool;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    ParallelBroadcaster(ServerConfig config) {
+        this.threshold = config.getBroadcastParallelThreshold();
+        this.parallelism = config.getBroadcastParallelism();
+        boolean enabled = threshold > 0 && parallelism > 1 && config.getOverflowPolicy() != OverflowPolicy.BLOCK;
+        this.pool = enabled ? new ForkJoinPool(parallelism, this::newThread, null, false) : null;
+    }
+
+    private ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("broadcast-" + threads.incrementAndGet());
+        return thread;
+    }
+
+    /**
+     * 这么多接收者的广播是否分片并行发送
+     */
+    boolean isParallel(int recipients) {
+        return pool != null && recipients >= threshold;
+    }
+
+    /**
+     * 分片发送，所有分片发完才返回；调用方应先用 isParallel() 判断，人少时直接发送
+     * @return 各分片发出的接收者数之和
+     */
+    int send(Session[] members, Shard shard) {
+        int shards = Math.max(1, Math.min(parallelism, members.length / MIN_SHARD_SIZE));
+        @SuppressWarnings("unchecked")
+        ForkJoinTask<Integer>[] tasks = (ForkJoinTask<Integer>[]) new ForkJoinTask<?>[shards - 1];
+        int sent = 0;
+        for (int i = 1; i < shards; i++) {
+            int from = (int) ((long) members.length * i / shards);
+            int to = (int) ((long) members.length * (i + 1) / shards);
+            try {
+                tasks[i - 1] = pool.submit(() -> shard.send(members, from, to));
+            } catch (RejectedExecutionException e) {
+                // 服务器正在关闭，直接在调用线程发送
+                sent += shard.send(members, from, to);
+            }
+        }
+        sent += shard.send(members, 0, members.length / shards);
+        for (ForkJoinTask<Integer> task : tasks) {
+            if (task != null) {
+                sent += task.join();
+            }
+        }
+        return sent;
+    }
+
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+}
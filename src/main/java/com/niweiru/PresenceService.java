@@ -0,0 +1,281 @@
+package com.niweiru;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 整个集群的在线用户目录：/list 的分页列表、按用户名前缀查找、上下线通知的订阅
+ *
+ * 登录、退出和集群的上下线事件到达时增量更新一个按用户名排序的跳表，不再每次 /list 都遍历所有会话拼字符串。
+ * 不带前缀的列表按页缓存编码好的帧，在线用户变化时作废，下一次 /list 才重新生成，
+ * 大家反复 /list 时只是把同一帧发出去。前缀查找直接在跳表上定位，只遍历到要返回的那一页。
+ * 订阅了上下线通知（/presence on）的客户端每次变化收到一条 presence 消息，内容是 "+用户名" 或 "-用户名"，
+ * 其他节点上的用户后面带 " @节点"，不用反复拉取整个列表。
+ *
+ * 修改目录、取订阅者快照、生成通知帧在同一把锁里进行，通知按修改顺序排队；
+ * 发送在锁外，同一时刻只有一个线程在发，所有订阅者看到的通知顺序和目录的修改顺序一致。
+ * 这样 BLOCK 策略下一个读得慢的订阅者只拖住正在发通知的那个线程，不会挡住其他用户的登录和退出。
+ * 查询不加锁。
+ */
+public class PresenceService {
+    public static final String DELTA_TYPE = "presence";
+
+    // 本节点用户在跳表里的节点名
+    private static final String LOCAL = "";
+
+    /**
+     * 把上下线通知发给订阅者
+     */
+    interface Publisher {
+        void publish(Session[] subscribers, Frame delta);
+    }
+
+    private final int pageSize;
+    private final Publisher publisher;
+    // 用户名 -> 所在节点，本节点为 LOCAL
+    private final ConcurrentSkipListMap<String, String> users = new ConcurrentSkipListMap<>();
+    private final SessionSet subscribers = new SessionSet();
+    // 每次修改加一，缓存的列表只在版本相同时有效
+    private volatile long version;
+    private volatile Listing listing;
+    // 还没发出的通知，以下两个字段只在持有 this 锁时访问
+    private final ArrayDeque<Delta> pending = new ArrayDeque<>();
+    // 是否有线程正在发送 pending 里的通知
+    private boolean publishing;
+
+    /**
+     * 一条排队的上下线通知和生成它时的订阅者
+     */
+    private static final class Delta {
+        final Session[] targets;
+        final Frame frame;
+
+        Delta(Session[] targets, Frame frame) {
+            this.targets = targets;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * 某个版本的在线用户快照，各页的帧第一次被请求时才生成
+     */
+    private static final class Listing {
+        final long version;
+        final String[] names;
+        final String[] nodes;
+        // 并发请求同一页时可能各自生成一次，后写的覆盖；帧不可变，可以安全地共享
+        final Frame[] pages;
+
+        Listing(long version, String[] names, String[] nodes, int pageCount) {
+            this.version = version;
+            this.names = names;
+            this.nodes = nodes;
+            this.pages = new Frame[pageCount];
+        }
+    }
+
+    public PresenceService(int pageSize, Publisher publisher) {
+        this.pageSize = Math.max(1, pageSize);
+        this.publisher = publisher;
+    }
+
+    /**
+     * 用户上线
+     * @param node 所在节点，本节点的用户传null
+     */
+    public void online(String username, String node) {
+        synchronized (this) {
+            users.put(username, node == null ? LOCAL : node);
+            changed('+', username, node);
+        }
+        publishPending();
+    }
+
+    /**
+     * 用户下线；只有用户当前登记在该节点上时才移除，和 PresenceTable 一致
+     * @param node 所在节点，本节点的用户传null
+     */
+    public void offline(String username, String node) {
+        synchronized (this) {
+            if (users.remove(username, node == null ? LOCAL : node)) {
+                changed('-', username, node);
+            }
+        }
+        publishPending();
+    }
+
+    /**
+     * 持有 this 锁时调用：更新版本，有订阅者时把通知排进 pending
+     */
+    private void changed(char sign, String username, String node) {
+        version++;
+        Session[] targets = subscribers.toArray();
+        if (targets.length > 0) {
+            String content = node == null ? sign + username : sign + username + " @" + node;
+            Message delta = new Message(User.SYSTEM, content);
+            delta.setType(DELTA_TYPE);
+            pending.add(new Delta(targets, Frame.of(delta, BinaryCodec.SYSTEM_SID)));
+        }
+    }
+
+    /**
+     * 在锁外按顺序发出排队的通知；已经有线程在发时直接返回，由它把新排进来的也发完
+     */
+    private void publishPending() {
+        synchronized (this) {
+            if (publishing || pending.isEmpty()) {
+                return;
+            }
+            publishing = true;
+        }
+        try {
+            while (true) {
+                Delta delta;
+                synchronized (this) {
+                    delta = pending.poll();
+                    if (delta == null) {
+                        publishing = false;
+                        return;
+                    }
+                }
+                publisher.publish(delta.targets, delta.frame);
+            }
+        } catch (RuntimeException e) {
+            // 让下一次修改的线程接着发
+            synchronized (this) {
+                publishing = false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 订阅上下线通知
+     * @return 之前没有订阅返回true
+     */
+    public boolean subscribe(Session session) {
+        return subscribers.add(session);
+    }
+
+    /**
+     * 取消订阅，可重复调用（会话退出时调用）
+     * @return 之前订阅了返回true
+     */
+    public boolean unsubscribe(Session session) {
+        return subscribers.remove(session);
+    }
+
+    public int size() {
+        return users.size();
+    }
+
+    /**
+     * 在线用户列表的一页，在线用户没有变化时返回缓存的同一帧
+     * @param page 从1开始的页码
+     * @return 页码超出范围返回null
+     */
+    public Frame page(int page) {
+        Listing current = listing();
+        if (page < 1 || page > current.pages.length) {
+            return null;
+        }
+        Frame frame = current.pages[page - 1];
+        if (frame == null) {
+            int from = (page - 1) * pageSize;
+            int to = Math.min(current.names.length, from + pageSize);
+            StringBuilder text = new StringBuilder("在线用户:\n");
+            for (int i = from; i < to; i++) {
+                appendLine(text, current.names[i], current.nodes[i]);
+            }
+            appendFooter(text, page, current.pages.length, current.names.length);
+            frame = systemFrame(text.toString());
+            current.pages[page - 1] = frame;
+        }
+        return frame;
+    }
+
+    private Listing listing() {
+        Listing current = listing;
+        long expected = version;
+        if (current != null && current.version == expected) {
+            return current;
+        }
+        // 先读版本再复制，复制期间又有修改时这份快照的版本已经过期，下一次查询会重新生成
+        int size = users.size();
+        String[] names = new String[size];
+        String[] nodes = new String[size];
+        int count = 0;
+        for (Map.Entry<String, String> entry : users.entrySet()) {
+            if (count == names.length) {
+                break;
+            }
+            names[count] = entry.getKey();
+            nodes[count] = entry.getValue();
+            count++;
+        }
+        if (count < size) {
+            names = Arrays.copyOf(names, count);
+            nodes = Arrays.copyOf(nodes, count);
+        }
+        current = new Listing(expected, names, nodes, Math.max(1, (count + pageSize - 1) / pageSize));
+        listing = current;
+        return current;
+    }
+
+    /**
+     * 用户名以 prefix 开头的在线用户的一页，不缓存；只遍历到这一页为止
+     * @param page 从1开始的页码
+     */
+    public String search(String prefix, int page) {
+        NavigableMap<String, String> matches = users.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        StringBuilder text = new StringBuilder("以 ").append(prefix).append(" 开头的在线用户:\n");
+        int from = (Math.max(1, page) - 1) * pageSize;
+        int index = 0;
+        boolean more = false;
+        for (Map.Entry<String, String> entry : matches.entrySet()) {
+            if (index >= from + pageSize) {
+                more = true;
+                break;
+            }
+            if (index >= from) {
+                appendLine(text, entry.getKey(), entry.getValue());
+            }
+            index++;
+        }
+        if (index <= from) {
+            text.append("（无）\n");
+        } else if (more || page > 1) {
+            text.append("第 ").append(page).append(" 页");
+            if (more) {
+                text.append("，/list ").append(prefix).append(' ').append(page + 1).append(" 查看下一页");
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void appendLine(StringBuilder text, String username, String node) {
+        text.append("- ").append(username);
+        if (!LOCAL.equals(node)) {
+            text.append(" @").append(node);
+        }
+        text.append('\n');
+    }
+
+    private static void appendFooter(StringBuilder text, int page, int pages, int total) {
+        if (pages > 1) {
+            text.append("第 ").append(page).append('/').append(pages).append(" 页，共 ").append(total).append(" 人");
+            if (page < pages) {
+                text.append("，/list ").append(page + 1).append(" 查看下一页");
+            }
+            text.append('\n');
+        }
+    }
+
+    private static Frame systemFrame(String content) {
+        return Frame.of(new Message(User.SYSTEM, content), BinaryCodec.SYSTEM_SID);
+    }
+}
@@ -0,0 +1,71 @@
+package com.niweiru;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 集群里其他节点上的在线用户，由总线上的上下线事件复制而来
+ * 本节点的用户在 SessionRegistry 里，不在这里；两者合起来就是整个集群的在线用户。
+ * 只由总线的回调线程修改，查询可以在任何线程进行。
+ */
+public class PresenceTable {
+    /**
+     * 一个远端用户及其所在节点
+     */
+    public static final class Entry {
+        public final User user;
+        public final String node;
+
+        Entry(User user, String node) {
+            this.user = user;
+            this.node = node;
+        }
+    }
+
+    private final Map<String, Entry> byUsername = new ConcurrentHashMap<>();
+
+    public void online(String node, User user) {
+        byUsername.put(user.getUsername(), new Entry(user, node));
+    }
+
+    /**
+     * 只有用户当前登记在该节点上时才移除，用户换了节点重新登录时不会被旧节点的下线事件误删
+     */
+    public void offline(String node, User user) {
+        byUsername.computeIfPresent(user.getUsername(), (name, entry) -> entry.node.equals(node) ? null : entry);
+    }
+
+    /**
+     * 移除某个节点上的所有用户
+     * @return 被移除的用户
+     */
+    public List<Entry> removeNode(String node) {
+        List<Entry> removed = new ArrayList<>();
+        for (Entry entry : byUsername.values()) {
+            if (entry.node.equals(node) && byUsername.remove(entry.user.getUsername(), entry)) {
+                removed.add(entry);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return 用户所在的远端节点记录，不在其他节点上返回null
+     */
+    public Entry find(String username) {
+        return byUsername.get(username);
+    }
+
+    /**
+     * 所有远端用户的快照
+     */
+    public List<Entry> entries() {
+        return new ArrayList<>(byUsername.values());
+    }
+
+    public int size() {
+        return byUsername.size();
+    }
+}
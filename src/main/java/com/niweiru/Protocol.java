@@ -0,0 +1,38 @@
+package com.niweiru;
+
+/**
+ * 线路协议，登录时协商
+ * 客户端在登录消息的 protocol 字段里声明想用的协议，服务器处理完登录消息后双方都切换过去；
+ * 不带这个字段的老客户端继续使用JSON。
+ */
+public enum Protocol {
+    // 每行一个JSON（默认）
+    JSON("json"),
+    // 长度前缀的二进制帧，格式见 BinaryCodec
+    BINARY("binary");
+
+    private final String wireName;
+
+    Protocol(String wireName) {
+        this.wireName = wireName;
+    }
+
+    /**
+     * 登录消息中 protocol 字段的取值
+     */
+    public String getWireName() {
+        return wireName;
+    }
+
+    /**
+     * 解析登录消息中的 protocol 字段，未设置或不认识的一律按JSON处理
+     */
+    public static Protocol fromWireName(String wireName) {
+        for (Protocol protocol : values()) {
+            if (protocol.wireName.equals(wireName)) {
+                return protocol;
+            }
+        }
+        return JSON;
+    }
+}
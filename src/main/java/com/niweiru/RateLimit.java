@@ -0,0 +1,59 @@
+package com.niweiru;
+
+/**
+ * 一种消息的限流参数：平均每秒多少条，最多允许连续突发多少条
+ * 配置写成 "每秒条数/突发条数"，如 "5/10"；"off" 或每秒条数不大于0表示不限制
+ */
+public final class RateLimit {
+    public static final RateLimit UNLIMITED = new RateLimit(0, 0);
+
+    private final double perSecond;
+    private final int burst;
+
+    public RateLimit(double perSecond, int burst) {
+        this.perSecond = perSecond;
+        this.burst = burst;
+    }
+
+    /**
+     * @throws IllegalArgumentException 格式错误
+     */
+    public static RateLimit parse(String value) {
+        String text = value.trim();
+        if (text.equalsIgnoreCase("off")) {
+            return UNLIMITED;
+        }
+        int slash = text.indexOf('/');
+        try {
+            double perSecond = Double.parseDouble(slash < 0 ? text : text.substring(0, slash));
+            int burst = slash < 0 ? (int) Math.ceil(perSecond) : Integer.parseInt(text.substring(slash + 1));
+            return perSecond > 0 ? new RateLimit(perSecond, Math.max(1, burst)) : UNLIMITED;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("限流参数格式应为 每秒条数/突发条数，例如 5/10：" + value);
+        }
+    }
+
+    public boolean isUnlimited() {
+        return perSecond <= 0;
+    }
+
+    public double getPerSecond() {
+        return perSecond;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * 速率和突发都乘以 factor，用于同一IP下多个连接共享的限额
+     */
+    public RateLimit times(int factor) {
+        return isUnlimited() ? this : new RateLimit(perSecond * factor, burst * factor);
+    }
+
+    @Override
+    public String toString() {
+        return isUnlimited() ? "off" : perSecond + "/" + burst;
+    }
+}
@@ -0,0 +1,101 @@
+package com.niweiru;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按用户和按IP限流
+ * 每个登录的会话（一个用户名只能有一个会话，即每个用户）有一组令牌桶，同一IP的所有会话再共享一组，
+ * 每组里广播、私聊、命令各一个桶；两组都有令牌才放行。
+ * 登录时把两组桶挂到会话上，之后每条消息只访问会话自己的字段，不查表；
+ * IP的桶按连接数引用计数，最后一个连接退出时删除。
+ */
+public class RateLimiter {
+    /**
+     * 一组令牌桶，不限制的种类为null
+     */
+    static final class Buckets {
+        private final TokenBucket chat;
+        private final TokenBucket privateMessages;
+        private final TokenBucket commands;
+        // 共享这组桶的会话数，只在 ConcurrentHashMap.compute 中修改
+        private int sessions;
+
+        Buckets(ServerConfig config, int factor) {
+            chat = bucket(config.getChatRateLimit().times(factor));
+            privateMessages = bucket(config.getPrivateRateLimit().times(factor));
+            commands = bucket(config.getCommandRateLimit().times(factor));
+        }
+
+        private static TokenBucket bucket(RateLimit limit) {
+            return limit.isUnlimited() ? null : new TokenBucket(limit);
+        }
+
+        boolean tryAcquire(ServerMetrics.Kind kind) {
+            TokenBucket bucket;
+            switch (kind) {
+                case CHAT:
+                    bucket = chat;
+                    break;
+                case PRIVATE:
+                    bucket = privateMessages;
+                    break;
+                case COMMAND:
+                    bucket = commands;
+                    break;
+                default:
+                    return true;
+            }
+            return bucket == null || bucket.tryAcquire();
+        }
+    }
+
+    private final ServerConfig config;
+    private final Map<String, Buckets> hosts = new ConcurrentHashMap<>();
+
+    public RateLimiter(ServerConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * 登录成功后调用，给会话挂上用户和IP的令牌桶
+     */
+    public void register(Session session) {
+        session.setUserBuckets(new Buckets(config, 1));
+        session.setHostBuckets(hosts.compute(session.getRemoteHost(), (host, buckets) -> {
+            if (buckets == null) {
+                buckets = new Buckets(config, config.getHostRateLimitFactor());
+            }
+            buckets.sessions++;
+            return buckets;
+        }));
+    }
+
+    /**
+     * 退出登录时调用
+     */
+    public void unregister(Session session) {
+        if (session.getHostBuckets() == null) {
+            return;
+        }
+        hosts.computeIfPresent(session.getRemoteHost(), (host, buckets) -> --buckets.sessions == 0 ? null : buckets);
+        session.setHostBuckets(null);
+    }
+
+    /**
+     * 消耗一个令牌
+     * @return 用户和IP都还有令牌返回true；未登录的会话总是返回true
+     */
+    public boolean tryAcquire(Session session, ServerMetrics.Kind kind) {
+        Buckets user = session.getUserBuckets();
+        Buckets host = session.getHostBuckets();
+        return (user == null || user.tryAcquire(kind)) && (host == null || host.tryAcquire(kind));
+    }
+
+    /**
+     * 当前有多少个IP在限流表中
+     */
+    int hostCount() {
+        return hosts.size();
+    }
+}
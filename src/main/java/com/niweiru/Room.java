@@ -0,0 +1,65 @@
+package com.niweiru;
+
+/**
+ * 一个聊天房间，房间内的消息只发给成员，并保留最近的聊天记录
+ * 记录消息和读取成员、加入成员和读取聊天记录都在房间锁内完成，
+ * 所以同时发生的广播和加入，新成员要么实时收到，要么在回放里收到，不会重复也不会漏掉。
+ */
+public class Room {
+    private final String name;
+    private final SessionSet members = new SessionSet();
+    private final MessageHistory history;
+
+    public Room(String name, MessageHistory history) {
+        this.name = name;
+        this.history = history;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 当前成员的快照，广播时遍历
+     */
+    public Session[] members() {
+        return members.toArray();
+    }
+
+    public MessageHistory history() {
+        return history;
+    }
+
+    /**
+     * 把一条消息记进聊天记录，返回此时的成员，广播时遍历
+     */
+    public Session[] publish(Frame frame) {
+        // 编码在锁外完成，锁内只取缓存的长度
+        frame.length(Protocol.JSON);
+        synchronized (this) {
+            history.append(frame);
+            return members.toArray();
+        }
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    // 加入、退出只通过 RoomRegistry，保证房间的创建和删除与成员变化是原子的
+
+    /**
+     * @return 加入前最近的至多 replay 条聊天记录；本来就是成员返回null
+     */
+    synchronized Frame[] add(Session session, int replay) {
+        return members.add(session) ? history.recent(replay) : null;
+    }
+
+    synchronized boolean remove(Session session) {
+        return members.remove(session);
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+}
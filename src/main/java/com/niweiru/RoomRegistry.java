@@ -0,0 +1,106 @@
+package com.niweiru;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 所有房间
+ * 第一个成员加入时创建房间，最后一个成员离开时删除，聊天记录随房间一起删除；
+ * 默认房间例外，一直保留，这样所有人都离开之后新登录的用户仍能看到之前的聊天记录。
+ * 房间总数（含默认房间）不超过 chat.rooms.max，满了之后只能加入已有的房间。
+ * 加入和退出都在 ConcurrentHashMap.compute 中完成，不会出现往一个刚被删除的房间里加人。
+ * 会话自己也记录加入了哪些房间（Session.getRooms()），退出登录时据此清理。
+ */
+public class RoomRegistry {
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    // 房间数，创建前先占一个名额，占不到就不创建
+    private final AtomicInteger count = new AtomicInteger(1);
+    private final ServerConfig config;
+
+    public RoomRegistry(ServerConfig config) {
+        this.config = config;
+        rooms.put(config.getDefaultRoom(), newRoom(config.getDefaultRoom()));
+    }
+
+    private Room newRoom(String name) {
+        return new Room(name, new MessageHistory(config.getHistorySize(), config.getHistoryMaxBytes()));
+    }
+
+    /**
+     * 加入房间的结果
+     */
+    public static final class Joined {
+        public final Room room;
+        // 加入时取出的最近聊天记录，从旧到新；本来就在房间里为null
+        public final Frame[] backlog;
+
+        Joined(Room room, Frame[] backlog) {
+            this.room = room;
+            this.backlog = backlog;
+        }
+    }
+
+    /**
+     * 加入房间，不存在则创建
+     * @param replay 加入的同时取出最近多少条聊天记录
+     * @return 房间不存在并且房间数已经到了上限时返回null
+     */
+    public Joined join(Session session, String name, int replay) {
+        Frame[][] backlog = new Frame[1][];
+        Room joined = rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                if (count.incrementAndGet() > config.getMaxRooms()) {
+                    count.decrementAndGet();
+                    return null;
+                }
+                room = newRoom(key);
+            }
+            backlog[0] = room.add(session, replay);
+            return room;
+        });
+        if (joined == null) {
+            return null;
+        }
+        session.getRooms().add(name);
+        return new Joined(joined, backlog[0]);
+    }
+
+    /**
+     * 退出房间，房间空了就删除
+     * @return 退出前的房间；不在房间里返回null
+     */
+    public Room leave(Session session, String name) {
+        if (!session.getRooms().remove(name)) {
+            return null;
+        }
+        Room[] left = new Room[1];
+        rooms.computeIfPresent(name, (key, room) -> {
+            if (room.remove(session)) {
+                left[0] = room;
+            }
+            if (room.isEmpty() && !key.equals(config.getDefaultRoom())) {
+                count.decrementAndGet();
+                return null;
+            }
+            return room;
+        });
+        return left[0];
+    }
+
+    /**
+     * @return 房间不存在返回null
+     */
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * 所有房间的快照
+     */
+    public List<Room> rooms() {
+        return new ArrayList<>(rooms.values());
+    }
+}
@@ -0,0 +1,36 @@
+package com.niweiru;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 二进制协议下一条连接的发送者编号表
+ * 发送方向：记录已经告诉过对方哪些编号，第一次用到某个编号时先发一帧发送者定义；
+ * 接收方向：记录对方定义过的编号对应的用户。
+ * 两个方向各自只被一个线程使用（写线程/事件循环，读线程/事件循环），不需要加锁。
+ */
+public class SenderTable {
+    private final Set<Integer> announced = new HashSet<>();
+    private final Map<Integer, User> users = new HashMap<>();
+
+    /**
+     * 标记某个编号已告诉过对方
+     * @return 第一次标记返回true，调用方需要先发送者定义
+     */
+    public boolean announce(int sid) {
+        return announced.add(sid);
+    }
+
+    public void define(int sid, User user) {
+        users.put(sid, user);
+    }
+
+    /**
+     * @return 对方定义过的用户，未定义返回null
+     */
+    public User resolve(int sid) {
+        return users.get(sid);
+    }
+}
@@ -1,291 +1,1152 @@
 package com.niweiru;
 
+import ch.qos.logback.classic.LoggerContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
 
 /**
  * 服务端 - 等待客户端的连接
+ * 网络层有两种实现（见 IoMode）：阻塞式每连接一个任务，或NIO事件循环。
+ * 登录、广播、私聊、命令等路由逻辑两种模式共用，都只依赖 Session。
  */
 public class Server {
     // 创建一个日志记录器（Logger），关联到当前Server类
     private static final Logger logger = LoggerFactory.getLogger(Server.class);
-    // 服务器监听的端口号，可以随意选一个1024以上的，这里用8080
-    private static final int PORT = 8080;
-
-    // 在类中添加一个线程池
-    // 使用 Executors 工厂方法创建（简单方式）
-    private static final ExecutorService threadPool = Executors.newCachedThreadPool();  //无界队列
-
-    // 如果使用更推荐的 ThreadPoolExecutor，可以这样写：
-    // private static final ExecutorService threadPool = new ThreadPoolExecutor(
-    //         10, // 核心线程数：即使空闲也不会被回收的线程数
-    //         100, // 最大线程数：线程池能容纳的最大线程数
-    //         60L, TimeUnit.SECONDS, // 空闲线程存活时间：非核心线程空闲超过60秒则回收
-    //         new LinkedBlockingQueue<>(500) // 工作队列：大小500，而不是无界队列
-    // );
-
-    // 新增：在线客户端映射表
-    // Key: 客户端的Socket连接
-    // Value: 客户端对应的用户信息
-    private static final Map<Socket, User> onlineClients = new ConcurrentHashMap<>();
-    // 在Server类中添加一个用户名字典，用于快速查找用户名是否已存在
-    private static final Set<String> onlineUsernames = ConcurrentHashMap.newKeySet();
+    private static final int MAX_ROOM_NAME_LENGTH = 32;
+    private static final int MAX_USERNAME_LENGTH = 32;
+    private static final String SHUTDOWN_NOTICE = "服务器正在关闭，连接即将断开，请稍后重新连接";
+
+    private final ServerConfig config;
+
+    // 阻塞模式下处理客户端的线程池，具体策略见 ExecutorStrategy
+    private final ExecutorService threadPool;
+    // 阻塞模式下写出各客户端发送队列的线程池，见 BlockingSession
+    private final ExecutorService writerPool;
+    // 大房间的广播分片并行发送
+    private final ParallelBroadcaster broadcaster;
+
+    // 在线会话登记表：按用户名、用户ID查找，登录时原子地占用用户名
+    // 会话在阻塞模式下包装Socket，NIO模式下包装SocketChannel
+    private final SessionRegistry onlineClients = new SessionRegistry();
+    // 聊天房间：普通消息只发给所在房间的成员
+    private final RoomRegistry rooms;
+
+    // 阻塞模式使用
+    private ServerSocket serverSocket;
+    // NIO模式使用
+    private NioServer nioServer;
+    // 持久化的消息日志，没有配置 chat.log.dir 时为null
+    private volatile MessageLog messageLog;
+    // /history since 在这个线程上扫描消息日志，不占用事件循环或连接线程；开启消息日志时才创建
+    private ExecutorService logReader;
+    // 运行指标，见 /stats 和 MetricsEndpoint
+    private final ServerMetrics metrics = new ServerMetrics();
+    // 指标抓取端点，chat.metrics.port 小于0时为null
+    private MetricsEndpoint metricsEndpoint;
+    // 逐条消息日志的限流，消息量再大日志开销也有上限
+    private final LogRateLimiter messageLogLimiter;
+    // 按用户和IP限制发消息的速率
+    private final RateLimiter rateLimiter;
+    // 集群总线，单机运行时为null；其他节点上的在线用户在 presence 里
+    private final ClusterBus cluster;
+    private final PresenceTable presence = new PresenceTable();
+    // 整个集群的在线用户目录，/list 和上下线通知从这里取
+    private final PresenceService presenceService;
+    // 心跳和空闲连接清理，空闲和读超时都为0时为null
+    private final IdleMonitor idleMonitor;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    // 已经开始接受连接（就绪探针见 MetricsEndpoint）；开始关闭后变回false
+    private volatile boolean ready;
+    // 正在优雅关闭：不再通知用户离开，连接断开不当作异常
+    private volatile boolean shuttingDown;
+
+    public Server(ServerConfig config) {
+        this(config, newClusterBus(config));
+    }
+
+    /**
+     * @param cluster 集群总线，为null时单机运行
+     */
+    public Server(ServerConfig config, ClusterBus cluster) {
+        this.config = config;
+        this.cluster = cluster;
+        this.rooms = new RoomRegistry(config);
+        this.messageLogLimiter = new LogRateLimiter(config.getLoggedMessagesPerSecond());
+        this.rateLimiter = new RateLimiter(config);
+        this.threadPool = config.getExecutorStrategy().newExecutor(config);
+        this.writerPool = config.getExecutorStrategy().newWriterExecutor();
+        this.broadcaster = new ParallelBroadcaster(config);
+        this.presenceService = new PresenceService(config.getPresencePageSize(), this::publishPresence);
+        this.idleMonitor = IdleMonitor.isEnabled(config) ? new IdleMonitor(config, metrics) : null;
+    }
+
+    /**
+     * 按配置创建TCP集群总线，chat.cluster.port 小于0时返回null
+     */
+    private static ClusterBus newClusterBus(ServerConfig config) {
+        if (config.getClusterPort() < 0) {
+            return null;
+        }
+        String nodeId = config.getClusterNodeId() != null
+                ? config.getClusterNodeId() : UUID.randomUUID().toString().substring(0, 8);
+        List<String> peers = new ArrayList<>();
+        for (String peer : config.getClusterPeers().split(",")) {
+            if (!peer.isBlank()) {
+                peers.add(peer.trim());
+            }
+        }
+        return new TcpClusterBus(nodeId, config.getClusterBindAddress(), config.getClusterPort(), peers,
+                config.getClusterSecret(), config.getClusterReconnectMillis());
+    }
 
 /**
- * 广播聊天消息给所有其他客户端（排除发送者自己）
+ * 广播聊天消息给房间内的其他成员（排除发送者自己）
+ * 消息指定了房间就发到该房间，否则发到发送者的当前房间；发送者必须是房间成员
  * @param message 要广播的消息
- * @param senderSocket 消息发送者的Socket（用于排除自己）
+ * @param senderSession 消息发送者的会话（用于排除自己）
  */
-    private static void broadcastMessage(Message message, Socket senderSocket) {
-        // 遍历在线客户端映射表的所有条目
-        for (Map.Entry<Socket, User> entry : onlineClients.entrySet()) {
-            Socket clientSocket = entry.getKey();
-            // 排除消息发送者自己，不然自己也会收到自己发的消息
-            if (!clientSocket.equals(senderSocket)) {
+    private void broadcastMessage(Message message, Session senderSession) {
+        String roomName = message.getRoom() != null ? message.getRoom() : senderSession.getCurrentRoom();
+        Room room = roomName == null ? null : rooms.get(roomName);
+        if (room == null || !senderSession.getRooms().contains(roomName)) {
+            sendSystemMessage(senderSession, roomName == null
+                    ? "你不在任何房间中，请先使用 /join 房间名"
+                    : "你不在房间 " + roomName + " 中");
+            return;
+        }
+        long start = System.nanoTime();
+        message.setRoom(roomName);
+        // 只编码一次，所有接收者共享同一帧，聊天记录里存的也是这一帧
+        Frame frame = Frame.of(message, senderSession.getSid());
+        Session[] members = room.publish(frame);
+        appendToLog(frame, MessageLog.roomChannel(roomName));
+        // 排除消息发送者自己，不然自己也会收到自己发的消息
+        int recipients = deliver(members, senderSession, frame);
+        metrics.sent(ServerMetrics.Kind.CHAT, recipients);
+        metrics.broadcastLatency().record(System.nanoTime() - start);
+        if (cluster != null) {
+            cluster.publish(ClusterEvent.roomMessage(cluster.nodeId(), message));
+        }
+    }
+
+    /**
+     * 把一帧发给成员快照中除 exclude 以外的所有人，人多时分片并行发送（见 ParallelBroadcaster）
+     * 只遍历房间成员的快照，开销和房间大小成正比，和在线总人数无关
+     * @param exclude 不发给这个会话，可以为null
+     * @return 发出的接收者数
+     */
+    private int deliver(Session[] members, Session exclude, Frame frame) {
+        if (broadcaster.isParallel(members.length)) {
+            return broadcaster.send(members, (shard, from, to) -> deliver(shard, from, to, exclude, frame));
+        }
+        return deliver(members, 0, members.length, exclude, frame);
+    }
+
+    private int deliver(Session[] members, int from, int to, Session exclude, Frame frame) {
+        LatencyHistogram sendLatency = metrics.sendLatency();
+        long sendStart = System.nanoTime();
+        int recipients = 0;
+        for (int i = from; i < to; i++) {
+            Session clientSession = members[i];
+            // 正在关闭的会话（退出、被踢、服务器关闭）还在成员快照里，跳过即可
+            if (clientSession != exclude && !clientSession.isClosed()) {
                 try {
-                    NetworkUtils.sendMessage(clientSocket, message);
+                    clientSession.send(frame);
+                    recipients++;
                 } catch (IOException e) {
-                    logger.error("向客户端 [{}] 广播消息失败", entry.getValue().getUsername(), e);
+                    // 扇出时对方刚好断开是常事，不逐条记录异常堆栈
+                    logger.debug("向客户端 [{}] 广播消息失败: {}", clientSession.getRemoteAddress(), e.getMessage());
                 }
+                // 相邻两次发送共用一次 nanoTime
+                long now = System.nanoTime();
+                sendLatency.record(now - sendStart);
+                sendStart = now;
             }
         }
+        return recipients;
     }
 
     /**
-     * 广播系统消息给所有客户端
+     * 广播系统消息给房间内的所有成员
+     * @param room 目标房间
      * @param content 系统消息内容
      */
-    private static void broadcastSystemMessage(String content) {
-        User systemUser = new User("system", "System");
-        Message systemMessage = new Message(systemUser, content);
-        // 系统消息不需要排除任何人，发给所有客户端
-        for (Map.Entry<Socket, User> entry : onlineClients.entrySet()) {
-            try {
-                NetworkUtils.sendMessage(entry.getKey(), systemMessage);
-            } catch (IOException e) {
-                logger.error("向客户端 [{}] 广播系统消息失败", entry.getValue().getUsername(), e);
-            }
+    private void broadcastSystemMessage(Room room, String content) {
+        Message systemMessage = new Message(User.SYSTEM, content);
+        systemMessage.setRoom(room.getName());
+        deliverNotice(room, systemMessage);
+        if (cluster != null) {
+            cluster.publish(ClusterEvent.roomNotice(cluster.nodeId(), systemMessage));
         }
     }
+
+    /**
+     * 把系统通知发给本节点上房间内的所有成员
+     */
+    private void deliverNotice(Room room, Message systemMessage) {
+        Frame frame = Frame.of(systemMessage, BinaryCodec.SYSTEM_SID);
+        // 系统消息不需要排除任何人，发给房间内所有成员
+        Session[] members = room.members();
+        metrics.sent(ServerMetrics.Kind.SYSTEM, members.length);
+        deliver(members, null, frame);
+    }
+
 /**
- * 处理客户端的请求
+ * 处理客户端的请求（阻塞模式）
  * @param clientSocket 客户端的Socket连接
  */
-    private static void handleClient(Socket clientSocket) {
+    private void handleClient(Socket clientSocket) {
     String clientName = clientSocket.getRemoteSocketAddress().toString();
-    // 将 clientUser 声明在 try 块外部，使其在 finally 块中可见
-    User clientUser = null;
-    
+    BlockingSession session = null;
+
     try {
         logger.info("[{}] 开始处理这个客户端的请求。", clientName);
+        // 读写器在整个连接期间复用，见 Connection
+        session = new BlockingSession(clientSocket, new OutboundQueue(config), writerPool, config.getWriteMaxBatch());
+        Connection connection = session.getConnection();
+        connection.countBytes(metrics.bytesIn(), metrics.bytesOut());
+        connection.countWrites(metrics.writeCalls(), metrics.framesWritten());
+        metrics.connectionOpened();
+        watch(session);
 
         // 1. 接收客户端发送的第一个消息，假设为登录消息，包含用户信息
-        // 将 loginMessage 声明在 try 块内部是可以的，因为我们只需要在 try 块中使用它
-        Message loginMessage = NetworkUtils.receiveMessage(clientSocket);
-        if (loginMessage == null || loginMessage.getSender() == null) {
-            logger.warn("[{}] 客户端未发送有效的登录信息，连接关闭。", clientName);
+        Message loginMessage = connection.receive();
+        if (!login(session, loginMessage)) {
             return;
         }
 
-        // 使用已声明的 clientUser 变量，不要再次声明
-        clientUser = loginMessage.getSender();
+        // 4. 进入消息循环，之后的消息不再解析发送者
+        connection.setSender(session.getUser());
+        Message clientMessage;
+        while ((clientMessage = connection.receive()) != null) {
+            handleMessage(session, clientMessage);
+        }
+
+        logger.info("[{}] 客户端断开连接。", clientName);
+
+    } catch (IOException e) {
+        if (shuttingDown) {
+            logger.info("[{}] 服务器关闭，连接已断开", clientName);
+        } else if (session != null && session.isClosed()) {
+            // 服务器自己断开的（持续超出限流、空闲超时、发送队列满），原因在断开的地方已经记录过
+            logger.info("[{}] 连接已被服务器断开: {}", clientName, e.getMessage());
+        } else {
+            logger.error("[{}] 处理请求时发生异常", clientName, e);
+        }
+    } finally {
+        // 6. 无论如何，最终都要从在线列表中移除该客户端
+        if (session != null) {
+            logout(session);
+            session.close();
+            metrics.connectionClosed();
+        } else {
+            closeQuietly(clientSocket);
+        }
+    }
+}
+
+    /**
+     * 处理登录消息，两种IO模式共用
+     * @param session 客户端会话
+     * @param loginMessage 客户端发送的第一条消息
+     * @return 登录成功返回true；失败时调用方负责关闭连接
+     */
+    boolean login(Session session, Message loginMessage) {
+        session.touch();
+        String clientName = session.getRemoteAddress();
+        if (loginMessage == null || loginMessage.getSender() == null
+                || loginMessage.getSender().getUsername() == null) {
+            logger.warn("[{}] 客户端未发送有效的登录信息，连接关闭。", clientName);
+            metrics.loginRejected();
+            return false;
+        }
+
+        User clientUser = loginMessage.getSender();
         String username = clientUser.getUsername();
+        // 用户名会出现在私聊的日志频道、在线列表和每条广播里，限制长度
+        if (username.length() > MAX_USERNAME_LENGTH) {
+            sendSystemMessage(session, "用户名不能超过" + MAX_USERNAME_LENGTH + "个字符");
+            metrics.loginRejected();
+            return false;
+        }
 
-        // 检查用户名是否已在线
-        if (onlineUsernames.contains(username)) {
-            sendSystemMessage(clientSocket, "用户名 " + username + " 已被使用，请选择其他用户名");
-            clientSocket.close();
-            return;
+        // 协商线路协议：服务器从下一帧开始使用客户端要求的协议，包括下面登录失败的提示
+        Protocol protocol = Protocol.fromWireName(loginMessage.getProtocol());
+        if (protocol != Protocol.JSON) {
+            session.setProtocol(protocol);
+        }
+        // 压缩同样从下一帧开始，服务器不支持压缩时忽略
+        if (Compression.DEFLATE.equals(loginMessage.getCompression()) && config.getCompressionMinBytes() >= 0) {
+            session.setCompression(new Compression(config.getCompressionMinBytes(), metrics));
         }
 
-        // 用户名可用，添加到在线集合
-        onlineUsernames.add(username);
-        onlineClients.put(clientSocket, clientUser);
+        // 原子地占用用户名，已被占用则拒绝；集群里其他节点上的用户名也不能用
+        // （两个节点同时登录同名用户时只在各自节点上唯一，上线事件到达后以各自为准）
+        if (presence.find(username) != null || !onlineClients.register(session, clientUser)) {
+            sendSystemMessage(session, "用户名 " + username + " 已被使用，请选择其他用户名");
+            metrics.loginRejected();
+            return false;
+        }
+        metrics.loginSucceeded();
+        rateLimiter.register(session);
         logger.info("[{}] 用户 [{}] 已加入聊天室。当前在线人数: {}", clientName, username, onlineClients.size());
+        presenceService.online(username, null);
+        if (cluster != null) {
+            cluster.publish(ClusterEvent.userOnline(cluster.nodeId(), clientUser));
+        }
 
-        // 广播系统通知：某某用户加入了聊天室
-        broadcastSystemMessage(username + " 加入了聊天室");
+        // 自动加入默认房间，并在房间内广播系统通知：某某用户加入了聊天室
+        RoomRegistry.Joined joined = rooms.join(session, config.getDefaultRoom(), config.getHistoryReplay());
+        session.setCurrentRoom(joined.room.getName());
+        broadcastSystemMessage(joined.room, username + " 加入了聊天室");
+        // 加入时取出的聊天记录，加入之后的消息会实时收到
+        sendHistory(session, joined.room, joined.backlog);
+        return true;
+    }
 
-        // 4. 进入消息循环
-        Message clientMessage;
-        while ((clientMessage = NetworkUtils.receiveMessage(clientSocket)) != null) {
-            String content = clientMessage.getContent();
-            logger.info("[{}] 收到消息: [{}] {}", clientName, clientUser.getUsername(), content);
-            
-            // 判断是否是命令（以/开头）
-            if (content.startsWith("/")) {
-                // 处理命令
-                handleCommand(content, clientSocket);
-            } 
-            // 判断是否是私聊消息（以@开头）
-            else if (content.startsWith("@")) {
-                // 处理私聊消息
-                handlePrivateMessage(clientMessage, clientSocket);
-            } else {
-                // 处理广播消息
-                broadcastMessage(clientMessage, clientSocket);
+    /**
+     * 限流检查，超出限额的消息直接丢弃
+     * 第一次超出时警告；累计超出 chat.ratelimit.maxStrikes 次断开连接。
+     * 每放行一条消息抵消一次，偶尔超出不会被断开，持续刷屏才会。
+     * @return 放行返回true
+     */
+    private boolean checkRateLimit(Session session, ServerMetrics.Kind kind) {
+        int strikes = session.getRateLimitStrikes();
+        if (rateLimiter.tryAcquire(session, kind)) {
+            if (strikes > 0) {
+                session.setRateLimitStrikes(strikes - 1);
             }
+            return true;
+        }
+        metrics.rateLimited();
+        session.setRateLimitStrikes(++strikes);
+        if (strikes == config.getRateLimitMaxStrikes()) {
+            logger.warn("[{}] 用户 [{}] 持续超出发送速率限制，断开连接", session.getRemoteAddress(),
+                    session.getUser().getUsername());
+            sendSystemMessage(session, "发送过于频繁，连接已断开");
+            session.close();
+        } else if (strikes == 1) {
+            sendSystemMessage(session, "发送过于频繁，消息已被丢弃；继续刷屏将被断开连接");
         }
+        return false;
+    }
 
-        logger.info("[{}] 客户端断开连接。", clientName);
+    /**
+     * 记录收到的一条消息，受 chat.logging.messagesPerSecond 限流，chat.logging.content 关闭时不记内容
+     */
+    private void logReceived(Session session, String content) {
+        if (!logger.isInfoEnabled()) {
+            return;
+        }
+        long skipped = messageLogLimiter.tryAcquire();
+        if (skipped < 0) {
+            return;
+        }
+        String username = session.getUser().getUsername();
+        String note = skipped > 0 ? "（之前省略了 " + skipped + " 条）" : "";
+        if (config.isLogMessageContent()) {
+            logger.info("[{}] 收到消息: [{}] {}{}", session.getRemoteAddress(), username, content, note);
+        } else {
+            logger.info("[{}] 收到消息: [{}] {} 个字符{}", session.getRemoteAddress(), username, content.length(), note);
+        }
+    }
 
-    } catch (IOException e) {
-        logger.error("[{}] 处理请求时发生异常", clientName, e);
-    } finally {
-        // 6. 无论如何，最终都要从在线列表中移除该客户端
-        // 先获取用户信息，然后再移除
-        if (clientUser != null) {
-            onlineUsernames.remove(clientUser.getUsername());
-        }
-        onlineClients.remove(clientSocket);
-        logger.info("[{}] 用户已从在线列表移除。当前在线人数: {}", clientName, onlineClients.size());
-        
-        // 广播系统通知：某某用户离开了聊天室
-        if (clientUser != null) {
-            broadcastSystemMessage(clientUser.getUsername() + " 离开了聊天室");
-        }
-        
-        try {
-            clientSocket.close();
-        } catch (IOException e) {
-            logger.error("[{}] 关闭连接时发生异常", clientName, e);
+    /**
+     * 处理登录后的一条消息：命令、私聊或广播
+     */
+    void handleMessage(Session session, Message clientMessage) {
+        session.touch();
+        String type = clientMessage.getType();
+        if (Heartbeat.PING_TYPE.equals(type)) {
+            // 心跳按命令限流，防止用 ping 刷 pong
+            if (rateLimiter.tryAcquire(session, ServerMetrics.Kind.COMMAND)) {
+                sendFrame(session, Heartbeat.PONG);
+            }
+            return;
+        } else if (Heartbeat.PONG_TYPE.equals(type)) {
+            return;
+        }
+        String content = clientMessage.getContent();
+        if (content == null) {
+            return;
+        }
+        ServerMetrics.Kind kind = kindOf(content.isEmpty() ? JsonMessageDecoder.EMPTY_CONTENT : content.charAt(0));
+        if (admit(session, kind)) {
+            dispatch(session, clientMessage, kind);
+        }
+    }
+
+    /**
+     * 按内容的第一个字符分类：命令以/开头，私聊以@开头，其余是广播
+     * @param firstChar 内容的第一个字符，空内容为 JsonMessageDecoder.EMPTY_CONTENT
+     */
+    static ServerMetrics.Kind kindOf(int firstChar) {
+        return firstChar == '/' ? ServerMetrics.Kind.COMMAND
+                : firstChar == '@' ? ServerMetrics.Kind.PRIVATE : ServerMetrics.Kind.CHAT;
+    }
+
+    /**
+     * 计数并限流，超出的消息不会被分发出去
+     * 只需要消息的分类，所以NIO模式下JSON消息可以只看内容的第一个字符，在完整解码之前调用
+     * @return 放行返回true，之后调用 dispatch()
+     */
+    boolean admit(Session session, ServerMetrics.Kind kind) {
+        metrics.received(kind);
+        return checkRateLimit(session, kind);
+    }
+
+    /**
+     * 分发一条已经放行的消息（内容不为null）
+     */
+    void dispatch(Session session, Message clientMessage, ServerMetrics.Kind kind) {
+        String content = clientMessage.getContent();
+        // 发送者一律以登录时确定的用户为准（每个会话一个实例），不用帧里带的 sender
+        clientMessage.setSender(session.getUser());
+        logReceived(session, content);
+
+        switch (kind) {
+            case COMMAND:
+                handleCommand(content, session);
+                break;
+            case PRIVATE:
+                handlePrivateMessage(clientMessage, session);
+                break;
+            default:
+                broadcastMessage(clientMessage, session);
+        }
+    }
+
+    /**
+     * 开始检查连接是否空闲，连接建立时调用
+     */
+    void watch(Session session) {
+        if (idleMonitor != null) {
+            idleMonitor.watch(session);
+        }
+    }
+
+    /**
+     * 客户端断开后从在线列表中移除，可重复调用
+     */
+    void logout(Session session) {
+        // 移除并取回用户信息，未登录或已移除时返回null
+        User clientUser = onlineClients.unregister(session);
+        if (clientUser == null) {
+            return;
+        }
+        logger.info("[{}] 用户已从在线列表移除。当前在线人数: {}", session.getRemoteAddress(), onlineClients.size());
+        rateLimiter.unregister(session);
+        presenceService.unsubscribe(session);
+        presenceService.offline(clientUser.getUsername(), null);
+        if (cluster != null) {
+            cluster.publish(ClusterEvent.userOffline(cluster.nodeId(), clientUser));
+        }
+
+        // 退出所有房间，并在每个房间广播系统通知：某某用户离开了聊天室
+        // 服务器关闭时大家都在断开，不再互相通知
+        for (String roomName : session.getRooms().toArray(new String[0])) {
+            Room room = rooms.leave(session, roomName);
+            if (room != null && !shuttingDown) {
+                broadcastSystemMessage(room, clientUser.getUsername() + " 离开了聊天室");
+            }
         }
     }
-}
 
     /**
      * 处理私聊消息
      * @param message 原始消息
-     * @param senderSocket 发送者的Socket
+     * @param senderSession 发送者的会话
      */
-    private static void handlePrivateMessage(Message message, Socket senderSocket) {
+    private void handlePrivateMessage(Message message, Session senderSession) {
         String content = message.getContent();
         // 解析消息格式：@username message
         int spaceIndex = content.indexOf(' ');
         if (spaceIndex == -1) {
             // 如果没有空格，说明格式错误
-            sendSystemMessage(senderSocket, "私聊格式错误，请使用: @用户名 消息内容");
+            sendSystemMessage(senderSession, "私聊格式错误，请使用: @用户名 消息内容");
             return;
         }
-        
+
         String targetUsername = content.substring(1, spaceIndex); // 去掉@，取用户名
         String privateContent = content.substring(spaceIndex + 1); // 取消息内容
-        
-        // 查找目标用户
-        Socket targetSocket = findSocketByUsername(targetUsername);
-        if (targetSocket == null) {
-            sendSystemMessage(senderSocket, "用户 " + targetUsername + " 不存在或不在线");
+
+        // 查找目标用户，先找本节点，再找集群里的其他节点
+        Session targetSession = onlineClients.findByUsername(targetUsername);
+        if (targetSession == null && (cluster == null || presence.find(targetUsername) == null)) {
+            sendSystemMessage(senderSession, "用户 " + targetUsername + " 不存在或不在线");
             return;
         }
-        
+
         // 创建私聊消息（可以修改原消息或创建新消息）
         Message privateMessage = new Message(message.getSender(), privateContent);
         privateMessage.setType("private"); // 可以添加类型字段区分
-        
+        // 和广播一样保留发送方的时间戳，接收方据此计算端到端延迟
+        privateMessage.setTimestamp(message.getTimestamp());
+
+        Frame frame = Frame.of(privateMessage, senderSession.getSid());
+        appendToLog(frame, MessageLog.privateChannel(targetUsername));
         try {
-            // 发送私聊消息给目标用户
-            NetworkUtils.sendMessage(targetSocket, privateMessage);
+            // 发送私聊消息给目标用户，不在本节点就转发到所在节点
+            if (targetSession != null) {
+                targetSession.send(frame);
+            } else {
+                cluster.publish(ClusterEvent.privateMessage(cluster.nodeId(), targetUsername, privateMessage));
+            }
             // 可选：也发送给发送者自己，像许多聊天软件那样
-            NetworkUtils.sendMessage(senderSocket, privateMessage);
-            logger.info("私聊消息已从 [{}] 发送给 [{}]", 
-                    message.getSender().getUsername(), targetUsername);
+            senderSession.send(frame);
+            metrics.sent(ServerMetrics.Kind.PRIVATE, 2);
+            if (logger.isInfoEnabled() && messageLogLimiter.tryAcquire() >= 0) {
+                logger.info("私聊消息已从 [{}] 发送给 [{}]", message.getSender().getUsername(), targetUsername);
+            }
         } catch (IOException e) {
             logger.error("发送私聊消息失败", e);
-            sendSystemMessage(senderSocket, "发送私聊消息失败");
+            sendSystemMessage(senderSession, "发送私聊消息失败");
+        }
+    }
+
+    /**
+     * 向指定客户端发送系统消息
+     * @param session 目标客户端会话
+     * @param content 消息内容
+     */
+    private void sendSystemMessage(Session session, String content) {
+        try {
+            Message systemMessage = new Message(User.SYSTEM, content);
+            session.send(Frame.of(systemMessage, BinaryCodec.SYSTEM_SID));
+            metrics.sent(ServerMetrics.Kind.SYSTEM, 1);
+        } catch (IOException e) {
+            logger.error("发送系统消息失败", e);
+        }
+    }
+
+    private void sendFrame(Session session, Frame frame) {
+        try {
+            session.send(frame);
+        } catch (IOException e) {
+            logger.debug("[{}] 发送失败: {}", session.getRemoteAddress(), e.getMessage());
+        }
+    }
+
+    private void handleCommand(String command, Session senderSession) {
+        if (command.equals("/list") || command.startsWith("/list ")) {
+            listUsers(senderSession, command.substring("/list".length()).trim());
+        } else if ("/presence on".equals(command)) {
+            presenceService.subscribe(senderSession);
+            sendSystemMessage(senderSession, "已订阅上下线通知，当前在线 " + presenceService.size() + " 人");
+        } else if ("/presence off".equals(command)) {
+            presenceService.unsubscribe(senderSession);
+            sendSystemMessage(senderSession, "已取消订阅上下线通知");
+        } else if ("/queues".equals(command)) {
+            // 每个在线用户的发送队列：当前深度 / 最大深度 / 丢弃数
+            StringBuilder queues = new StringBuilder("发送队列（当前/最大/丢弃）:\n");
+            for (Session session : onlineClients.sessions()) {
+                OutboundQueue queue = session.getOutboundQueue();
+                if (queue != null) {
+                    queues.append("- ").append(session.getUser().getUsername()).append(": ")
+                            .append(queue.depth()).append(" / ")
+                            .append(queue.maxDepth()).append(" / ")
+                            .append(queue.dropped()).append("\n");
+                }
+            }
+            sendSystemMessage(senderSession, queues.toString());
+        } else if ("/stats".equals(command)) {
+            sendSystemMessage(senderSession, metrics.summary(onlineClients.sessions()));
+        } else if ("/rooms".equals(command)) {
+            // 列出所有房间及人数，*标记自己已加入的房间
+            StringBuilder roomList = new StringBuilder("房间列表:\n");
+            for (Room room : rooms.rooms()) {
+                roomList.append(senderSession.getRooms().contains(room.getName()) ? "* " : "- ")
+                        .append(room.getName()).append(" (").append(room.size()).append(" 人)\n");
+            }
+            sendSystemMessage(senderSession, roomList.toString());
+        } else if (command.equals("/history") || command.startsWith("/history ")) {
+            // 当前房间最近N条聊天记录，不写N时和登录回放的条数相同
+            String arg = command.substring("/history".length()).trim();
+            String roomName = senderSession.getCurrentRoom();
+            Room room = roomName == null ? null : rooms.get(roomName);
+            if (room == null) {
+                sendSystemMessage(senderSession, "你不在任何房间中");
+                return;
+            }
+            if (arg.startsWith("since ")) {
+                replayLog(senderSession, room, arg.substring("since ".length()).trim());
+                return;
+            }
+            int count;
+            try {
+                count = arg.isEmpty() ? config.getHistoryReplay() : Integer.parseInt(arg);
+            } catch (NumberFormatException e) {
+                sendSystemMessage(senderSession, "用法: /history [条数] 或 /history since 时间");
+                return;
+            }
+            sendHistory(senderSession, room, room.history().recent(count));
+        } else if (command.equals("/join") || command.startsWith("/join ")) {
+            joinRoom(senderSession, command.substring("/join".length()).trim());
+        } else if (command.equals("/leave") || command.startsWith("/leave ")) {
+            leaveRoom(senderSession, command.substring("/leave".length()).trim());
         }
+        // 可以扩展其他命令，如/help等
     }
 
     /**
-     * 根据用户名查找对应的Socket连接
-     * @param username 要查找的用户名
-     * @return 对应用户的Socket，如果找不到返回null
+     * 处理/list命令：/list [页码] 按用户名顺序分页列出整个集群的在线用户，其他节点上的用户标出所在节点；
+     * /list 前缀 [页码] 只列出用户名以前缀开头的。最后一个参数是数字时当作页码。
      */
-    private static Socket findSocketByUsername(String username) {
-        for (Map.Entry<Socket, User> entry : onlineClients.entrySet()) {
-            if (username.equals(entry.getValue().getUsername())) {
-                return entry.getKey();
+    private void listUsers(Session session, String args) {
+        String prefix = args;
+        int page = 1;
+        int space = args.lastIndexOf(' ');
+        String last = args.substring(space + 1);
+        if (!last.isEmpty() && last.length() <= 9 && last.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            page = Integer.parseInt(last);
+            prefix = space < 0 ? "" : args.substring(0, space).trim();
+        }
+        if (page < 1) {
+            sendSystemMessage(session, "用法: /list [页码] 或 /list 用户名前缀 [页码]");
+        } else if (!prefix.isEmpty()) {
+            sendSystemMessage(session, presenceService.search(prefix, page));
+        } else {
+            // 在线用户没有变化时是同一个缓存的帧
+            Frame frame = presenceService.page(page);
+            if (frame == null) {
+                sendSystemMessage(session, "没有第 " + page + " 页");
+                return;
             }
+            sendFrame(session, frame);
+            metrics.sent(ServerMetrics.Kind.SYSTEM, 1);
         }
-        return null;
     }
 
     /**
-     * 向指定客户端发送系统消息
-     * @param socket 目标客户端Socket
-     * @param content 消息内容
+     * 把上下线通知发给订阅的客户端，在 PresenceService 的锁里调用
+     */
+    private void publishPresence(Session[] subscribers, Frame delta) {
+        metrics.sent(ServerMetrics.Kind.SYSTEM, deliver(subscribers, null, delta));
+    }
+
+    /**
+     * 把房间的聊天记录发给会话，前面加一条系统提示
+     * 记录是广播时编码好的帧，直接写出
      */
-    private static void sendSystemMessage(Socket socket, String content) {
+    private void sendHistory(Session session, Room room, Frame[] frames) {
+        if (frames.length == 0) {
+            return;
+        }
+        sendSystemMessage(session, "—— 房间 " + room.getName() + " 最近 " + frames.length + " 条消息 ——");
         try {
-            User systemUser = new User("system", "System");
-            Message systemMessage = new Message(systemUser, content);
-            NetworkUtils.sendMessage(socket, systemMessage);
+            for (Frame frame : frames) {
+                session.send(frame);
+            }
+            metrics.sent(ServerMetrics.Kind.HISTORY, frames.length);
         } catch (IOException e) {
-            logger.error("发送系统消息失败", e);
+            logger.error("向客户端 [{}] 回放聊天记录失败", session.getUser().getUsername(), e);
         }
     }
-    private static void handleCommand(String command, Socket senderSocket) {
-        if ("/list".equals(command)) {
-            // 响应/list命令，列出所有在线用户
-            StringBuilder userList = new StringBuilder("在线用户:\n");
-            for (User user : onlineClients.values()) {
-                userList.append("- ").append(user.getUsername()).append("\n");
+
+    /**
+     * 处理 /history since：从消息日志中读出某个时间之后当前房间的消息和自己的私聊，最多最新的 historySize 条
+     * 扫描日志可能要读很多段，交给 logReader 线程做，读完再发给客户端
+     * @param since 毫秒时间戳，或 2026-01-02T15:04 形式的本地时间
+     */
+    private void replayLog(Session session, Room room, String since) {
+        MessageLog log = messageLog;
+        ExecutorService reader = logReader;
+        if (log == null || reader == null) {
+            sendSystemMessage(session, "服务器没有开启消息日志");
+            return;
+        }
+        long fromTimestamp;
+        try {
+            fromTimestamp = since.chars().allMatch(Character::isDigit)
+                    ? Long.parseLong(since)
+                    : LocalDateTime.parse(since).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (RuntimeException e) {
+            sendSystemMessage(session, "无法识别的时间 " + since + "，请使用毫秒时间戳或 2026-01-02T15:04 格式");
+            return;
+        }
+        try {
+            reader.execute(() -> sendLogSince(session, log, room.getName(), fromTimestamp, since));
+        } catch (RejectedExecutionException e) {
+            // 服务器正在关闭
+            sendSystemMessage(session, "服务器正在关闭，无法查询消息日志");
+        }
+    }
+
+    /**
+     * 在 logReader 线程上执行：读出最新的匹配记录并发给客户端
+     */
+    private void sendLogSince(Session session, MessageLog log, String roomName, long fromTimestamp, String since) {
+        String username = session.getUser().getUsername();
+        String roomChannel = MessageLog.roomChannel(roomName);
+        String privateChannel = MessageLog.privateChannel(username);
+        List<byte[]> records = log.readLatest(fromTimestamp, config.getHistorySize(), (channel, payload) -> {
+            if (channel.equals(roomChannel) || channel.equals(privateChannel)) {
+                return true;
+            }
+            if (!MessageLog.isPrivateChannel(channel)) {
+                return false;
             }
-            sendSystemMessage(senderSocket, userList.toString());
+            // 私聊只给收发双方看，自己发给别人的要解码才知道发送者
+            Message message = NetworkUtils.decode(StandardCharsets.UTF_8.decode(payload).toString().trim());
+            return message.getSender() != null && username.equals(message.getSender().getUsername());
+        });
+        if (session.isClosed()) {
+            return;
         }
-        // 可以扩展其他命令，如/help等
+        sendSystemMessage(session, "—— 房间 " + roomName + " 自 " + since + " 以来 " + records.size() + " 条消息 ——");
+        try {
+            for (byte[] record : records) {
+                session.send(NetworkUtils.decode(new String(record, StandardCharsets.UTF_8).trim()));
+            }
+            metrics.sent(ServerMetrics.Kind.HISTORY, records.size());
+        } catch (IOException e) {
+            logger.debug("向客户端 [{}] 回放消息日志失败: {}", username, e.getMessage());
+        }
+    }
+
+    /**
+     * 写入消息日志，日志写失败不影响消息投递
+     * @param channel MessageLog.roomChannel() 或 MessageLog.privateChannel()
+     */
+    private void appendToLog(Frame frame, String channel) {
+        MessageLog log = messageLog;
+        if (log == null) {
+            return;
+        }
+        try {
+            log.append(frame, channel);
+        } catch (IOException e) {
+            logger.error("写入消息日志失败", e);
+        }
+    }
+
+    /**
+     * 启动时从消息日志恢复默认房间最近的聊天记录
+     * 从最新的段往前读，凑够 historySize 条就停，启动时间和日志总量无关
+     */
+    private void restoreHistory(MessageLog log) {
+        Room defaultRoom = rooms.get(config.getDefaultRoom());
+        String roomChannel = MessageLog.roomChannel(defaultRoom.getName());
+        for (byte[] record : log.readLatest(0, config.getHistorySize(), (channel, payload) -> channel.equals(roomChannel))) {
+            Message message = NetworkUtils.decode(new String(record, StandardCharsets.UTF_8).trim());
+            defaultRoom.history().append(Frame.of(message));
+        }
+        logger.info("从消息日志恢复了房间 [{}] 的 {} 条聊天记录", defaultRoom.getName(), defaultRoom.history().size());
+    }
+
+    /**
+     * 处理/join命令：加入（不存在就创建）房间，并把它设为当前房间
+     * @param session 执行命令的会话
+     * @param roomName 房间名
+     */
+    private void joinRoom(Session session, String roomName) {
+        if (roomName.isEmpty() || roomName.length() > MAX_ROOM_NAME_LENGTH || roomName.contains(" ")) {
+            sendSystemMessage(session, "用法: /join 房间名（不超过" + MAX_ROOM_NAME_LENGTH + "个字符，不含空格）");
+            return;
+        }
+        if (!session.getRooms().contains(roomName) && session.getRooms().size() >= config.getMaxRoomsPerUser()) {
+            sendSystemMessage(session, "最多同时加入 " + config.getMaxRoomsPerUser() + " 个房间，请先 /leave 不用的房间");
+            return;
+        }
+        RoomRegistry.Joined joined = rooms.join(session, roomName, config.getHistoryReplay());
+        if (joined == null) {
+            sendSystemMessage(session, "房间数量已达上限，无法创建房间 " + roomName);
+            return;
+        }
+        session.setCurrentRoom(roomName);
+        if (joined.backlog == null) {
+            sendSystemMessage(session, "已切换到房间 " + roomName);
+            return;
+        }
+        Room room = joined.room;
+        logger.info("[{}] 用户 [{}] 加入房间 [{}]，房间人数: {}",
+                session.getRemoteAddress(), session.getUser().getUsername(), roomName, room.size());
+        broadcastSystemMessage(room, session.getUser().getUsername() + " 加入了房间 " + roomName);
+        sendHistory(session, room, joined.backlog);
+    }
+
+    /**
+     * 处理/leave命令：退出指定房间，不指定就退出当前房间
+     * 退出的是当前房间时，当前房间改为另一个已加入的房间（没有就为空）
+     * @param session 执行命令的会话
+     * @param roomName 房间名，为空表示当前房间
+     */
+    private void leaveRoom(Session session, String roomName) {
+        if (roomName.isEmpty()) {
+            roomName = session.getCurrentRoom();
+        }
+        Room room = roomName == null ? null : rooms.leave(session, roomName);
+        if (room == null) {
+            sendSystemMessage(session, roomName == null ? "你不在任何房间中" : "你不在房间 " + roomName + " 中");
+            return;
+        }
+        if (roomName.equals(session.getCurrentRoom())) {
+            Iterator<String> remaining = session.getRooms().iterator();
+            session.setCurrentRoom(remaining.hasNext() ? remaining.next() : null);
+        }
+        logger.info("[{}] 用户 [{}] 离开房间 [{}]，房间人数: {}",
+                session.getRemoteAddress(), session.getUser().getUsername(), roomName, room.size());
+        sendSystemMessage(session, "你已离开房间 " + roomName
+                + (session.getCurrentRoom() == null ? "" : "，当前房间: " + session.getCurrentRoom()));
+        broadcastSystemMessage(room, session.getUser().getUsername() + " 离开了房间 " + roomName);
     }
 
-    // public static void main(String[] args) {
-    //     // 使用 try-with-resources 确保 ServerSocket 会被自动关闭
-    //     try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-    //         logger.info("服务器启动成功，正在端口 {} 监听等待客户端连接...", PORT);
+    /**
+     * 处理集群里其他节点发来的事件（在总线的回调线程中调用）
+     */
+    private final class ClusterListener implements ClusterBus.Listener {
+        @Override
+        public void onEvent(ClusterEvent event) {
+            Message message = event.getMessage();
+            switch (event.getType()) {
+                case USER_ONLINE:
+                    presence.online(event.getNode(), event.getUser());
+                    presenceService.online(event.getUser().getUsername(), event.getNode());
+                    break;
+                case USER_OFFLINE:
+                    presence.offline(event.getNode(), event.getUser());
+                    presenceService.offline(event.getUser().getUsername(), event.getNode());
+                    break;
+                case ROOM_MESSAGE:
+                    deliverRemoteMessage(message);
+                    break;
+                case ROOM_NOTICE: {
+                    Room room = rooms.get(message.getRoom());
+                    if (room != null) {
+                        deliverNotice(room, message);
+                    }
+                    break;
+                }
+                case PRIVATE_MESSAGE:
+                    deliverRemotePrivateMessage(event.getTarget(), message);
+                    break;
+            }
+        }
 
-    //         // accept() 方法是一个阻塞调用，会一直等待直到有客户端连接上来
-    //         Socket clientSocket = serverSocket.accept();
-    //         logger.info("有客户端连接成功了！客户端地址：{}", clientSocket.getRemoteSocketAddress());
+        @Override
+        public void onNodeDown(String nodeId) {
+            List<PresenceTable.Entry> removed = presence.removeNode(nodeId);
+            for (PresenceTable.Entry entry : removed) {
+                presenceService.offline(entry.user.getUsername(), nodeId);
+            }
+            logger.warn("与集群节点 [{}] 的连接断开，移除了它的 {} 个在线用户", nodeId, removed.size());
+        }
 
-    //         // TODO: 这里将来会添加读取客户端发送数据的逻辑
-    //         // 现在先暂时不读取，只是建立连接
+        @Override
+        public List<ClusterEvent> snapshot() {
+            List<ClusterEvent> events = new ArrayList<>();
+            for (Session session : onlineClients.sessions()) {
+                events.add(ClusterEvent.userOnline(cluster.nodeId(), session.getUser()));
+            }
+            return events;
+        }
+    }
 
-    //         // 为了让服务器保持运行，加一个等待
-    //         logger.info("按回车键退出服务器...");
-    //         System.in.read();
+    /**
+     * 其他节点上的用户发到房间的消息：记入本节点的聊天记录和消息日志，发给本节点上的房间成员
+     * 本节点上没有人在这个房间时只记日志，不创建房间
+     */
+    private void deliverRemoteMessage(Message message) {
+        String roomName = message.getRoom();
+        if (roomName == null) {
+            return;
+        }
+        Frame frame = Frame.of(message);
+        appendToLog(frame, MessageLog.roomChannel(roomName));
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            return;
+        }
+        int recipients = deliver(room.publish(frame), null, frame);
+        metrics.sent(ServerMetrics.Kind.CHAT, recipients);
+    }
 
-    //     } catch (IOException e) {
-    //         logger.error("服务器发生异常", e);
-    //     }
-    //     logger.info("服务器已关闭。");
-    // }
+    /**
+     * 其他节点上的用户发给本节点用户的私聊
+     */
+    private void deliverRemotePrivateMessage(String targetUsername, Message message) {
+        Session targetSession = onlineClients.findByUsername(targetUsername);
+        if (targetSession == null) {
+            logger.debug("私聊的接收者 [{}] 已不在本节点", targetUsername);
+            return;
+        }
+        Frame frame = Frame.of(message);
+        appendToLog(frame, MessageLog.privateChannel(targetUsername));
+        try {
+            targetSession.send(frame);
+            metrics.sent(ServerMetrics.Kind.PRIVATE, 1);
+        } catch (IOException e) {
+            logger.error("转发私聊消息给 [{}] 失败", targetUsername, e);
+        }
+    }
 
-    public static void main(String[] args) {
-    try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-        logger.info("服务器启动成功，正在端口 {} 监听等待客户端连接...", PORT);
-
-        // 无限循环，持续接受客户端连接
-        while (true) {
-            // 1. 等待客户端连接（阻塞）
-            Socket clientSocket = serverSocket.accept();
-            logger.info("有客户端连接成功！地址：{}", clientSocket.getRemoteSocketAddress());
-
-            // 2. 将处理客户端的任务提交给线程池，而不是自己处理
-            // 使用Lambda表达式创建一个Runnable任务
-            threadPool.submit(() -> {
-                handleClient(clientSocket);
+    /**
+     * 启动服务器：绑定端口并开始接受连接，方法本身不阻塞
+     */
+    public void start() throws IOException {
+        long begin = System.nanoTime();
+        if (config.getLogDir() != null) {
+            MessageLog log = MessageLog.open(config);
+            restoreHistory(log);
+            logReader = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "message-log-reader");
+                thread.setDaemon(true);
+                return thread;
             });
-            // 主线程迅速回到accept()，继续等待下一个客户端，实现并发
+            messageLog = log;
+        }
+        if (config.getMetricsPort() >= 0) {
+            metricsEndpoint = new MetricsEndpoint(config.getMetricsPort(),
+                    () -> metrics.render(onlineClients.sessions()), () -> ready);
+            metricsEndpoint.start();
+        }
+        if (cluster != null) {
+            cluster.start(new ClusterListener());
+        }
+        if (idleMonitor != null) {
+            idleMonitor.start();
+        }
+        SSLContext sslContext = config.isTlsEnabled() ? Tls.serverContext(config) : null;
+        if (config.getIoMode() == IoMode.NIO) {
+            nioServer = new NioServer(this, config, sslContext);
+            nioServer.start();
+        } else {
+            serverSocket = sslContext != null ? Tls.serverSocket(sslContext, config) : new ServerSocket();
+            // 重启时旧连接还处于 TIME_WAIT 也能立即绑定同一端口
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(config.getPort()));
+            Thread acceptor = new Thread(this::acceptLoop, "acceptor");
+            acceptor.start();
+        }
+        long startupNanos = System.nanoTime() - begin;
+        metrics.startupCompleted(startupNanos);
+        ready = true;
+        logger.info("服务器启动成功（{}模式，线程策略 {}{}），正在端口 {} 监听等待客户端连接... 启动耗时 {} 毫秒，JVM 启动至今 {} 毫秒",
+                config.getIoMode(), config.getExecutorStrategy(), sslContext != null ? "，TLS " + config.getTlsProtocols() : "",
+                getLocalPort(),
+                TimeUnit.NANOSECONDS.toMillis(startupNanos), ManagementFactory.getRuntimeMXBean().getUptime());
+    }
+
+    /**
+     * 阻塞模式的accept循环
+     */
+    private void acceptLoop() {
+        try {
+            // 无限循环，持续接受客户端连接
+            while (true) {
+                // 1. 等待客户端连接（阻塞）
+                Socket clientSocket = serverSocket.accept();
+                logger.info("有客户端连接成功！地址：{}", clientSocket.getRemoteSocketAddress());
+
+                // 2. 将处理客户端的任务提交给线程池，而不是自己处理
+                // 使用Lambda表达式创建一个Runnable任务
+                try {
+                    threadPool.submit(() -> {
+                        handleClient(clientSocket);
+                    });
+                } catch (RejectedExecutionException e) {
+                    // 有界线程池的队列已满，直接拒绝这个连接
+                    logger.warn("线程池已满，拒绝客户端连接：{}", clientSocket.getRemoteSocketAddress());
+                    closeQuietly(clientSocket);
+                }
+                // 主线程迅速回到accept()，继续等待下一个客户端，实现并发
+            }
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) {
+                logger.error("服务器发生异常", e);
+            }
+        } finally {
+            // 优雅关闭时还要用写线程池把关闭通知写出去，由 stop() 最后关闭
+            if (!shuttingDown) {
+                threadPool.shutdown(); // 关闭线程池
+                writerPool.shutdown();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.error("关闭连接时发生异常", e);
+        }
+    }
+
+    /**
+     * 运行指标，/stats 和指标抓取端点读的是同一份
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return 指标抓取端点的端口，没有开启返回-1
+     */
+    public int getMetricsPort() {
+        return metricsEndpoint != null ? metricsEndpoint.getPort() : -1;
+    }
+
+    /**
+     * @return 集群总线，单机运行时为null
+     */
+    public ClusterBus getCluster() {
+        return cluster;
+    }
+
+    /**
+     * 是否已经开始接受连接，正在关闭时为false
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * 实际监听的端口（配置为0时由系统分配）
+     */
+    public int getLocalPort() {
+        return nioServer != null ? nioServer.getLocalPort() : serverSocket.getLocalPort();
+    }
+
+    /**
+     * 优雅关闭：停止接受新连接，通知所有在线用户并关闭他们的连接，
+     * 等发送队列写完（最多 chat.shutdown.drainTimeoutMs）之后强制断开剩下的连接，再释放其他资源。
+     * 可重复调用，main 在JVM关闭钩子里调用它。
+     */
+    public synchronized void shutdown() {
+        if (shuttingDown || stopped.getCount() == 0) {
+            return;
+        }
+        long begin = System.nanoTime();
+        shuttingDown = true;
+        ready = false;
+        if (nioServer != null) {
+            nioServer.stopAccepting();
+        } else if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                logger.error("关闭ServerSocket时发生异常", e);
+            }
+        }
+        Session[] sessions = onlineClients.sessions();
+        logger.info("服务器开始关闭，已停止接受新连接，通知 {} 个在线用户", sessions.length);
+        for (Session session : sessions) {
+            sendSystemMessage(session, SHUTDOWN_NOTICE);
+            // 写完队列中的数据（包括上面的通知）之后关闭，关闭时会从在线列表移除
+            session.close();
+        }
+        long deadline = begin + TimeUnit.MILLISECONDS.toNanos(config.getShutdownDrainMillis());
+        while (onlineClients.size() > 0 && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        Session[] remaining = onlineClients.sessions();
+        if (remaining.length > 0) {
+            logger.warn("{} 毫秒内还有 {} 个连接没有写完，强制断开", config.getShutdownDrainMillis(), remaining.length);
+            for (Session session : remaining) {
+                session.abort();
+            }
+        }
+        stop();
+        logger.info("服务器已优雅关闭，耗时 {} 毫秒", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+    }
+
+    /**
+     * 立即停止服务器并断开所有客户端，可重复调用
+     */
+    public synchronized void stop() {
+        if (stopped.getCount() == 0) {
+            return;
+        }
+        // 接下来断开的连接都是服务器自己关的，不按异常记录
+        shuttingDown = true;
+        ready = false;
+        if (nioServer != null) {
+            nioServer.stop();
+        } else if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                logger.error("关闭ServerSocket时发生异常", e);
+            }
+            for (Session session : onlineClients.sessions()) {
+                session.close();
+            }
+            threadPool.shutdown();
+            writerPool.shutdown();
+        }
+        broadcaster.shutdown();
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        if (idleMonitor != null) {
+            idleMonitor.stop();
+        }
+        if (cluster != null) {
+            cluster.close();
+        }
+        if (logReader != null) {
+            logReader.shutdownNow();
+        }
+        MessageLog log = messageLog;
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                logger.error("关闭消息日志时发生异常", e);
+            }
+        }
+        stopped.countDown();
+        logger.info("服务器已关闭。");
+    }
+
+    /**
+     * 阻塞直到服务器停止
+     */
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    public static void main(String[] args) {
+        Server server = new Server(ServerConfig.fromSystemProperties());
+        // 收到 SIGTERM/SIGINT 时优雅关闭，连接排空之后再停止日志上下文，停止时会把异步队列中剩下的日志写完。
+        // 所以 logback.xml 不配置 logback 自己的关闭钩子：关闭钩子之间没有先后顺序，
+        // 它可能在排空连接的过程中先停掉日志，关闭过程中的日志就丢了
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.shutdown();
+            if (LoggerFactory.getILoggerFactory() instanceof LoggerContext context) {
+                context.stop();
+            }
+        }, "shutdown"));
+        try {
+            server.start();
+            server.awaitStop();
+        } catch (IOException e) {
+            logger.error("服务器发生异常", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-    } catch (IOException e) {
-        logger.error("服务器发生异常", e);
-    } finally {
-        threadPool.shutdown(); // 关闭线程池
     }
-}
 }
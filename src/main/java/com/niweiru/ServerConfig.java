@@ -0,0 +1,609 @@
+package com.niweiru;
+
+/**
+ * 服务器配置
+ * 所有参数都有默认值，也可以通过 -Dchat.xxx 系统属性覆盖
+ */
+public class ServerConfig {
+    // 服务器监听的端口号，0 表示由系统随机分配（测试时使用）
+    private int port = 8080;
+    // 网络IO模型，默认保持原来的阻塞式
+    private IoMode ioMode = IoMode.BLOCKING;
+    // NIO模式下事件循环线程数，默认每个CPU核心一个
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    // 阻塞模式下处理连接的线程策略，默认保持原来的缓存线程池
+    private ExecutorStrategy executorStrategy = ExecutorStrategy.CACHED;
+    // 以下三项只对 BOUNDED 策略有效
+    private int coreThreads = 10;
+    private int maxThreads = 100;
+    private int queueCapacity = 500;
+    // 单条消息（一行JSON）的最大字节数，超过则断开连接
+    private int maxFrameLength = 64 * 1024;
+    // 登录后自动加入的房间
+    private String defaultRoom = "lobby";
+    // 每个房间保留的聊天记录条数和字节数上限，任一超出就淘汰最旧的
+    private int historySize = 200;
+    private long historyMaxBytes = 256 * 1024;
+    // 登录后回放默认房间最近多少条聊天记录
+    private int historyReplay = 20;
+    // 房间总数上限（含默认房间）和每个用户最多同时加入的房间数，防止一个客户端无限创建房间
+    private int maxRooms = 10_000;
+    private int maxRoomsPerUser = 16;
+    // 消息日志目录，为空时不持久化消息
+    private String logDir;
+    // 每个日志段文件的大小，写满换下一个
+    private int logSegmentBytes = 64 * 1024 * 1024;
+    // 后台刷盘间隔
+    private long logFlushIntervalMillis = 1000;
+    // 日志保留时长和总大小上限，超出后从最旧的段开始删除，0 表示不限
+    private int logRetentionHours = 7 * 24;
+    private long logRetentionBytes = 1024L * 1024 * 1024;
+    // 指标抓取端点的本机端口，小于0表示不开启，0表示随机端口
+    private int metricsPort = -1;
+    // 逐条消息日志每秒最多多少条，超出的省略；0 不记录，负数不限制
+    private int loggedMessagesPerSecond = 20;
+    // 消息日志里是否带消息内容
+    private boolean logMessageContent = true;
+    // 每个用户的广播、私聊、命令限流，同一IP的所有连接共享 hostRateLimitFactor 倍的限额
+    private RateLimit chatRateLimit = new RateLimit(10, 20);
+    private RateLimit privateRateLimit = new RateLimit(5, 10);
+    private RateLimit commandRateLimit = new RateLimit(2, 10);
+    private int hostRateLimitFactor = 4;
+    // 被限流累计多少次后断开连接（每放行一条抵消一次）
+    private int rateLimitMaxStrikes = 20;
+    // 每个客户端发送队列最多排多少帧
+    private int outboundQueueCapacity = 1024;
+    // 发送队列满了之后的处理方式，默认断开读得太慢的客户端
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+    // BLOCK 策略下发送方最多等待多久，超时则断开慢客户端
+    private long outboundBlockTimeoutMillis = 5000;
+    // 超过多久没收到客户端的任何消息就发 ping，0 不发
+    private long idleTimeoutMillis = 30000;
+    // 超过多久没收到客户端的任何消息就断开，0 不断开
+    private long readTimeoutMillis = 90000;
+    // 检查空闲连接的时间轮每格多长，超时的精度
+    private long heartbeatTickMillis = 500;
+    // 优雅关闭时等待客户端发送队列写完的最长时间，超时后强制断开
+    private long shutdownDrainMillis = 5000;
+    // 集群：本节点ID（为空时随机生成）、集群端口（小于0不加入集群）、对端地址列表和重连间隔
+    private String clusterNodeId;
+    private int clusterPort = -1;
+    private String clusterBindAddress = "127.0.0.1";
+    private String clusterSecret;
+    private String clusterPeers = "";
+    private long clusterReconnectMillis = 1000;
+    // 一次写出最多合并多少帧（NIO模式下复制进写缓冲区一次写出，阻塞模式下一次flush）
+    private int writeMaxBatch = 64;
+    // NIO模式下第一帧入队后最多等多久再写出，等待期间到的帧合并写出；0 在本轮事件循环末尾就写
+    private long writeMaxDelayMicros = 0;
+    // 客户端要求压缩时，编码后不小于这么多字节的帧才压缩；小于0表示不支持压缩
+    private int compressionMinBytes = 1024;
+    // 广播的接收者不少于这么多时分片并行发送，0 表示不分片；并行发送的线程数，见 ParallelBroadcaster
+    private int broadcastParallelThreshold = 1000;
+    private int broadcastParallelism = Runtime.getRuntime().availableProcessors();
+    // /list 每页列出的用户数，见 PresenceService
+    private int presencePageSize = 100;
+    // TLS：密钥库（PKCS12 等，为空时不加密）及其口令和类型、启用的协议版本（逗号分隔），见 Tls
+    private String tlsKeyStore;
+    private String tlsKeyStorePassword = "";
+    private String tlsKeyStoreType = "PKCS12";
+    private String tlsProtocols = "TLSv1.3";
+    // 会话恢复：服务器缓存多少个会话、会话（及 TLS 1.3 会话票据）多久过期
+    private int tlsSessionCacheSize = 20480;
+    private int tlsSessionTimeoutSeconds = 3600;
+
+    /**
+     * 从系统属性读取配置，未设置的项使用默认值
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.setPort(Integer.getInteger("chat.port", config.getPort()));
+        config.setIoMode(IoMode.valueOf(
+                System.getProperty("chat.io", config.getIoMode().name()).toUpperCase()));
+        config.setIoThreads(Integer.getInteger("chat.io.threads", config.getIoThreads()));
+        config.setExecutorStrategy(ExecutorStrategy.valueOf(
+                System.getProperty("chat.executor", config.getExecutorStrategy().name()).toUpperCase()));
+        config.setCoreThreads(Integer.getInteger("chat.executor.coreThreads", config.getCoreThreads()));
+        config.setMaxThreads(Integer.getInteger("chat.executor.maxThreads", config.getMaxThreads()));
+        config.setQueueCapacity(Integer.getInteger("chat.executor.queueCapacity", config.getQueueCapacity()));
+        config.setMaxFrameLength(Integer.getInteger("chat.maxFrameLength", config.getMaxFrameLength()));
+        config.setDefaultRoom(System.getProperty("chat.defaultRoom", config.getDefaultRoom()));
+        config.setHistorySize(Integer.getInteger("chat.history.size", config.getHistorySize()));
+        config.setHistoryMaxBytes(Long.getLong("chat.history.maxBytes", config.getHistoryMaxBytes()));
+        config.setHistoryReplay(Integer.getInteger("chat.history.replay", config.getHistoryReplay()));
+        config.setMaxRooms(Integer.getInteger("chat.rooms.max", config.getMaxRooms()));
+        config.setMaxRoomsPerUser(Integer.getInteger("chat.rooms.maxPerUser", config.getMaxRoomsPerUser()));
+        config.setLogDir(System.getProperty("chat.log.dir", config.getLogDir()));
+        config.setLogSegmentBytes(Integer.getInteger("chat.log.segmentBytes", config.getLogSegmentBytes()));
+        config.setLogFlushIntervalMillis(Long.getLong("chat.log.flushIntervalMs", config.getLogFlushIntervalMillis()));
+        config.setLogRetentionHours(Integer.getInteger("chat.log.retentionHours", config.getLogRetentionHours()));
+        config.setLogRetentionBytes(Long.getLong("chat.log.retentionBytes", config.getLogRetentionBytes()));
+        config.setMetricsPort(Integer.getInteger("chat.metrics.port", config.getMetricsPort()));
+        config.setLoggedMessagesPerSecond(Integer.getInteger("chat.logging.messagesPerSecond",
+                config.getLoggedMessagesPerSecond()));
+        config.setChatRateLimit(RateLimit.parse(
+                System.getProperty("chat.ratelimit.chat", config.getChatRateLimit().toString())));
+        config.setPrivateRateLimit(RateLimit.parse(
+                System.getProperty("chat.ratelimit.private", config.getPrivateRateLimit().toString())));
+        config.setCommandRateLimit(RateLimit.parse(
+                System.getProperty("chat.ratelimit.command", config.getCommandRateLimit().toString())));
+        config.setHostRateLimitFactor(Integer.getInteger("chat.ratelimit.hostFactor", config.getHostRateLimitFactor()));
+        config.setRateLimitMaxStrikes(Integer.getInteger("chat.ratelimit.maxStrikes", config.getRateLimitMaxStrikes()));
+        config.setLogMessageContent(Boolean.parseBoolean(
+                System.getProperty("chat.logging.content", String.valueOf(config.isLogMessageContent()))));
+        config.setOutboundQueueCapacity(Integer.getInteger("chat.outbound.capacity", config.getOutboundQueueCapacity()));
+        config.setOverflowPolicy(OverflowPolicy.valueOf(
+                System.getProperty("chat.outbound.overflow", config.getOverflowPolicy().name()).toUpperCase()));
+        config.setOutboundBlockTimeoutMillis(
+                Long.getLong("chat.outbound.blockTimeoutMs", config.getOutboundBlockTimeoutMillis()));
+        config.setWriteMaxBatch(Integer.getInteger("chat.write.maxBatch", config.getWriteMaxBatch()));
+        config.setWriteMaxDelayMicros(Long.getLong("chat.write.maxDelayMicros", config.getWriteMaxDelayMicros()));
+        config.setCompressionMinBytes(Integer.getInteger("chat.compression.minBytes", config.getCompressionMinBytes()));
+        config.setBroadcastParallelThreshold(
+                Integer.getInteger("chat.broadcast.parallelThreshold", config.getBroadcastParallelThreshold()));
+        config.setBroadcastParallelism(Integer.getInteger("chat.broadcast.parallelism", config.getBroadcastParallelism()));
+        config.setPresencePageSize(Integer.getInteger("chat.presence.pageSize", config.getPresencePageSize()));
+        config.setTlsKeyStore(System.getProperty("chat.tls.keyStore", config.getTlsKeyStore()));
+        config.setTlsKeyStorePassword(System.getProperty("chat.tls.keyStorePassword", config.getTlsKeyStorePassword()));
+        config.setTlsKeyStoreType(System.getProperty("chat.tls.keyStoreType", config.getTlsKeyStoreType()));
+        config.setTlsProtocols(System.getProperty("chat.tls.protocols", config.getTlsProtocols()));
+        config.setTlsSessionCacheSize(Integer.getInteger("chat.tls.sessionCacheSize", config.getTlsSessionCacheSize()));
+        config.setTlsSessionTimeoutSeconds(
+                Integer.getInteger("chat.tls.sessionTimeoutSec", config.getTlsSessionTimeoutSeconds()));
+        config.setIdleTimeoutMillis(Long.getLong("chat.heartbeat.idleTimeoutMs", config.getIdleTimeoutMillis()));
+        config.setReadTimeoutMillis(Long.getLong("chat.heartbeat.readTimeoutMs", config.getReadTimeoutMillis()));
+        config.setHeartbeatTickMillis(Long.getLong("chat.heartbeat.tickMs", config.getHeartbeatTickMillis()));
+        config.setShutdownDrainMillis(Long.getLong("chat.shutdown.drainTimeoutMs", config.getShutdownDrainMillis()));
+        config.setClusterNodeId(System.getProperty("chat.cluster.nodeId", config.getClusterNodeId()));
+        config.setClusterPort(Integer.getInteger("chat.cluster.port", config.getClusterPort()));
+        config.setClusterBindAddress(System.getProperty("chat.cluster.bindAddress", config.getClusterBindAddress()));
+        config.setClusterSecret(System.getProperty("chat.cluster.secret", config.getClusterSecret()));
+        config.setClusterPeers(System.getProperty("chat.cluster.peers", config.getClusterPeers()));
+        config.setClusterReconnectMillis(Long.getLong("chat.cluster.reconnectMs", config.getClusterReconnectMillis()));
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    public void setIoMode(IoMode ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public ExecutorStrategy getExecutorStrategy() {
+        return executorStrategy;
+    }
+
+    public void setExecutorStrategy(ExecutorStrategy executorStrategy) {
+        this.executorStrategy = executorStrategy;
+    }
+
+    public int getCoreThreads() {
+        return coreThreads;
+    }
+
+    public void setCoreThreads(int coreThreads) {
+        this.coreThreads = coreThreads;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    public String getDefaultRoom() {
+        return defaultRoom;
+    }
+
+    public void setDefaultRoom(String defaultRoom) {
+        this.defaultRoom = defaultRoom;
+    }
+
+    public int getHistorySize() {
+        return historySize;
+    }
+
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+    }
+
+    public long getHistoryMaxBytes() {
+        return historyMaxBytes;
+    }
+
+    public void setHistoryMaxBytes(long historyMaxBytes) {
+        this.historyMaxBytes = historyMaxBytes;
+    }
+
+    public int getHistoryReplay() {
+        return historyReplay;
+    }
+
+    public void setHistoryReplay(int historyReplay) {
+        this.historyReplay = historyReplay;
+    }
+
+    public int getMaxRooms() {
+        return maxRooms;
+    }
+
+    public void setMaxRooms(int maxRooms) {
+        this.maxRooms = maxRooms;
+    }
+
+    public int getMaxRoomsPerUser() {
+        return maxRoomsPerUser;
+    }
+
+    public void setMaxRoomsPerUser(int maxRoomsPerUser) {
+        this.maxRoomsPerUser = maxRoomsPerUser;
+    }
+
+    public String getLogDir() {
+        return logDir;
+    }
+
+    public void setLogDir(String logDir) {
+        this.logDir = logDir;
+    }
+
+    public int getLogSegmentBytes() {
+        return logSegmentBytes;
+    }
+
+    public void setLogSegmentBytes(int logSegmentBytes) {
+        this.logSegmentBytes = logSegmentBytes;
+    }
+
+    public long getLogFlushIntervalMillis() {
+        return logFlushIntervalMillis;
+    }
+
+    public void setLogFlushIntervalMillis(long logFlushIntervalMillis) {
+        this.logFlushIntervalMillis = logFlushIntervalMillis;
+    }
+
+    public int getLogRetentionHours() {
+        return logRetentionHours;
+    }
+
+    public void setLogRetentionHours(int logRetentionHours) {
+        this.logRetentionHours = logRetentionHours;
+    }
+
+    public long getLogRetentionBytes() {
+        return logRetentionBytes;
+    }
+
+    public void setLogRetentionBytes(long logRetentionBytes) {
+        this.logRetentionBytes = logRetentionBytes;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public int getLoggedMessagesPerSecond() {
+        return loggedMessagesPerSecond;
+    }
+
+    public void setLoggedMessagesPerSecond(int loggedMessagesPerSecond) {
+        this.loggedMessagesPerSecond = loggedMessagesPerSecond;
+    }
+
+    public boolean isLogMessageContent() {
+        return logMessageContent;
+    }
+
+    public void setLogMessageContent(boolean logMessageContent) {
+        this.logMessageContent = logMessageContent;
+    }
+
+    public RateLimit getChatRateLimit() {
+        return chatRateLimit;
+    }
+
+    public void setChatRateLimit(RateLimit chatRateLimit) {
+        this.chatRateLimit = chatRateLimit;
+    }
+
+    public RateLimit getPrivateRateLimit() {
+        return privateRateLimit;
+    }
+
+    public void setPrivateRateLimit(RateLimit privateRateLimit) {
+        this.privateRateLimit = privateRateLimit;
+    }
+
+    public RateLimit getCommandRateLimit() {
+        return commandRateLimit;
+    }
+
+    public void setCommandRateLimit(RateLimit commandRateLimit) {
+        this.commandRateLimit = commandRateLimit;
+    }
+
+    public int getHostRateLimitFactor() {
+        return hostRateLimitFactor;
+    }
+
+    public void setHostRateLimitFactor(int hostRateLimitFactor) {
+        this.hostRateLimitFactor = hostRateLimitFactor;
+    }
+
+    public int getRateLimitMaxStrikes() {
+        return rateLimitMaxStrikes;
+    }
+
+    public void setRateLimitMaxStrikes(int rateLimitMaxStrikes) {
+        this.rateLimitMaxStrikes = rateLimitMaxStrikes;
+    }
+
+    /**
+     * 关闭所有限流，测试和基准测试用
+     */
+    public void disableRateLimits() {
+        chatRateLimit = RateLimit.UNLIMITED;
+        privateRateLimit = RateLimit.UNLIMITED;
+        commandRateLimit = RateLimit.UNLIMITED;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    public void setOutboundQueueCapacity(int outboundQueueCapacity) {
+        this.outboundQueueCapacity = outboundQueueCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public long getOutboundBlockTimeoutMillis() {
+        return outboundBlockTimeoutMillis;
+    }
+
+    public void setOutboundBlockTimeoutMillis(long outboundBlockTimeoutMillis) {
+        this.outboundBlockTimeoutMillis = outboundBlockTimeoutMillis;
+    }
+
+    public int getWriteMaxBatch() {
+        return writeMaxBatch;
+    }
+
+    public void setWriteMaxBatch(int writeMaxBatch) {
+        this.writeMaxBatch = writeMaxBatch;
+    }
+
+    public long getWriteMaxDelayMicros() {
+        return writeMaxDelayMicros;
+    }
+
+    public void setWriteMaxDelayMicros(long writeMaxDelayMicros) {
+        this.writeMaxDelayMicros = writeMaxDelayMicros;
+    }
+
+    public int getCompressionMinBytes() {
+        return compressionMinBytes;
+    }
+
+    public void setCompressionMinBytes(int compressionMinBytes) {
+        this.compressionMinBytes = compressionMinBytes;
+    }
+
+    public int getBroadcastParallelThreshold() {
+        return broadcastParallelThreshold;
+    }
+
+    public void setBroadcastParallelThreshold(int broadcastParallelThreshold) {
+        this.broadcastParallelThreshold = broadcastParallelThreshold;
+    }
+
+    public int getBroadcastParallelism() {
+        return broadcastParallelism;
+    }
+
+    public void setBroadcastParallelism(int broadcastParallelism) {
+        this.broadcastParallelism = broadcastParallelism;
+    }
+
+    /**
+     * 配置了密钥库就开启TLS
+     */
+    public boolean isTlsEnabled() {
+        return tlsKeyStore != null && !tlsKeyStore.isEmpty();
+    }
+
+    public String getTlsKeyStore() {
+        return tlsKeyStore;
+    }
+
+    public void setTlsKeyStore(String tlsKeyStore) {
+        this.tlsKeyStore = tlsKeyStore;
+    }
+
+    public String getTlsKeyStorePassword() {
+        return tlsKeyStorePassword;
+    }
+
+    public void setTlsKeyStorePassword(String tlsKeyStorePassword) {
+        this.tlsKeyStorePassword = tlsKeyStorePassword;
+    }
+
+    public String getTlsKeyStoreType() {
+        return tlsKeyStoreType;
+    }
+
+    public void setTlsKeyStoreType(String tlsKeyStoreType) {
+        this.tlsKeyStoreType = tlsKeyStoreType;
+    }
+
+    /**
+     * @return 逗号分隔的协议版本，如 TLSv1.3,TLSv1.2
+     */
+    public String getTlsProtocols() {
+        return tlsProtocols;
+    }
+
+    public void setTlsProtocols(String tlsProtocols) {
+        this.tlsProtocols = tlsProtocols;
+    }
+
+    public int getTlsSessionCacheSize() {
+        return tlsSessionCacheSize;
+    }
+
+    public void setTlsSessionCacheSize(int tlsSessionCacheSize) {
+        this.tlsSessionCacheSize = tlsSessionCacheSize;
+    }
+
+    public int getTlsSessionTimeoutSeconds() {
+        return tlsSessionTimeoutSeconds;
+    }
+
+    public void setTlsSessionTimeoutSeconds(int tlsSessionTimeoutSeconds) {
+        this.tlsSessionTimeoutSeconds = tlsSessionTimeoutSeconds;
+    }
+
+    public int getPresencePageSize() {
+        return presencePageSize;
+    }
+
+    public void setPresencePageSize(int presencePageSize) {
+        this.presencePageSize = presencePageSize;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public void setReadTimeoutMillis(long readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public long getHeartbeatTickMillis() {
+        return heartbeatTickMillis;
+    }
+
+    public void setHeartbeatTickMillis(long heartbeatTickMillis) {
+        this.heartbeatTickMillis = heartbeatTickMillis;
+    }
+
+    public long getShutdownDrainMillis() {
+        return shutdownDrainMillis;
+    }
+
+    public void setShutdownDrainMillis(long shutdownDrainMillis) {
+        this.shutdownDrainMillis = shutdownDrainMillis;
+    }
+
+    public String getClusterNodeId() {
+        return clusterNodeId;
+    }
+
+    public void setClusterNodeId(String clusterNodeId) {
+        this.clusterNodeId = clusterNodeId;
+    }
+
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    public void setClusterPort(int clusterPort) {
+        this.clusterPort = clusterPort;
+    }
+
+    /**
+     * @return 集群端口监听的地址，默认只监听本机
+     */
+    public String getClusterBindAddress() {
+        return clusterBindAddress;
+    }
+
+    public void setClusterBindAddress(String clusterBindAddress) {
+        this.clusterBindAddress = clusterBindAddress;
+    }
+
+    /**
+     * @return 所有节点共用的密钥，节点之间连接时用来互相认证
+     */
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    public void setClusterSecret(String clusterSecret) {
+        this.clusterSecret = clusterSecret;
+    }
+
+    /**
+     * @return 逗号分隔的对端地址，每项为 host:port
+     */
+    public String getClusterPeers() {
+        return clusterPeers;
+    }
+
+    public void setClusterPeers(String clusterPeers) {
+        this.clusterPeers = clusterPeers;
+    }
+
+    public long getClusterReconnectMillis() {
+        return clusterReconnectMillis;
+    }
+
+    public void setClusterReconnectMillis(long clusterReconnectMillis) {
+        this.clusterReconnectMillis = clusterReconnectMillis;
+    }
+}
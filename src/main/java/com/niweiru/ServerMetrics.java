@@ -0,0 +1,271 @@
+package com.niweiru;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务器运行指标
+ * 热路径上只有 LongAdder 累加和直方图记录，不加锁；队列深度这类瞬时值不在热路径上维护，
+ * 而是在读取指标时遍历在线会话现算。
+ * 通过 /stats 命令（可读文本）和 MetricsEndpoint（Prometheus 文本格式）对外提供。
+ */
+public class ServerMetrics {
+    /**
+     * 消息的分类，收发分别计数
+     */
+    public enum Kind {
+        CHAT, PRIVATE, COMMAND, SYSTEM, HISTORY;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final long startedAt = System.currentTimeMillis();
+    // 从调用 start() 到开始接受连接用了多久，还没启动完为0
+    private volatile long startupNanos;
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    // 因为长时间没收到数据被断开的连接
+    private final LongAdder connectionsReaped = new LongAdder();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder loginsRejected = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder[] received = newAdders();
+    private final LongAdder[] sent = newAdders();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    // 写socket的系统调用次数和写出的帧数，两者之比反映写合并的效果
+    private final LongAdder writeCalls = new LongAdder();
+    private final LongAdder framesWritten = new LongAdder();
+    // 压缩的帧数（广播的帧只压缩一次）、压缩耗时，以及压缩后少写出的字节数（每个接收者各算一次）
+    private final LongAdder framesCompressed = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+    private final LongAdder compressionSaved = new LongAdder();
+    // 一次广播（编码、记录、发给房间所有成员）的耗时
+    private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+    // 发给单个接收者（放进其发送队列）的耗时
+    private final LatencyHistogram sendLatency = new LatencyHistogram();
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[Kind.values().length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    public void startupCompleted(long nanos) {
+        startupNanos = nanos;
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    public void connectionReaped() {
+        connectionsReaped.increment();
+    }
+
+    public void loginSucceeded() {
+        logins.increment();
+    }
+
+    public void loginRejected() {
+        loginsRejected.increment();
+    }
+
+    public void rateLimited() {
+        rateLimited.increment();
+    }
+
+    public void received(Kind kind) {
+        received[kind.ordinal()].increment();
+    }
+
+    public void sent(Kind kind, long count) {
+        sent[kind.ordinal()].add(count);
+    }
+
+    public LongAdder bytesIn() {
+        return bytesIn;
+    }
+
+    public LongAdder bytesOut() {
+        return bytesOut;
+    }
+
+    public LongAdder writeCalls() {
+        return writeCalls;
+    }
+
+    public LongAdder framesWritten() {
+        return framesWritten;
+    }
+
+    public void frameCompressed(long nanos) {
+        framesCompressed.increment();
+        compressionNanos.add(nanos);
+    }
+
+    public void compressionSaved(long bytes) {
+        compressionSaved.add(bytes);
+    }
+
+    /**
+     * 平均每帧用了多少次写系统调用，没有写过时为0
+     */
+    public double writeCallsPerFrame() {
+        long frames = framesWritten.sum();
+        return frames == 0 ? 0 : (double) writeCalls.sum() / frames;
+    }
+
+    public LatencyHistogram broadcastLatency() {
+        return broadcastLatency;
+    }
+
+    public LatencyHistogram sendLatency() {
+        return sendLatency;
+    }
+
+    public long activeConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    /**
+     * 汇总所有会话发送队列的深度
+     * @return {当前总深度, 单个队列当前最大深度, 累计丢弃帧数}
+     */
+    private static long[] queueDepths(Session[] sessions) {
+        long total = 0;
+        long max = 0;
+        long dropped = 0;
+        for (Session session : sessions) {
+            OutboundQueue queue = session.getOutboundQueue();
+            if (queue != null) {
+                int depth = queue.depth();
+                total += depth;
+                max = Math.max(max, depth);
+                dropped += queue.dropped();
+            }
+        }
+        return new long[] {total, max, dropped};
+    }
+
+    /**
+     * 给 /stats 命令用的可读文本
+     * @param sessions 在线会话
+     */
+    public String summary(Session[] sessions) {
+        long[] queues = queueDepths(sessions);
+        LatencyHistogram.Snapshot broadcast = broadcastLatency.snapshot();
+        LatencyHistogram.Snapshot send = sendLatency.snapshot();
+        StringBuilder text = new StringBuilder("服务器统计:\n");
+        text.append("- 运行时间: ").append((System.currentTimeMillis() - startedAt) / 1000).append(" 秒，启动耗时 ")
+                .append(startupNanos / 1_000_000).append(" 毫秒\n");
+        text.append("- 连接: 当前 ").append(activeConnections()).append("，累计 ").append(connectionsOpened.sum())
+                .append("，空闲断开 ").append(connectionsReaped.sum()).append("；在线用户 ").append(sessions.length).append("\n");
+        text.append("- 登录: 成功 ").append(logins.sum()).append("，拒绝 ").append(loginsRejected.sum()).append("\n");
+        text.append("- 收到消息:");
+        appendKinds(text, received);
+        text.append("- 被限流丢弃: ").append(rateLimited.sum()).append("\n");
+        text.append("- 发出消息:");
+        appendKinds(text, sent);
+        text.append("- 流量: 收 ").append(bytesIn.sum()).append(" 字节，发 ").append(bytesOut.sum()).append(" 字节\n");
+        text.append("- 写出: ").append(framesWritten.sum()).append(" 帧，系统调用 ").append(writeCalls.sum())
+                .append(" 次，平均每帧 ").append(String.format(Locale.ROOT, "%.3f", writeCallsPerFrame())).append(" 次\n");
+        text.append("- 压缩: ").append(framesCompressed.sum()).append(" 帧，耗时 ")
+                .append(compressionNanos.sum() / 1_000_000).append(" 毫秒，少发 ").append(compressionSaved.sum())
+                .append(" 字节\n");
+        text.append("- 发送队列: 总深度 ").append(queues[0]).append("，最大 ").append(queues[1])
+                .append("，累计丢弃 ").append(queues[2]).append("\n");
+        appendLatency(text, "广播耗时", broadcast);
+        appendLatency(text, "单个接收者发送耗时", send);
+        return text.toString();
+    }
+
+    private static void appendKinds(StringBuilder text, LongAdder[] adders) {
+        for (Kind kind : Kind.values()) {
+            text.append(' ').append(kind.label()).append('=').append(adders[kind.ordinal()].sum());
+        }
+        text.append('\n');
+    }
+
+    private static void appendLatency(StringBuilder text, String name, LatencyHistogram.Snapshot snapshot) {
+        text.append("- ").append(name).append("(微秒): 次数 ").append(snapshot.count())
+                .append("，平均 ").append(snapshot.mean() / 1000)
+                .append("，p50 ").append(snapshot.percentile(0.5) / 1000)
+                .append("，p99 ").append(snapshot.percentile(0.99) / 1000)
+                .append("，最大 ").append(snapshot.max() / 1000).append("\n");
+    }
+
+    /**
+     * Prometheus 文本格式，给抓取端点用
+     * @param sessions 在线会话
+     */
+    public String render(Session[] sessions) {
+        long[] queues = queueDepths(sessions);
+        StringBuilder text = new StringBuilder(2048);
+        gauge(text, "chat_uptime_seconds", (System.currentTimeMillis() - startedAt) / 1000);
+        text.append("# TYPE chat_startup_seconds gauge\nchat_startup_seconds ").append(seconds(startupNanos)).append('\n');
+        counter(text, "chat_connections_opened_total", connectionsOpened.sum());
+        gauge(text, "chat_connections_active", activeConnections());
+        counter(text, "chat_connections_reaped_total", connectionsReaped.sum());
+        gauge(text, "chat_sessions_online", sessions.length);
+        counter(text, "chat_logins_total", logins.sum());
+        counter(text, "chat_logins_rejected_total", loginsRejected.sum());
+        kinds(text, "chat_messages_received_total", received);
+        kinds(text, "chat_messages_sent_total", sent);
+        counter(text, "chat_messages_rate_limited_total", rateLimited.sum());
+        counter(text, "chat_bytes_received_total", bytesIn.sum());
+        counter(text, "chat_bytes_sent_total", bytesOut.sum());
+        counter(text, "chat_frames_written_total", framesWritten.sum());
+        counter(text, "chat_write_syscalls_total", writeCalls.sum());
+        text.append("# TYPE chat_write_syscalls_per_frame gauge\nchat_write_syscalls_per_frame ")
+                .append(String.format(Locale.ROOT, "%.6f", writeCallsPerFrame())).append('\n');
+        counter(text, "chat_compressed_frames_total", framesCompressed.sum());
+        text.append("# TYPE chat_compression_seconds_total counter\nchat_compression_seconds_total ")
+                .append(seconds(compressionNanos.sum())).append('\n');
+        counter(text, "chat_compression_saved_bytes_total", compressionSaved.sum());
+        gauge(text, "chat_outbound_queue_depth", queues[0]);
+        gauge(text, "chat_outbound_queue_depth_max", queues[1]);
+        counter(text, "chat_outbound_dropped_total", queues[2]);
+        summary(text, "chat_broadcast_latency_seconds", broadcastLatency.snapshot());
+        summary(text, "chat_send_latency_seconds", sendLatency.snapshot());
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, long value) {
+        text.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, long value) {
+        text.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void kinds(StringBuilder text, String name, LongAdder[] adders) {
+        text.append("# TYPE ").append(name).append(" counter\n");
+        for (Kind kind : Kind.values()) {
+            text.append(name).append("{kind=\"").append(kind.label()).append("\"} ")
+                    .append(adders[kind.ordinal()].sum()).append('\n');
+        }
+    }
+
+    private static void summary(StringBuilder text, String name, LatencyHistogram.Snapshot snapshot) {
+        text.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : new double[] {0.5, 0.9, 0.99}) {
+            text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(snapshot.percentile(quantile))).append('\n');
+        }
+        text.append(name).append("_sum ").append(seconds(snapshot.sum())).append('\n');
+        text.append(name).append("_count ").append(snapshot.count()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
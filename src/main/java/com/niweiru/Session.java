@@ -0,0 +1,176 @@
+package com.niweiru;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 服务器端的一个客户端会话
+ * 屏蔽底层是阻塞Socket还是NIO通道，Server的路由逻辑只和Session打交道
+ */
+public abstract class Session {
+    // 登录成功后才会设置，未登录时为null
+    private volatile User user;
+    // 登录成功后由 SessionRegistry 分配的会话编号，二进制协议用它代替完整的发送者
+    private volatile int sid = BinaryCodec.NO_SID;
+    // 登录时协商的线路协议
+    private volatile Protocol protocol = Protocol.JSON;
+    // 登录时协商的压缩器，没有协商压缩时为null
+    private volatile Compression compression;
+    // 加入的房间名，由 RoomRegistry 维护
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    // 当前房间：不指定房间的消息发到这里，/join 时切换
+    private volatile String currentRoom;
+    // 登录时由 RateLimiter 挂上的用户和IP令牌桶
+    private volatile RateLimiter.Buckets userBuckets;
+    private volatile RateLimiter.Buckets hostBuckets;
+    // 被限流的次数，每放行一条消息减一，只在处理这个会话消息的线程中访问
+    private int rateLimitStrikes;
+    // 最后一次收到客户端消息的时间（System.nanoTime()），见 IdleMonitor
+    private volatile long lastReadNanos = System.nanoTime();
+    // 最后一次发出 ping 的时间，0 表示还没发过，只在 IdleMonitor 的线程中访问
+    private long lastPingNanos;
+
+    public User getUser() {
+        return user;
+    }
+
+    public void setUser(User user) {
+        this.user = user;
+    }
+
+    public int getSid() {
+        return sid;
+    }
+
+    public void setSid(int sid) {
+        this.sid = sid;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    RateLimiter.Buckets getUserBuckets() {
+        return userBuckets;
+    }
+
+    void setUserBuckets(RateLimiter.Buckets userBuckets) {
+        this.userBuckets = userBuckets;
+    }
+
+    RateLimiter.Buckets getHostBuckets() {
+        return hostBuckets;
+    }
+
+    void setHostBuckets(RateLimiter.Buckets hostBuckets) {
+        this.hostBuckets = hostBuckets;
+    }
+
+    int getRateLimitStrikes() {
+        return rateLimitStrikes;
+    }
+
+    void setRateLimitStrikes(int rateLimitStrikes) {
+        this.rateLimitStrikes = rateLimitStrikes;
+    }
+
+    public String getCurrentRoom() {
+        return currentRoom;
+    }
+
+    public void setCurrentRoom(String currentRoom) {
+        this.currentRoom = currentRoom;
+    }
+
+    /**
+     * 切换线路协议，在处理登录消息时调用，之后收发的数据都使用新协议
+     */
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * 开始压缩大的帧，在处理登录消息时调用，之后收发的数据都可能是压缩帧
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * 向该客户端发送一条消息
+     */
+    public void send(Message message) throws IOException {
+        send(Frame.of(message));
+    }
+
+    /**
+     * 向该客户端发送一帧已编码好的数据，同一个 Frame 可以发给多个会话
+     */
+    public abstract void send(Frame frame) throws IOException;
+
+    /**
+     * 该客户端的发送队列，没有发送队列的会话返回null
+     */
+    public OutboundQueue getOutboundQueue() {
+        return null;
+    }
+
+    /**
+     * 客户端地址，用于日志
+     */
+    public abstract String getRemoteAddress();
+
+    /**
+     * 客户端IP（不含端口），按IP限流时用；默认和 getRemoteAddress() 相同
+     */
+    public String getRemoteHost() {
+        return getRemoteAddress();
+    }
+
+    /**
+     * 关闭连接，可重复调用
+     */
+    public abstract void close();
+
+    /**
+     * 收到客户端的一条消息时调用
+     */
+    public void touch() {
+        lastReadNanos = System.nanoTime();
+    }
+
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    long getLastPingNanos() {
+        return lastPingNanos;
+    }
+
+    void setLastPingNanos(long lastPingNanos) {
+        this.lastPingNanos = lastPingNanos;
+    }
+
+    /**
+     * 连接是否已经关闭；默认总是false
+     */
+    public boolean isClosed() {
+        return false;
+    }
+
+    /**
+     * 立即关闭，丢弃发送队列中未写出的数据；默认和 close() 相同
+     */
+    void abort() {
+        close();
+    }
+}
@@ -0,0 +1,82 @@
+package com.niweiru;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在线会话登记表
+ * 按用户名、用户ID查找会话都是O(1)；登录时用 putIfAbsent 原子地占用用户名，
+ * 两个同名登录同时到达也只有一个能成功。登录成功的会话还会分到一个不重复的会话编号（二进制协议使用）。
+ * 遍历所有在线会话（/list 等）用写时复制的 SessionSet，不用创建 ConcurrentHashMap 的迭代器。
+ */
+public class SessionRegistry {
+    private final Map<String, Session> byUsername = new ConcurrentHashMap<>();
+    // 用户ID由客户端生成，可能重复，重复时以后登录的为准
+    private final Map<String, Session> byUserId = new ConcurrentHashMap<>();
+    private final SessionSet snapshot = new SessionSet();
+    private final AtomicInteger nextSid = new AtomicInteger(BinaryCodec.FIRST_SESSION_SID);
+
+    /**
+     * 登记一个会话，把用户和新分配的会话编号设置到会话上
+     * @return 用户名已被占用返回false，此时什么都不改变
+     */
+    public boolean register(Session session, User user) {
+        if (byUsername.putIfAbsent(user.getUsername(), session) != null) {
+            return false;
+        }
+        session.setUser(user);
+        session.setSid(nextSid.getAndIncrement());
+        if (user.getId() != null) {
+            byUserId.put(user.getId(), session);
+        }
+        snapshot.add(session);
+        return true;
+    }
+
+    /**
+     * 注销一个会话，可重复调用
+     * @return 被注销的用户，会话未登记过返回null
+     */
+    public User unregister(Session session) {
+        User user = session.getUser();
+        if (user == null || !byUsername.remove(user.getUsername(), session)) {
+            return null;
+        }
+        if (user.getId() != null) {
+            byUserId.remove(user.getId(), session);
+        }
+        snapshot.remove(session);
+        return user;
+    }
+
+    /**
+     * @return 对应用户的会话，不在线返回null
+     */
+    public Session findByUsername(String username) {
+        return byUsername.get(username);
+    }
+
+    /**
+     * @return 对应用户ID的会话，不在线返回null
+     */
+    public Session findByUserId(String userId) {
+        return byUserId.get(userId);
+    }
+
+    public boolean contains(Session session) {
+        User user = session.getUser();
+        return user != null && byUsername.get(user.getUsername()) == session;
+    }
+
+    /**
+     * 当前所有在线会话的快照，调用方只能读，不能修改
+     */
+    public Session[] sessions() {
+        return snapshot.toArray();
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+}
@@ -0,0 +1,62 @@
+package com.niweiru;
+
+import java.util.Arrays;
+
+/**
+ * 写时复制的会话集合
+ * 加入、移除时复制整个数组（次数少），遍历时直接读当前数组（每条消息都要遍历），
+ * 遍历不加锁也不创建迭代器对象。
+ */
+public class SessionSet {
+    private static final Session[] EMPTY = new Session[0];
+
+    private volatile Session[] sessions = EMPTY;
+
+    /**
+     * @return 已经在集合中返回false
+     */
+    public synchronized boolean add(Session session) {
+        Session[] current = sessions;
+        for (Session existing : current) {
+            if (existing == session) {
+                return false;
+            }
+        }
+        Session[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = session;
+        sessions = updated;
+        return true;
+    }
+
+    /**
+     * @return 不在集合中返回false
+     */
+    public synchronized boolean remove(Session session) {
+        Session[] current = sessions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == session) {
+                Session[] updated = new Session[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                sessions = updated;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 当前成员的快照，调用方只能读，不能修改
+     */
+    public Session[] toArray() {
+        return sessions;
+    }
+
+    public int size() {
+        return sessions.length;
+    }
+
+    public boolean isEmpty() {
+        return sessions.length == 0;
+    }
+}
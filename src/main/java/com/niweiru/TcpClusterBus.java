@@ -0,0 +1,473 @@
+package com.niweiru;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 节点之间两两直连的TCP集群总线
+ * 每个节点监听一个集群端口，并主动连接配置的每个对端；发事件只走自己主动连出去的连接，
+ * 收事件只读对端连进来的连接，所以两个节点之间有两条单向的连接，互不干扰。
+ * 线路格式是一行一个JSON：连接建立后第一行是发送方的节点ID，接着是它的在线用户快照，之后是事件。
+ * 连出去的连接断开后按 reconnectMillis 重连，断开期间的事件丢弃；连进来的连接断开即认为对端下线。
+ *
+ * 能连上集群端口就能冒充任何用户，所以：
+ * - 默认只监听本机地址，跨机器部署时显式配置 chat.cluster.bindAddress；
+ * - 所有节点配置同一个共享密钥。连进来的连接先收到一个随机数，对端回复节点ID和
+ *   HMAC-SHA256(密钥, 随机数 + 换行 + 节点ID)，校验通过才接收事件，密钥本身不在线路上传输（事件本身不加密）；
+ * - 一行最多 MAX_LINE_BYTES 字节，收到的事件排队最多 DISPATCH_QUEUE_CAPACITY 个，
+ *   队列满时读线程等待，对端的发送被TCP流控挡住，不会占满内存。
+ */
+public class TcpClusterBus implements ClusterBus {
+    private static final Logger logger = LoggerFactory.getLogger(TcpClusterBus.class);
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+    // 每个对端最多积压多少个未发出的事件，超出的丢弃
+    private static final int PEER_QUEUE_CAPACITY = 65536;
+    // 收到的事件最多排队多少个等待回调
+    private static final int DISPATCH_QUEUE_CAPACITY = 65536;
+    // 一个事件最多带一条消息（客户端的帧默认最大64KB），JSON转义之后也远小于这个值
+    static final int MAX_LINE_BYTES = 1024 * 1024;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final String nodeId;
+    private final String bindAddress;
+    private final int port;
+    private final byte[] secret;
+    private final List<String> initialPeers;
+    private final long reconnectMillis;
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+    // 按对端节点ID记录连进来的连接，同一节点重连时关闭旧连接
+    private final Map<String, Inbound> inbound = new ConcurrentHashMap<>();
+    // 所有回调都在这一个线程里按顺序执行
+    private final BlockingQueue<Runnable> dispatchQueue = new ArrayBlockingQueue<>(DISPATCH_QUEUE_CAPACITY);
+    private final Thread dispatcher = new Thread(this::dispatchLoop, "cluster-dispatch");
+    private final SecureRandom random = new SecureRandom();
+    private volatile Listener listener;
+    private volatile boolean closed;
+    private ServerSocket serverSocket;
+
+    /**
+     * @param nodeId 本节点ID
+     * @param bindAddress 集群端口监听的地址
+     * @param port 集群端口，0 表示随机端口
+     * @param peers 对端地址列表，每项为 host:port
+     * @param secret 所有节点共用的密钥，不能为空
+     * @param reconnectMillis 连接对端失败或断开后多久重试
+     */
+    public TcpClusterBus(String nodeId, String bindAddress, int port, List<String> peers, String secret,
+            long reconnectMillis) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("开启集群需要配置所有节点共用的密钥 chat.cluster.secret");
+        }
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.initialPeers = peers;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.reconnectMillis = reconnectMillis;
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(bindAddress, port));
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        Thread acceptor = new Thread(this::acceptLoop, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (String peer : initialPeers) {
+            connect(peer);
+        }
+        logger.info("集群节点 [{}] 在 {}:{} 监听，对端: {}", nodeId, bindAddress, getPort(), initialPeers);
+    }
+
+    /**
+     * 实际监听的集群端口
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * 开始连接一个对端（启动之后也可以调用）
+     * @param address host:port
+     */
+    public void connect(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("集群对端地址应为 host:port: " + address);
+        }
+        Peer peer = new Peer(address.substring(0, colon).trim(), Integer.parseInt(address.substring(colon + 1).trim()));
+        peers.add(peer);
+        peer.start();
+    }
+
+    @Override
+    public void publish(ClusterEvent event) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        String line = event.toJson();
+        for (Peer peer : peers) {
+            peer.offer(line);
+        }
+    }
+
+    /**
+     * 交给回调线程执行；队列满时等待，调用方（读线程）暂停读取
+     */
+    private void dispatch(Runnable task) {
+        try {
+            while (!closed) {
+                if (dispatchQueue.offer(task, 1, TimeUnit.SECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatchLoop() {
+        while (!closed) {
+            Runnable task;
+            try {
+                task = dispatchQueue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (task == null) {
+                continue;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("处理集群事件失败", e);
+            }
+        }
+    }
+
+    /**
+     * 认证码：HMAC-SHA256(密钥, 随机数 + 换行 + 节点ID)，Base64编码
+     */
+    static String mac(byte[] secret, String nonce, String node) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+            byte[] code = mac.doFinal((nonce + "\n" + node).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(code);
+        } catch (GeneralSecurityException e) {
+            // 每个JDK都必须支持 HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String newNonce() {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        return Base64.getEncoder().encodeToString(nonce);
+    }
+
+    private void acceptLoop() {
+        try {
+            while (!closed) {
+                Socket socket = serverSocket.accept();
+                Inbound link = new Inbound(socket);
+                Thread reader = new Thread(link::run, "cluster-in-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                logger.error("集群端口接受连接时发生异常", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            logger.error("关闭集群端口时发生异常", e);
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+        for (Inbound link : inbound.values()) {
+            link.close();
+        }
+        dispatcher.interrupt();
+    }
+
+    /**
+     * 连到一个对端的发送连接，一个线程负责连接、重连和写出
+     */
+    private final class Peer {
+        private final String host;
+        private final int port;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(PEER_QUEUE_CAPACITY);
+        private final AtomicLong dropped = new AtomicLong();
+        private final Thread thread;
+        private volatile boolean connected;
+        private volatile Socket socket;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.thread = new Thread(this::run, "cluster-peer-" + host + ":" + port);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        /**
+         * 没连上时直接丢弃，重连后对端会先收到快照
+         */
+        void offer(String line) {
+            if (!connected || !queue.offer(line)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        private void run() {
+            while (!closed) {
+                try (Socket s = new Socket()) {
+                    socket = s;
+                    s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                    s.setTcpNoDelay(true);
+                    s.setKeepAlive(true);
+                    // 对端先发来随机数，回复节点ID和认证码
+                    s.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+                    String nonce = new LineReader(s.getInputStream(), MAX_LINE_BYTES).readLine();
+                    if (nonce == null) {
+                        throw new IOException("对端在认证之前关闭了连接");
+                    }
+                    s.setSoTimeout(0);
+                    Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+                    // 先开始接收事件再取快照：快照之后发生的变化一定在队列里，重复的上下线事件是幂等的
+                    queue.clear();
+                    connected = true;
+                    out.write(nodeId);
+                    out.write(' ');
+                    out.write(mac(secret, nonce, nodeId));
+                    out.write('\n');
+                    for (ClusterEvent event : listener.snapshot()) {
+                        out.write(event.toJson());
+                        out.write('\n');
+                    }
+                    out.flush();
+                    logger.info("已连接集群对端 {}:{}", host, port);
+                    writeLoop(out);
+                } catch (IOException e) {
+                    if (!closed) {
+                        logger.warn("集群对端 {}:{} 连接失败或断开: {}，{} 毫秒后重试（已丢弃 {} 个事件）",
+                                host, port, e.getMessage(), reconnectMillis, dropped.get());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                }
+                try {
+                    Thread.sleep(reconnectMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 取出队列中所有积压的事件一起写出，再flush一次
+         */
+        private void writeLoop(Writer out) throws IOException, InterruptedException {
+            while (!closed) {
+                String line = queue.poll(1, TimeUnit.SECONDS);
+                if (line == null) {
+                    continue;
+                }
+                do {
+                    out.write(line);
+                    out.write('\n');
+                } while ((line = queue.poll()) != null);
+                out.flush();
+            }
+        }
+
+        void close() {
+            thread.interrupt();
+            Socket s = socket;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    logger.error("关闭集群连接时发生异常", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 对端连进来的接收连接，一个线程负责读取
+     */
+    private final class Inbound {
+        private final Socket socket;
+
+        Inbound(Socket socket) {
+            this.socket = socket;
+        }
+
+        void run() {
+            String node = null;
+            try {
+                socket.setKeepAlive(true);
+                String nonce = newNonce();
+                socket.getOutputStream().write((nonce + "\n").getBytes(StandardCharsets.UTF_8));
+                socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+                LineReader in = new LineReader(socket.getInputStream(), MAX_LINE_BYTES);
+                // 第一行是 "节点ID 认证码"
+                String hello = in.readLine();
+                int space = hello == null ? -1 : hello.lastIndexOf(' ');
+                String helloNode = space > 0 ? hello.substring(0, space) : null;
+                if (helloNode == null || !MessageDigest.isEqual(
+                        mac(secret, nonce, helloNode).getBytes(StandardCharsets.UTF_8),
+                        hello.substring(space + 1).getBytes(StandardCharsets.UTF_8))) {
+                    logger.warn("拒绝集群连接 {}：认证失败（各节点的 chat.cluster.secret 不一致？）",
+                            socket.getRemoteSocketAddress());
+                    return;
+                }
+                socket.setSoTimeout(0);
+                if (helloNode.equals(nodeId)) {
+                    logger.warn("集群对端列表里包含了本节点自己，忽略这个连接");
+                    return;
+                }
+                node = helloNode;
+                String peerNode = node;
+                Inbound previous = inbound.put(peerNode, this);
+                if (previous != null) {
+                    // 对端重连了，旧连接上的用户作废，接下来的快照会重新登记
+                    previous.close();
+                    dispatch(() -> listener.onNodeDown(peerNode));
+                }
+                logger.info("集群节点 [{}] 已连入", peerNode);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    ClusterEvent event = ClusterEvent.fromJson(line);
+                    dispatch(() -> listener.onEvent(event));
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    logger.warn("集群节点 [{}]（{}）的连接异常: {}", node, socket.getRemoteSocketAddress(), e.getMessage());
+                }
+            } finally {
+                close();
+                String peerNode = node;
+                if (peerNode != null && inbound.remove(peerNode, this)) {
+                    logger.warn("集群节点 [{}] 已断开", peerNode);
+                    dispatch(() -> listener.onNodeDown(peerNode));
+                }
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                logger.error("关闭集群连接时发生异常", e);
+            }
+        }
+    }
+
+    /**
+     * 按行读取UTF-8文本，一行超过上限时抛出异常，对端不能用一行无限长的数据耗尽内存
+     * 只在一个读线程中使用
+     */
+    static final class LineReader {
+        private final InputStream in;
+        private final int maxLength;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        private int limit;
+        private byte[] line = new byte[256];
+
+        LineReader(InputStream in, int maxLength) {
+            this.in = in;
+            this.maxLength = maxLength;
+        }
+
+        /**
+         * @return 不含换行符的一行，对端关闭了连接返回null
+         * @throws IOException 读取失败、一行超过上限或者连接在一行中途断开
+         */
+        String readLine() throws IOException {
+            int length = 0;
+            while (true) {
+                if (position == limit) {
+                    int read = in.read(buffer);
+                    if (read < 0) {
+                        if (length > 0) {
+                            throw new IOException("连接在一行中途断开");
+                        }
+                        return null;
+                    }
+                    position = 0;
+                    limit = read;
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                int chunk = position - start;
+                if (length + chunk > maxLength) {
+                    throw new IOException("一行超过 " + maxLength + " 字节");
+                }
+                if (length + chunk > line.length) {
+                    line = Arrays.copyOf(line, Math.min(maxLength, Math.max(line.length * 2, length + chunk)));
+                }
+                System.arraycopy(buffer, start, line, length, chunk);
+                length += chunk;
+                if (position < limit) {
+                    position++;
+                    return new String(line, 0, length, StandardCharsets.UTF_8);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.niweiru;
+
+import java.util.function.Consumer;
+
+/**
+ * 哈希时间轮，单线程使用
+ * 时间按 tick 分格，格子数组成一个环，到期时间落在第 t 格的条目挂在 t % 格子数 的链表上。
+ * 加入和到期都是O(1)，和条目总数无关；每过一格只看这一格上的链表，
+ * 还没到期的（要再转几圈）留在原地。到期时间只精确到 tick。
+ */
+public class TimingWheel<T> {
+    private static final class Entry<T> {
+        final T item;
+        // 到期的格子序号（从创建时间轮算起的第几个tick）
+        final long tick;
+        Entry<T> next;
+
+        Entry(T item, long tick, Entry<T> next) {
+            this.item = item;
+            this.tick = tick;
+            this.next = next;
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final Entry<T>[] buckets;
+    private final long startNanos;
+    // 下一个还没处理的格子
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickNanos 每格的时长
+     * @param wheelSize 格子数，向上取整为2的幂
+     * @param nowNanos 当前时间（System.nanoTime()）
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickNanos, int wheelSize, long nowNanos) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tick 必须大于0");
+        }
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.mask = size - 1;
+        this.buckets = (Entry<T>[]) new Entry<?>[size];
+        this.startNanos = nowNanos;
+    }
+
+    /**
+     * 加入一个条目，到期时间已过的在下一次 advance 时到期
+     */
+    public void schedule(T item, long deadlineNanos) {
+        long elapsed = deadlineNanos - startNanos;
+        long tick = Math.max(currentTick, elapsed <= 0 ? 0 : (elapsed + tickNanos - 1) / tickNanos);
+        int index = (int) (tick & mask);
+        buckets[index] = new Entry<>(item, tick, buckets[index]);
+        size++;
+    }
+
+    /**
+     * 处理到 nowNanos 为止的所有格子，把到期的条目交给 expired
+     * expired 里可以再次 schedule，重新加入的条目最早在下一格到期。
+     */
+    public void advance(long nowNanos, Consumer<T> expired) {
+        long target = (nowNanos - startNanos) / tickNanos;
+        while (currentTick <= target) {
+            long tick = currentTick++;
+            int index = (int) (tick & mask);
+            Entry<T> entry = buckets[index];
+            buckets[index] = null;
+            while (entry != null) {
+                Entry<T> next = entry.next;
+                if (entry.tick <= tick) {
+                    size--;
+                    expired.accept(entry.item);
+                } else {
+                    // 还要再转几圈
+                    entry.next = buckets[index];
+                    buckets[index] = entry;
+                }
+                entry = next;
+            }
+        }
+    }
+
+    /**
+     * 还没到期的条目数
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,130 @@
+package com.niweiru;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS 的上下文和连接的创建
+ *
+ * 服务器：阻塞模式用 SSLServerSocket，NIO模式每个连接一个 SSLEngine（见 TlsChannel），两者共用一个 SSLContext。
+ * 会话恢复：同一个 SSLContext 里的会话（TLS 1.3 下是服务器发给客户端的会话票据）在 chat.tls.sessionTimeoutSec 内有效，
+ * 客户端用同一个 SSLContext 重连同一地址时只做一次简短握手，不再交换证书和做签名验证，
+ * 断线重连风暴时服务器的握手开销小得多。
+ * 客户端默认校验证书和主机名（和 HTTPS 相同的规则）。
+ */
+public final class Tls {
+    private Tls() {
+    }
+
+    /**
+     * 按配置加载密钥库，创建服务器端的 SSLContext
+     */
+    public static SSLContext serverContext(ServerConfig config) throws IOException {
+        try {
+            KeyStore keyStore = load(config.getTlsKeyStore(), config.getTlsKeyStorePassword(), config.getTlsKeyStoreType());
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, config.getTlsKeyStorePassword().toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(config.getTlsSessionCacheSize());
+            sessions.setSessionTimeout(config.getTlsSessionTimeoutSeconds());
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("无法加载TLS密钥库 " + config.getTlsKeyStore() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 客户端的 SSLContext，同一个上下文建立的连接之间可以恢复会话
+     * @param trustStore 信任的证书所在的密钥库，为null时使用JDK默认的CA证书
+     */
+    public static SSLContext clientContext(String trustStore, String password, String type) throws IOException {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            TrustManagerFactory trustManagers = null;
+            if (trustStore != null) {
+                trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustManagers.init(load(trustStore, password, type));
+            }
+            context.init(null, trustManagers == null ? null : trustManagers.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("无法加载TLS信任库 " + trustStore + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static KeyStore load(String path, String password, String type) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(type);
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            keyStore.load(in, password == null ? null : password.toCharArray());
+        }
+        return keyStore;
+    }
+
+    /**
+     * 阻塞模式的监听Socket，只启用配置的协议版本
+     */
+    static SSLServerSocket serverSocket(SSLContext context, ServerConfig config) throws IOException {
+        SSLServerSocket socket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket();
+        socket.setEnabledProtocols(protocols(config.getTlsProtocols()));
+        return socket;
+    }
+
+    /**
+     * NIO模式下一个连接的服务器端引擎
+     */
+    static SSLEngine serverEngine(SSLContext context, ServerConfig config) {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setEnabledProtocols(protocols(config.getTlsProtocols()));
+        return engine;
+    }
+
+    /**
+     * 连接服务器并完成握手，校验证书和主机名
+     * @param protocols 逗号分隔的协议版本，为null时用JDK默认的
+     */
+    public static SSLSocket connect(SSLContext context, String host, int port, String protocols) throws IOException {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+        try {
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            if (protocols != null) {
+                parameters.setProtocols(protocols(protocols));
+            }
+            socket.setSSLParameters(parameters);
+            socket.startHandshake();
+            return socket;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // 握手已经失败了
+        }
+    }
+
+    static String[] protocols(String protocols) {
+        return protocols.trim().split("\\s*,\\s*");
+    }
+}
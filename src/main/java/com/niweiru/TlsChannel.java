@@ -0,0 +1,295 @@
+package com.niweiru;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * NIO模式下一个TLS连接的加解密层：包装 SocketChannel 和 SSLEngine，只在所属事件循环线程中使用
+ *
+ * 读：从通道读入密文，解密进调用方的缓冲区；放不下的明文和还没解密的完整记录留在这里，
+ *     hasBufferedInput() 为true时调用方应该接着读（Selector 不会再为它们报告可读）。
+ * 写：加密调用方的明文写进通道；内核发送缓冲区满时剩下的密文留在这里，
+ *     hasPendingOutput() 为true时调用方应该等通道可写再调用 flush()。
+ * 握手由读写推动：收到对方的握手数据就解密、执行委托任务（签名、验证，直接在事件循环线程执行）、写出回复，
+ * 握手完成之前 write() 不接收明文。
+ *
+ * 解密和加密先写进事件循环共用的临时缓冲区，每个连接常驻的只有收密文的缓冲区（一条记录大小）；
+ * 留下没处理完的数据时才为这个连接单独复制一份。
+ */
+final class TlsChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final NioEventLoop loop;
+    private final int applicationBufferSize;
+    private final int packetBufferSize;
+    // 收到还没解密的密文（写模式）
+    private ByteBuffer netIn;
+    // 解密出来调用方还没取走的明文（读模式），没有时为null
+    private ByteBuffer pendingIn;
+    // 加密好还没写进通道的密文（读模式），没有时为null
+    private ByteBuffer pendingOut;
+    private boolean handshaking = true;
+    // 上次因为调用方的缓冲区满了而停止解密，netIn 里可能还有完整的记录
+    private boolean moreToUnwrap;
+    private boolean inboundClosed;
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, NioEventLoop loop) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        this.loop = loop;
+        this.applicationBufferSize = engine.getSession().getApplicationBufferSize();
+        this.packetBufferSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetBufferSize);
+        engine.beginHandshake();
+    }
+
+    boolean isHandshaking() {
+        return handshaking;
+    }
+
+    boolean hasBufferedInput() {
+        return pendingIn != null || moreToUnwrap;
+    }
+
+    boolean hasPendingOutput() {
+        return pendingOut != null;
+    }
+
+    /**
+     * 读入并解密
+     * @return 放进 dst 的明文字节数，对方关闭了连接返回-1
+     */
+    int read(ByteBuffer dst) throws IOException {
+        int delivered = 0;
+        if (pendingIn != null) {
+            delivered += transfer(pendingIn, dst);
+            if (pendingIn.hasRemaining()) {
+                return delivered;
+            }
+            pendingIn = null;
+        }
+        if (!moreToUnwrap && channel.read(netIn) < 0) {
+            closeInbound();
+        }
+        delivered += unwrap(dst);
+        return delivered == 0 && inboundClosed ? -1 : delivered;
+    }
+
+    /**
+     * 解密 netIn 中所有完整的记录，直到 dst 放满
+     * dst 剩余空间放得下一整条记录时直接解密进去，否则经过共用的临时缓冲区
+     */
+    private int unwrap(ByteBuffer dst) throws IOException {
+        int delivered = 0;
+        moreToUnwrap = false;
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining() && !inboundClosed) {
+                if (pendingIn != null || !dst.hasRemaining()) {
+                    moreToUnwrap = true;
+                    break;
+                }
+                boolean direct = dst.remaining() >= applicationBufferSize;
+                ByteBuffer target = direct ? dst : loop.tlsInBuffer(applicationBufferSize);
+                SSLEngineResult result = engine.unwrap(netIn, target);
+                if (direct) {
+                    delivered += result.bytesProduced();
+                } else {
+                    target.flip();
+                    delivered += transfer(target, dst);
+                    if (target.hasRemaining()) {
+                        pendingIn = copyOf(target);
+                    }
+                }
+                switch (result.getStatus()) {
+                    case CLOSED:
+                        inboundClosed = true;
+                        break;
+                    case BUFFER_UNDERFLOW:
+                        // 半条记录，等后面的数据
+                        return delivered;
+                    case BUFFER_OVERFLOW:
+                        // 缓冲区按会话要求的大小分配，不应该发生
+                        throw new SSLException("TLS记录超过缓冲区大小");
+                    default:
+                        break;
+                }
+                afterStep(result);
+                if (result.bytesConsumed() == 0) {
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+            if (!netIn.hasRemaining()) {
+                // 一条记录比缓冲区还大（对方协商了更大的记录）
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(netIn.capacity() * 2,
+                        engine.getSession().getPacketBufferSize()));
+                netIn.flip();
+                larger.put(netIn);
+                netIn = larger;
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * 加密并写出明文，先写出上次剩下的密文；握手完成之前不接收明文
+     * @return 接收的明文字节数，剩下的密文在 hasPendingOutput() 时等通道可写再写
+     */
+    int write(ByteBuffer src) throws IOException {
+        if (!flush() || handshaking) {
+            return 0;
+        }
+        ByteBuffer out = loop.tlsOutBuffer(NioEventLoop.WRITE_BUFFER_SIZE + packetBufferSize);
+        int consumed = 0;
+        while (src.hasRemaining()) {
+            SSLEngineResult result = engine.wrap(src, out);
+            consumed += result.bytesConsumed();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS连接已关闭");
+            }
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                out.flip();
+                writeNet(out);
+                out.clear();
+                if (pendingOut != null) {
+                    break;
+                }
+            } else if (result.bytesConsumed() == 0) {
+                break;
+            }
+        }
+        out.flip();
+        if (out.hasRemaining()) {
+            writeNet(out);
+        }
+        return consumed;
+    }
+
+    /**
+     * 写出剩下的密文，继续握手需要写出的部分（通道可写时调用）
+     * @return 没有剩下要写的返回true
+     */
+    boolean flush() throws IOException {
+        if (pendingOut != null) {
+            channel.write(pendingOut);
+            if (pendingOut.hasRemaining()) {
+                return false;
+            }
+            pendingOut = null;
+        }
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK || status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            handshake();
+        }
+        return pendingOut == null;
+    }
+
+    private void afterStep(SSLEngineResult result) throws IOException {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshaking = false;
+        }
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK || status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            handshake();
+        }
+    }
+
+    /**
+     * 推进握手：执行委托任务，把要发给对方的握手数据加密写出，
+     * 直到需要对方的数据、握手完成，或者通道暂时写不进去
+     * TLS 1.3 的服务器在握手完成后还要发会话票据，也从这里写出。
+     */
+    private void handshake() throws IOException {
+        while (pendingOut == null) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            } else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                ByteBuffer out = loop.tlsOutBuffer(NioEventLoop.WRITE_BUFFER_SIZE + packetBufferSize);
+                SSLEngineResult result = engine.wrap(EMPTY, out);
+                out.flip();
+                writeNet(out);
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                    handshaking = false;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    // 握手失败时引擎发出告警后关闭，下一次读会发现连接已关闭
+                    inboundClosed = true;
+                    return;
+                }
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 写出密文（读模式），写不完的复制一份留到通道可写时再写；调用前 pendingOut 必须为null
+     */
+    private void writeNet(ByteBuffer out) throws IOException {
+        channel.write(out);
+        if (out.hasRemaining()) {
+            pendingOut = copyOf(out);
+        }
+    }
+
+    private void closeInbound() {
+        inboundClosed = true;
+        try {
+            engine.closeInbound();
+        } catch (SSLException e) {
+            // 对方没有发 close_notify 就断开了，和普通的断开一样处理
+        }
+    }
+
+    /**
+     * 尽量发出 close_notify，不等待对方回应；关闭通道之前调用
+     */
+    void close() {
+        engine.closeOutbound();
+        if (pendingOut != null) {
+            return;
+        }
+        try {
+            ByteBuffer out = loop.tlsOutBuffer(NioEventLoop.WRITE_BUFFER_SIZE + packetBufferSize);
+            engine.wrap(EMPTY, out);
+            out.flip();
+            channel.write(out);
+        } catch (IOException e) {
+            // 连接已经断了
+        }
+    }
+
+    /**
+     * 尽可能多地从 src 复制到 dst
+     */
+    private static int transfer(ByteBuffer src, ByteBuffer dst) {
+        int length = Math.min(src.remaining(), dst.remaining());
+        if (length > 0) {
+            int limit = src.limit();
+            src.limit(src.position() + length);
+            dst.put(src);
+            src.limit(limit);
+        }
+        return length;
+    }
+
+    private static ByteBuffer copyOf(ByteBuffer src) {
+        ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+        copy.put(src);
+        copy.flip();
+        return copy;
+    }
+}
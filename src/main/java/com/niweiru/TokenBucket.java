@@ -0,0 +1,42 @@
+package com.niweiru;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶
+ * 不单独存令牌数，只存一个"理论到达时间"（GCRA算法）：每放行一条消息往后推一个间隔，
+ * 推到超过当前时间 burst 个间隔就拒绝。整个状态是一个 AtomicLong，放行一条消息只是一次CAS，
+ * 不加锁也不分配对象。
+ */
+public class TokenBucket {
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong theoreticalArrival;
+
+    public TokenBucket(RateLimit limit) {
+        this.intervalNanos = (long) (1_000_000_000L / limit.getPerSecond());
+        this.burstNanos = intervalNanos * limit.getBurst();
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @return 有令牌返回true并消耗一个
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    boolean tryAcquire(long now) {
+        while (true) {
+            long current = theoreticalArrival.get();
+            // 空闲了很久的桶从当前时间算起，最多攒满 burst 个令牌
+            long next = Math.max(current - now, 0) + now + intervalNanos;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -5,6 +5,11 @@ package com.niweiru;
  * 用于表示一个聊天系统的用户
  */
 public class User {
+    /**
+     * 系统消息共用的发送者，不要修改
+     */
+    public static final User SYSTEM = new User("system", "System");
+
     // 属性（字段）
     private String id; // 用户唯一标识
     private String username; // 用户名
@@ -0,0 +1,101 @@
+package com.niweiru;
+
+/**
+ * 不经过 String.getBytes 的UTF-8编码，用于先算长度、再写进正好大小的数组
+ * 和 String.getBytes(UTF_8) 的结果相同：成对的代理字符编成4个字节，落单的代理字符编成 '?'。
+ */
+final class Utf8 {
+    private Utf8() {
+    }
+
+    /**
+     * 编码后的字节数
+     */
+    static int length(String value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    bytes += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    // 一对代理字符共4个字节
+                    bytes += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    bytes += 2;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 编码 value.charAt(index) 开始的一个字符
+     * @return 下一个字符的下标（代理对占两个字符）
+     */
+    static int writeChar(String value, int index, byte[] out, int pos) {
+        char c = value.charAt(index);
+        if (c < 0x80) {
+            out[pos] = (byte) c;
+        } else if (c < 0x800) {
+            out[pos] = (byte) (0xc0 | (c >> 6));
+            out[pos + 1] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+            if (Character.isHighSurrogate(c) && index + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(index + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+                out[pos] = (byte) (0xf0 | (codePoint >> 18));
+                out[pos + 1] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                out[pos + 2] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                out[pos + 3] = (byte) (0x80 | (codePoint & 0x3f));
+                return index + 2;
+            }
+            out[pos] = '?';
+        } else {
+            out[pos] = (byte) (0xe0 | (c >> 12));
+            out[pos + 1] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            out[pos + 2] = (byte) (0x80 | (c & 0x3f));
+        }
+        return index + 1;
+    }
+
+    /**
+     * 编码 value.charAt(index) 开始的一个字符占几个字节，和 writeChar 对应
+     */
+    static int charLength(String value, int index) {
+        char c = value.charAt(index);
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800) {
+            return 2;
+        } else if (Character.isSurrogate(c)) {
+            return Character.isHighSurrogate(c) && index + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(index + 1)) ? 4 : 1;
+        }
+        return 3;
+    }
+
+    /**
+     * 编码整个字符串，调用方保证 out 从 pos 起有 length(value) 个字节的空间
+     * @return 写完之后的位置
+     */
+    static int write(String value, byte[] out, int pos) {
+        int length = value.length();
+        int i = 0;
+        while (i < length) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out[pos++] = (byte) c;
+                i++;
+            } else {
+                int bytes = charLength(value, i);
+                i = writeChar(value, i, out, pos);
+                pos += bytes;
+            }
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,203 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * 二进制协议编解码往返，以及 FrameDecoder 的二进制分帧和协议切换
+ */
+public class BinaryCodecTest {
+
+    /**
+     * 解码一个完整帧（去掉长度前缀）
+     */
+    private static Message roundTrip(byte[] frame, SenderTable senders) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder(frame.length, 1 << 20);
+        decoder.setProtocol(Protocol.BINARY);
+        decoder.buffer().put(frame);
+        decoder.decode((array, offset, length) -> {
+            Message message = BinaryCodec.decode(array, offset, length, senders);
+            if (message != null) {
+                messages.add(message);
+            }
+        });
+        assertTrue(messages.size() <= 1);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    private static void assertSameMessage(Message expected, Message actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getRoom(), actual.getRoom());
+        if (expected.getSender() == null) {
+            assertNull(actual.getSender());
+        } else {
+            assertEquals(expected.getSender().getId(), actual.getSender().getId());
+            assertEquals(expected.getSender().getUsername(), actual.getSender().getUsername());
+        }
+    }
+
+    @Test
+    public void inlineSenderRoundTrip() throws IOException {
+        Message message = new Message(new User("id_1", "爱丽丝"), "你好 👋 hello");
+        message.setRoom("大厅");
+        assertSameMessage(message, roundTrip(BinaryCodec.encode(message, BinaryCodec.NO_SID), new SenderTable()));
+    }
+
+    @Test
+    public void typesNullsAndExtremeTimestamps() throws IOException {
+        for (String type : Arrays.asList("chat", "private", "system", null)) {
+            for (long timestamp : new long[] {0, 1, 127, 128, System.currentTimeMillis(), Long.MAX_VALUE, -1}) {
+                Message message = new Message();
+                message.setType(type);
+                message.setTimestamp(timestamp);
+                message.setContent(type == null ? null : "");
+                assertSameMessage(message, roundTrip(BinaryCodec.encode(message, BinaryCodec.NO_SID),
+                        new SenderTable()));
+            }
+        }
+    }
+
+    @Test
+    public void sessionSenderNeedsDefinition() throws IOException {
+        User bob = new User("id_2", "bob");
+        Message message = new Message(bob, "hi");
+        SenderTable senders = new SenderTable();
+        byte[] frame = BinaryCodec.encode(message, 7);
+        try {
+            roundTrip(frame, senders);
+            fail("未定义的发送者编号应当报错");
+        } catch (IOException expected) {
+            // 预期
+        }
+        assertNull(roundTrip(BinaryCodec.encodeSender(7, bob), senders));
+        assertSameMessage(message, roundTrip(frame, senders));
+        // 会话编号比内联发送者省空间
+        assertTrue(frame.length < BinaryCodec.encode(message, BinaryCodec.NO_SID).length);
+    }
+
+    @Test
+    public void systemSenderIsPredefined() throws IOException {
+        Message message = new Message(new User("system", "System"), "bob 加入了聊天室");
+        assertSameMessage(message, roundTrip(BinaryCodec.encode(message, BinaryCodec.SYSTEM_SID), new SenderTable()));
+    }
+
+    @Test
+    public void stringsEncodeLikeGetBytes() throws IOException {
+        // 落单的代理字符和 String.getBytes 一样变成 '?'；长内容的长度前缀占多个字节
+        Message message = new Message(new User("id", "名字"), "落单 \ud83d 结尾\ud83d");
+        Message decoded = roundTrip(BinaryCodec.encode(message, BinaryCodec.NO_SID), new SenderTable());
+        assertEquals(new String(message.getContent().getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8),
+                decoded.getContent());
+        Message large = new Message(null, "长😀".repeat(10000));
+        assertSameMessage(large, roundTrip(BinaryCodec.encode(large, BinaryCodec.NO_SID), new SenderTable()));
+    }
+
+    @Test
+    public void binaryIsSmallerThanJson() {
+        Message message = new Message(new User("user_1234", "alice"), "今天中午吃什么？");
+        byte[] json = NetworkUtils.encode(message);
+        byte[] binary = BinaryCodec.encode(message, 42);
+        assertTrue(binary.length * 2 < json.length);
+    }
+
+    @Test
+    public void rejectsTruncatedAndTrailingBytes() {
+        byte[] frame = BinaryCodec.encode(new Message(new User("1", "a"), "content"), BinaryCodec.NO_SID);
+        // frame[0] 是长度前缀（帧很短，只有一个字节）
+        byte[] body = Arrays.copyOfRange(frame, 1, frame.length);
+        for (int length : new int[] {body.length - 1, 0}) {
+            try {
+                BinaryCodec.decode(body, 0, length, new SenderTable());
+                fail("截断的帧应当报错");
+            } catch (IOException expected) {
+                // 预期
+            }
+        }
+        byte[] padded = Arrays.copyOf(body, body.length + 1);
+        try {
+            BinaryCodec.decode(padded, 0, padded.length, new SenderTable());
+            fail("多余的字节应当报错");
+        } catch (IOException expected) {
+            // 预期
+        }
+    }
+
+    @Test
+    public void decoderSplitsFramesAcrossReadsAndSwitchesProtocol() throws IOException {
+        // 一行JSON登录消息后紧跟两个二进制帧，逐字节喂给解码器
+        Message login = new Message(new User("1", "alice"), "---login---");
+        login.setProtocol(Protocol.BINARY.getWireName());
+        Message first = new Message(null, "第一条");
+        Message second = new Message(null, "x".repeat(300));
+        byte[] stream = concat(NetworkUtils.encode(login),
+                BinaryCodec.encode(first, BinaryCodec.NO_SID), BinaryCodec.encode(second, BinaryCodec.NO_SID));
+
+        FrameDecoder decoder = new FrameDecoder(4, 1 << 16);
+        List<String> received = new ArrayList<>();
+        SenderTable senders = new SenderTable();
+        FrameDecoder.FrameHandler handler = (array, offset, length) -> {
+            if (received.isEmpty()) {
+                Message message = NetworkUtils.decode(new String(array, offset, length, StandardCharsets.UTF_8));
+                decoder.setProtocol(Protocol.fromWireName(message.getProtocol()));
+                received.add(message.getContent());
+            } else {
+                received.add(BinaryCodec.decode(array, offset, length, senders).getContent());
+            }
+        };
+        for (byte b : stream) {
+            decoder.buffer().put(b);
+            decoder.decode(handler);
+        }
+        assertEquals(Arrays.asList("---login---", "第一条", second.getContent()), received);
+
+        // 同一次read读到所有帧
+        received.clear();
+        FrameDecoder batch = new FrameDecoder(1 << 12, 1 << 16);
+        batch.buffer().put(stream);
+        FrameDecoder.FrameHandler batchHandler = (array, offset, length) -> {
+            if (received.isEmpty()) {
+                batch.setProtocol(Protocol.BINARY);
+                received.add("login");
+            } else {
+                received.add(BinaryCodec.decode(array, offset, length, senders).getContent());
+            }
+        };
+        batch.decode(batchHandler);
+        assertEquals(Arrays.asList("login", "第一条", second.getContent()), received);
+    }
+
+    @Test(expected = IOException.class)
+    public void decoderRejectsOversizedBinaryFrame() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(16, 100);
+        decoder.setProtocol(Protocol.BINARY);
+        decoder.buffer().put(BinaryCodec.encode(new Message(null, "y".repeat(200)), BinaryCodec.NO_SID), 0, 8);
+        decoder.decode((array, offset, length) -> fail("不应解出超长帧"));
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int total = 0;
+        for (byte[] part : parts) {
+            total += part.length;
+        }
+        byte[] result = new byte[total];
+        int pos = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, pos, part.length);
+            pos += part.length;
+        }
+        return result;
+    }
+}
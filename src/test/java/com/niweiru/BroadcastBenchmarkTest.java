@@ -0,0 +1,225 @@
+package com.niweiru;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.qos.logback.classic.Level;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 广播的CPU和内存分配对比：每个接收者各编码一次（原来的做法） vs 只编码一次共享同一帧
+ * 接收者是只统计字节数的内存会话，测出来的只有编码和分发本身的开销，不含网络IO。
+ * 另外对比逐个发送和分片并行发送时，最后一个接收者拿到消息的延迟随房间人数的变化。
+ *
+ * 默认跳过，运行方式：
+ * mvn test -Dtest=BroadcastBenchmarkTest -Dchat.benchmark=true [-Dchat.benchmark.recipients=2000]
+ *     [-Dchat.benchmark.parallelism=8]
+ */
+public class BroadcastBenchmarkTest {
+    private static final Logger logger = LoggerFactory.getLogger(BroadcastBenchmarkTest.class);
+
+    private static final int RECIPIENTS = Integer.getInteger("chat.benchmark.recipients", 2000);
+    private static final int BROADCASTS = Integer.getInteger("chat.benchmark.broadcasts", 500);
+    private static final int PARALLELISM = Integer.getInteger("chat.benchmark.parallelism",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Before
+    public void onlyWhenRequested() {
+        assumeTrue("设置 -Dchat.benchmark=true 才运行基准测试", Boolean.getBoolean("chat.benchmark"));
+    }
+
+    @Test
+    public void compareEncodeOnceWithEncodePerRecipient() {
+        // 每条消息一行INFO日志会淹没结果，测量期间关掉
+        ch.qos.logback.classic.Logger serverLogger =
+                (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Server.class);
+        Level level = serverLogger.getLevel();
+        serverLogger.setLevel(Level.WARN);
+        try {
+            ServerConfig config = new ServerConfig();
+            // 同一个发送者连续广播，不关掉限流会被丢弃
+            config.disableRateLimits();
+            Server server = new Server(config);
+            List<DiscardSession> sessions = new ArrayList<>();
+            for (int i = 0; i < RECIPIENTS; i++) {
+                DiscardSession session = new DiscardSession("bench-" + i);
+                server.login(session, new Message(new User("id_" + i, "bench_" + i), "---login---"));
+                sessions.add(session);
+            }
+            DiscardSession sender = sessions.get(0);
+            Message message = new Message(sender.getUser(), "一条普通长度的聊天消息，用来测量广播开销 0123456789");
+
+            // 预热
+            for (int i = 0; i < BROADCASTS; i++) {
+                encodePerRecipient(sessions, sender, message);
+                server.handleMessage(sender, message);
+            }
+
+            long[] before = measure(() -> encodePerRecipient(sessions, sender, message));
+            long[] after = measure(() -> server.handleMessage(sender, message));
+
+            logger.info("接收者 {}，广播 {} 次", RECIPIENTS, BROADCASTS);
+            logger.info(String.format("%-12s %16s %16s", "方式", "CPU(us)/次", "分配(KB)/次"));
+            logger.info(String.format("%-12s %16d %16d", "逐个编码", before[0] / 1000, before[1] >> 10));
+            logger.info(String.format("%-12s %16d %16d", "编码一次", after[0] / 1000, after[1] >> 10));
+        } finally {
+            serverLogger.setLevel(level);
+        }
+    }
+
+    /**
+     * 一次广播从发送方开始处理到最后一个接收者入队的时间（调用方等全部分片发完才返回，所以就是 handleMessage 的耗时）。
+     * 接收者把帧放进真实的 OutboundQueue 再立即取走，模拟NIO模式下入队和唤醒写线程之前的开销。
+     * 并行的效果取决于CPU核心数，单核机器上两种方式差不多。
+     */
+    @Test
+    public void sequentialVersusShardedDeliveryLatency() {
+        ch.qos.logback.classic.Logger serverLogger =
+                (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Server.class);
+        Level level = serverLogger.getLevel();
+        serverLogger.setLevel(Level.WARN);
+        try {
+            logger.info("CPU 核心数 {}，分片线程数 {}，每种房间人数广播 {} 次，单位微秒",
+                    Runtime.getRuntime().availableProcessors(), PARALLELISM, BROADCASTS);
+            logger.info(String.format("%8s %12s %12s %12s %12s", "人数", "逐个 p50", "逐个 p99", "分片 p50",
+                    "分片 p99"));
+            for (int recipients : new int[] {100, 1000, 5000, 20000}) {
+                long[] sequential = deliveryLatency(recipients, 0);
+                long[] sharded = deliveryLatency(recipients, 1000);
+                logger.info(String.format("%8d %12d %12d %12d %12d", recipients, sequential[0] / 1000,
+                        sequential[1] / 1000, sharded[0] / 1000, sharded[1] / 1000));
+            }
+        } finally {
+            serverLogger.setLevel(level);
+        }
+    }
+
+    /**
+     * @return 每次广播耗时的 {p50, p99} 纳秒
+     */
+    private static long[] deliveryLatency(int recipients, int parallelThreshold) {
+        ServerConfig config = new ServerConfig();
+        config.disableRateLimits();
+        config.setBroadcastParallelThreshold(parallelThreshold);
+        config.setBroadcastParallelism(PARALLELISM);
+        Server server = new Server(config);
+        try {
+            List<QueueSession> sessions = new ArrayList<>();
+            for (int i = 0; i < recipients; i++) {
+                QueueSession session = new QueueSession("bench-" + i, config);
+                server.login(session, new Message(new User("id_" + i, "bench_" + i), "---login---"));
+                sessions.add(session);
+            }
+            QueueSession sender = sessions.get(0);
+            Message message = new Message(sender.getUser(), "一条普通长度的聊天消息，用来测量广播开销 0123456789");
+            for (int i = 0; i < BROADCASTS; i++) {
+                server.handleMessage(sender, message);
+            }
+            long[] nanos = new long[BROADCASTS];
+            for (int i = 0; i < BROADCASTS; i++) {
+                long start = System.nanoTime();
+                server.handleMessage(sender, message);
+                nanos[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(nanos);
+            return new long[] {nanos[BROADCASTS / 2], nanos[(int) (BROADCASTS * 0.99)]};
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * 原来的广播方式：对每个接收者调用 send(Message)，每次都重新编码
+     */
+    private static void encodePerRecipient(List<DiscardSession> sessions, Session sender, Message message) {
+        for (DiscardSession session : sessions) {
+            if (session != sender) {
+                session.send(message);
+            }
+        }
+    }
+
+    /**
+     * @return 平均每次广播的 {CPU纳秒, 分配字节数}
+     */
+    private long[] measure(Runnable broadcast) {
+        long threadId = Thread.currentThread().getId();
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        long allocatedStart = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < BROADCASTS; i++) {
+            broadcast.run();
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuStart;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedStart;
+        return new long[] {cpu / BROADCASTS, allocated / BROADCASTS};
+    }
+
+    /**
+     * 只统计收到多少字节的内存会话
+     */
+    static class DiscardSession extends Session {
+        private final String name;
+        long bytes;
+
+        DiscardSession(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void send(Message message) {
+            send(Frame.of(message));
+        }
+
+        @Override
+        public void send(Frame frame) {
+            bytes += frame.length(getProtocol());
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return name;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 把帧放进发送队列再立即取走的内存会话
+     */
+    static class QueueSession extends Session {
+        private final String name;
+        private final OutboundQueue queue;
+
+        QueueSession(String name, ServerConfig config) {
+            this.name = name;
+            this.queue = new OutboundQueue(config);
+        }
+
+        @Override
+        public void send(Frame frame) {
+            queue.offer(frame, false);
+            queue.poll();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return name;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * 集群测试：两个节点通过总线共享房间、在线用户和私聊
+ */
+public class ClusterTest {
+    private static final String SECRET = "cluster-test-secret";
+
+    private static ServerConfig nodeConfig() {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setIoThreads(2);
+        // 下面会反复发 /list 等待在线状态同步
+        config.disableRateLimits();
+        return config;
+    }
+
+    @Test
+    public void nodesShareRoomsPresenceAndPrivateMessages() throws IOException {
+        InProcessClusterBus.Hub hub = new InProcessClusterBus.Hub();
+        Server nodeA = new Server(nodeConfig(), new InProcessClusterBus(hub, "node-a"));
+        Server nodeB = new Server(nodeConfig(), new InProcessClusterBus(hub, "node-b"));
+        nodeA.start();
+        nodeB.start();
+        try (ServerTest.TestClient alice = new ServerTest.TestClient(nodeA.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            ServerTest.TestClient bob = new ServerTest.TestClient(nodeB.getLocalPort(), "bob");
+            // alice 的加入通知是异步转发的，可能在 bob 登录之后才到，跳过它
+            receiveContent(bob, "bob 加入了聊天室");
+            // 另一个节点上的用户加入，通知经总线转发过来
+            assertEquals("bob 加入了聊天室", alice.receive().getContent());
+
+            alice.send("大家好");
+            Message broadcast = receiveContent(bob, "大家好");
+            assertEquals("alice", broadcast.getSender().getUsername());
+            assertEquals("lobby", broadcast.getRoom());
+
+            bob.send("@alice 悄悄话");
+            Message privateMessage = alice.receive();
+            assertEquals("private", privateMessage.getType());
+            assertEquals("悄悄话", privateMessage.getContent());
+            assertEquals("悄悄话", bob.receive().getContent());
+
+            alice.send("/list");
+            String list = alice.receive().getContent();
+            assertTrue(list, list.contains("- alice\n"));
+            assertTrue(list, list.contains("- bob @node-b\n"));
+
+            // 用户名在整个集群内唯一
+            ServerTest.TestClient impostor = new ServerTest.TestClient(nodeA.getLocalPort(), "bob");
+            assertEquals("用户名 bob 已被使用，请选择其他用户名", impostor.receive().getContent());
+            assertNull(impostor.receive());
+            impostor.close();
+
+            bob.close();
+            assertEquals("bob 离开了聊天室", alice.receive().getContent());
+            alice.send("@bob 还在吗");
+            assertEquals("用户 bob 不存在或不在线", alice.receive().getContent());
+        } finally {
+            nodeB.stop();
+            nodeA.stop();
+        }
+    }
+
+    @Test
+    public void tcpBusConnectsNodesAndDropsPresenceOfLostNode() throws Exception {
+        List<String> noPeers = Collections.emptyList();
+        TcpClusterBus busA = new TcpClusterBus("a", "127.0.0.1", 0, noPeers, SECRET, 100);
+        Server nodeA = new Server(nodeConfig(), busA);
+        nodeA.start();
+        TcpClusterBus busB = new TcpClusterBus("b", "127.0.0.1", 0, List.of("127.0.0.1:" + busA.getPort()), SECRET, 100);
+        Server nodeB = new Server(nodeConfig(), busB);
+        nodeB.start();
+        busA.connect("127.0.0.1:" + busB.getPort());
+        try (ServerTest.TestClient alice = new ServerTest.TestClient(nodeA.getLocalPort(), "alice");
+             ServerTest.TestClient bob = new ServerTest.TestClient(nodeB.getLocalPort(), "bob")) {
+            // 连接是异步建立的，建立时对端会先收到在线用户快照
+            awaitList(alice, "- bob @b\n", true);
+            awaitList(bob, "- alice @a\n", true);
+
+            alice.send("跨节点");
+            Message broadcast = receiveContent(bob, "跨节点");
+            assertEquals("alice", broadcast.getSender().getUsername());
+
+            bob.send("@alice 你好");
+            assertEquals("private", receiveContent(alice, "你好").getType());
+
+            nodeB.stop();
+            awaitList(alice, "- bob @b\n", false);
+        } finally {
+            nodeB.stop();
+            nodeA.stop();
+        }
+    }
+
+    @Test
+    public void tcpBusRejectsUnauthenticatedAndOversizedInput() throws Exception {
+        TcpClusterBus bus = new TcpClusterBus("a", "127.0.0.1", 0, Collections.emptyList(), SECRET, 100);
+        Server node = new Server(nodeConfig(), bus);
+        node.start();
+        String event = ClusterEvent.userOnline("evil", new User("user_1", "mallory")).toJson() + "\n";
+        try (ServerTest.TestClient alice = new ServerTest.TestClient(node.getLocalPort(), "alice")) {
+            // 密钥不对：握手之后直接断开，后面的事件不会被处理
+            try (Socket socket = new Socket("127.0.0.1", bus.getPort())) {
+                socket.setSoTimeout(5000);
+                TcpClusterBus.LineReader in = new TcpClusterBus.LineReader(socket.getInputStream(), 1024);
+                String nonce = in.readLine();
+                String mac = TcpClusterBus.mac("wrong".getBytes(StandardCharsets.UTF_8), nonce, "evil");
+                OutputStream out = socket.getOutputStream();
+                out.write(("evil " + mac + "\n" + event).getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                assertNull(in.readLine());
+            }
+            // 密钥正确但一行超过上限：读到上限就断开，不会一直缓存下去
+            try (Socket socket = new Socket("127.0.0.1", bus.getPort())) {
+                socket.setSoTimeout(5000);
+                TcpClusterBus.LineReader in = new TcpClusterBus.LineReader(socket.getInputStream(), 1024);
+                String nonce = in.readLine();
+                String mac = TcpClusterBus.mac(SECRET.getBytes(StandardCharsets.UTF_8), nonce, "evil");
+                OutputStream out = socket.getOutputStream();
+                out.write(("evil " + mac + "\n").getBytes(StandardCharsets.UTF_8));
+                byte[] chunk = new byte[64 * 1024];
+                Arrays.fill(chunk, (byte) 'x');
+                try {
+                    for (int i = 0; i <= TcpClusterBus.MAX_LINE_BYTES / chunk.length; i++) {
+                        out.write(chunk);
+                    }
+                    out.write(("\n" + event).getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    assertNull(in.readLine());
+                } catch (IOException e) {
+                    // 服务器先关闭了连接，写入被重置
+                }
+            }
+            awaitList(alice, "mallory", false);
+        } finally {
+            node.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tcpBusRequiresSecret() {
+        new TcpClusterBus("a", "127.0.0.1", 0, Collections.emptyList(), "", 100);
+    }
+
+    /**
+     * 反复执行 /list，直到结果中出现（或不再出现）给定的行
+     */
+    private static void awaitList(ServerTest.TestClient client, String line, boolean present) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            client.send("/list");
+            Message reply = receiveContent(client, null);
+            if (reply.getContent().contains(line) == present) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError("等待 /list " + (present ? "出现 " : "不再出现 ") + line.trim() + " 超时");
+    }
+
+    /**
+     * 跳过加入、离开等通知和心跳，读到内容符合的消息为止
+     * @param content 期望的内容，为null时读取下一条 /list 的结果
+     */
+    private static Message receiveContent(ServerTest.TestClient client, String content) throws IOException {
+        while (true) {
+            Message message = client.receive();
+            assertTrue("连接已关闭", message != null);
+            String received = message.getContent();
+            // 心跳等消息没有内容
+            if (received != null && (content == null ? received.startsWith("在线用户:") : received.equals(content))) {
+                return message;
+            }
+        }
+    }
+}
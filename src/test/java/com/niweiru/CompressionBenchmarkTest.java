@@ -0,0 +1,117 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 逐帧压缩省下的带宽和花掉的CPU：几种典型的大消息在两种协议下的原始字节数、压缩后字节数、每帧压缩和解压耗时
+ *
+ * 默认跳过，运行方式：
+ * mvn test -Dtest=CompressionBenchmarkTest -Dchat.benchmark=true [-Dchat.benchmark.messages=20000]
+ */
+public class CompressionBenchmarkTest {
+    private static final Logger logger = LoggerFactory.getLogger(CompressionBenchmarkTest.class);
+
+    private static final int MESSAGES = Integer.getInteger("chat.benchmark.messages", 20_000);
+
+    @Before
+    public void onlyWhenRequested() {
+        assumeTrue("设置 -Dchat.benchmark=true 才运行基准测试", Boolean.getBoolean("chat.benchmark"));
+    }
+
+    @Test
+    public void bandwidthSavedVersusCpuSpent() throws IOException {
+        User sender = new User("user_1234", "alice");
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; log.length() < 8000; i++) {
+            log.append("2024-05-01 12:00:").append(10 + i % 50).append(".").append(100 + i * 7 % 900)
+                    .append(" INFO [nio-worker-").append(i % 4).append("] 请求 /api/orders/").append(100000 + i * 37)
+                    .append(" 处理完成 耗时 ").append(i * 13 % 200).append("ms\n");
+        }
+        StringBuilder list = new StringBuilder("在线用户:\n");
+        for (int i = 0; i < 500; i++) {
+            list.append("- user").append(i * 7919 % 100000).append("\n");
+        }
+        StringBuilder prose = new StringBuilder();
+        while (prose.length() < 2000) {
+            prose.append("今天中午吃什么？楼下新开了一家面馆，听说牛肉面不错，要不要一起去试试。");
+        }
+        Message[] payloads = {
+            new Message(sender, log.toString()),
+            new Message(new User("system", "System"), list.toString()),
+            new Message(sender, prose.toString()),
+            new Message(sender, "今天中午吃什么？楼下新开了一家面馆"),
+        };
+        String[] names = {"粘贴日志", "/list 500人", "长段文字", "短消息"};
+
+        Compression compression = new Compression(1024, null);
+        // 预热
+        for (Message payload : payloads) {
+            for (Protocol protocol : Protocol.values()) {
+                run(compression, protocol, payload, MESSAGES / 10);
+            }
+        }
+
+        logger.info("每种消息各压缩和解压 {} 次，不小于 1024 字节的帧才压缩", MESSAGES);
+        logger.info(String.format("%-10s %-8s %10s %10s %8s %12s %12s", "消息", "协议", "原始字节",
+                "压缩后字节", "节省", "压缩(微秒)", "解压(微秒)"));
+        for (int i = 0; i < payloads.length; i++) {
+            for (Protocol protocol : Protocol.values()) {
+                long[] result = run(compression, protocol, payloads[i], MESSAGES);
+                logger.info(String.format("%-10s %-8s %10d %10d %7.1f%% %12.2f %12.2f", names[i], protocol,
+                        result[0], result[1], 100.0 * (result[0] - result[1]) / result[0],
+                        result[2] / 1000.0 / MESSAGES, result[3] / 1000.0 / MESSAGES));
+            }
+        }
+        compression.end();
+    }
+
+    /**
+     * @return {原始字节数, 线路上的字节数, 压缩总纳秒, 解压总纳秒}
+     */
+    private static long[] run(Compression compression, Protocol protocol, Message message, int count)
+            throws IOException {
+        ByteBuffer buffer = Frame.of(message, 42).buffer(protocol);
+        byte[] plain = new byte[buffer.remaining()];
+        buffer.get(plain);
+        byte[] wire = compression.compress(protocol, plain);
+        if (wire == null) {
+            return new long[] {plain.length, plain.length, 0, 0};
+        }
+        // 解压的输入去掉JSON的换行符或二进制的长度前缀，和收帧时一致
+        int offset = protocol == Protocol.BINARY ? prefixLength(wire) : 0;
+        int length = protocol == Protocol.BINARY ? wire.length - offset : wire.length - 1;
+        int plainOffset = protocol == Protocol.BINARY ? prefixLength(plain) : 0;
+        byte[] expected = Arrays.copyOfRange(plain, plainOffset, protocol == Protocol.BINARY ? plain.length : plain.length - 1);
+        assertArrayEquals(expected, compression.inflate(protocol, wire, offset, length, plain.length));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            compression.compress(protocol, plain);
+        }
+        long compressNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            compression.inflate(protocol, wire, offset, length, plain.length);
+        }
+        long inflateNanos = System.nanoTime() - start;
+        return new long[] {plain.length, wire.length, compressNanos, inflateNanos};
+    }
+
+    private static int prefixLength(byte[] frame) {
+        int i = 0;
+        while (frame[i] < 0) {
+            i++;
+        }
+        return i + 1;
+    }
+}
@@ -0,0 +1,177 @@
+package com.niweiru;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 阻塞模式三种线程策略的负载对比
+ * 先登录一批活跃用户，再挂上大量只连接不说话的空闲连接，
+ * 然后测量内存占用、线程数以及活跃用户私聊往返延迟。
+ *
+ * 默认跳过，运行方式：
+ * mvn test -Dtest=ExecutorStrategyLoadTest -Dchat.loadtest=true [-Dchat.loadtest.idle=10000]
+ * 注意客户端和服务端在同一个进程里，文件句柄上限需要大于两倍连接数。
+ */
+public class ExecutorStrategyLoadTest {
+    private static final Logger logger = LoggerFactory.getLogger(ExecutorStrategyLoadTest.class);
+
+    private static final int IDLE = Integer.getInteger("chat.loadtest.idle", 10000);
+    private static final int ACTIVE = Integer.getInteger("chat.loadtest.active", 50);
+    private static final int ROUNDS = Integer.getInteger("chat.loadtest.rounds", 200);
+
+    @Before
+    public void onlyWhenRequested() {
+        assumeTrue("设置 -Dchat.loadtest=true 才运行负载测试", Boolean.getBoolean("chat.loadtest"));
+    }
+
+    @Test
+    public void compareStrategies() throws Exception {
+        List<String> rows = new ArrayList<>();
+        for (ExecutorStrategy strategy : ExecutorStrategy.values()) {
+            rows.add(run(strategy));
+        }
+        logger.info("空闲连接 {}，活跃用户 {}，每人 {} 次私聊往返", IDLE, ACTIVE, ROUNDS);
+        logger.info(String.format("%-8s %10s %10s %8s %8s %10s %10s %10s",
+                "策略", "堆(MB)", "RSS(MB)", "线程数", "被拒绝", "p50(us)", "p99(us)", "max(us)"));
+        for (String row : rows) {
+            logger.info(row);
+        }
+    }
+
+    private String run(ExecutorStrategy strategy) throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setExecutorStrategy(strategy);
+        // ThreadPoolExecutor 只有在队列满了之后才会创建核心线程以外的线程，
+        // 这里让有界线程池一开始就能用满最大线程数，否则活跃用户会排在队列里得不到处理
+        config.setCoreThreads(config.getMaxThreads());
+        // 所有模拟用户都来自本机，按IP限流会把它们一起限住
+        config.disableRateLimits();
+        Server server = new Server(config);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getLocalPort());
+
+        List<ServerTest.TestClient> active = new ArrayList<>();
+        List<SocketChannel> idle = new ArrayList<>();
+        ExecutorService clients = Executors.newFixedThreadPool(ACTIVE);
+        try {
+            for (int i = 0; i < ACTIVE; i++) {
+                ServerTest.TestClient client = new ServerTest.TestClient(server.getLocalPort(), strategy + "_active_" + i);
+                // 等到自己的加入通知，确认登录已处理完
+                while (!(client.getUsername() + " 加入了聊天室").equals(client.receive().getContent())) {
+                    // 跳过其他用户的加入通知
+                }
+                active.add(client);
+            }
+            for (int i = 0; i < IDLE; i++) {
+                // 只建立连接不登录：服务端对应的任务一直阻塞在读取登录消息上
+                idle.add(SocketChannel.open(address));
+            }
+            Thread.sleep(1000);
+            int rejected = countClosed(idle);
+
+            System.gc();
+            long heapMb = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20;
+            long rssMb = residentSetMb();
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (ServerTest.TestClient client : active) {
+                futures.add(clients.submit(() -> pingSelf(client)));
+            }
+            long[] latencies = new long[ACTIVE * ROUNDS];
+            int n = 0;
+            for (Future<long[]> future : futures) {
+                for (long latency : future.get()) {
+                    latencies[n++] = latency;
+                }
+            }
+            Arrays.sort(latencies);
+
+            return String.format("%-8s %10d %10d %8d %8d %10d %10d %10d", strategy, heapMb, rssMb, threads, rejected,
+                    latencies[n / 2] / 1000, latencies[(int) (n * 0.99)] / 1000, latencies[n - 1] / 1000);
+        } finally {
+            clients.shutdownNow();
+            for (SocketChannel channel : idle) {
+                channel.close();
+            }
+            for (ServerTest.TestClient client : active) {
+                client.close();
+            }
+            server.stop();
+        }
+    }
+
+    /**
+     * 给自己发私聊，服务端会把这条消息发回两份（目标和发送者都是自己），以收到第一份为准
+     */
+    private static long[] pingSelf(ServerTest.TestClient client) throws IOException {
+        long[] latencies = new long[ROUNDS];
+        String username = client.getUsername();
+        for (int i = 0; i < ROUNDS; i++) {
+            String expected = "ping-" + i;
+            long start = System.nanoTime();
+            client.send("@" + username + " " + expected);
+            while (!expected.equals(client.receive().getContent())) {
+                // 跳过其他用户加入等系统消息
+            }
+            latencies[i] = System.nanoTime() - start;
+            client.receive();
+        }
+        return latencies;
+    }
+
+    /**
+     * 统计被服务端关闭（有界线程池拒绝）的空闲连接数
+     */
+    private static int countClosed(List<SocketChannel> channels) throws IOException {
+        int closed = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        for (SocketChannel channel : channels) {
+            channel.configureBlocking(false);
+            try {
+                if (channel.read(buffer) < 0) {
+                    closed++;
+                }
+            } catch (IOException e) {
+                closed++;
+            }
+            buffer.clear();
+        }
+        return closed;
+    }
+
+    /**
+     * 进程常驻内存（只在Linux上可用，其他系统返回-1）
+     */
+    private static long residentSetMb() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) >> 10;
+                }
+            }
+        } catch (IOException e) {
+            // 非Linux系统
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,29 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * 帧的编码和压缩结果在接收者之间共用
+ */
+public class FrameTest {
+
+    @Test
+    public void compressedBytesAreSharedButNotCachedFromAnEndedCompressor() {
+        Frame frame = Frame.of(new Message(new User("user_1", "alice"), "x".repeat(4000)));
+        byte[] plain = frame.bytes(Protocol.BINARY, null);
+
+        // 第一个接收者的连接刚关闭，它的压缩器已经释放
+        Compression closed = new Compression(1024, null);
+        closed.end();
+        assertSame(plain, frame.bytes(Protocol.BINARY, closed));
+
+        // 后面协商了压缩的接收者仍然拿到压缩后的帧，并且共用同一份
+        byte[] deflated = frame.bytes(Protocol.BINARY, new Compression(1024, null));
+        assertNotSame(plain, deflated);
+        assertSame(deflated, frame.bytes(Protocol.BINARY, new Compression(1024, null)));
+        assertSame(deflated, frame.bytes(Protocol.BINARY, closed));
+    }
+}
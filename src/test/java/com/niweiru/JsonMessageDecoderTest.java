@@ -0,0 +1,135 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * 流式JSON解码器和 Gson 解析结果一致，以及 peekContent 的分类
+ */
+public class JsonMessageDecoderTest {
+
+    private static Message decode(String json) throws IOException {
+        // 前后加上无关字节，确认只解析给定的那一段
+        byte[] line = json.getBytes(StandardCharsets.UTF_8);
+        byte[] buffer = new byte[line.length + 6];
+        System.arraycopy(line, 0, buffer, 3, line.length);
+        return JsonMessageDecoder.decode(buffer, 3, line.length);
+    }
+
+    private static int peek(String json) throws IOException {
+        byte[] line = json.getBytes(StandardCharsets.UTF_8);
+        return JsonMessageDecoder.peekContent(line, 0, line.length);
+    }
+
+    private static void assertSameAsGson(String json) throws IOException {
+        Message expected = NetworkUtils.decode(json);
+        Message actual = decode(json);
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.getRoom(), actual.getRoom());
+        assertEquals(expected.getProtocol(), actual.getProtocol());
+        if (expected.getSender() == null) {
+            assertNull(actual.getSender());
+        } else {
+            assertEquals(expected.getSender().getId(), actual.getSender().getId());
+            assertEquals(expected.getSender().getUsername(), actual.getSender().getUsername());
+        }
+    }
+
+    @Test
+    public void decodesWhatNetworkUtilsEncodes() throws IOException {
+        Message message = new Message(new User("user_1", "小明"), "你好 \"世界\" \\ \n\t 😀 </>");
+        message.setRoom("lobby");
+        message.setProtocol("binary");
+        assertSameAsGson(NetworkUtils.toJson(message));
+        assertSameAsGson(NetworkUtils.toJson(Heartbeat.message(new User("1", "a"), Heartbeat.PING_TYPE)));
+    }
+
+    @Test
+    public void matchesGsonOnUnusualButValidInput() throws IOException {
+        assertSameAsGson("{}");
+        assertSameAsGson(" { \"content\" : \"x\" , \"type\" : \"private\" } ");
+        assertSameAsGson("{\"sender\":null,\"content\":null,\"timestamp\":null,\"room\":null}");
+        assertSameAsGson("{\"sender\":{\"username\":\"bob\",\"extra\":[1,{\"a\":\"}\"}]},\"content\":\"hi\"}");
+        assertSameAsGson("{\"unknown\":{\"nested\":[true,false,null,-1.5e3,\"\\\"]\"]},\"content\":\"ok\"}");
+        assertSameAsGson("{\"content\":\"first\",\"content\":\"last\"}");
+        assertSameAsGson("{\"timestamp\":1700000000000}");
+        assertSameAsGson("{\"timestamp\":-42}");
+        assertSameAsGson("{\"timestamp\":\"123\"}");
+        assertSameAsGson("{\"timestamp\":1.7E12}");
+        assertSameAsGson("{\"content\":\"\\u4f60\\u597D\\ud83d\\ude00\\/\"}");
+        assertSameAsGson("{\"cont\\u0065nt\":\"escaped name\"}");
+        assertSameAsGson("{\"type\":\"custom\",\"content\":\"\"}");
+    }
+
+    @Test
+    public void knownTypesAreSharedConstants() throws IOException {
+        assertSame("chat", decode("{\"type\":\"chat\"}").getType());
+        assertSame(Heartbeat.PONG_TYPE, decode("{\"type\":\"pong\"}").getType());
+        assertEquals("chatty", decode("{\"type\":\"chatty\"}").getType());
+    }
+
+    @Test
+    public void rejectsMalformedJson() {
+        String[] malformed = {
+            "", "[]", "{", "{\"content\":\"x\"", "{\"content\":\"x}", "{\"content\" \"x\"}",
+            "{\"content\":\"x\",}", "{\"content\":\"x\"} trailing", "{\"timestamp\":1.5}",
+            "{\"timestamp\":99999999999999999999}", "{\"content\":\"\\q\"}", "{\"content\":nul}",
+        };
+        for (String json : malformed) {
+            try {
+                decode(json);
+                fail("应当拒绝: " + json);
+            } catch (IOException expected) {
+                // 格式错误
+            }
+        }
+    }
+
+    @Test
+    public void decodesIntoReusedMessageWithGivenSender() throws IOException {
+        User alice = new User("id_alice", "alice");
+        Message reused = new Message();
+        byte[] first = "{\"type\":\"private\",\"sender\":{\"username\":\"冒充\"},\"content\":\"@bob hi\",\"room\":\"dev\",\"timestamp\":5}"
+                .getBytes(StandardCharsets.UTF_8);
+        assertSame(reused, JsonMessageDecoder.decode(reused, first, 0, first.length, alice));
+        assertSame(alice, reused.getSender());
+        assertEquals("@bob hi", reused.getContent());
+        assertEquals("dev", reused.getRoom());
+
+        // 上一条消息的字段不会残留
+        byte[] second = "{\"content\":\"/list\"}".getBytes(StandardCharsets.UTF_8);
+        JsonMessageDecoder.decode(reused, second, 0, second.length, alice);
+        assertNull(reused.getType());
+        assertNull(reused.getRoom());
+        assertEquals(0, reused.getTimestamp());
+        assertEquals("/list", reused.getContent());
+        assertSame(alice, reused.getSender());
+
+    }
+
+    @Test
+    public void peeksFirstCharacterOfContent() throws IOException {
+        assertEquals('/', peek("{\"type\":\"chat\",\"content\":\"/list\"}"));
+        assertEquals('@', peek("{\"content\":\"@bob hi\",\"sender\":{\"username\":\"a\"}}"));
+        assertEquals('你', peek("{\"content\":\"你好\"}"));
+        assertEquals('/', peek("{\"content\":\"\\/list\"}"));
+        assertEquals('@', peek("{\"content\":\"\\u0040bob hi\"}"));
+        assertEquals(Character.highSurrogate(0x1F600), peek("{\"content\":\"😀\"}"));
+        assertEquals('x', peek("{\"content\":\"/a\",\"content\":\"x\"}"));
+        assertEquals(JsonMessageDecoder.EMPTY_CONTENT, peek("{\"content\":\"\"}"));
+        assertEquals(JsonMessageDecoder.NO_CONTENT, peek("{\"content\":null}"));
+        assertEquals(JsonMessageDecoder.NO_CONTENT, peek("{\"type\":\"ping\",\"timestamp\":1}"));
+        // 心跳带了内容也不按内容分类，类型同样以最后一个为准
+        assertEquals(JsonMessageDecoder.NO_CONTENT, peek("{\"content\":\"/list\",\"type\":\"pong\"}"));
+        assertEquals('/', peek("{\"type\":\"ping\",\"content\":\"/list\",\"type\":\"chat\"}"));
+    }
+}
@@ -0,0 +1,69 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+
+/**
+ * 手写的JSON编码器和 Gson 的输出逐字节相同
+ */
+public class JsonMessageEncoderTest {
+    private static final Gson gson = new Gson();
+
+    private static void assertSameAsGson(Message message) {
+        byte[] expected = (gson.toJson(message) + "\n").getBytes(StandardCharsets.UTF_8);
+        assertEquals(new String(expected, StandardCharsets.UTF_8),
+                new String(JsonMessageEncoder.encode(message), StandardCharsets.UTF_8));
+        assertEquals(expected.length, JsonMessageEncoder.encode(message).length);
+    }
+
+    @Test
+    public void matchesGsonForOrdinaryMessages() {
+        Message message = new Message(new User("user_1", "小明"), "你好，世界");
+        assertSameAsGson(message);
+        message.setRoom("lobby");
+        assertSameAsGson(message);
+        message.setProtocol("binary");
+        message.setCompression(Compression.DEFLATE);
+        assertSameAsGson(message);
+        assertSameAsGson(Heartbeat.message(User.SYSTEM, Heartbeat.PING_TYPE));
+    }
+
+    @Test
+    public void matchesGsonForNullsAndEmptySender() {
+        assertSameAsGson(new Message());
+        assertSameAsGson(new Message(null, null));
+        assertSameAsGson(new Message(new User(null, null), ""));
+        assertSameAsGson(new Message(new User(null, "bob"), "x"));
+        assertSameAsGson(new Message(new User("id", null), "x"));
+    }
+
+    @Test
+    public void matchesGsonForEscapesAndUnicode() {
+        String[] contents = {
+            "引号\" 反斜杠\\ 斜杠/ 换行\n 回车\r 制表\t 退格\b 换页\f",
+            "控制字符\u0000\u0001\u001f 删除\u007f",
+            "<script>alert('x') & a=b</script>",
+            "行分隔\u2028 段分隔\u2029",
+            "😀 emoji 和 𠀀 扩展汉字",
+            "落单的代理字符 \ud83d 和 \ude00 结尾\ud83d",
+            "é ñ ü ß Ω ж",
+        };
+        for (String content : contents) {
+            assertSameAsGson(new Message(new User("id\"<>", "名字\n"), content));
+        }
+    }
+
+    @Test
+    public void matchesGsonForTimestamps() {
+        long[] timestamps = {0, 1, -1, 9, 10, -10, 1700000000000L, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long timestamp : timestamps) {
+            Message message = new Message(null, "t");
+            message.setTimestamp(timestamp);
+            assertSameAsGson(message);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 延迟直方图：计数、最大值和按桶估算的百分位
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(1_000_000);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.count());
+        assertEquals(99 * 1000 + 1_000_000, snapshot.sum());
+        assertEquals(1_000_000, snapshot.max());
+        // 1000 落在 [512, 1024) 桶
+        assertEquals(1023, snapshot.percentile(0.5));
+        assertEquals(1023, snapshot.percentile(0.99));
+        assertEquals(1_000_000, snapshot.percentile(1.0));
+    }
+
+    @Test
+    public void emptyAndZeroValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().percentile(0.99));
+        histogram.record(0);
+        histogram.record(-5);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.count());
+        assertTrue(snapshot.percentile(0.5) <= 1);
+    }
+}
@@ -0,0 +1,91 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 压测客户端对本机服务器跑一小段，确认广播和私聊都能统计到投递和延迟
+ */
+public class LoadGeneratorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reportsDeliveriesAndLatencyAgainstLoopbackServer() throws Exception {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setIoMode(IoMode.NIO);
+        config.setIoThreads(2);
+        config.disableRateLimits();
+        Server server = new Server(config);
+        server.start();
+        try {
+            LoadGenerator.Options options = new LoadGenerator.Options();
+            options.setHost("127.0.0.1");
+            options.setPort(server.getLocalPort());
+            options.setUsers(20);
+            options.setConnectRate(200);
+            options.setMessageRate(10);
+            options.setPrivateRatio(0.3);
+            options.setMessageBytes(32);
+            options.setRooms(2);
+            options.setDurationSeconds(1);
+            options.setReportIntervalSeconds(0);
+            options.setProtocol(Protocol.BINARY);
+
+            LoadGenerator.Report report = new LoadGenerator(options).run();
+
+            assertEquals(20, report.getConnected());
+            assertEquals(0, report.getConnectFailures());
+            assertEquals(0, report.getErrors());
+            LoadGenerator.Stats broadcast = report.broadcast();
+            LoadGenerator.Stats privates = report.privates();
+            assertTrue(report.toString(), broadcast.sent() > 0 && privates.sent() > 0);
+            // 两个房间各10人，每条广播投递给另外9人；私聊投递给对方和发送者自己
+            assertEquals(report.toString(), broadcast.sent() * 9, broadcast.delivered());
+            assertEquals(report.toString(), privates.sent() * 2, privates.delivered());
+            assertTrue(report.toString(), broadcast.latency().max() < 5000);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void reportsTlsHandshakesAndResumption() throws Exception {
+        String keyStore = TlsTest.generateKeyStore(folder.getRoot());
+        Server server = new Server(TlsTest.tlsConfig(IoMode.NIO, keyStore));
+        server.start();
+        try {
+            LoadGenerator.Options options = new LoadGenerator.Options();
+            options.setHost("localhost");
+            options.setPort(server.getLocalPort());
+            options.setUsers(10);
+            // 连接间隔留够时间让上一条连接收到会话票据
+            options.setConnectRate(5);
+            options.setMessageRate(5);
+            options.setDurationSeconds(1);
+            options.setReportIntervalSeconds(0);
+            options.setTls(true);
+            options.setTrustStore(keyStore);
+            options.setTrustStorePassword(TlsTest.PASSWORD);
+
+            LoadGenerator.Report resuming = new LoadGenerator(options).run();
+            assertEquals(resuming.toString(), 10, resuming.getConnected());
+            assertEquals(resuming.toString(), 0, resuming.getErrors());
+            // 第一条连接完整握手，之后的连接用它收到的会话票据
+            assertTrue(resuming.toString(), resuming.getResumed() > 0 && resuming.getResumed() < 10);
+            assertTrue(resuming.toString(), resuming.broadcast().delivered() > 0);
+
+            options.setTlsResume(false);
+            LoadGenerator.Report full = new LoadGenerator(options).run();
+            assertEquals(full.toString(), 10, full.getConnected());
+            assertEquals(full.toString(), 0, full.getResumed());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * 日志限流：每秒配额、省略计数
+ */
+public class LogRateLimiterTest {
+
+    @Test
+    public void allowsQuotaThenCountsSuppressed() throws InterruptedException {
+        LogRateLimiter limiter = new LogRateLimiter(3);
+        // 避开秒边界，保证下面的调用都落在同一秒
+        long nanosIntoSecond = System.nanoTime() % 1_000_000_000L;
+        if (nanosIntoSecond > 800_000_000L) {
+            Thread.sleep(250);
+        }
+        assertEquals(0, limiter.tryAcquire());
+        assertEquals(0, limiter.tryAcquire());
+        assertEquals(0, limiter.tryAcquire());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(-1, limiter.tryAcquire());
+        }
+        Thread.sleep(1100);
+        // 下一秒第一条放行，并带上被省略的条数
+        assertEquals(10, limiter.tryAcquire());
+        assertEquals(0, limiter.tryAcquire());
+    }
+
+    @Test
+    public void zeroDisablesAndNegativeIsUnlimited() {
+        LogRateLimiter none = new LogRateLimiter(0);
+        LogRateLimiter unlimited = new LogRateLimiter(-1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(-1, none.tryAcquire());
+            assertEquals(0, unlimited.tryAcquire());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * 聊天记录环形缓冲区：按条数和字节数淘汰
+ */
+public class MessageHistoryTest {
+
+    private static Frame frame(String content) {
+        return Frame.of(new Message(new User("1", "alice"), content));
+    }
+
+    private static String[] contents(Frame[] frames) {
+        String[] result = new String[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            String json = StandardCharsets.UTF_8.decode(frames[i].buffer(Protocol.JSON)).toString();
+            result[i] = NetworkUtils.decode(json.trim()).getContent();
+        }
+        return result;
+    }
+
+    @Test
+    public void evictsOldestByCount() {
+        MessageHistory history = new MessageHistory(3, Long.MAX_VALUE);
+        for (int i = 0; i < 5; i++) {
+            history.append(frame("m" + i));
+        }
+        assertEquals(3, history.size());
+        assertArrayEquals(new String[] {"m2", "m3", "m4"}, contents(history.recent(10)));
+        assertArrayEquals(new String[] {"m3", "m4"}, contents(history.recent(2)));
+        assertEquals(0, history.recent(0).length);
+    }
+
+    @Test
+    public void evictsOldestByBytes() {
+        int length = frame("m0").length(Protocol.JSON);
+        MessageHistory history = new MessageHistory(100, length * 2L);
+        for (int i = 0; i < 5; i++) {
+            history.append(frame("m" + i));
+        }
+        assertEquals(2, history.size());
+        assertEquals(length * 2L, history.bytes());
+        assertArrayEquals(new String[] {"m3", "m4"}, contents(history.recent(10)));
+
+        // 单条超过上限的消息不保留，也不挤掉已有记录
+        history.append(frame("x".repeat(length * 2)));
+        assertEquals(2, history.size());
+    }
+
+    @Test
+    public void zeroCapacityKeepsNothing() {
+        MessageHistory history = new MessageHistory(0, 1024);
+        history.append(frame("m0"));
+        assertEquals(0, history.recent(10).length);
+    }
+}
@@ -0,0 +1,163 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 消息日志：跨段追加、按时间读取、重启恢复、保留策略
+ */
+public class MessageLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ServerConfig config(int segmentBytes) {
+        ServerConfig config = new ServerConfig();
+        config.setLogDir(folder.getRoot().getPath());
+        config.setLogSegmentBytes(segmentBytes);
+        config.setLogFlushIntervalMillis(60_000);
+        return config;
+    }
+
+    private static Frame frame(String content) {
+        return Frame.of(new Message(new User("1", "alice"), content));
+    }
+
+    private static List<String> contents(MessageLog log, long fromTimestamp) {
+        List<String> contents = new ArrayList<>();
+        log.read(fromTimestamp, (timestamp, channel, payload) -> {
+            Message message = NetworkUtils.decode(StandardCharsets.UTF_8.decode(payload).toString().trim());
+            contents.add(channel + ":" + message.getContent());
+            return true;
+        });
+        return contents;
+    }
+
+    private File[] segmentFiles() {
+        return folder.getRoot().listFiles((dir, name) -> name.endsWith(".log"));
+    }
+
+    @Test
+    public void rollsSegmentsAndSurvivesRestart() throws IOException {
+        List<String> expected = new ArrayList<>();
+        try (MessageLog log = MessageLog.open(config(4096))) {
+            for (int i = 0; i < 200; i++) {
+                String channel = i % 2 == 0 ? "lobby" : "@bob";
+                log.append(frame("消息-" + i), channel);
+                expected.add(channel + ":消息-" + i);
+            }
+            assertEquals(expected, contents(log, 0));
+        }
+        assertTrue(segmentFiles().length > 1);
+
+        try (MessageLog reopened = MessageLog.open(config(4096))) {
+            assertEquals(expected, contents(reopened, 0));
+            reopened.append(frame("重启后"), "lobby");
+            assertEquals("lobby:重启后", contents(reopened, 0).get(200));
+        }
+    }
+
+    @Test
+    public void readsFromTimestamp() throws IOException, InterruptedException {
+        try (MessageLog log = MessageLog.open(config(64 * 1024))) {
+            for (int i = 0; i < 500; i++) {
+                log.append(frame("旧-" + i), "lobby");
+            }
+            Thread.sleep(5);
+            long since = System.currentTimeMillis();
+            log.append(frame("新-0"), "lobby");
+            log.append(frame("新-1"), "lobby");
+            List<String> recent = contents(log, since);
+            assertEquals(2, recent.size());
+            assertEquals("lobby:新-0", recent.get(0));
+            assertEquals(0, contents(log, Long.MAX_VALUE).size());
+        }
+    }
+
+    @Test
+    public void stopsAtTornRecord() throws IOException {
+        try (MessageLog log = MessageLog.open(config(4096))) {
+            log.append(frame("完整"), "lobby");
+            log.append(frame("写了一半"), "lobby");
+        }
+        // 模拟崩溃时第二条记录没写完：破坏它的记录体
+        File segment = segmentFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(file.readInt() + LogSegment.HEADER_LENGTH + LogSegment.HEADER_LENGTH + 20);
+            file.write(0x7f);
+        }
+        try (MessageLog reopened = MessageLog.open(config(4096))) {
+            List<String> contents = contents(reopened, 0);
+            assertEquals(1, contents.size());
+            assertEquals("lobby:完整", contents.get(0));
+        }
+    }
+
+    @Test
+    public void readsLatestMatchesAcrossSegments() throws IOException, InterruptedException {
+        try (MessageLog log = MessageLog.open(config(4096))) {
+            for (int i = 0; i < 300; i++) {
+                log.append(frame("消息-" + i), i % 3 == 0 ? "@bob" : "lobby");
+            }
+            List<String> latest = new ArrayList<>();
+            for (byte[] record : log.readLatest(0, 5, (channel, payload) -> channel.equals("lobby"))) {
+                latest.add(NetworkUtils.decode(new String(record, StandardCharsets.UTF_8).trim()).getContent());
+            }
+            // 最新的5条，按写入顺序
+            assertEquals(List.of("消息-293", "消息-295", "消息-296", "消息-298", "消息-299"), latest);
+
+            Thread.sleep(5);
+            long since = System.currentTimeMillis();
+            log.append(frame("新"), "lobby");
+            assertEquals(1, log.readLatest(since, 5, (channel, payload) -> true).size());
+            assertEquals(0, log.readLatest(since, 5, (channel, payload) -> channel.equals("@bob")).size());
+        }
+    }
+
+    @Test
+    public void longChannelNamesSurviveRestartAndOversizedOnesAreRejected() throws IOException {
+        // 超过 Short.MAX_VALUE 字节的频道名按有符号数读出来是负数
+        String channel = "@" + "u".repeat(40_000);
+        try (MessageLog log = MessageLog.open(config(128 * 1024))) {
+            log.append(frame("长频道"), channel);
+            try {
+                log.append(frame("太长"), "@" + "u".repeat(LogSegment.MAX_CHANNEL_BYTES));
+                fail("频道名超过上限应该被拒绝");
+            } catch (IOException e) {
+                // 预期的
+            }
+            log.append(frame("之后"), "lobby");
+        }
+        try (MessageLog reopened = MessageLog.open(config(128 * 1024))) {
+            assertEquals(List.of(channel + ":长频道", "lobby:之后"), contents(reopened, 0));
+        }
+    }
+
+    @Test
+    public void deletesOldestSegmentsOverRetentionBytes() throws IOException {
+        ServerConfig config = config(4096);
+        config.setLogRetentionBytes(3 * 4096);
+        try (MessageLog log = MessageLog.open(config)) {
+            for (int i = 0; i < 400; i++) {
+                log.append(frame("消息-" + i), "lobby");
+            }
+            log.flushAndClean();
+            List<String> contents = contents(log, 0);
+            assertTrue(contents.size() < 400);
+            // 删掉的是最旧的整段，剩下的仍以最新一条结尾
+            assertEquals("lobby:消息-399", contents.get(contents.size() - 1));
+            assertTrue(segmentFiles().length <= 4);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * 发送队列三种溢出策略
+ */
+public class OutboundQueueTest {
+
+    private static OutboundQueue queue(OverflowPolicy policy, int capacity) {
+        ServerConfig config = new ServerConfig();
+        config.setOverflowPolicy(policy);
+        config.setOutboundQueueCapacity(capacity);
+        config.setOutboundBlockTimeoutMillis(50);
+        return new OutboundQueue(config);
+    }
+
+    private static Frame frame(String content) {
+        return Frame.of(new Message(new User("id", "u"), content));
+    }
+
+    @Test
+    public void dropOldestKeepsNewestFrames() {
+        OutboundQueue queue = queue(OverflowPolicy.DROP_OLDEST, 2);
+        Frame first = frame("1");
+        Frame second = frame("2");
+        Frame third = frame("3");
+        assertTrue(queue.offer(first, true));
+        assertTrue(queue.offer(second, true));
+        assertTrue(queue.offer(third, true));
+
+        assertEquals(1, queue.dropped());
+        assertEquals(2, queue.maxDepth());
+        assertSame(second, queue.poll());
+        assertSame(third, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void disconnectRejectsWhenFull() {
+        OutboundQueue queue = queue(OverflowPolicy.DISCONNECT, 1);
+        assertTrue(queue.offer(frame("1"), true));
+        assertFalse(queue.offer(frame("2"), true));
+        assertEquals(1, queue.dropped());
+        assertEquals(1, queue.depth());
+    }
+
+    @Test
+    public void blockTimesOutWhenNobodyDrains() {
+        OutboundQueue queue = queue(OverflowPolicy.BLOCK, 1);
+        assertTrue(queue.offer(frame("1"), true));
+        assertFalse(queue.offer(frame("2"), true));
+        // 不允许等待时超出容量入队，由调用方负责暂停发送方
+        assertTrue(queue.offer(frame("3"), false));
+        assertEquals(2, queue.depth());
+    }
+
+    @Test
+    public void blockWaitsForWriter() throws InterruptedException {
+        OutboundQueue queue = queue(OverflowPolicy.BLOCK, 1);
+        Frame first = frame("1");
+        queue.offer(first, true);
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            queue.poll();
+        });
+        writer.start();
+        assertTrue(queue.offer(frame("2"), true));
+        writer.join();
+        assertEquals(0, queue.dropped());
+    }
+
+    @Test
+    public void drainCallbackRunsAtHalfCapacityOrClose() {
+        OutboundQueue queue = queue(OverflowPolicy.BLOCK, 4);
+        for (int i = 0; i < 4; i++) {
+            queue.offer(frame(String.valueOf(i)), false);
+        }
+        AtomicBoolean drained = new AtomicBoolean();
+        queue.whenDrained(() -> drained.set(true));
+        queue.poll();
+        assertFalse(drained.get());
+        queue.poll();
+        assertTrue(drained.get());
+
+        AtomicBoolean released = new AtomicBoolean();
+        queue.offer(frame("4"), false);
+        queue.offer(frame("5"), false);
+        queue.whenDrained(() -> released.set(true));
+        queue.close();
+        assertTrue(released.get());
+        assertFalse(queue.offer(frame("6"), true));
+    }
+}
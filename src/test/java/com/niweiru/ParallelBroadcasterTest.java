@@ -0,0 +1,136 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * 大房间分片并行广播：每个接收者恰好收到一次，顺序和发送顺序一致
+ */
+public class ParallelBroadcasterTest {
+
+    private static ServerConfig config(int threshold, int parallelism) {
+        ServerConfig config = new ServerConfig();
+        config.disableRateLimits();
+        config.setBroadcastParallelThreshold(threshold);
+        config.setBroadcastParallelism(parallelism);
+        return config;
+    }
+
+    @Test
+    public void largeRoomsAreShardedAcrossThreads() {
+        ParallelBroadcaster broadcaster = new ParallelBroadcaster(config(1000, 4));
+        try {
+            assertFalse(broadcaster.isParallel(999));
+            assertTrue(broadcaster.isParallel(1000));
+            Session[] members = new Session[3000];
+            Set<String> threads = ConcurrentHashMap.newKeySet();
+            int[] hits = new int[members.length];
+            // 每个分片等到四个分片都开始了才继续，证明它们是同时在不同线程上发送的
+            CountDownLatch started = new CountDownLatch(4);
+            int sent = broadcaster.send(members, (shard, from, to) -> {
+                threads.add(Thread.currentThread().getName());
+                started.countDown();
+                try {
+                    assertTrue(started.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                for (int i = from; i < to; i++) {
+                    hits[i]++;
+                }
+                return to - from;
+            });
+            assertEquals(members.length, sent);
+            for (int hit : hits) {
+                assertEquals(1, hit);
+            }
+            // 调用线程发一片，其余三片在线程池里
+            assertEquals(threads.toString(), 4, threads.size());
+            assertTrue(threads.contains(Thread.currentThread().getName()));
+        } finally {
+            broadcaster.shutdown();
+        }
+    }
+
+    @Test
+    public void disabledByThresholdParallelismOrBlockPolicy() {
+        assertFalse(new ParallelBroadcaster(config(0, 4)).isParallel(100000));
+        assertFalse(new ParallelBroadcaster(config(1000, 1)).isParallel(100000));
+        ServerConfig blocking = config(1000, 4);
+        blocking.setOverflowPolicy(OverflowPolicy.BLOCK);
+        assertFalse(new ParallelBroadcaster(blocking).isParallel(100000));
+    }
+
+    @Test
+    public void everyRecipientSeesBroadcastsInOrder() {
+        Server server = new Server(config(100, 4));
+        try {
+            int count = 1200;
+            List<RecordingSession> sessions = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                RecordingSession session = new RecordingSession("user_" + i);
+                assertTrue(server.login(session, new Message(new User("id_" + i, "user_" + i), "---login---")));
+                sessions.add(session);
+            }
+            for (RecordingSession session : sessions) {
+                session.recording = true;
+            }
+            RecordingSession sender = sessions.get(0);
+            int messages = 50;
+            for (int i = 0; i < messages; i++) {
+                server.handleMessage(sender, new Message(sender.getUser(), "消息-" + i));
+            }
+
+            assertTrue(sender.contents.isEmpty());
+            for (RecordingSession session : sessions.subList(1, count)) {
+                assertEquals(session.getRemoteAddress(), messages, session.contents.size());
+                for (int i = 0; i < messages; i++) {
+                    assertEquals("消息-" + i, session.contents.get(i));
+                }
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * 记录收到的聊天内容；同一时刻只有一个分片在给它发送，分片之间有 join 建立先后关系
+     */
+    static class RecordingSession extends Session {
+        private final String name;
+        final List<String> contents = new ArrayList<>();
+        volatile boolean recording;
+
+        RecordingSession(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void send(Frame frame) throws IOException {
+            if (recording) {
+                byte[] json = frame.bytes(Protocol.JSON, null);
+                contents.add(NetworkUtils.decode(json, 0, json.length - 1).getContent());
+            }
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return name;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
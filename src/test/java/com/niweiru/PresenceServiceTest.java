@@ -0,0 +1,131 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+
+/**
+ * 在线用户目录：分页缓存、前缀查找、上下线通知
+ */
+public class PresenceServiceTest {
+    private static final Gson gson = new Gson();
+
+    private final List<String> deltas = new ArrayList<>();
+    private final PresenceService service = new PresenceService(2, (subscribers, delta) -> {
+        Message message = decode(delta);
+        assertEquals(PresenceService.DELTA_TYPE, message.getType());
+        for (Session subscriber : subscribers) {
+            deltas.add(subscriber.getRemoteAddress() + " " + message.getContent());
+        }
+    });
+
+    private static Message decode(Frame frame) {
+        return gson.fromJson(new String(frame.bytes(Protocol.JSON, null), StandardCharsets.UTF_8), Message.class);
+    }
+
+    private String content(int page) {
+        return decode(service.page(page)).getContent();
+    }
+
+    @Test
+    public void pagesAreSortedAndCachedUntilMembershipChanges() {
+        service.online("carol", null);
+        service.online("alice", null);
+        service.online("bob", "node-b");
+
+        Frame first = service.page(1);
+        assertEquals("在线用户:\n- alice\n- bob @node-b\n第 1/2 页，共 3 人，/list 2 查看下一页\n",
+                content(1));
+        assertEquals("在线用户:\n- carol\n第 2/2 页，共 3 人\n", content(2));
+        assertNull(service.page(3));
+        assertNull(service.page(0));
+        // 没有变化时是同一帧，编码结果也跟着复用
+        assertSame(first, service.page(1));
+
+        service.offline("carol", null);
+        Frame changed = service.page(1);
+        assertNotSame(first, changed);
+        assertEquals("在线用户:\n- alice\n- bob @node-b\n", content(1));
+        assertNull(service.page(2));
+    }
+
+    @Test
+    public void emptyDirectoryHasOneEmptyPage() {
+        assertEquals("在线用户:\n", content(1));
+    }
+
+    @Test
+    public void searchesByUsernamePrefix() {
+        for (String name : new String[] {"al", "alex", "alice", "alina", "bob", "albert"}) {
+            service.online(name, null);
+        }
+        assertEquals("以 ali 开头的在线用户:\n- alice\n- alina\n", service.search("ali", 1));
+        assertEquals("以 al 开头的在线用户:\n- al\n- albert\n第 1 页，/list al 2 查看下一页\n",
+                service.search("al", 1));
+        assertEquals("以 al 开头的在线用户:\n- alex\n- alice\n第 2 页，/list al 3 查看下一页\n",
+                service.search("al", 2));
+        assertEquals("以 al 开头的在线用户:\n- alina\n第 3 页\n", service.search("al", 3));
+        assertEquals("以 al 开头的在线用户:\n（无）\n", service.search("al", 4));
+        assertEquals("以 zz 开头的在线用户:\n（无）\n", service.search("zz", 1));
+    }
+
+    @Test
+    public void subscribersReceiveDeltasInOrder() {
+        Session watcher = new BroadcastBenchmarkTest.DiscardSession("watcher");
+        service.online("alice", null);
+        assertTrue(service.subscribe(watcher));
+        service.online("bob", "node-b");
+        service.offline("alice", null);
+        // 用户已经换到别的节点，旧节点的下线事件不生效，也不通知
+        service.online("carol", "node-c");
+        service.offline("carol", "node-b");
+        service.offline("nobody", null);
+        assertTrue(service.unsubscribe(watcher));
+        service.online("dave", null);
+
+        assertEquals(List.of("watcher +bob @node-b", "watcher -alice", "watcher +carol @node-c"), deltas);
+        assertEquals(3, service.size());
+    }
+
+    @Test
+    public void slowSubscriberDoesNotBlockOtherChanges() throws Exception {
+        CountDownLatch publishing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> received = new CopyOnWriteArrayList<>();
+        PresenceService slow = new PresenceService(2, (subscribers, delta) -> {
+            publishing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            received.add(decode(delta).getContent());
+        });
+        slow.subscribe(new BroadcastBenchmarkTest.DiscardSession("watcher"));
+        Thread first = new Thread(() -> slow.online("alice", null));
+        first.start();
+        assertTrue(publishing.await(5, TimeUnit.SECONDS));
+
+        // 第一条通知卡在发送上，其他用户的上下线不用等它，通知排在后面
+        slow.online("bob", null);
+        slow.offline("alice", null);
+        assertEquals(1, slow.size());
+        assertTrue(received.isEmpty());
+
+        release.countDown();
+        first.join(5000);
+        assertEquals(List.of("+alice", "+bob", "-alice"), received);
+    }
+}
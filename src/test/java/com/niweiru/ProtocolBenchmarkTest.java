@@ -0,0 +1,87 @@
+package com.niweiru;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JSON 与二进制协议的吞吐对比：每条消息的字节数、编码和解码速度
+ * 编码走 Frame（和服务器广播同一条路径），解码走 FrameDecoder 分帧后再解析，和NIO模式收消息一致。
+ *
+ * 默认跳过，运行方式：
+ * mvn test -Dtest=ProtocolBenchmarkTest -Dchat.benchmark=true [-Dchat.benchmark.messages=1000000]
+ */
+public class ProtocolBenchmarkTest {
+    private static final Logger logger = LoggerFactory.getLogger(ProtocolBenchmarkTest.class);
+
+    private static final int MESSAGES = Integer.getInteger("chat.benchmark.messages", 1_000_000);
+    private static final int BATCH = 1000;
+
+    @Before
+    public void onlyWhenRequested() {
+        assumeTrue("设置 -Dchat.benchmark=true 才运行基准测试", Boolean.getBoolean("chat.benchmark"));
+    }
+
+    @Test
+    public void compareJsonWithBinary() throws IOException {
+        User sender = new User("user_1234", "alice");
+        Message message = new Message(sender, "今天中午吃什么？楼下新开了一家面馆");
+        SenderTable senders = new SenderTable();
+        senders.define(42, sender);
+
+        // 预热
+        run(Protocol.JSON, message, senders, MESSAGES / 10);
+        run(Protocol.BINARY, message, senders, MESSAGES / 10);
+
+        logger.info("消息数 {}，内容 {} 个字符", MESSAGES, message.getContent().length());
+        logger.info(String.format("%-8s %10s %16s %16s", "协议", "字节/条", "编码(万条/s)", "解码(万条/s)"));
+        for (Protocol protocol : Protocol.values()) {
+            long[] result = run(protocol, message, senders, MESSAGES);
+            logger.info(String.format("%-8s %10d %16d %16d", protocol, result[0],
+                    MESSAGES * 1_000_000_000L / result[1] / 10000, MESSAGES * 1_000_000_000L / result[2] / 10000));
+        }
+    }
+
+    /**
+     * @return {每条字节数, 编码总纳秒, 解码总纳秒}
+     */
+    private static long[] run(Protocol protocol, Message message, SenderTable senders, int count) throws IOException {
+        int frameLength = Frame.of(message, 42).length(protocol);
+        byte[] batch = new byte[frameLength * BATCH];
+
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        long[] sink = new long[1];
+        FrameDecoder decoder = new FrameDecoder(batch.length, batch.length);
+        decoder.setProtocol(protocol);
+        FrameDecoder.FrameHandler handler = protocol == Protocol.BINARY
+                ? (array, offset, length) -> sink[0] += BinaryCodec.decode(array, offset, length, senders).getTimestamp()
+                : (array, offset, length) -> sink[0] += NetworkUtils.decode(array, offset, length).getTimestamp();
+
+        for (int done = 0; done < count; done += BATCH) {
+            long start = System.nanoTime();
+            int pos = 0;
+            for (int i = 0; i < BATCH; i++) {
+                byte[] bytes = new byte[frameLength];
+                Frame.of(message, 42).buffer(protocol).get(bytes);
+                System.arraycopy(bytes, 0, batch, pos, frameLength);
+                pos += frameLength;
+            }
+            encodeNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            decoder.buffer().put(batch);
+            decoder.decode(handler);
+            decodeNanos += System.nanoTime() - start;
+        }
+        if (sink[0] == 42) {
+            logger.info("避免被优化掉");
+        }
+        return new long[] {frameLength, encodeNanos, decodeNanos};
+    }
+}
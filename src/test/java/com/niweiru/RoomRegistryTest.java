@@ -0,0 +1,77 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 房间登记表：成员维护、空房间删除、房间数上限
+ */
+public class RoomRegistryTest {
+
+    @Test
+    public void createsOnFirstJoinAndDeletesWhenEmpty() {
+        RoomRegistry registry = new RoomRegistry(new ServerConfig());
+        Session alice = new BroadcastBenchmarkTest.DiscardSession("alice");
+        Session bob = new BroadcastBenchmarkTest.DiscardSession("bob");
+
+        Room dev = registry.join(alice, "dev", 0).room;
+        assertSame(dev, registry.join(bob, "dev", 0).room);
+        // 重复加入不会多出一个成员
+        assertNull(registry.join(bob, "dev", 0).backlog);
+        assertArrayEquals(new Session[] {alice, bob}, dev.members());
+        assertTrue(alice.getRooms().contains("dev"));
+
+        assertSame(dev, registry.leave(alice, "dev"));
+        assertNull(registry.leave(alice, "dev"));
+        assertEquals(1, dev.size());
+        assertTrue(alice.getRooms().isEmpty());
+
+        registry.leave(bob, "dev");
+        assertNull(registry.get("dev"));
+    }
+
+    @Test
+    public void defaultRoomIsKeptWhenEmpty() {
+        RoomRegistry registry = new RoomRegistry(new ServerConfig());
+        Session alice = new BroadcastBenchmarkTest.DiscardSession("alice");
+        Room lobby = registry.join(alice, "lobby", 10).room;
+        lobby.publish(Frame.of(new Message(new User("1", "alice"), "hi")));
+        registry.leave(alice, "lobby");
+        // 所有人离开后默认房间和聊天记录仍在
+        assertSame(lobby, registry.get("lobby"));
+        assertEquals(1, lobby.history().size());
+
+        // 再次加入时带回之前的聊天记录
+        Session bob = new BroadcastBenchmarkTest.DiscardSession("bob");
+        assertEquals(1, registry.join(bob, "lobby", 10).backlog.length);
+    }
+
+    @Test
+    public void refusesNewRoomsOverTheLimitUntilOneIsDeleted() {
+        ServerConfig config = new ServerConfig();
+        config.setMaxRooms(3);
+        RoomRegistry registry = new RoomRegistry(config);
+        Session alice = new BroadcastBenchmarkTest.DiscardSession("alice");
+        Session bob = new BroadcastBenchmarkTest.DiscardSession("bob");
+        // 默认房间占一个名额
+        registry.join(alice, "a", 0);
+        registry.join(alice, "b", 0);
+        assertNull(registry.join(alice, "c", 0));
+        assertNull(registry.get("c"));
+        assertFalse(alice.getRooms().contains("c"));
+        // 已有的房间照常加入
+        assertSame(registry.get("b"), registry.join(bob, "b", 0).room);
+
+        // 空房间删除后名额空出来
+        registry.leave(alice, "a");
+        assertNotNull(registry.join(bob, "c", 0));
+        assertNull(registry.join(bob, "d", 0));
+    }
+}
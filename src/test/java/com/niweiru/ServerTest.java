@@ -0,0 +1,811 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+import com.google.gson.Gson;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * 服务器端到端测试：两种IO模式下登录、广播、私聊、/list 行为一致
+ */
+@RunWith(Parameterized.class)
+public class ServerTest {
+    private static final Gson gson = new Gson();
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> modes() {
+        return Arrays.asList(new Object[][] {{IoMode.BLOCKING}, {IoMode.NIO}});
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final IoMode ioMode;
+    private Server server;
+
+    public ServerTest(IoMode ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setIoMode(ioMode);
+        config.setIoThreads(2);
+        config.setMetricsPort(0);
+        // 流水线和慢客户端的测试会连续发送大量消息，限流单独测试
+        config.disableRateLimits();
+        server = new Server(config);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void broadcastsPrivateMessagesAndList() throws IOException {
+        try (TestClient alice = new TestClient(server.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            TestClient bob = new TestClient(server.getLocalPort(), "bob");
+            assertEquals("bob 加入了聊天室", alice.receive().getContent());
+            assertEquals("bob 加入了聊天室", bob.receive().getContent());
+
+            alice.send("大家好");
+            Message broadcast = bob.receive();
+            assertEquals("大家好", broadcast.getContent());
+            assertEquals("alice", broadcast.getSender().getUsername());
+
+            bob.send("@alice 悄悄话");
+            Message privateMessage = alice.receive();
+            assertEquals("private", privateMessage.getType());
+            assertEquals("悄悄话", privateMessage.getContent());
+            assertEquals("悄悄话", bob.receive().getContent());
+
+            alice.send("/list");
+            String list = alice.receive().getContent();
+            assertTrue(list.contains("- alice"));
+            assertTrue(list.contains("- bob"));
+            bob.close();
+        }
+    }
+
+    @Test
+    public void subscribersReceivePresenceDeltas() throws IOException {
+        try (TestClient alice = new TestClient(server.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            alice.send("/presence on");
+            assertEquals("已订阅上下线通知，当前在线 1 人", alice.receive().getContent());
+            try (TestClient bob = new TestClient(server.getLocalPort(), "bob")) {
+                // 上线通知在房间的加入通知之前
+                Message online = alice.receive();
+                assertEquals(PresenceService.DELTA_TYPE, online.getType());
+                assertEquals("+bob", online.getContent());
+                assertEquals("bob 加入了聊天室", alice.receive().getContent());
+                assertEquals("bob 加入了聊天室", bob.receive().getContent());
+
+                alice.send("/list b");
+                assertEquals("以 b 开头的在线用户:\n- bob\n", alice.receive().getContent());
+                alice.send("/list 2");
+                assertEquals("没有第 2 页", alice.receive().getContent());
+            }
+            assertEquals("-bob", alice.receive().getContent());
+            assertEquals("bob 离开了聊天室", alice.receive().getContent());
+
+            alice.send("/presence off");
+            assertEquals("已取消订阅上下线通知", alice.receive().getContent());
+            try (TestClient carol = new TestClient(server.getLocalPort(), "carol")) {
+                assertEquals("carol 加入了聊天室", carol.receive().getContent());
+                // 取消订阅之后只收到加入通知，没有 +carol
+                assertEquals("carol 加入了聊天室", alice.receive().getContent());
+            }
+        }
+    }
+
+    @Test
+    public void rejectsOverlongUsername() throws IOException {
+        try (TestClient client = new TestClient(server.getLocalPort(), "x".repeat(33))) {
+            assertEquals("用户名不能超过32个字符", client.receive().getContent());
+            assertNull(client.receive());
+        }
+    }
+
+    @Test
+    public void rejectsDuplicateUsername() throws IOException {
+        try (TestClient first = new TestClient(server.getLocalPort(), "carol")) {
+            assertEquals("carol 加入了聊天室", first.receive().getContent());
+            TestClient second = new TestClient(server.getLocalPort(), "carol");
+            assertEquals("用户名 carol 已被使用，请选择其他用户名", second.receive().getContent());
+            assertNull(second.receive());
+            second.close();
+
+            // 被拒绝的登录不能影响已在线的同名用户
+            first.send("/list");
+            assertTrue(first.receive().getContent().contains("- carol"));
+        }
+    }
+
+    @Test
+    public void deliversPipelinedMessagesWithoutLoss() throws IOException {
+        try (TestClient alice = new TestClient(server.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            try (TestClient bob = new TestClient(server.getLocalPort(), "bob")) {
+                assertEquals("bob 加入了聊天室", alice.receive().getContent());
+                assertEquals("bob 加入了聊天室", bob.receive().getContent());
+
+                // 一次写出很多条消息，服务端一次read会读到好几行
+                int count = 500;
+                String[] contents = new String[count];
+                for (int i = 0; i < count; i++) {
+                    contents[i] = "消息-" + i;
+                }
+                alice.sendBatch(contents);
+                for (int i = 0; i < count; i++) {
+                    assertEquals("消息-" + i, bob.receive().getContent());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void slowReaderIsDisconnectedWithoutStallingRoom() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setIoMode(ioMode);
+        config.setIoThreads(2);
+        config.setOutboundQueueCapacity(32);
+        config.setOverflowPolicy(OverflowPolicy.DISCONNECT);
+        config.disableRateLimits();
+        Server slowServer = new Server(config);
+        slowServer.start();
+        try (TestClient alice = new TestClient(slowServer.getLocalPort(), "alice");
+                Socket slow = new Socket()) {
+            // 依次等每个人登录完成，否则 NIO 模式下登录顺序不确定，bob 可能先收到自己的加入通知
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            TestClient bob = new TestClient(slowServer.getLocalPort(), "bob");
+            assertEquals("bob 加入了聊天室", bob.receive().getContent());
+            // 登录后再也不读，内核缓冲区填满后服务端的发送队列就会堆积
+            slow.setReceiveBufferSize(4096);
+            slow.connect(new java.net.InetSocketAddress("localhost", slowServer.getLocalPort()));
+            PrintWriter slowWriter = new PrintWriter(
+                    new OutputStreamWriter(slow.getOutputStream(), StandardCharsets.UTF_8), true);
+            slowWriter.println(gson.toJson(new Message(new User("id_slow", "slow"), "---login---")));
+            String joined = "slow 加入了聊天室";
+            assertEquals(joined, bob.receive().getContent());
+
+            String payload = "x".repeat(4096);
+            boolean slowLeft = false;
+            for (int i = 0; i < 20000 && !slowLeft; i++) {
+                alice.send(i + payload);
+                Message message;
+                while (!(message = bob.receive()).getContent().startsWith(String.valueOf(i) + "x")) {
+                    slowLeft |= "slow 离开了聊天室".equals(message.getContent());
+                }
+            }
+            assertTrue("慢客户端应当被断开", slowLeft);
+            bob.close();
+        } finally {
+            slowServer.stop();
+        }
+    }
+
+    @Test
+    public void binaryClientTalksToJsonClient() throws IOException {
+        try (TestClient alice = new TestClient(server.getLocalPort(), "alice");
+                Connection bob = new Connection(new Socket("localhost", server.getLocalPort()))) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            bob.getSocket().setSoTimeout(5000);
+            User bobUser = new User("id_bob", "bob");
+            Message login = new Message(bobUser, "---login---");
+            login.setProtocol(Protocol.BINARY.getWireName());
+            bob.send(login);
+            bob.setProtocol(Protocol.BINARY);
+
+            Message joined = bob.receive();
+            assertEquals("bob 加入了聊天室", joined.getContent());
+            assertEquals("System", joined.getSender().getUsername());
+            assertEquals("bob 加入了聊天室", alice.receive().getContent());
+
+            // JSON 客户端 -> 二进制客户端：发送者通过编号定义帧传过去
+            alice.send("大家好");
+            Message fromAlice = bob.receive();
+            assertEquals("大家好", fromAlice.getContent());
+            assertEquals("alice", fromAlice.getSender().getUsername());
+            alice.send("再说一句");
+            assertEquals("alice", bob.receive().getSender().getUsername());
+
+            // 二进制客户端 -> JSON 客户端：服务器以登录用户作为发送者
+            bob.send(new Message(null, "你好 alice"));
+            Message fromBob = alice.receive();
+            assertEquals("你好 alice", fromBob.getContent());
+            assertEquals("bob", fromBob.getSender().getUsername());
+
+            bob.send(new Message(null, "@alice 悄悄话"));
+            Message privateMessage = alice.receive();
+            assertEquals("private", privateMessage.getType());
+            assertEquals("bob", privateMessage.getSender().getUsername());
+            Message echo = bob.receive();
+            assertEquals("private", echo.getType());
+            assertEquals("悄悄话", echo.getContent());
+        }
+    }
+
+    @Test
+    public void compressesLargeFramesWhenNegotiated() throws IOException {
+        StringBuilder pasted = new StringBuilder();
+        for (int i = 0; pasted.length() < 4000; i++) {
+            pasted.append("2024-05-01 12:00:").append(i % 60).append(" INFO 请求处理完成 耗时 ").append(i).append("ms\n");
+        }
+        String big = pasted.toString();
+        try (TestClient alice = new TestClient(server.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            try (Connection bob = login(Protocol.BINARY, "bob");
+                    Socket carol = new Socket("localhost", server.getLocalPort())) {
+                assertEquals("bob 加入了聊天室", bob.receive().getContent());
+                assertEquals("bob 加入了聊天室", alice.receive().getContent());
+
+                // 不压缩的客户端照常收到原文；压缩的二进制客户端透明解压
+                alice.send(big);
+                assertEquals(big, bob.receive().getContent());
+                // 小消息不压缩
+                alice.send("短消息");
+                assertEquals("短消息", bob.receive().getContent());
+                // 二进制客户端发出的大消息也压缩，服务器解压后转发
+                bob.send(new Message(null, big));
+                Message fromBob = alice.receive();
+                assertEquals(big, fromBob.getContent());
+                assertEquals("bob", fromBob.getSender().getUsername());
+
+                // 直接读线路上的字节：JSON 客户端登录时回放的历史是 '~' 开头的压缩行
+                carol.setSoTimeout(5000);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(carol.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter writer = new PrintWriter(new OutputStreamWriter(carol.getOutputStream(), StandardCharsets.UTF_8), true);
+                Message login = new Message(new User("id_carol", "carol"), "---login---");
+                login.setCompression(Compression.DEFLATE);
+                writer.println(gson.toJson(login));
+                assertEquals("carol 加入了聊天室", gson.fromJson(reader.readLine(), Message.class).getContent());
+                assertEquals("—— 房间 lobby 最近 3 条消息 ——", gson.fromJson(reader.readLine(), Message.class).getContent());
+                String line = reader.readLine();
+                assertTrue(line, line.charAt(0) == '~' && line.length() < big.length() / 2);
+                Compression inflater = new Compression(0, null);
+                byte[] wire = line.getBytes(StandardCharsets.UTF_8);
+                String json = new String(inflater.inflate(Protocol.JSON, wire, 0, wire.length, 1 << 20), StandardCharsets.UTF_8);
+                inflater.end();
+                assertEquals(big, gson.fromJson(json, Message.class).getContent());
+                assertEquals("短消息", gson.fromJson(reader.readLine(), Message.class).getContent());
+
+                alice.send("/stats");
+                assertEquals("carol 加入了聊天室", alice.receive().getContent());
+                String stats = alice.receive().getContent();
+                assertTrue(stats, stats.contains("- 压缩: "));
+                assertFalse(stats, stats.contains("- 压缩: 0 帧"));
+            }
+        }
+    }
+
+    /**
+     * 用 Connection 登录，协商压缩
+     */
+    private Connection login(Protocol protocol, String username) throws IOException {
+        Connection connection = new Connection(new Socket("localhost", server.getLocalPort()));
+        connection.getSocket().setSoTimeout(5000);
+        Message login = new Message(new User("id_" + username, username), "---login---");
+        login.setProtocol(protocol.getWireName());
+        login.setCompression(Compression.DEFLATE);
+        connection.send(login);
+        connection.setProtocol(protocol);
+        connection.setCompression(new Compression(1024, null));
+        return connection;
+    }
+
+    @Test
+    public void senderIsAlwaysTheLoggedInUser() throws IOException {
+        try (TestClient alice = new TestClient(server.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            try (TestClient bob = new TestClient(server.getLocalPort(), "bob")) {
+                assertEquals("bob 加入了聊天室", alice.receive().getContent());
+                assertEquals("bob 加入了聊天室", bob.receive().getContent());
+                // 登录之后帧里的 sender 被忽略，冒充别人或者不带都以登录的用户为准
+                bob.writer.println(gson.toJson(new Message(new User("id_alice", "alice"), "我是谁")));
+                Message spoofed = alice.receive();
+                assertEquals("我是谁", spoofed.getContent());
+                assertEquals("bob", spoofed.getSender().getUsername());
+                bob.writer.println("{\"content\":\"@alice 不带发送者\"}");
+                Message privateMessage = alice.receive();
+                assertEquals("不带发送者", privateMessage.getContent());
+                assertEquals("bob", privateMessage.getSender().getUsername());
+            }
+        }
+    }
+
+    @Test
+    public void deliversFramesLargerThanWriteBuffer() throws IOException {
+        // 每条约40KB，一批里的几帧要分几次复制进NIO事件循环的写缓冲区（64KB），帧会从中间断开
+        try (TestClient alice = new TestClient(server.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            try (TestClient bob = new TestClient(server.getLocalPort(), "bob")) {
+                assertEquals("bob 加入了聊天室", alice.receive().getContent());
+                assertEquals("bob 加入了聊天室", bob.receive().getContent());
+                String[] contents = new String[5];
+                for (int i = 0; i < contents.length; i++) {
+                    contents[i] = i + "大段文字".repeat(3300);
+                }
+                alice.sendBatch(contents);
+                for (String content : contents) {
+                    assertEquals(content, bob.receive().getContent());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void messagesStayInsideRoom() throws IOException {
+        try (TestClient alice = new TestClient(server.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            try (TestClient bob = new TestClient(server.getLocalPort(), "bob")) {
+                assertEquals("bob 加入了聊天室", alice.receive().getContent());
+                Message joined = bob.receive();
+                assertEquals("bob 加入了聊天室", joined.getContent());
+                assertEquals("lobby", joined.getRoom());
+
+                alice.send("/join dev");
+                assertEquals("alice 加入了房间 dev", alice.receive().getContent());
+                // 当前房间已切到 dev，bob 不在 dev 里收不到
+                alice.send("只有dev能看到");
+                // alice 的命令按顺序处理，收到 /rooms 的结果说明上一条已经发完
+                alice.send("/rooms");
+                String rooms = alice.receive().getContent();
+                assertTrue(rooms.contains("* lobby (2 人)"));
+                assertTrue(rooms.contains("* dev (1 人)"));
+                bob.send("/rooms");
+                assertTrue(bob.receive().getContent().contains("- dev (1 人)"));
+
+                bob.send("/join dev");
+                assertEquals("bob 加入了房间 dev", alice.receive().getContent());
+                assertEquals("bob 加入了房间 dev", bob.receive().getContent());
+                // 加入时回放房间里之前的消息
+                assertEquals("—— 房间 dev 最近 1 条消息 ——", bob.receive().getContent());
+                assertEquals("只有dev能看到", bob.receive().getContent());
+                bob.send("dev里的消息");
+                Message inDev = alice.receive();
+                assertEquals("dev里的消息", inDev.getContent());
+                assertEquals("dev", inDev.getRoom());
+
+                alice.send("/leave");
+                assertEquals("你已离开房间 dev，当前房间: lobby", alice.receive().getContent());
+                assertEquals("alice 离开了房间 dev", bob.receive().getContent());
+                alice.send("回到lobby");
+                Message inLobby = bob.receive();
+                assertEquals("回到lobby", inLobby.getContent());
+                assertEquals("lobby", inLobby.getRoom());
+            }
+        }
+    }
+
+    @Test
+    public void replaysHistoryOnLoginAndOnRequest() throws IOException {
+        try (TestClient alice = new TestClient(server.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            alice.send("第一条");
+            alice.send("第二条");
+            // 收到 /history 的回放说明前两条已经记录
+            alice.send("/history 1");
+            assertEquals("—— 房间 lobby 最近 1 条消息 ——", alice.receive().getContent());
+            assertEquals("第二条", alice.receive().getContent());
+
+            try (TestClient bob = new TestClient(server.getLocalPort(), "bob")) {
+                assertEquals("bob 加入了聊天室", bob.receive().getContent());
+                assertEquals("—— 房间 lobby 最近 2 条消息 ——", bob.receive().getContent());
+                Message first = bob.receive();
+                assertEquals("第一条", first.getContent());
+                assertEquals("alice", first.getSender().getUsername());
+                assertEquals("第二条", bob.receive().getContent());
+            }
+        }
+    }
+
+    @Test
+    public void historySurvivesRestartWithMessageLog() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setIoMode(ioMode);
+        config.setIoThreads(2);
+        config.setLogDir(folder.newFolder().getPath());
+        long before = System.currentTimeMillis();
+        Server first = new Server(config);
+        first.start();
+        try (TestClient alice = new TestClient(first.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            alice.send("重启前的消息");
+            alice.send("@alice 给自己的悄悄话");
+            assertEquals("给自己的悄悄话", alice.receive().getContent());
+        } finally {
+            first.stop();
+        }
+
+        Server second = new Server(config);
+        second.start();
+        try (TestClient bob = new TestClient(second.getLocalPort(), "bob")) {
+            assertEquals("bob 加入了聊天室", bob.receive().getContent());
+            assertEquals("—— 房间 lobby 最近 1 条消息 ——", bob.receive().getContent());
+            assertEquals("重启前的消息", bob.receive().getContent());
+
+            // 别人的私聊不会出现在 /history since 的结果里
+            bob.send("/history since " + before);
+            assertEquals("—— 房间 lobby 自 " + before + " 以来 1 条消息 ——", bob.receive().getContent());
+            assertEquals("重启前的消息", bob.receive().getContent());
+        } finally {
+            second.stop();
+        }
+    }
+
+    @Test
+    public void limitsRoomsPerUser() throws IOException {
+        try (TestClient alice = new TestClient(server.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            // 默认房间算一个
+            for (int i = 1; i < new ServerConfig().getMaxRoomsPerUser(); i++) {
+                alice.send("/join room" + i);
+                assertEquals("alice 加入了房间 room" + i, alice.receive().getContent());
+            }
+            alice.send("/join one-too-many");
+            assertEquals("最多同时加入 16 个房间，请先 /leave 不用的房间", alice.receive().getContent());
+            // 已经加入的房间可以切换过去
+            alice.send("/join room1");
+            assertEquals("已切换到房间 room1", alice.receive().getContent());
+        }
+    }
+
+    @Test
+    public void roomNamedLikeAUserCannotReplayTheirPrivateMessages() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setIoMode(ioMode);
+        config.setIoThreads(2);
+        config.setLogDir(folder.newFolder().getPath());
+        Server logged = new Server(config);
+        logged.start();
+        try (TestClient alice = new TestClient(logged.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            TestClient bob = new TestClient(logged.getLocalPort(), "bob");
+            assertEquals("bob 加入了聊天室", bob.receive().getContent());
+            TestClient mallory = new TestClient(logged.getLocalPort(), "mallory");
+            assertEquals("mallory 加入了聊天室", mallory.receive().getContent());
+            alice.send("@bob 秘密");
+            while (!"秘密".equals(alice.receive().getContent())) {
+                // 跳过另外两个人的加入通知
+            }
+
+            // 房间 "@bob" 的日志频道和发给 bob 的私聊不是同一个
+            mallory.send("/join @bob");
+            mallory.send("/history since 0");
+            Message reply;
+            while (!(reply = mallory.receive()).getContent().startsWith("—— 房间 @bob 自 0 以来")) {
+                assertNotEquals("秘密", reply.getContent());
+            }
+            assertEquals("—— 房间 @bob 自 0 以来 0 条消息 ——", reply.getContent());
+            mallory.close();
+
+            // bob 自己仍然能查到
+            bob.send("/history since 0");
+            while (!(reply = bob.receive()).getContent().startsWith("—— 房间 lobby 自 0 以来")) {
+                // 跳过加入通知和收到的私聊
+            }
+            assertEquals("—— 房间 lobby 自 0 以来 1 条消息 ——", reply.getContent());
+            assertEquals("秘密", bob.receive().getContent());
+            bob.close();
+        } finally {
+            logged.stop();
+        }
+    }
+
+    @Test
+    public void reportsStatsAndServesMetrics() throws IOException {
+        try (TestClient alice = new TestClient(server.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            try (TestClient bob = new TestClient(server.getLocalPort(), "bob")) {
+                assertEquals("bob 加入了聊天室", alice.receive().getContent());
+                assertEquals("bob 加入了聊天室", bob.receive().getContent());
+                alice.send("大家好");
+                assertEquals("大家好", bob.receive().getContent());
+
+                alice.send("/stats");
+                String stats = alice.receive().getContent();
+                assertTrue(stats, stats.contains("登录: 成功 2，拒绝 0"));
+                assertTrue(stats, stats.contains("收到消息: chat=1 private=0 command=1"));
+                assertTrue(stats, stats.contains("广播耗时(微秒): 次数 1"));
+
+                HttpURLConnection http = (HttpURLConnection)
+                        new URL("http://127.0.0.1:" + server.getMetricsPort() + "/metrics").openConnection();
+                assertEquals(200, http.getResponseCode());
+                String metrics;
+                try (InputStream in = http.getInputStream()) {
+                    metrics = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                }
+                assertTrue(metrics, metrics.contains("chat_sessions_online 2\n"));
+                assertTrue(metrics, metrics.contains("chat_messages_received_total{kind=\"chat\"} 1\n"));
+                assertTrue(metrics, metrics.contains("chat_messages_sent_total{kind=\"chat\"} 1\n"));
+                assertTrue(metrics, metrics.contains("chat_broadcast_latency_seconds_count 1\n"));
+                assertTrue(metrics, metrics.contains("# TYPE chat_write_syscalls_total counter\n"));
+                assertTrue(metrics, metrics.contains("chat_write_syscalls_per_frame "));
+
+                HttpURLConnection probe = (HttpURLConnection)
+                        new URL("http://127.0.0.1:" + server.getMetricsPort() + "/ready").openConnection();
+                assertEquals(200, probe.getResponseCode());
+                probe.disconnect();
+            }
+        }
+    }
+
+    @Test
+    public void coalescesQueuedFramesIntoFewerWrites() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setIoMode(ioMode);
+        config.setIoThreads(2);
+        config.setWriteMaxBatch(16);
+        config.setWriteMaxDelayMicros(2000);
+        config.disableRateLimits();
+        Server batchingServer = new Server(config);
+        batchingServer.start();
+        try (TestClient alice = new TestClient(batchingServer.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            try (TestClient bob = new TestClient(batchingServer.getLocalPort(), "bob")) {
+                assertEquals("bob 加入了聊天室", alice.receive().getContent());
+                assertEquals("bob 加入了聊天室", bob.receive().getContent());
+                ServerMetrics metrics = batchingServer.getMetrics();
+                long framesBefore = metrics.framesWritten().sum();
+                long callsBefore = metrics.writeCalls().sum();
+
+                int count = 200;
+                String[] contents = new String[count];
+                for (int i = 0; i < count; i++) {
+                    contents[i] = "消息-" + i;
+                }
+                alice.sendBatch(contents);
+                for (int i = 0; i < count; i++) {
+                    assertEquals("消息-" + i, bob.receive().getContent());
+                }
+
+                long frames = metrics.framesWritten().sum() - framesBefore;
+                long calls = metrics.writeCalls().sum() - callsBefore;
+                assertEquals(count, frames);
+                if (ioMode == IoMode.NIO) {
+                    // 一次读到的多帧在同一轮事件循环里入队，合并成少数几次 gathering write
+                    assertTrue(calls + " 次写出 " + frames + " 帧", calls * 4 <= frames);
+                } else {
+                    assertTrue(calls + " 次写出 " + frames + " 帧", calls <= frames);
+                }
+            }
+        } finally {
+            batchingServer.stop();
+        }
+    }
+
+    @Test
+    public void shutdownNotifiesClientsAndClosesConnections() throws IOException {
+        int port = server.getLocalPort();
+        assertTrue(server.isReady());
+        try (TestClient alice = new TestClient(port, "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            try (TestClient bob = new TestClient(port, "bob")) {
+                assertEquals("bob 加入了聊天室", alice.receive().getContent());
+                assertEquals("bob 加入了聊天室", bob.receive().getContent());
+
+                server.shutdown();
+                assertFalse(server.isReady());
+                // 每个人只收到关闭通知，然后连接被关闭，不会再收到别人离开的通知
+                for (TestClient client : new TestClient[] {alice, bob}) {
+                    assertEquals("服务器正在关闭，连接即将断开，请稍后重新连接", client.receive().getContent());
+                    assertNull(client.receive());
+                }
+                try {
+                    new Socket("localhost", port).close();
+                    fail("关闭后不应再接受连接");
+                } catch (ConnectException expected) {
+                    // 端口已不再监听
+                }
+            }
+        }
+    }
+
+    @Test
+    public void silentClientIsPingedThenReaped() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setIoMode(ioMode);
+        config.setIoThreads(2);
+        config.setIdleTimeoutMillis(200);
+        config.setReadTimeoutMillis(600);
+        config.setHeartbeatTickMillis(20);
+        config.disableRateLimits();
+        Server heartbeatServer = new Server(config);
+        heartbeatServer.start();
+        try (TestClient alice = new TestClient(heartbeatServer.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            alice.sendType(Heartbeat.PING_TYPE);
+            assertEquals(Heartbeat.PONG_TYPE, alice.receive().getType());
+
+            TestClient bob = new TestClient(heartbeatServer.getLocalPort(), "bob");
+            assertEquals("bob 加入了聊天室", bob.receive().getContent());
+            // alice 一直回 pong，不会被断开；bob 不回，超过读超时后被断开，alice 收到离开通知
+            while (true) {
+                Message message = alice.receive();
+                if (Heartbeat.PING_TYPE.equals(message.getType())) {
+                    alice.sendType(Heartbeat.PONG_TYPE);
+                } else if ("bob 离开了聊天室".equals(message.getContent())) {
+                    break;
+                }
+            }
+            // bob 每个空闲周期收到一个 ping，然后连接被关闭
+            assertEquals(Heartbeat.PING_TYPE, bob.receive().getType());
+            Message next;
+            while ((next = bob.receive()) != null) {
+                assertEquals(Heartbeat.PING_TYPE, next.getType());
+            }
+            bob.close();
+
+            alice.send("/list");
+            Message list;
+            do {
+                list = alice.receive();
+            } while (Heartbeat.PING_TYPE.equals(list.getType()));
+            assertFalse(list.getContent(), list.getContent().contains("- bob"));
+            assertTrue(heartbeatServer.getMetrics().summary(new Session[0]).contains("空闲断开 1"));
+        } finally {
+            heartbeatServer.stop();
+        }
+    }
+
+    @Test
+    public void heartbeatWithContentIsCountedOnceAsHeartbeat() throws IOException {
+        try (TestClient alice = new TestClient(server.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            // 心跳不按内容分类：既不执行 /list，也不计为命令
+            alice.sendType(Heartbeat.PING_TYPE, "/list");
+            assertEquals(Heartbeat.PONG_TYPE, alice.receive().getType());
+            alice.send("/stats");
+            String stats = alice.receive().getContent();
+            assertTrue(stats, stats.contains("收到消息: chat=0 private=0 command=1"));
+        }
+    }
+
+    @Test
+    public void floodingClientIsWarnedThenDisconnected() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setIoMode(ioMode);
+        config.setIoThreads(2);
+        config.setChatRateLimit(new RateLimit(1, 3));
+        config.setRateLimitMaxStrikes(5);
+        Server limitedServer = new Server(config);
+        limitedServer.start();
+        try (TestClient alice = new TestClient(limitedServer.getLocalPort(), "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            TestClient bob = new TestClient(limitedServer.getLocalPort(), "bob");
+            assertEquals("bob 加入了聊天室", bob.receive().getContent());
+            assertEquals("bob 加入了聊天室", alice.receive().getContent());
+
+            // 突发3条放行，第4条被丢弃并警告，再超出4次断开
+            bob.sendBatch(new String[] {"1", "2", "3", "4", "5", "6", "7", "8", "9"});
+            assertEquals("1", alice.receive().getContent());
+            assertEquals("2", alice.receive().getContent());
+            assertEquals("3", alice.receive().getContent());
+            assertEquals("发送过于频繁，消息已被丢弃；继续刷屏将被断开连接", bob.receive().getContent());
+            assertEquals("发送过于频繁，连接已断开", bob.receive().getContent());
+            assertNull(bob.receive());
+            assertEquals("bob 离开了聊天室", alice.receive().getContent());
+            bob.close();
+
+            // 命令有自己的令牌桶，不受广播限流影响
+            alice.send("/list");
+            assertTrue(alice.receive().getContent().contains("- alice"));
+        } finally {
+            limitedServer.stop();
+        }
+    }
+
+    /**
+     * 直接使用原始Socket的测试客户端，读写器在整个连接期间复用
+     */
+    static class TestClient implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final PrintWriter writer;
+        private final User user;
+
+        TestClient(int port, String username) throws IOException {
+            this(new Socket("localhost", port), username);
+        }
+
+        /**
+         * 在已经建立的连接上登录，比如TLS连接
+         */
+        TestClient(Socket socket, String username) throws IOException {
+            this.socket = socket;
+            socket.setSoTimeout(5000);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            user = new User("id_" + username, username);
+            send("---login---");
+        }
+
+        String getUsername() {
+            return user.getUsername();
+        }
+
+        void send(String content) {
+            writer.println(gson.toJson(new Message(user, content)));
+        }
+
+        /**
+         * 发一条只有类型的消息，比如心跳
+         */
+        void sendType(String type) {
+            writer.println(gson.toJson(Heartbeat.message(user, type)));
+        }
+
+        /**
+         * 发一条带内容的指定类型的消息
+         */
+        void sendType(String type, String content) {
+            Message message = Heartbeat.message(user, type);
+            message.setContent(content);
+            writer.println(gson.toJson(message));
+        }
+
+        /**
+         * 把多条消息拼在一起，一次写出
+         */
+        void sendBatch(String... contents) {
+            StringBuilder batch = new StringBuilder();
+            for (String content : contents) {
+                batch.append(gson.toJson(new Message(user, content))).append('\n');
+            }
+            writer.print(batch);
+            writer.flush();
+        }
+
+        Message receive() throws IOException {
+            try {
+                String line = reader.readLine();
+                return line == null ? null : gson.fromJson(line, Message.class);
+            } catch (SocketTimeoutException e) {
+                throw new AssertionError("等待消息超时", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * 在线会话登记表：查找、快照、同名登录竞争
+ */
+public class SessionRegistryTest {
+
+    @Test
+    public void looksUpByUsernameAndId() {
+        SessionRegistry registry = new SessionRegistry();
+        Session alice = new BroadcastBenchmarkTest.DiscardSession("alice");
+        Session bob = new BroadcastBenchmarkTest.DiscardSession("bob");
+        assertTrue(registry.register(alice, new User("1", "alice")));
+        assertTrue(registry.register(bob, new User("2", "bob")));
+
+        assertSame(alice, registry.findByUsername("alice"));
+        assertSame(bob, registry.findByUserId("2"));
+        assertTrue(registry.contains(bob));
+        assertArrayEquals(new Session[] {alice, bob}, registry.sessions());
+
+        Session[] before = registry.sessions();
+        assertEquals("alice", registry.unregister(alice).getUsername());
+        assertNull(registry.unregister(alice));
+        assertNull(registry.findByUsername("alice"));
+        assertNull(registry.findByUserId("1"));
+        assertFalse(registry.contains(alice));
+        assertArrayEquals(new Session[] {bob}, registry.sessions());
+        // 已经拿到的快照不受影响
+        assertEquals(2, before.length);
+    }
+
+    @Test
+    public void rejectedLoginDoesNotTouchExistingUser() {
+        SessionRegistry registry = new SessionRegistry();
+        Session first = new BroadcastBenchmarkTest.DiscardSession("first");
+        Session second = new BroadcastBenchmarkTest.DiscardSession("second");
+        assertTrue(registry.register(first, new User("1", "carol")));
+        assertFalse(registry.register(second, new User("2", "carol")));
+
+        assertNull(second.getUser());
+        assertNull(registry.unregister(second));
+        assertSame(first, registry.findByUsername("carol"));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void concurrentSameNameLoginsOnlyOneWins() throws InterruptedException {
+        SessionRegistry registry = new SessionRegistry();
+        int threads = 16;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int round = 0; round < 200; round++) {
+            String username = "dave" + round;
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(threads);
+            AtomicInteger winners = new AtomicInteger();
+            for (int i = 0; i < threads; i++) {
+                String id = round + "_" + i;
+                pool.execute(() -> {
+                    try {
+                        start.await();
+                        if (registry.register(new BroadcastBenchmarkTest.DiscardSession(id), new User(id, username))) {
+                            winners.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+            start.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(1, winners.get());
+        }
+        pool.shutdown();
+        assertEquals(200, registry.size());
+    }
+}
@@ -0,0 +1,64 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * 时间轮：按 tick 到期、跨圈、回调中重新加入
+ */
+public class TimingWheelTest {
+    private static final long TICK = 1_000_000L;
+
+    @Test
+    public void expiresEntriesAtTheirTick() {
+        long start = 5_000_000_000L;
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 8, start);
+        wheel.schedule("a", start + 3 * TICK);
+        wheel.schedule("b", start + 3 * TICK - 1);
+        wheel.schedule("c", start + 5 * TICK);
+        List<String> expired = new ArrayList<>();
+
+        wheel.advance(start + 2 * TICK, expired::add);
+        assertTrue(expired.isEmpty());
+        wheel.advance(start + 3 * TICK, expired::add);
+        assertEquals(List.of("b", "a"), expired);
+        wheel.advance(start + 10 * TICK, expired::add);
+        assertEquals(List.of("b", "a", "c"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void keepsEntriesThatNeedMoreRounds() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 4, 0);
+        // 和第1格落在同一个格子上，要转两圈多才到期
+        wheel.schedule("late", 9 * TICK);
+        wheel.schedule("early", TICK);
+        List<String> expired = new ArrayList<>();
+
+        wheel.advance(5 * TICK, expired::add);
+        assertEquals(List.of("early"), expired);
+        assertEquals(1, wheel.size());
+        wheel.advance(9 * TICK, expired::add);
+        assertEquals(List.of("early", "late"), expired);
+    }
+
+    @Test
+    public void rescheduledEntriesExpireInALaterTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 4, 0);
+        wheel.schedule("x", 0);
+        List<String> expired = new ArrayList<>();
+        // 回调里按已经过去的时间重新加入，不能在同一次 advance 中反复到期
+        wheel.advance(0, item -> {
+            expired.add(item);
+            wheel.schedule(item, 0);
+        });
+        assertEquals(1, expired.size());
+        wheel.advance(TICK, expired::add);
+        assertEquals(2, expired.size());
+    }
+}
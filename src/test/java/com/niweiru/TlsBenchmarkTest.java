@@ -0,0 +1,235 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TLS 的代价：
+ * 1. 建连：明文TCP连接、TLS完整握手、TLS恢复会话的握手，每秒能建立多少条（对本机的NIO服务器）
+ * 2. 每条消息：几种大小的帧加密后多出的字节数，以及加密和解密的耗时（内存里的一对 SSLEngine，不经过网络）
+ *
+ * 默认跳过，运行方式：
+ * mvn test -Dtest=TlsBenchmarkTest -Dchat.benchmark=true [-Dchat.benchmark.handshakes=300] [-Dchat.benchmark.messages=20000]
+ */
+public class TlsBenchmarkTest {
+    private static final Logger logger = LoggerFactory.getLogger(TlsBenchmarkTest.class);
+
+    private static final int HANDSHAKES = Integer.getInteger("chat.benchmark.handshakes", 300);
+    private static final int MESSAGES = Integer.getInteger("chat.benchmark.messages", 20_000);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String keyStore;
+
+    @Before
+    public void onlyWhenRequested() throws Exception {
+        assumeTrue("设置 -Dchat.benchmark=true 才运行基准测试", Boolean.getBoolean("chat.benchmark"));
+        keyStore = TlsTest.generateKeyStore(folder.getRoot());
+    }
+
+    @Test
+    public void connectionRateWithFullAndResumedHandshakes() throws Exception {
+        Server plain = new Server(TlsTest.tlsConfig(IoMode.NIO, null));
+        Server tls = new Server(TlsTest.tlsConfig(IoMode.NIO, keyStore));
+        plain.start();
+        tls.start();
+        try {
+            SSLContext shared = Tls.clientContext(keyStore, TlsTest.PASSWORD, "PKCS12");
+            // 预热，同时让共用的上下文拿到会话票据
+            for (int i = 0; i < HANDSHAKES / 10 + 1; i++) {
+                connect(plain.getLocalPort(), null, "warm" + i);
+                connect(tls.getLocalPort(), Tls.clientContext(keyStore, TlsTest.PASSWORD, "PKCS12"), "warm" + i);
+                connect(tls.getLocalPort(), shared, "warm" + i);
+            }
+
+            logger.info("每种方式各建立 {} 条连接，只计连接和握手的时间（登录和断开不计）", HANDSHAKES);
+            logger.info(String.format("%-16s %12s %12s %10s", "方式", "连接/秒", "平均(毫秒)", "恢复会话"));
+            long[] tcp = run(plain.getLocalPort(), null, false);
+            long[] full = run(tls.getLocalPort(), null, true);
+            long[] resumed = run(tls.getLocalPort(), shared, true);
+            report("明文TCP", tcp);
+            report("TLS完整握手", full);
+            report("TLS恢复会话", resumed);
+            assertEquals(0, full[1]);
+            assertTrue("共用的上下文应该恢复会话: " + resumed[1], resumed[1] > HANDSHAKES / 2);
+        } finally {
+            tls.stop();
+            plain.stop();
+        }
+    }
+
+    /**
+     * @param context 为null时每条连接新建一个上下文（TLS）或者不用TLS
+     * @return {连接和握手的总纳秒, 恢复了会话的连接数}
+     */
+    private long[] run(int port, SSLContext context, boolean tls) throws IOException {
+        long nanos = 0;
+        long resumed = 0;
+        for (int i = 0; i < HANDSHAKES; i++) {
+            SSLContext current = !tls ? null : context != null ? context
+                    : Tls.clientContext(keyStore, TlsTest.PASSWORD, "PKCS12");
+            long[] result = connect(port, current, "bench" + i);
+            nanos += result[0];
+            resumed += result[1];
+        }
+        return new long[] {nanos, resumed};
+    }
+
+    /**
+     * 建立连接（context 不为null时完成TLS握手），然后登录、等到加入通知再断开，
+     * 收到加入通知时TLS 1.3 的会话票据也已经收下了
+     * @return {连接和握手的纳秒, 是否恢复了会话}
+     */
+    private static long[] connect(int port, SSLContext context, String username) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        Socket socket = context == null ? new Socket("localhost", port) : Tls.connect(context, "localhost", port, null);
+        long nanos = System.nanoTime() - start;
+        boolean resumed = socket instanceof SSLSocket
+                && ((SSLSocket) socket).getSession().getCreationTime() < startMillis;
+        try (ServerTest.TestClient client = new ServerTest.TestClient(socket, username)) {
+            assertEquals(username + " 加入了聊天室", client.receive().getContent());
+        }
+        return new long[] {nanos, resumed ? 1 : 0};
+    }
+
+    private static void report(String name, long[] result) {
+        logger.info(String.format(Locale.ROOT, "%-16s %12.0f %12.3f %7d/%d", name,
+                HANDSHAKES * 1e9 / result[0], result[0] / 1e6 / HANDSHAKES, result[1], HANDSHAKES));
+    }
+
+    @Test
+    public void perMessageOverhead() throws Exception {
+        SSLContext serverContext = Tls.serverContext(TlsTest.tlsConfig(IoMode.NIO, keyStore));
+        SSLEngine server = Tls.serverEngine(serverContext, TlsTest.tlsConfig(IoMode.NIO, keyStore));
+        SSLEngine client = Tls.clientContext(keyStore, TlsTest.PASSWORD, "PKCS12").createSSLEngine("localhost", 0);
+        client.setUseClientMode(true);
+        ByteBuffer wire = ByteBuffer.allocate(8 * server.getSession().getPacketBufferSize());
+        ByteBuffer plain = ByteBuffer.allocate(8 * client.getSession().getApplicationBufferSize());
+        handshake(client, server, wire, plain);
+        logger.info("握手完成: {} {}", server.getSession().getProtocol(), server.getSession().getCipherSuite());
+
+        User sender = new User("user_1234", "alice");
+        Message[] messages = {
+            new Message(sender, "好的"),
+            new Message(sender, "今天中午吃什么？楼下新开了一家面馆，听说牛肉面不错"),
+            new Message(sender, "x".repeat(1000)),
+            new Message(sender, "x".repeat(16_000)),
+            new Message(sender, "大段文字".repeat(3300)),
+        };
+        // 预热
+        for (Message message : messages) {
+            run(server, client, Frame.of(message, 42).bytes(Protocol.BINARY, null), wire, plain, MESSAGES / 10);
+        }
+
+        logger.info("每种帧（二进制协议）各加密和解密 {} 次，服务器加密、客户端解密", MESSAGES);
+        logger.info(String.format("%10s %10s %8s %12s %12s", "明文字节", "密文字节", "多出", "加密(微秒)", "解密(微秒)"));
+        for (Message message : messages) {
+            byte[] frame = Frame.of(message, 42).bytes(Protocol.BINARY, null);
+            long[] result = run(server, client, frame, wire, plain, MESSAGES);
+            logger.info(String.format(Locale.ROOT, "%10d %10d %7.1f%% %12.2f %12.2f", frame.length, result[0],
+                    100.0 * (result[0] - frame.length) / frame.length,
+                    result[1] / 1000.0 / MESSAGES, result[2] / 1000.0 / MESSAGES));
+        }
+    }
+
+    /**
+     * 把一帧加密再解密 count 次
+     * @return {一帧的密文字节数, 加密总纳秒, 解密总纳秒}
+     */
+    private static long[] run(SSLEngine server, SSLEngine client, byte[] frame, ByteBuffer wire, ByteBuffer plain,
+            int count) throws IOException {
+        long wireBytes = 0;
+        long wrapNanos = 0;
+        long unwrapNanos = 0;
+        for (int i = 0; i < count; i++) {
+            ByteBuffer src = ByteBuffer.wrap(frame);
+            wire.clear();
+            long start = System.nanoTime();
+            while (src.hasRemaining()) {
+                assertEquals(SSLEngineResult.Status.OK, server.wrap(src, wire).getStatus());
+            }
+            long wrapped = System.nanoTime();
+            wireBytes = wire.position();
+            wire.flip();
+            plain.clear();
+            while (wire.hasRemaining()) {
+                assertEquals(SSLEngineResult.Status.OK, client.unwrap(wire, plain).getStatus());
+            }
+            unwrapNanos += System.nanoTime() - wrapped;
+            wrapNanos += wrapped - start;
+            assertEquals(frame.length, plain.position());
+        }
+        return new long[] {wireBytes, wrapNanos, unwrapNanos};
+    }
+
+    /**
+     * 在内存里完成握手，客户端顺便收下服务器握手后发的会话票据
+     */
+    private static void handshake(SSLEngine client, SSLEngine server, ByteBuffer wire, ByteBuffer plain)
+            throws IOException {
+        ByteBuffer toServer = ByteBuffer.allocate(wire.capacity());
+        ByteBuffer toClient = ByteBuffer.allocate(wire.capacity());
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int round = 0; round < 100; round++) {
+            boolean progressed = step(client, toClient, toServer, plain) | step(server, toServer, toClient, plain);
+            if (!progressed && toServer.position() == 0 && toClient.position() == 0) {
+                return;
+            }
+        }
+        throw new AssertionError("握手没有完成");
+    }
+
+    /**
+     * 推进一端的握手：执行委托任务，写出要发的数据，读入对方发来的数据
+     * @return 有没有读写数据
+     */
+    private static boolean step(SSLEngine engine, ByteBuffer in, ByteBuffer out, ByteBuffer plain)
+            throws IOException {
+        boolean progressed = false;
+        while (true) {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            SSLEngineResult result;
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                result = engine.wrap(EMPTY, out);
+            } else if (in.position() > 0) {
+                in.flip();
+                plain.clear();
+                result = engine.unwrap(in, plain);
+                in.compact();
+            } else {
+                return progressed;
+            }
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                    && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                return progressed;
+            }
+            progressed = true;
+        }
+    }
+}
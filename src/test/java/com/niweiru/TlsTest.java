@@ -0,0 +1,201 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+/**
+ * TLS模式：两种IO模式下的加密收发、会话恢复、证书校验
+ * 测试用的自签名证书在运行时用JDK自带的 keytool 生成，不提交到仓库。
+ */
+@RunWith(Parameterized.class)
+public class TlsTest {
+    static final String PASSWORD = "changeit";
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static String keyStore;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> modes() {
+        return Arrays.asList(new Object[][] {{IoMode.BLOCKING}, {IoMode.NIO}});
+    }
+
+    private final IoMode ioMode;
+    private Server server;
+    private SSLContext client;
+
+    public TlsTest(IoMode ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    @BeforeClass
+    public static void generateKeyStore() throws Exception {
+        keyStore = generateKeyStore(folder.getRoot());
+    }
+
+    /**
+     * 用 keytool 生成一个 localhost 的自签名证书（PKCS12），口令为 PASSWORD
+     * 同一个文件既是服务器的密钥库，也是客户端的信任库。
+     * @return 密钥库路径
+     */
+    static String generateKeyStore(File dir) throws Exception {
+        File file = new File(dir, "server.p12");
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-validity", "2", "-storetype", "PKCS12", "-keystore", file.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue("keytool 超时", process.waitFor(30, TimeUnit.SECONDS));
+        assertEquals(output, 0, process.exitValue());
+        return file.getPath();
+    }
+
+    static ServerConfig tlsConfig(IoMode ioMode, String keyStore) {
+        ServerConfig config = new ServerConfig();
+        config.setPort(0);
+        config.setIoMode(ioMode);
+        config.setIoThreads(2);
+        config.disableRateLimits();
+        config.setTlsKeyStore(keyStore);
+        config.setTlsKeyStorePassword(PASSWORD);
+        return config;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new Server(tlsConfig(ioMode, keyStore));
+        server.start();
+        client = Tls.clientContext(keyStore, PASSWORD, "PKCS12");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private ServerTest.TestClient login(SSLContext context, String username) throws IOException {
+        return new ServerTest.TestClient(Tls.connect(context, "localhost", server.getLocalPort(), null), username);
+    }
+
+    @Test
+    public void exchangesMessagesOverTls13() throws IOException {
+        try (ServerTest.TestClient alice = login(client, "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            try (ServerTest.TestClient bob = login(client, "bob")) {
+                assertEquals("bob 加入了聊天室", alice.receive().getContent());
+                assertEquals("bob 加入了聊天室", bob.receive().getContent());
+
+                alice.send("你好");
+                assertEquals("你好", bob.receive().getContent());
+                bob.send("@alice 悄悄话");
+                assertEquals("悄悄话", alice.receive().getContent());
+                assertEquals("悄悄话", bob.receive().getContent());
+
+                // 一条消息跨好几条TLS记录（每条最多16KB）
+                String big = "大段文字".repeat(3300);
+                for (int i = 0; i < 3; i++) {
+                    alice.send(big + i);
+                }
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(big + i, bob.receive().getContent());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reconnectsResumeTheSession() throws IOException {
+        long firstCreated;
+        try (SSLSocket first = Tls.connect(client, "localhost", server.getLocalPort(), null)) {
+            assertEquals("TLSv1.3", first.getSession().getProtocol());
+            firstCreated = first.getSession().getCreationTime();
+            // TLS 1.3 的会话票据在握手之后才发过来，读一次让客户端收下
+            ServerTest.TestClient alice = new ServerTest.TestClient(first, "alice");
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+        }
+        // 同一个客户端上下文重连：恢复的会话沿用第一次完整握手时的会话
+        for (int i = 0; i < 3; i++) {
+            try (SSLSocket again = Tls.connect(client, "localhost", server.getLocalPort(), null)) {
+                assertEquals(firstCreated, again.getSession().getCreationTime());
+                ServerTest.TestClient bob = new ServerTest.TestClient(again, "bob" + i);
+                assertEquals("bob" + i + " 加入了聊天室", bob.receive().getContent());
+            }
+        }
+        // 新的客户端上下文没有票据，只能完整握手
+        SSLContext fresh = Tls.clientContext(keyStore, PASSWORD, "PKCS12");
+        try (SSLSocket full = Tls.connect(fresh, "localhost", server.getLocalPort(), null)) {
+            assertNotEquals(firstCreated, full.getSession().getCreationTime());
+        }
+    }
+
+    @Test
+    public void untrustedCertificateIsRejectedByClient() throws IOException {
+        // JDK 默认的CA证书不信任自签名证书
+        SSLContext defaults = Tls.clientContext(null, null, null);
+        try (SSLSocket socket = Tls.connect(defaults, "localhost", server.getLocalPort(), null)) {
+            fail("不应该信任自签名证书: " + socket.getSession());
+        } catch (SSLException e) {
+            // 预期的握手失败
+        }
+        // 服务器不受影响
+        try (ServerTest.TestClient alice = login(client, "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+        }
+    }
+
+    @Test
+    public void plaintextClientIsDisconnected() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write("{\"sender\":{\"id\":\"1\",\"username\":\"mallory\"},\"content\":\"---login---\"}\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            // 服务器最多回一个TLS告警就断开，不会把它当作登录
+            byte[] buffer = new byte[1024];
+            try {
+                while (socket.getInputStream().read(buffer) >= 0) {
+                    // 丢弃告警
+                }
+            } catch (SocketException e) {
+                // 连接被重置
+            }
+        }
+        try (ServerTest.TestClient alice = login(client, "alice")) {
+            assertEquals("alice 加入了聊天室", alice.receive().getContent());
+            alice.send("/list");
+            String list = alice.receive().getContent();
+            assertFalse(list, list.contains("mallory"));
+        }
+    }
+}
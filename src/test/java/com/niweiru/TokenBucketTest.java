@@ -0,0 +1,45 @@
+package com.niweiru;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * 令牌桶：突发、按速率补充、配置解析
+ */
+public class TokenBucketTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void allowsBurstThenRefillsAtRate() {
+        TokenBucket bucket = new TokenBucket(new RateLimit(2, 3));
+        long now = System.nanoTime();
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+        // 每秒2个，半秒补一个
+        assertTrue(bucket.tryAcquire(now + SECOND / 2));
+        assertFalse(bucket.tryAcquire(now + SECOND / 2));
+        // 空闲很久也最多攒满突发的3个
+        long later = now + 60 * SECOND;
+        assertTrue(bucket.tryAcquire(later));
+        assertTrue(bucket.tryAcquire(later));
+        assertTrue(bucket.tryAcquire(later));
+        assertFalse(bucket.tryAcquire(later));
+    }
+
+    @Test
+    public void parsesLimits() {
+        RateLimit limit = RateLimit.parse("5/10");
+        assertEquals(5.0, limit.getPerSecond(), 0);
+        assertEquals(10, limit.getBurst());
+        assertEquals(3, RateLimit.parse("2.5").getBurst());
+        assertTrue(RateLimit.parse("off").isUnlimited());
+        assertTrue(RateLimit.parse("0").isUnlimited());
+        assertEquals(limit.toString(), RateLimit.parse(limit.toString()).toString());
+        assertEquals(40, limit.times(4).getBurst());
+    }
+}